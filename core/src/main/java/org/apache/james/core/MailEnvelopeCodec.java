@@ -0,0 +1,493 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.ParseException;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * <p>
+ * Compact binary format for the envelope of a {@link Mail}, which can be used
+ * instead of the Java serialization of a {@link MailImpl} to persist it. The
+ * format does not depend on the class layout of {@link MailImpl} and is a lot
+ * smaller and faster to read and write.
+ * </p>
+ * <p>
+ * The layout of version 1 is:
+ * 
+ * <pre>
+ * short   magic
+ * byte    version
+ * string  name
+ * string  state
+ * string  error message
+ * string  sender
+ * int     recipient count
+ * string  recipients
+ * string  remote host
+ * string  remote address
+ * boolean last updated set
+ * long    last updated
+ * int     attribute count
+ * string  attribute name, byte type, value
+ * </pre>
+ * 
+ * A string is written as the length of its UTF-8 bytes (-1 for
+ * <code>null</code>) followed by the bytes. Attribute values of the common
+ * immutable types, {@link Date}, <code>byte[]</code> and {@link MailAddress}
+ * are written as typed values, all others are written Java serialized.
+ * </p>
+ * <p>
+ * The readers detect the format by its magic, so they can also read envelopes
+ * which were written via Java serialization.
+ * </p>
+ */
+public class MailEnvelopeCodec {
+
+    /** Magic of an encoded envelope, Java serialization starts with 0xACED */
+    public final static int MAGIC = 0x4A45;
+
+    /** Magic of encoded attributes */
+    public final static int ATTRIBUTES_MAGIC = 0x4A41;
+
+    public final static byte VERSION_1 = 1;
+
+    private final static byte TYPE_NULL = 0;
+    private final static byte TYPE_STRING = 1;
+    private final static byte TYPE_BOOLEAN = 2;
+    private final static byte TYPE_INTEGER = 3;
+    private final static byte TYPE_LONG = 4;
+    private final static byte TYPE_DOUBLE = 5;
+    private final static byte TYPE_FLOAT = 6;
+    private final static byte TYPE_SHORT = 7;
+    private final static byte TYPE_BYTE = 8;
+    private final static byte TYPE_CHARACTER = 9;
+    private final static byte TYPE_DATE = 10;
+    private final static byte TYPE_BYTES = 11;
+    private final static byte TYPE_MAIL_ADDRESS = 12;
+    private final static byte TYPE_SERIALIZED = 127;
+
+    private MailEnvelopeCodec() {
+    }
+
+    /**
+     * Encode the envelope of the given {@link Mail}
+     * 
+     * @param mail
+     * @return encoded
+     * @throws IOException
+     */
+    public static byte[] encode(Mail mail) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        encode(mail, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the envelope of the given {@link Mail} to the stream. The stream
+     * is flushed but not closed.
+     * 
+     * @param mail
+     * @param out
+     * @throws IOException
+     */
+    public static void encode(Mail mail, OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeShort(MAGIC);
+        dout.writeByte(VERSION_1);
+        writeString(dout, mail.getName());
+        writeString(dout, mail.getState());
+        writeString(dout, mail.getErrorMessage());
+        MailAddress sender = mail.getSender();
+        writeString(dout, sender == null ? null : sender.toString());
+
+        Collection<MailAddress> rcpts = mail.getRecipients();
+        if (rcpts == null) {
+            dout.writeInt(-1);
+        } else {
+            dout.writeInt(rcpts.size());
+            Iterator<MailAddress> it = rcpts.iterator();
+            while (it.hasNext()) {
+                writeString(dout, it.next().toString());
+            }
+        }
+        writeString(dout, mail.getRemoteHost());
+        writeString(dout, mail.getRemoteAddr());
+        Date lastUpdated = mail.getLastUpdated();
+        dout.writeBoolean(lastUpdated != null);
+        dout.writeLong(lastUpdated == null ? 0 : lastUpdated.getTime());
+
+        if (mail instanceof MailImpl) {
+            // no need to copy the attributes as they are only read
+            writeAttributes(dout, ((MailImpl) mail).getAttributeMap());
+        } else {
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            Iterator<String> names = mail.getAttributeNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                attributes.put(name, mail.getAttribute(name));
+            }
+            writeAttributes(dout, attributes);
+        }
+        dout.flush();
+    }
+
+    /**
+     * Decode an envelope which was written via
+     * {@link #encode(Mail, OutputStream)}. The returned {@link MailImpl} has no
+     * message set.
+     * 
+     * @param in
+     * @return mail
+     * @throws IOException
+     */
+    public static MailImpl decode(InputStream in) throws IOException {
+        return decode(in, null);
+    }
+
+    /**
+     * Decode an envelope which was written via
+     * {@link #encode(Mail, OutputStream)}. The classes of serialized attribute
+     * values are loaded via the given {@link ClassLoader}, if not
+     * <code>null</code>. The returned {@link MailImpl} has no message set.
+     * 
+     * @param in
+     * @param classLoader
+     * @return mail
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static MailImpl decode(InputStream in, ClassLoader classLoader) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        int magic = din.readUnsignedShort();
+        if (magic != MAGIC) {
+            throw new IOException("Not an encoded envelope");
+        }
+        byte version = din.readByte();
+        if (version != VERSION_1) {
+            throw new IOException("Unsupported envelope version " + version);
+        }
+        MailImpl mail = new MailImpl();
+        mail.setName(readString(din));
+        mail.setState(readString(din));
+        mail.setErrorMessage(readString(din));
+        String sender = readString(din);
+        mail.setSender(sender == null ? null : toMailAddress(sender));
+
+        int count = din.readInt();
+        if (count >= 0) {
+            List<MailAddress> rcpts = new ArrayList<MailAddress>(count);
+            for (int i = 0; i < count; i++) {
+                rcpts.add(toMailAddress(readString(din)));
+            }
+            mail.setRecipients(rcpts);
+        }
+        mail.setRemoteHost(readString(din));
+        mail.setRemoteAddr(readString(din));
+        boolean hasLastUpdated = din.readBoolean();
+        long lastUpdated = din.readLong();
+        mail.setLastUpdated(hasLastUpdated ? new Date(lastUpdated) : null);
+        mail.setAttributesRaw(readAttributes(din, classLoader));
+        return mail;
+    }
+
+    /**
+     * Read a {@link Mail} which was either encoded via
+     * {@link #encode(Mail, OutputStream)} or written via Java serialization. If
+     * the stream does not support mark and reset it gets buffered, so it may
+     * be read beyond the end of the envelope.
+     * 
+     * @param in
+     * @return mail
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Mail read(InputStream in) throws IOException, ClassNotFoundException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        if (isEncoded(in, MAGIC)) {
+            return decode(in);
+        }
+        return (Mail) new ObjectInputStream(in).readObject();
+    }
+
+    /**
+     * Return <code>true</code> if the stream starts with an envelope which was
+     * encoded via {@link #encode(Mail, OutputStream)}. The stream must support
+     * mark and reset, nothing is consumed.
+     * 
+     * @param in
+     * @return encoded
+     * @throws IOException
+     */
+    public static boolean isEncoded(InputStream in) throws IOException {
+        return isEncoded(in, MAGIC);
+    }
+
+    /**
+     * Encode the given attributes
+     * 
+     * @param attributes
+     * @return encoded
+     * @throws IOException
+     */
+    public static byte[] encodeAttributes(Map<String, ?> attributes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeShort(ATTRIBUTES_MAGIC);
+        dout.writeByte(VERSION_1);
+        writeAttributes(dout, attributes);
+        dout.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode attributes which were either encoded via
+     * {@link #encodeAttributes(Map)} or written as Java serialized
+     * {@link HashMap}
+     * 
+     * @param data
+     * @return attributes
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    @SuppressWarnings("rawtypes")
+    public static HashMap decodeAttributes(byte[] data) throws IOException, ClassNotFoundException {
+        InputStream in = new ByteArrayInputStream(data);
+        if (isEncoded(in, ATTRIBUTES_MAGIC)) {
+            DataInputStream din = new DataInputStream(in);
+            din.readUnsignedShort();
+            byte version = din.readByte();
+            if (version != VERSION_1) {
+                throw new IOException("Unsupported attributes version " + version);
+            }
+            return readAttributes(din, null);
+        }
+        return (HashMap) new ObjectInputStream(in).readObject();
+    }
+
+    private static boolean isEncoded(InputStream in, int magic) throws IOException {
+        in.mark(2);
+        try {
+            int b1 = in.read();
+            int b2 = in.read();
+            return b1 != -1 && b2 != -1 && ((b1 << 8) | b2) == magic;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static void writeAttributes(DataOutputStream out, Map<String, ?> attributes) throws IOException {
+        out.writeInt(attributes.size());
+        Iterator<? extends Map.Entry<String, ?>> it = attributes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ?> entry = it.next();
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static HashMap readAttributes(DataInputStream in, ClassLoader classLoader) throws IOException {
+        int count = in.readInt();
+        HashMap attributes = new HashMap(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            attributes.put(name, readValue(in, classLoader));
+        }
+        return attributes;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        Class<?> clazz = value == null ? null : value.getClass();
+        if (clazz == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (clazz == String.class) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (clazz == Boolean.class) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (clazz == Integer.class) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (clazz == Long.class) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (clazz == Double.class) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (clazz == Float.class) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (clazz == Short.class) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) value);
+        } else if (clazz == Byte.class) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        } else if (clazz == Character.class) {
+            out.writeByte(TYPE_CHARACTER);
+            out.writeChar((Character) value);
+        } else if (clazz == Date.class) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (clazz == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (clazz == MailAddress.class) {
+            out.writeByte(TYPE_MAIL_ADDRESS);
+            writeString(out, value.toString());
+        } else {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
+            oout.writeObject(value);
+            oout.close();
+            out.writeByte(TYPE_SERIALIZED);
+            out.writeInt(bout.size());
+            bout.writeTo(out);
+        }
+    }
+
+    private static Serializable readValue(DataInputStream in, ClassLoader classLoader) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_STRING:
+            return readString(in);
+        case TYPE_BOOLEAN:
+            return in.readBoolean();
+        case TYPE_INTEGER:
+            return in.readInt();
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_FLOAT:
+            return in.readFloat();
+        case TYPE_SHORT:
+            return in.readShort();
+        case TYPE_BYTE:
+            return in.readByte();
+        case TYPE_CHARACTER:
+            return in.readChar();
+        case TYPE_DATE:
+            return new Date(in.readLong());
+        case TYPE_BYTES:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        case TYPE_MAIL_ADDRESS:
+            return toMailAddress(readString(in));
+        case TYPE_SERIALIZED:
+            byte[] serialized = new byte[in.readInt()];
+            in.readFully(serialized);
+            try {
+                InputStream bin = new ByteArrayInputStream(serialized);
+                ObjectInputStream oin = classLoader == null ? new ObjectInputStream(bin) : new ClassLoaderObjectInputStream(classLoader, bin);
+                return (Serializable) oin.readObject();
+            } catch (ClassNotFoundException e) {
+                IOException ioe = new IOException("Unable to read attribute value");
+                ioe.initCause(e);
+                throw ioe;
+            }
+        default:
+            throw new IOException("Unknown attribute type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static MailAddress toMailAddress(String address) throws IOException {
+        try {
+            return new MailAddress(address);
+        } catch (ParseException e) {
+            IOException ioe = new IOException("Error parsing address: " + address);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * {@link ObjectInputStream} which loads the classes via the given
+     * {@link ClassLoader}
+     */
+    private final static class ClassLoaderObjectInputStream extends ObjectInputStream {
+        private final ClassLoader classLoader;
+
+        public ClassLoaderObjectInputStream(ClassLoader classLoader, InputStream in) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                // let the default class loader try
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -37,10 +37,13 @@ import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.UUID;
 
@@ -61,6 +64,14 @@ import java.util.UUID;
  * attributes.</li>
  * </ul>
  * </p>
+ * <p>
+ * The attributes of a copy are copy-on-write: the copy and the original share
+ * the attributes until one of them modifies them. An attribute value which is
+ * shared is only cloned (via serialization) once it gets accessed, unless it
+ * is immutable like a {@link String} or a {@link Number} wrapper. The old
+ * value which is returned when an attribute is replaced or removed is not
+ * cloned, so it may still be shared and must only be read.
+ * </p>
  */
 public class MailImpl implements Disposable, Mail {
 
@@ -109,6 +120,18 @@ public class MailImpl implements Disposable, Mail {
      * Attributes added to this MailImpl instance
      */
     private HashMap attributes;
+    /**
+     * True if the attributes map is shared with other MailImpl instances and
+     * so must be copied before it gets modified. While it is shared the values
+     * of all attributes are shared too.
+     */
+    private boolean attributesShared;
+    /**
+     * The names of the attributes whose values are still shared with other
+     * MailImpl instances, or null if the attributes map is shared or no
+     * values are shared
+     */
+    private HashSet sharedAttributeNames;
 
     /**
      * A constructor that creates a new, uninitialized MailImpl
@@ -167,23 +190,25 @@ public class MailImpl implements Disposable, Mail {
         setRemoteHost(mail.getRemoteHost());
         setRemoteAddr(mail.getRemoteAddr());
         setLastUpdated(mail.getLastUpdated());
-        try {
-            if (mail instanceof MailImpl) {
-                setAttributesRaw((HashMap) cloneSerializableObject(((MailImpl) mail).getAttributesRaw()));
-            } else {
+        if (mail instanceof MailImpl) {
+            // the attributes are copy-on-write, so there is no need to clone
+            // them here
+            shareAttributes((MailImpl) mail);
+        } else {
+            try {
                 HashMap attribs = new HashMap();
                 for (Iterator i = mail.getAttributeNames(); i.hasNext();) {
                     String hashKey = (String) i.next();
                     attribs.put(hashKey, cloneSerializableObject(mail.getAttribute(hashKey)));
                 }
                 setAttributesRaw(attribs);
+            } catch (IOException e) {
+                // should never happen for in memory streams
+                setAttributesRaw(new HashMap());
+            } catch (ClassNotFoundException e) {
+                // should never happen as we just serialized it
+                setAttributesRaw(new HashMap());
             }
-        } catch (IOException e) {
-            // should never happen for in memory streams
-            setAttributesRaw(new HashMap());
-        } catch (ClassNotFoundException e) {
-            // should never happen as we just serialized it
-            setAttributesRaw(new HashMap());
         }
     }
 
@@ -578,6 +603,20 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      **/
     public HashMap getAttributesRaw() {
+        // the caller may modify the map or the values, so nothing can be
+        // shared anymore
+        copyAttributesOnWrite();
+        if (sharedAttributeNames != null) {
+            Iterator names = sharedAttributeNames.iterator();
+            while (names.hasNext()) {
+                Object key = names.next();
+                Object value = attributes.get(key);
+                if (value != null) {
+                    attributes.put(key, cloneSharedValue(value));
+                }
+            }
+            sharedAttributeNames = null;
+        }
         return attributes;
     }
 
@@ -597,6 +636,18 @@ public class MailImpl implements Disposable, Mail {
      **/
     public void setAttributesRaw(HashMap attr) {
         this.attributes = (attr == null) ? new HashMap() : attr;
+        attributesShared = false;
+        sharedAttributeNames = null;
+    }
+
+    /**
+     * Return the attributes without copying them. The map and its values may
+     * be shared with other MailImpl instances, so they must only be read.
+     * 
+     * @return attributes
+     */
+    HashMap getAttributeMap() {
+        return attributes;
     }
 
     /**
@@ -604,23 +655,47 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Serializable getAttribute(String key) {
-        return (Serializable) attributes.get(key);
+        Object value = attributes.get(key);
+        if (value != null && isSharedAttribute(key) && !isImmutable(value)) {
+            // the caller may modify the value, so it can't be shared anymore
+            value = cloneSharedValue(value);
+            copyAttributesOnWrite();
+            attributes.put(key, value);
+            sharedAttributeNames.remove(key);
+        }
+        return (Serializable) value;
     }
 
     /**
+     * The returned old value may still be shared with other MailImpl
+     * instances, so it must only be read
+     * 
      * @see org.apache.mailet.Mail#setAttribute(String,Serializable)
      * @since 2.2.0
      */
     public Serializable setAttribute(String key, Serializable object) {
-        return (Serializable) attributes.put(key, object);
+        copyAttributesOnWrite();
+        Object old = attributes.put(key, object);
+        if (sharedAttributeNames != null) {
+            sharedAttributeNames.remove(key);
+        }
+        return (Serializable) old;
     }
 
     /**
+     * The returned old value may still be shared with other MailImpl
+     * instances, so it must only be read
+     * 
      * @see org.apache.mailet.Mail#removeAttribute(String)
      * @since 2.2.0
      */
     public Serializable removeAttribute(String key) {
-        return (Serializable) attributes.remove(key);
+        copyAttributesOnWrite();
+        Object old = attributes.remove(key);
+        if (sharedAttributeNames != null) {
+            sharedAttributeNames.remove(key);
+        }
+        return (Serializable) old;
     }
 
     /**
@@ -628,7 +703,13 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public void removeAllAttributes() {
-        attributes.clear();
+        if (attributesShared) {
+            attributes = new HashMap();
+            attributesShared = false;
+        } else {
+            attributes.clear();
+        }
+        sharedAttributeNames = null;
     }
 
     /**
@@ -636,6 +717,8 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Iterator getAttributeNames() {
+        // the iterator allows to remove attributes
+        copyAttributesOnWrite();
         return attributes.keySet().iterator();
     }
 
@@ -647,6 +730,71 @@ public class MailImpl implements Disposable, Mail {
         return !attributes.isEmpty();
     }
 
+    /**
+     * Share the attributes of the given {@link MailImpl} with this instance,
+     * which is a new copy of it
+     * 
+     * @param mail
+     */
+    private void shareAttributes(MailImpl mail) {
+        mail.attributesShared = true;
+        mail.sharedAttributeNames = null;
+        attributes = mail.attributes;
+        attributesShared = true;
+        sharedAttributeNames = null;
+    }
+
+    /**
+     * Copy the attributes map if it is shared with other MailImpl instances.
+     * The values stay shared until they get accessed.
+     */
+    private void copyAttributesOnWrite() {
+        if (attributesShared) {
+            attributes = new HashMap(attributes);
+            sharedAttributeNames = new HashSet(attributes.keySet());
+            attributesShared = false;
+        }
+    }
+
+    private boolean isSharedAttribute(String key) {
+        return attributesShared || (sharedAttributeNames != null && sharedAttributeNames.contains(key));
+    }
+
+    /**
+     * Return a private copy of the given shared attribute value. Immutable
+     * values are returned as they are.
+     * 
+     * @param value
+     * @return copy
+     */
+    private static Object cloneSharedValue(Object value) {
+        if (value == null || isImmutable(value)) {
+            return value;
+        }
+        try {
+            return cloneSerializableObject(value);
+        } catch (IOException e) {
+            // should never happen for in memory streams
+            return value;
+        } catch (ClassNotFoundException e) {
+            // should never happen as we just serialized it
+            return value;
+        }
+    }
+
+    /**
+     * Return true if the given value is known to be immutable, so it can be
+     * shared without cloning it
+     * 
+     * @param value
+     * @return immutable
+     */
+    private static boolean isImmutable(Object value) {
+        Class clazz = value.getClass();
+        return clazz == String.class || clazz == Boolean.class || clazz == Integer.class || clazz == Long.class || clazz == Short.class || clazz == Byte.class || clazz == Character.class
+                || clazz == Double.class || clazz == Float.class || clazz == BigInteger.class || clazz == BigDecimal.class || value instanceof Enum;
+    }
+
     /**
      * This methods provide cloning for serializable objects. Mail Attributes
      * are Serializable but not Clonable so we need a deep copy
@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.james.lifecycle.api.Disposable;
+
+/**
+ * <p>
+ * {@link MimeMessageSource} which memory-maps a file (or a region of it) and
+ * reads the message out of the mapping. Every {@link InputStream} returned by
+ * {@link #getInputStream()} is an independent view of the same mapping with its
+ * own position, so concurrent readers don't need to synchronize with each
+ * other, in contrast to the streams of a
+ * {@link javax.mail.util.SharedFileInputStream}. The streams implement
+ * {@link SharedInputStream}, so a {@link javax.mail.internet.MimeMessage}
+ * parsed from them does not copy the content.
+ * </p>
+ * <p>
+ * The file must not be modified while it is mapped. The mapping is released
+ * by the garbage collector once the source and all its streams are not
+ * referenced anymore, so on some platforms (e.g. Windows) the file can not be
+ * deleted before that. Only regions up to 2GB can be mapped.
+ * </p>
+ */
+public class MappedFileMimeMessageSource extends MimeMessageSource implements Disposable {
+
+    private final String sourceId;
+    private final int length;
+    private volatile ByteBuffer buffer;
+
+    /**
+     * Map the whole file
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public MappedFileMimeMessageSource(File file) throws IOException {
+        this(file, 0, file.length());
+    }
+
+    /**
+     * Map the given region of the file
+     * 
+     * @param file
+     * @param start
+     *            the offset of the message in the file
+     * @param length
+     *            the length of the message
+     * @throws IOException
+     */
+    public MappedFileMimeMessageSource(File file, long start, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Unable to map " + length + " bytes of " + file);
+        }
+        if (start == 0) {
+            this.sourceId = file.getAbsolutePath();
+        } else {
+            this.sourceId = file.getAbsolutePath() + "#" + start;
+        }
+        this.length = (int) length;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel was closed
+            buffer = raf.getChannel().map(MapMode.READ_ONLY, start, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getSourceId()
+     */
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            throw new IOException("Source " + sourceId + " was already disposed");
+        }
+        return new MappedInputStream(buffer, 0, length);
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getMessageSize()
+     */
+    public long getMessageSize() throws IOException {
+        return length;
+    }
+
+    /**
+     * Drop the reference to the mapping. Already returned streams stay
+     * readable.
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        buffer = null;
+    }
+
+    /**
+     * {@link InputStream} which reads a range of the mapping through its own
+     * view of the buffer
+     */
+    private final static class MappedInputStream extends InputStream implements SharedInputStream {
+        private final ByteBuffer mapping;
+        private final ByteBuffer buf;
+        private final int start;
+        private final int end;
+        private int mark;
+
+        public MappedInputStream(ByteBuffer mapping, int start, int end) {
+            this.mapping = mapping;
+            this.start = start;
+            this.end = end;
+            this.mark = start;
+            this.buf = mapping.duplicate();
+            buf.limit(end);
+            buf.position(start);
+        }
+
+        /**
+         * @see java.io.InputStream#read()
+         */
+        public int read() throws IOException {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            return buf.get() & 0xff;
+        }
+
+        /**
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int remaining = buf.remaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = Math.min(len, remaining);
+            buf.get(b, off, read);
+            return read;
+        }
+
+        /**
+         * @see java.io.InputStream#skip(long)
+         */
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            int skip = (int) Math.min(n, buf.remaining());
+            buf.position(buf.position() + skip);
+            return skip;
+        }
+
+        /**
+         * @see java.io.InputStream#available()
+         */
+        public int available() throws IOException {
+            return buf.remaining();
+        }
+
+        /**
+         * @see java.io.InputStream#markSupported()
+         */
+        public boolean markSupported() {
+            return true;
+        }
+
+        /**
+         * @see java.io.InputStream#mark(int)
+         */
+        public void mark(int readlimit) {
+            mark = buf.position();
+        }
+
+        /**
+         * @see java.io.InputStream#reset()
+         */
+        public void reset() throws IOException {
+            buf.position(mark);
+        }
+
+        /**
+         * @see javax.mail.internet.SharedInputStream#getPosition()
+         */
+        public long getPosition() {
+            return buf.position() - start;
+        }
+
+        /**
+         * @see javax.mail.internet.SharedInputStream#newStream(long, long)
+         */
+        public InputStream newStream(long start, long end) {
+            if (start < 0) {
+                throw new IllegalArgumentException("start < 0");
+            }
+            if (end == -1) {
+                end = this.end - this.start;
+            }
+            if (end < start || this.start + end > this.end) {
+                throw new IllegalArgumentException("Invalid range " + start + " - " + end);
+            }
+            return new MappedInputStream(mapping, this.start + (int) start, this.start + (int) end);
+        }
+    }
+}
@@ -25,47 +25,110 @@ import javax.mail.util.SharedFileInputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.james.lifecycle.api.Disposable;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * <p>
  * Takes an input stream and creates a repeatable input stream source for a
  * MimeMessageWrapper. It does this by completely reading the input stream and
- * saving that to data to an {@link DeferredFileOutputStream} with its threshold set to 100kb
- * 
+ * saving that data in memory, or in a temporary file once it gets bigger than
+ * the threshold.
+ * </p>
+ * <p>
+ * The threshold (default 100kb), the directory of the temporary files
+ * (default <code>java.io.tmpdir</code>) and a memory budget can be set
+ * globally via the static setters or the system properties
+ * <code>james.message.threshold</code>, <code>james.message.spooldir</code> and
+ * <code>james.message.memoryBudget</code>. The memory budget limits the bytes
+ * which are held in memory by all sources together. Once it is exhausted the
+ * data of new messages is written to a temporary file, even if it is smaller
+ * than the threshold. By default the memory budget is not limited. The memory
+ * of a source is returned to the budget when it is disposed, or once the
+ * source was garbage collected if it was never disposed.
+ * </p>
+ * <p>
+ * Data which was written to a temporary file is read via a
+ * {@link SharedFileInputStream}, or via a {@link MappedFileMimeMessageSource}
+ * if memory mapping was enabled with {@link #setMemoryMapped(boolean)} or the
+ * system property <code>james.message.mmap</code>.
+ * </p>
  **/
 public class MimeMessageInputStreamSource extends MimeMessageSource implements Disposable {
 
-    private final List<InputStream> streams = new ArrayList<InputStream>();
+    /**
+     * 100kb default threshold for the stream.
+     */
+    public final static int DEFAULT_THRESHOLD = 1024 * 100;
 
     /**
-     * A temporary file used to hold the message stream
+     * The min size of the in-memory buffer. It is reserved from the budget on
+     * the first write, to not need to update the budget on every small write
      */
-    private DeferredFileOutputStream out;
+    private final static int RESERVE_CHUNK = 1024 * 8;
+
+    private static volatile int threshold = Integer.getInteger("james.message.threshold", DEFAULT_THRESHOLD);
 
     /**
-     * The full path of the temporary file
+     * Temporary directory to use
      */
-    private String sourceId;
+    private static volatile File spoolDir = new File(System.getProperty("james.message.spooldir", System.getProperty("java.io.tmpdir")));
+
+    private static volatile long memoryBudget = Long.getLong("james.message.memoryBudget", 0);
+
+    private static volatile boolean memoryMapped = Boolean.getBoolean("james.message.mmap");
 
     /**
-     * 100kb threshold for the stream.
+     * The bytes which are reserved by all sources which hold their data in
+     * memory
      */
-    private final static int THRESHOLD = 1024 * 100;
-    
+    private final static AtomicLong inMemoryBytes = new AtomicLong();
+
     /**
-     * Temporary directory to use
+     * Gets the {@link Reservation}'s of sources which were garbage collected
+     * without being disposed
+     */
+    private final static ReferenceQueue<SpoolOutputStream> collected = new ReferenceQueue<SpoolOutputStream>();
+
+    /**
+     * Keeps all outstanding {@link Reservation}'s reachable till they are
+     * released
+     */
+    private final static Set<Reservation> reservations = Collections.newSetFromMap(new ConcurrentHashMap<Reservation, Boolean>());
+
+    private final List<InputStream> streams = new ArrayList<InputStream>();
+
+    /**
+     * The stream which holds the message data in memory or in a temporary file
      */
-    private final static File TMPDIR = new File(System.getProperty("java.io.tmpdir"));
-    
+    private SpoolOutputStream out;
+
+    /**
+     * The mapping of the temporary file, if memory mapping is used
+     */
+    private MappedFileMimeMessageSource mapped;
+
+    /**
+     * The full path of the temporary file
+     */
+    private String sourceId;
+
     /**
      * Construct a new MimeMessageInputStreamSource from an
      * <code>InputStream</code> that contains the bytes of a MimeMessage.
@@ -82,25 +145,25 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         super();
         // We want to immediately read this into a temporary file
         // Create a temp file and channel the input stream into it
+        boolean success = false;
         try {
-            out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR );
+            out = new SpoolOutputStream(key);
             IOUtils.copy(in, out);
             sourceId = key;
+            success = true;
         } catch (IOException ioe) {
             throw new MessagingException("Unable to retrieve the data: " + ioe.getMessage(), ioe);
         } finally {
             try {
                 if (out != null) {
                     out.close();
-                    
-                    File file = out.getFile();
-                    if (file != null) {
-                        file.delete();
-                    }
                 }
             } catch (IOException ioe) {
                 // Ignored - logging unavailable to log this non-fatal error.
             }
+            if (!success) {
+                dispose();
+            }
 
             try {
                 if (in != null) {
@@ -115,10 +178,109 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
 
     public MimeMessageInputStreamSource(String key) throws MessagingException {
         super();
-        out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR );
+        out = new SpoolOutputStream(key);
         sourceId = key;
     }
 
+    /**
+     * Set the max size (in bytes) of a message which is held in memory. Bigger
+     * messages are written to a temporary file. This only affects sources
+     * which are created later.
+     * 
+     * @param threshold
+     */
+    public static void setThreshold(int threshold) {
+        MimeMessageInputStreamSource.threshold = threshold;
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Set the directory in which the temporary files are created
+     * 
+     * @param spoolDir
+     */
+    public static void setSpoolDirectory(File spoolDir) {
+        MimeMessageInputStreamSource.spoolDir = spoolDir;
+    }
+
+    public static File getSpoolDirectory() {
+        return spoolDir;
+    }
+
+    /**
+     * Set the max count of bytes which are held in memory by all sources
+     * together. If it is 0 or less the memory is not limited.
+     * 
+     * @param memoryBudget
+     */
+    public static void setMemoryBudget(long memoryBudget) {
+        MimeMessageInputStreamSource.memoryBudget = memoryBudget;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * If <code>true</code> the temporary files are read via a
+     * {@link MappedFileMimeMessageSource} instead of a
+     * {@link SharedFileInputStream}
+     * 
+     * @param memoryMapped
+     */
+    public static void setMemoryMapped(boolean memoryMapped) {
+        MimeMessageInputStreamSource.memoryMapped = memoryMapped;
+    }
+
+    public static boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Return the bytes which are currently reserved from the memory budget by
+     * all sources which hold their data in memory
+     * 
+     * @return inMemoryBytes
+     */
+    public static long getInMemoryBytes() {
+        releaseCollected();
+        return inMemoryBytes.get();
+    }
+
+    /**
+     * Reserve the given count of bytes from the memory budget
+     * 
+     * @param bytes
+     * @return reserved <code>false</code> if the budget is exhausted
+     */
+    private static boolean reserve(long bytes) {
+        releaseCollected();
+        while (true) {
+            long current = inMemoryBytes.get();
+            long budget = memoryBudget;
+            if (budget > 0 && current + bytes > budget) {
+                return false;
+            }
+            if (inMemoryBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release the memory of all sources which were garbage collected without
+     * being disposed
+     */
+    private static void releaseCollected() {
+        Reference<? extends SpoolOutputStream> ref;
+        while ((ref = collected.poll()) != null) {
+            ((Reservation) ref).release();
+        }
+    }
+
     /**
      * Returns the unique identifier of this input stream source
      * 
@@ -136,7 +298,14 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     public synchronized InputStream getInputStream() throws IOException {
         InputStream in;
         if (out.isInMemory()) {
-            in = new SharedByteArrayInputStream(out.getData());
+            in = out.newInMemoryStream();
+        } else if (memoryMapped) {
+            // map again if more data was written in the meantime
+            if (mapped == null || mapped.getMessageSize() != out.getByteCount()) {
+                out.flush();
+                mapped = new MappedFileMimeMessageSource(out.getFile(), 0, out.getByteCount());
+            }
+            return mapped.getInputStream();
         } else {
             in = new SharedFileInputStream(out.getFile());
         }
@@ -144,6 +313,16 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         return in;
     }
 
+    /**
+     * Return <code>true</code> if the data is held in memory and
+     * <code>false</code> if it was written to a temporary file
+     * 
+     * @return inMemory
+     */
+    public boolean isInMemory() {
+        return out.isInMemory();
+    }
+
     /**
      * Get the size of the temp file
      * 
@@ -174,8 +353,14 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
             IOUtils.closeQuietly(streams.get(i));
         }
 
+        if (mapped != null) {
+            mapped.dispose();
+            mapped = null;
+        }
+
         if (out != null) {
             IOUtils.closeQuietly(out);
+            out.releaseMemory();
             File file = out.getFile();
             if (file != null) {
             	FileUtils.deleteQuietly(file);
@@ -185,4 +370,180 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         }
     }
 
+    /**
+     * The bytes a {@link SpoolOutputStream} reserved from the memory budget.
+     * It gets enqueued once the stream was garbage collected, so the bytes can
+     * be released even if the source was never disposed.
+     */
+    private final static class Reservation extends PhantomReference<SpoolOutputStream> {
+        private long bytes;
+
+        public Reservation(SpoolOutputStream out) {
+            super(out, collected);
+            reservations.add(this);
+        }
+
+        public synchronized boolean reserve(long bytes) {
+            if (!MimeMessageInputStreamSource.reserve(bytes)) {
+                return false;
+            }
+            this.bytes += bytes;
+            return true;
+        }
+
+        public synchronized void release() {
+            if (bytes > 0) {
+                inMemoryBytes.addAndGet(-bytes);
+                bytes = 0;
+            }
+            reservations.remove(this);
+            clear();
+        }
+    }
+
+    /**
+     * {@link OutputStream} which keeps the data in memory till the threshold is
+     * reached or the memory budget is exhausted. After that all data is written
+     * to a temporary file. The bytes reserved from the memory budget are the
+     * size of the in-memory buffer, which is shared with the streams returned by
+     * {@link #newInMemoryStream()} instead of being copied.
+     */
+    private final static class SpoolOutputStream extends OutputStream {
+        private final String prefix;
+        private final int threshold;
+        private final File dir;
+        private final Reservation reservation;
+        private byte[] buf = new byte[0];
+        private OutputStream fileOut;
+        private File file;
+        private long count;
+
+        public SpoolOutputStream(String prefix) {
+            this.prefix = prefix;
+            this.threshold = MimeMessageInputStreamSource.threshold;
+            this.dir = spoolDir;
+            this.reservation = new Reservation(this);
+        }
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        public void write(int b) throws IOException {
+            if (buf != null) {
+                if (ensureCapacity(count + 1)) {
+                    buf[(int) count++] = (byte) b;
+                    return;
+                }
+                spill();
+            }
+            fileOut.write(b);
+            count++;
+        }
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buf != null) {
+                if (ensureCapacity(count + len)) {
+                    System.arraycopy(b, off, buf, (int) count, len);
+                    count += len;
+                    return;
+                }
+                spill();
+            }
+            fileOut.write(b, off, len);
+            count += len;
+        }
+
+        /**
+         * Grow the in-memory buffer so it can hold the given count of bytes.
+         * Only the data written so far is copied, the bytes which are already
+         * in the buffer are never modified, so streams returned before still
+         * see a consistent snapshot.
+         * 
+         * @param needed
+         * @return <code>false</code> if the bytes don't fit into memory
+         */
+        private boolean ensureCapacity(long needed) {
+            if (needed <= buf.length) {
+                return true;
+            }
+            if (needed > threshold) {
+                return false;
+            }
+            long length = Math.max(needed, Math.min(Math.max(buf.length * 2L, RESERVE_CHUNK), threshold));
+            if (!reservation.reserve(length - buf.length)) {
+                // try again without reserving more then needed
+                if (length == needed || !reservation.reserve(needed - buf.length)) {
+                    return false;
+                }
+                length = needed;
+            }
+            buf = Arrays.copyOf(buf, (int) length);
+            return true;
+        }
+
+        /**
+         * Release the reserved memory
+         */
+        public void releaseMemory() {
+            reservation.release();
+        }
+
+        /**
+         * Write the data which was kept in memory so far to a temporary file
+         * and use it for all further writes
+         * 
+         * @throws IOException
+         */
+        private void spill() throws IOException {
+            file = File.createTempFile(prefix, ".m64", dir);
+            fileOut = new FileOutputStream(file);
+            fileOut.write(buf, 0, (int) count);
+            buf = null;
+            releaseMemory();
+        }
+
+        public boolean isInMemory() {
+            return buf != null;
+        }
+
+        /**
+         * Return a stream which reads the data which was written to memory so
+         * far, without copying it
+         * 
+         * @return stream
+         */
+        public InputStream newInMemoryStream() {
+            return new SharedByteArrayInputStream(buf, 0, (int) count);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getByteCount() {
+            return count;
+        }
+
+        /**
+         * @see java.io.OutputStream#flush()
+         */
+        public void flush() throws IOException {
+            if (fileOut != null) {
+                fileOut.flush();
+            }
+        }
+
+        /**
+         * @see java.io.OutputStream#close()
+         */
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,115 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Benchmark which compares the {@link MailEnvelopeCodec} with the Java
+ * serialization of a {@link MailImpl}, for a mail with a configurable count of
+ * recipients and a few typical attributes. The encode and decode time and the
+ * size of the envelope are reported. This is not executed as part of the unit
+ * tests, run it via its main method:
+ * 
+ * <pre>
+ * MailEnvelopeCodecBenchmark [iterations] [recipients]
+ * </pre>
+ */
+public class MailEnvelopeCodecBenchmark {
+
+    private final MailImpl mail;
+
+    public MailEnvelopeCodecBenchmark(int recipients) throws Exception {
+        List<MailAddress> rcpts = new ArrayList<MailAddress>();
+        for (int i = 0; i < recipients; i++) {
+            rcpts.add(new MailAddress("recipient" + i + "@example.com"));
+        }
+        mail = new MailImpl(MailImpl.getId(), new MailAddress("sender@example.com"), rcpts);
+        mail.setRemoteHost("mail.example.com");
+        mail.setRemoteAddr("192.168.0.1");
+        mail.setAttribute("org.apache.james.spamassassin.status", "No, hits=0.5 required=5.0");
+        mail.setAttribute("org.apache.james.spf.result", "pass");
+        mail.setAttribute("org.apache.james.smtp.auth", Boolean.FALSE);
+        mail.setAttribute("org.apache.james.bayesian.probability", Double.valueOf(0.01));
+        mail.setAttribute("org.apache.james.retry.count", Integer.valueOf(1));
+    }
+
+    private byte[] serialize() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(out);
+        oout.writeObject(mail);
+        oout.close();
+        return out.toByteArray();
+    }
+
+    private Mail deserialize(byte[] data) throws Exception {
+        return (Mail) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+
+    public void run(int iterations) throws Exception {
+        byte[] serialized = serialize();
+        byte[] encoded = MailEnvelopeCodec.encode(mail);
+        long sink = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += serialize().length;
+        }
+        long serializeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += deserialize(serialized).getRecipients().size();
+        }
+        long deserializeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += MailEnvelopeCodec.encode(mail).length;
+        }
+        long encodeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += MailEnvelopeCodec.decode(new ByteArrayInputStream(encoded)).getRecipients().size();
+        }
+        long decodeTime = System.nanoTime() - start;
+
+        System.out.println("recipients=" + mail.getRecipients().size() + " serialization: size=" + serialized.length + " bytes write=" + (serializeTime / iterations) + " ns read=" + (deserializeTime / iterations)
+                + " ns codec: size=" + encoded.length + " bytes write=" + (encodeTime / iterations) + " ns read=" + (decodeTime / iterations) + " ns (" + sink + ")");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        MailEnvelopeCodecBenchmark benchmark = new MailEnvelopeCodecBenchmark(recipients);
+        // warm up
+        benchmark.run(iterations);
+        benchmark.run(iterations);
+    }
+}
@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+import junit.framework.TestCase;
+
+public class MailEnvelopeCodecTest extends TestCase {
+
+    private MailImpl createMail() throws Exception {
+        MailImpl mail = new MailImpl("test-mail", new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt1@localhost"), new MailAddress("rcpt2@localhost")));
+        mail.setState("transport");
+        mail.setErrorMessage("error");
+        mail.setRemoteHost("remote.host");
+        mail.setRemoteAddr("10.0.0.1");
+        mail.setLastUpdated(new Date(1000));
+        mail.setAttribute("string", "value");
+        mail.setAttribute("integer", 1);
+        mail.setAttribute("long", 2L);
+        mail.setAttribute("boolean", Boolean.TRUE);
+        mail.setAttribute("date", new Date(2000));
+        mail.setAttribute("bytes", new byte[] { 1, 2, 3 });
+        mail.setAttribute("address", new MailAddress("attr@localhost"));
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("value");
+        mail.setAttribute("list", list);
+        return mail;
+    }
+
+    private void assertEnvelope(Mail expected, Mail mail) {
+        assertEquals(expected.getName(), mail.getName());
+        assertEquals(expected.getState(), mail.getState());
+        assertEquals(expected.getErrorMessage(), mail.getErrorMessage());
+        assertEquals(expected.getSender(), mail.getSender());
+        assertEquals(new ArrayList<Object>(expected.getRecipients()), new ArrayList<Object>(mail.getRecipients()));
+        assertEquals(expected.getRemoteHost(), mail.getRemoteHost());
+        assertEquals(expected.getRemoteAddr(), mail.getRemoteAddr());
+        assertEquals(expected.getLastUpdated(), mail.getLastUpdated());
+        assertEquals("value", mail.getAttribute("string"));
+        assertEquals(1, mail.getAttribute("integer"));
+        assertEquals(2L, mail.getAttribute("long"));
+        assertEquals(Boolean.TRUE, mail.getAttribute("boolean"));
+        assertEquals(new Date(2000), mail.getAttribute("date"));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) mail.getAttribute("bytes")));
+        assertEquals(expected.getAttribute("address"), mail.getAttribute("address"));
+        assertEquals(expected.getAttribute("list"), mail.getAttribute("list"));
+    }
+
+    public void testEncodeDecode() throws Exception {
+        MailImpl mail = createMail();
+        byte[] encoded = MailEnvelopeCodec.encode(mail);
+        assertTrue(MailEnvelopeCodec.isEncoded(new ByteArrayInputStream(encoded)));
+        assertEnvelope(mail, MailEnvelopeCodec.read(new ByteArrayInputStream(encoded)));
+    }
+
+    public void testNullValues() throws Exception {
+        MailImpl mail = new MailImpl();
+        Mail decoded = MailEnvelopeCodec.decode(new ByteArrayInputStream(MailEnvelopeCodec.encode(mail)));
+        assertNull(decoded.getName());
+        assertNull(decoded.getSender());
+        assertNull(decoded.getRecipients());
+        assertFalse(decoded.hasAttributes());
+    }
+
+    public void testReadSerialized() throws Exception {
+        MailImpl mail = createMail();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(out);
+        oout.writeObject(mail);
+        oout.close();
+
+        assertFalse(MailEnvelopeCodec.isEncoded(new ByteArrayInputStream(out.toByteArray())));
+        assertEnvelope(mail, MailEnvelopeCodec.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    public void testAttributes() throws Exception {
+        MailImpl mail = createMail();
+        HashMap<?, ?> attributes = MailEnvelopeCodec.decodeAttributes(MailEnvelopeCodec.encodeAttributes(mail.getAttributesRaw()));
+        assertEquals(mail.getAttribute("list"), attributes.get("list"));
+        assertEquals(mail.getAttribute("string"), attributes.get("string"));
+
+        // the old format must still be readable
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(out);
+        oout.writeObject(mail.getAttributesRaw());
+        oout.close();
+        attributes = MailEnvelopeCodec.decodeAttributes(out.toByteArray());
+        assertEquals(mail.getAttribute("list"), attributes.get("list"));
+    }
+
+    public void testDecodeWithClassLoader() throws Exception {
+        final Set<String> loaded = new HashSet<String>();
+        ClassLoader classLoader = new ClassLoader(getClass().getClassLoader()) {
+            protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                loaded.add(name);
+                return super.loadClass(name, resolve);
+            }
+        };
+        MailImpl mail = createMail();
+        Mail decoded = MailEnvelopeCodec.decode(new ByteArrayInputStream(MailEnvelopeCodec.encode(mail)), classLoader);
+        assertEnvelope(mail, decoded);
+
+        // the serialized list must be resolved via the given class loader
+        assertTrue(loaded.contains(ArrayList.class.getName()));
+    }
+
+    public void testUnsupportedVersion() throws Exception {
+        byte[] encoded = MailEnvelopeCodec.encode(createMail());
+        encoded[2] = 99;
+        try {
+            MailEnvelopeCodec.decode(new ByteArrayInputStream(encoded));
+            fail("Unsupported version must not be decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
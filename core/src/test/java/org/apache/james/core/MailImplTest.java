@@ -26,6 +26,7 @@ import org.apache.mailet.Mail;
 
 import javax.mail.MessagingException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class MailImplTest extends MailTestAllImplementations {
 
@@ -95,4 +96,55 @@ public class MailImplTest extends MailTestAllImplementations {
         helperTestInitialState(duplicate);
         helperTestMessageSize(duplicate, 0);
     }
+
+    public void testDuplicateAttributesCopyOnWrite() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        ArrayList list = new ArrayList();
+        list.add("value");
+        mail.setAttribute("list", list);
+        mail.setAttribute("string", "value");
+
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+
+        // immutable values can be shared
+        assertSame(mail.getAttribute("string"), duplicate.getAttribute("string"));
+
+        // mutable values get cloned once accessed
+        ArrayList duplicateList = (ArrayList) duplicate.getAttribute("list");
+        assertEquals(list, duplicateList);
+        assertNotSame(list, duplicateList);
+        assertSame(duplicateList, duplicate.getAttribute("list"));
+        duplicateList.add("value2");
+        assertEquals(1, ((ArrayList) mail.getAttribute("list")).size());
+
+        // the replaced value is returned without cloning it
+        ArrayList list2 = new ArrayList();
+        ArrayList mailList = (ArrayList) mail.getAttribute("list");
+        MailImpl duplicate2 = (MailImpl) mail.duplicate();
+        assertSame(mailList, duplicate2.setAttribute("list", list2));
+        assertSame(list2, duplicate2.removeAttribute("list"));
+
+        // modifications are not visible to the other copy
+        duplicate.setAttribute("new", "value");
+        duplicate.removeAttribute("string");
+        assertNull(mail.getAttribute("new"));
+        assertEquals("value", mail.getAttribute("string"));
+
+        mail.removeAllAttributes();
+        assertFalse(mail.hasAttributes());
+        assertTrue(duplicate.hasAttributes());
+    }
+
+    public void testDuplicateAttributesRaw() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        ArrayList list = new ArrayList();
+        list.add("value");
+        mail.setAttribute("list", list);
+
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+        HashMap raw = duplicate.getAttributesRaw();
+        assertNotSame(mail.getAttributesRaw(), raw);
+        assertNotSame(list, raw.get("list"));
+        assertEquals(list, raw.get("list"));
+    }
 }
@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Benchmark which compares the read throughput of the
+ * {@link MappedFileMimeMessageSource} with the streams of a
+ * {@link SharedFileInputStream}, for a multi-MB message which is read
+ * concurrently by a configurable count of threads. Each thread reads the
+ * message once in blocks of 8kb and once byte by byte, which is how the
+ * message is read while parsing the headers. This is not executed as part of
+ * the unit tests, run it via its main method:
+ * 
+ * <pre>
+ * MappedFileMimeMessageSourceBenchmark [sizeInMB] [threads] [rounds]
+ * </pre>
+ */
+public class MappedFileMimeMessageSourceBenchmark {
+
+    private final File file;
+    private final int threads;
+
+    public MappedFileMimeMessageSourceBenchmark(int size, int threads) throws IOException {
+        this.threads = threads;
+        file = File.createTempFile("benchmark", ".eml");
+        file.deleteOnExit();
+        byte[] line = "This is a line of the message body which is repeated till the message has the requested size.\r\n".getBytes("US-ASCII");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += line.length) {
+                out.write(line);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Factory for the streams which are read by the benchmark
+     */
+    private interface StreamFactory {
+        InputStream newStream() throws IOException;
+    }
+
+    private static long readBlocks(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        long count = 0;
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            count += read;
+        }
+        return count;
+    }
+
+    private static long readBytes(InputStream in) throws IOException {
+        long count = 0;
+        while (in.read() != -1) {
+            count++;
+        }
+        return count;
+    }
+
+    private long run(final StreamFactory factory, final int rounds, final boolean bytewise) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long count = 0;
+                        for (int r = 0; r < rounds; r++) {
+                            InputStream in = factory.newStream();
+                            try {
+                                count += bytewise ? readBytes(in) : readBlocks(in);
+                            } finally {
+                                in.close();
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+            long bytes = 0;
+            for (Future<Long> future : futures) {
+                bytes += future.get();
+            }
+            long time = System.nanoTime() - start;
+            return bytes * 1000L / Math.max(1, time);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void run(int rounds) throws Exception {
+        final SharedFileInputStream shared = new SharedFileInputStream(file);
+        final MappedFileMimeMessageSource mapped = new MappedFileMimeMessageSource(file);
+        try {
+            StreamFactory sharedFactory = new StreamFactory() {
+                public InputStream newStream() throws IOException {
+                    return shared.newStream(0, -1);
+                }
+            };
+            StreamFactory mappedFactory = new StreamFactory() {
+                public InputStream newStream() throws IOException {
+                    return mapped.getInputStream();
+                }
+            };
+
+            System.out.println("size=" + file.length() + " threads=" + threads + " SharedFileInputStream: blocks=" + run(sharedFactory, rounds, false) + " MB/s bytes="
+                    + run(sharedFactory, Math.max(1, rounds / 10), true) + " MB/s mapped: blocks=" + run(mappedFactory, rounds, false) + " MB/s bytes="
+                    + run(mappedFactory, Math.max(1, rounds / 10), true) + " MB/s");
+        } finally {
+            shared.close();
+            mapped.dispose();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        MappedFileMimeMessageSourceBenchmark benchmark = new MappedFileMimeMessageSourceBenchmark(size * 1024 * 1024, threads);
+        // warm up
+        benchmark.run(rounds);
+        benchmark.run(rounds);
+    }
+}
@@ -0,0 +1,169 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import junit.framework.TestCase;
+
+public class MappedFileMimeMessageSourceTest extends TestCase {
+
+    private final static String CONTENT = "Subject: test\r\n\r\nThis is the body\r\n";
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("mapped", ".eml");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("PREFIX".getBytes("US-ASCII"));
+            out.write(CONTENT.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private String read(InputStream in) throws IOException {
+        try {
+            return new String(IOUtils.toByteArray(in), "US-ASCII");
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testWholeFile() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file);
+        assertEquals("PREFIX" + CONTENT, read(source.getInputStream()));
+        assertEquals(file.length(), source.getMessageSize());
+        assertEquals(file.getAbsolutePath(), source.getSourceId());
+        source.dispose();
+    }
+
+    public void testRegion() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file, 6, CONTENT.length());
+        assertEquals(CONTENT, read(source.getInputStream()));
+        assertEquals(CONTENT.length(), source.getMessageSize());
+        assertEquals(file.getAbsolutePath() + "#6", source.getSourceId());
+        source.dispose();
+    }
+
+    public void testIndependentStreams() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file, 6, CONTENT.length());
+        InputStream in1 = source.getInputStream();
+        InputStream in2 = source.getInputStream();
+        byte[] buf = new byte[9];
+        assertEquals(9, in1.read(buf));
+        assertEquals("Subject: ", new String(buf, "US-ASCII"));
+        assertEquals(CONTENT, read(in2));
+        assertEquals(CONTENT.substring(9), read(in1));
+        source.dispose();
+    }
+
+    public void testSharedInputStream() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file, 6, CONTENT.length());
+        InputStream in = source.getInputStream();
+        assertTrue(in instanceof SharedInputStream);
+        SharedInputStream shared = (SharedInputStream) in;
+
+        int bodyStart = CONTENT.indexOf("This");
+        assertEquals(bodyStart, in.skip(bodyStart));
+        assertEquals(bodyStart, shared.getPosition());
+
+        InputStream body = shared.newStream(bodyStart, -1);
+        assertEquals(0, ((SharedInputStream) body).getPosition());
+        assertEquals("This is the body\r\n", read(body));
+
+        InputStream sub = ((SharedInputStream) shared.newStream(bodyStart, -1)).newStream(0, 4);
+        assertEquals("This", read(sub));
+        source.dispose();
+    }
+
+    public void testMarkReset() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file, 6, CONTENT.length());
+        InputStream in = source.getInputStream();
+        assertTrue(in.markSupported());
+        in.skip(9);
+        in.mark(10);
+        assertEquals('t', in.read());
+        in.reset();
+        assertEquals(CONTENT.substring(9), read(in));
+        source.dispose();
+    }
+
+    public void testDispose() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file);
+        InputStream in = source.getInputStream();
+        source.dispose();
+
+        // already returned streams stay readable
+        assertEquals("PREFIX" + CONTENT, read(in));
+        try {
+            source.getInputStream();
+            fail("Disposed source should throw an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testInputStreamSourceMemoryMapped() throws Exception {
+        int threshold = MimeMessageInputStreamSource.getThreshold();
+        boolean memoryMapped = MimeMessageInputStreamSource.isMemoryMapped();
+        MimeMessageInputStreamSource.setThreshold(10);
+        MimeMessageInputStreamSource.setMemoryMapped(true);
+        try {
+            MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+            source.getWritableOutputStream().write(CONTENT.getBytes("US-ASCII"));
+            assertFalse(source.isInMemory());
+            InputStream in = source.getInputStream();
+            assertTrue(in instanceof SharedInputStream);
+            assertEquals(CONTENT, read(in));
+
+            // more data written after the first read must be visible
+            source.getWritableOutputStream().write("more".getBytes("US-ASCII"));
+            assertEquals(CONTENT + "more", read(source.getInputStream()));
+            source.dispose();
+        } finally {
+            MimeMessageInputStreamSource.setThreshold(threshold);
+            MimeMessageInputStreamSource.setMemoryMapped(memoryMapped);
+        }
+    }
+
+    public void testMimeMessageWrapper() throws Exception {
+        MappedFileMimeMessageSource source = new MappedFileMimeMessageSource(file, 6, CONTENT.length());
+        MimeMessageWrapper message = new MimeMessageWrapper(source);
+        assertEquals("test", message.getSubject());
+        assertEquals("This is the body\r\n", message.getContent());
+        assertTrue(Arrays.equals(CONTENT.getBytes("US-ASCII"), IOUtils.toByteArray(source.getInputStream())));
+        source.dispose();
+    }
+}
@@ -0,0 +1,162 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import junit.framework.TestCase;
+
+public class MimeMessageInputStreamSourceTest extends TestCase {
+
+    private int threshold;
+    private long memoryBudget;
+
+    @Override
+    protected void setUp() throws Exception {
+        threshold = MimeMessageInputStreamSource.getThreshold();
+        memoryBudget = MimeMessageInputStreamSource.getMemoryBudget();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(threshold);
+        MimeMessageInputStreamSource.setMemoryBudget(memoryBudget);
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private void assertContent(byte[] expected, MimeMessageInputStreamSource source) throws Exception {
+        InputStream in = source.getInputStream();
+        try {
+            assertTrue(Arrays.equals(expected, IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+        assertEquals(expected.length, source.getMessageSize());
+    }
+
+    public void testSmallMessageInMemory() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(1024);
+        byte[] data = createData(1000);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(data));
+        assertTrue(source.isInMemory());
+        assertContent(data, source);
+        source.dispose();
+    }
+
+    public void testBigMessageOnDisk() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(1024);
+        byte[] data = createData(1025);
+        long inMemory = MimeMessageInputStreamSource.getInMemoryBytes();
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(data));
+        assertFalse(source.isInMemory());
+        assertEquals(inMemory, MimeMessageInputStreamSource.getInMemoryBytes());
+
+        // the data must still be readable after the constructor returned
+        assertContent(data, source);
+        source.dispose();
+    }
+
+    public void testWritableOutputStream() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(1024);
+        byte[] data = createData(3000);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+        source.getWritableOutputStream().write(data, 0, 1000);
+        assertTrue(source.isInMemory());
+        source.getWritableOutputStream().write(data, 1000, 2000);
+        source.getWritableOutputStream().close();
+        assertFalse(source.isInMemory());
+        assertContent(data, source);
+        source.dispose();
+    }
+
+    public void testSpillWhenMemoryBudgetExhausted() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(100 * 1024);
+        MimeMessageInputStreamSource.setMemoryBudget(MimeMessageInputStreamSource.getInMemoryBytes() + 20 * 1024);
+        byte[] data = createData(15 * 1024);
+
+        MimeMessageInputStreamSource first = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(data));
+        assertTrue(first.isInMemory());
+
+        // the budget is not big enough to hold both messages in memory
+        MimeMessageInputStreamSource second = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(data));
+        assertFalse(second.isInMemory());
+        assertContent(data, first);
+        assertContent(data, second);
+
+        // the memory is released on dispose so the next message fits again
+        first.dispose();
+        MimeMessageInputStreamSource third = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(data));
+        assertTrue(third.isInMemory());
+        assertContent(data, third);
+
+        second.dispose();
+        third.dispose();
+    }
+
+    public void testDisposeReleasesMemory() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(1024);
+        long inMemory = MimeMessageInputStreamSource.getInMemoryBytes();
+
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(createData(100)));
+        assertTrue(MimeMessageInputStreamSource.getInMemoryBytes() > inMemory);
+        source.dispose();
+        assertEquals(inMemory, MimeMessageInputStreamSource.getInMemoryBytes());
+    }
+
+    public void testInMemoryStreamIsSnapshot() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(1024);
+        byte[] data = createData(20);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+        source.getWritableOutputStream().write(data, 0, 10);
+        InputStream in = source.getInputStream();
+        source.getWritableOutputStream().write(data, 10, 10);
+
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 10), IOUtils.toByteArray(in)));
+        assertContent(data, source);
+        source.dispose();
+    }
+
+    public void testMemoryReleasedIfNotDisposed() throws Exception {
+        MimeMessageInputStreamSource.setThreshold(1024);
+        long before = MimeMessageInputStreamSource.getInMemoryBytes();
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(createData(100)));
+        assertTrue(source.isInMemory());
+        long after = MimeMessageInputStreamSource.getInMemoryBytes();
+        assertTrue(after > before);
+
+        // drop the source without calling dispose
+        source = null;
+        for (int i = 0; i < 50 && MimeMessageInputStreamSource.getInMemoryBytes() > before; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertTrue(MimeMessageInputStreamSource.getInMemoryBytes() <= before);
+    }
+}
@@ -39,7 +39,6 @@ import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.mailrepository.lib.AbstractMailRepository;
-import org.apache.james.repository.file.FilePersistentObjectRepository;
 import org.apache.james.repository.file.FilePersistentStreamRepository;
 import org.apache.mailet.Mail;
 
@@ -56,18 +55,23 @@ import org.apache.mailet.Mail;
  *              model="SYNCHRONOUS"/&gt;
  * </pre>
  * 
+ * If the COMPACTENVELOPE attribute is set to <code>true</code> the envelopes
+ * are stored via the {@link org.apache.james.core.MailEnvelopeCodec} instead
+ * of Java serialization. Envelopes of both formats can always be read.
+ * 
  * Requires a logger called MailRepository.
  * </p>
  */
 public class FileMailRepository extends AbstractMailRepository {
 
     private FilePersistentStreamRepository streamRepository;
-    private FilePersistentObjectRepository objectRepository;
+    private MailEnvelopeObjectRepository objectRepository;
     private String destination;
     private Set keys;
     private boolean fifo;
     private boolean cacheKeys; // experimental: for use with write mostly
                                // repositories such as spam and error
+    private boolean compactEnvelope;
     private FileSystem fs;
 
     @Resource(name = "filesystem")
@@ -84,6 +88,7 @@ public class FileMailRepository extends AbstractMailRepository {
         }
         fifo = config.getBoolean("[@FIFO]", false);
         cacheKeys = config.getBoolean("[@CACHEKEYS]", true);
+        compactEnvelope = config.getBoolean("[@COMPACTENVELOPE]", false);
         // ignore model
     }
 
@@ -93,7 +98,8 @@ public class FileMailRepository extends AbstractMailRepository {
             DefaultConfigurationBuilder reposConfiguration = new DefaultConfigurationBuilder();
 
             reposConfiguration.addProperty("[@destinationURL]", destination);
-            objectRepository = new FilePersistentObjectRepository();
+            objectRepository = new MailEnvelopeObjectRepository();
+            objectRepository.setCompact(compactEnvelope);
             objectRepository.setLog(getLogger());
             objectRepository.setFileSystem(fs);
             objectRepository.configure(reposConfiguration);
@@ -0,0 +1,113 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailrepository.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+
+import org.apache.james.core.MailEnvelopeCodec;
+import org.apache.james.repository.file.ClassLoaderObjectInputStream;
+import org.apache.james.repository.file.FilePersistentObjectRepository;
+import org.apache.mailet.Mail;
+
+/**
+ * {@link FilePersistentObjectRepository} which is used by the
+ * {@link FileMailRepository} to store the envelopes of the {@link Mail}'s. If
+ * enabled the envelopes are written via the {@link MailEnvelopeCodec} instead
+ * of Java serialization. Both formats can always be read.
+ */
+public class MailEnvelopeObjectRepository extends FilePersistentObjectRepository {
+
+    private boolean compact;
+
+    /**
+     * Write the envelopes via the {@link MailEnvelopeCodec}
+     * 
+     * @param compact
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * @see org.apache.james.repository.file.FilePersistentObjectRepository#get(java.lang.String)
+     */
+    public synchronized Object get(final String key) {
+        return get(key, null);
+    }
+
+    /**
+     * @see org.apache.james.repository.file.FilePersistentObjectRepository#get(java.lang.String,
+     *      java.lang.ClassLoader)
+     */
+    public synchronized Object get(final String key, final ClassLoader classLoader) {
+        try {
+            final InputStream inputStream = getInputStream(key);
+
+            if (inputStream == null)
+                throw new NullPointerException("Null input stream returned for key: " + key);
+            try {
+                final InputStream in = new BufferedInputStream(inputStream);
+                if (MailEnvelopeCodec.isEncoded(in)) {
+                    return MailEnvelopeCodec.decode(in, classLoader);
+                }
+
+                final ObjectInputStream stream;
+                if (classLoader == null) {
+                    stream = new ObjectInputStream(in);
+                } else {
+                    stream = new ClassLoaderObjectInputStream(classLoader, in);
+                }
+                return stream.readObject();
+            } finally {
+                inputStream.close();
+            }
+        } catch (final Throwable e) {
+            throw new RuntimeException("Exception caught while retrieving an object, cause: " + e.toString());
+        }
+    }
+
+    /**
+     * @see org.apache.james.repository.file.FilePersistentObjectRepository#put(java.lang.String,
+     *      java.lang.Object)
+     */
+    public synchronized void put(final String key, final Object value) {
+        if (!compact || !(value instanceof Mail)) {
+            super.put(key, value);
+            return;
+        }
+        try {
+            final OutputStream outputStream = getOutputStream(key);
+
+            try {
+                final OutputStream out = new BufferedOutputStream(outputStream);
+                MailEnvelopeCodec.encode((Mail) value, out);
+                out.flush();
+            } finally {
+                outputStream.close();
+            }
+        } catch (final Exception e) {
+            throw new RuntimeException("Exception caught while storing an object: " + e);
+        }
+    }
+
+}
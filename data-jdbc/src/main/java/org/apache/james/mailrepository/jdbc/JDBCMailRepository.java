@@ -22,6 +22,7 @@ package org.apache.james.mailrepository.jdbc;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailEnvelopeCodec;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
@@ -44,7 +45,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -145,6 +145,12 @@ public class JDBCMailRepository extends AbstractMailRepository {
 
     private String filestore;
 
+    /**
+     * Store the attributes via the {@link MailEnvelopeCodec} instead of Java
+     * serialization
+     */
+    private boolean compactAttributes;
+
     private String destination;
 
     @Resource(name = "datasource")
@@ -213,6 +219,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
         inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", 409600000);
 
         filestore = configuration.getString("filestore", null);
+        compactAttributes = configuration.getBoolean("compactAttributes", false);
         sqlFileName = configuration.getString("sqlFile");
 
     }
@@ -485,31 +492,8 @@ public class JDBCMailRepository extends AbstractMailRepository {
                     PreparedStatement updateMessageAttr = null;
                     try {
                         updateMessageAttr = conn.prepareStatement(updateMessageAttrSql);
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        byte[] attributes = serializeAttributes(mc);
+                        updateMessageAttr.setBinaryStream(1, new ByteArrayInputStream(attributes), attributes.length);
                         updateMessageAttr.setString(2, mc.getName());
                         updateMessageAttr.setString(3, repositoryName);
                         updateMessageAttr.execute();
@@ -567,31 +551,8 @@ public class JDBCMailRepository extends AbstractMailRepository {
 
                     // Store attributes
                     if (number_of_parameters > 10) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            insertMessage.setBinaryStream(11, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        byte[] attributes = serializeAttributes(mc);
+                        insertMessage.setBinaryStream(11, new ByteArrayInputStream(attributes), attributes.length);
                     }
 
                     insertMessage.execute();
@@ -610,6 +571,37 @@ public class JDBCMailRepository extends AbstractMailRepository {
         }
     }
 
+    /**
+     * Serialize the attributes of the given {@link Mail}. They are written via
+     * the {@link MailEnvelopeCodec} if configured, otherwise as Java
+     * serialized {@link HashMap}. Both formats are read by
+     * {@link #retrieve(String)}.
+     * 
+     * @param mc
+     * @return serialized
+     * @throws IOException
+     */
+    private byte[] serializeAttributes(Mail mc) throws IOException {
+        HashMap attributes;
+        if (mc instanceof MailImpl) {
+            attributes = ((MailImpl) mc).getAttributesRaw();
+        } else {
+            attributes = new HashMap();
+            for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
+                String hashKey = (String) i.next();
+                attributes.put(hashKey, mc.getAttribute(hashKey));
+            }
+        }
+        if (compactAttributes) {
+            return MailEnvelopeCodec.encodeAttributes(attributes);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(attributes);
+        oos.close();
+        return baos.toByteArray();
+    }
+
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#retrieve(String)
      */
@@ -665,10 +657,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
                             }
                             // this check is for better backwards compatibility
                             if (serialized_attr != null) {
-                                ByteArrayInputStream bais = new ByteArrayInputStream(serialized_attr);
-                                ObjectInputStream ois = new ObjectInputStream(bais);
-                                attributes = (HashMap) ois.readObject();
-                                ois.close();
+                                attributes = MailEnvelopeCodec.decodeAttributes(serialized_attr);
                             }
                         } catch (IOException ioe) {
                             if (getLogger().isDebugEnabled()) {
@@ -24,7 +24,9 @@ package org.apache.james.mailetcontainer.api.jmx;
 public interface MailSpoolerMBean {
 
     /**
-     * Return the number of threads used for spooling
+     * Return the number of threads used for spooling. If the threads are
+     * started on demand this is the max count of mails which are processed
+     * concurrently
      * 
      * @return threadCount
      */
@@ -36,4 +38,50 @@ public interface MailSpoolerMBean {
      */
     int getCurrentSpoolCount();
 
+    /**
+     * Return true if the spooler only dequeues mails if a thread is free to
+     * process them
+     * 
+     * @return boundedHandOff
+     */
+    boolean isBoundedHandOff();
+
+    /**
+     * Return the count of mails which were dequeued but are not processed
+     * completely yet. This includes the mails which wait for a free thread
+     * 
+     * @return inFlightCount
+     */
+    int getInFlightCount();
+
+    /**
+     * Return how often the spooler had to wait for a free thread before it
+     * could dequeue the next mail. This is only used for the bounded hand-off
+     * 
+     * @return handOffWaitCount
+     */
+    long getHandOffWaitCount();
+
+    /**
+     * Return the mean time (in ms) the spooler waited for a free thread
+     * 
+     * @return handOffWaitTimeMean
+     */
+    double getHandOffWaitTimeMean();
+
+    /**
+     * Return the 99th percentile of the time (in ms) the spooler waited for
+     * a free thread
+     * 
+     * @return handOffWaitTimeP99
+     */
+    long getHandOffWaitTimeP99();
+
+    /**
+     * Return the max time (in ms) the spooler waited for a free thread
+     * 
+     * @return handOffWaitTimeMax
+     */
+    long getHandOffWaitTimeMax();
+
 }
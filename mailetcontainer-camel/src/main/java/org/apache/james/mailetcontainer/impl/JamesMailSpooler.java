@@ -19,9 +19,14 @@
 
 package org.apache.james.mailetcontainer.impl;
 
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -34,11 +39,13 @@ import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.mailetcontainer.api.MailProcessor;
 import org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean;
+import org.apache.james.queue.api.LatencyHistogram;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.api.MailQueueFactory;
 import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.james.util.concurrent.NamedThreadFactory;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 
@@ -50,16 +57,34 @@ import org.slf4j.Logger;
  */
 public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, MailSpoolerMBean {
 
+    /** Process the mails with a fixed count of threads */
+    public final static String MODE_THREADS = "threads";
+
+    /**
+     * Process the mails with threads which are only started on demand, have
+     * a small stack and are limited by a max concurrency
+     */
+    public final static String MODE_LIGHTWEIGHT = "lightweight";
+
     private MailQueue queue;
 
     /** The number of threads used to move mail through the spool. */
     private int numThreads;
 
+    /** Use the lightweight execution mode */
+    private boolean lightweight;
+
+    /** Stack size (in bytes) of the threads in lightweight mode */
+    private long threadStackSize;
+
     /** Number of active threads */
     private AtomicInteger numActive = new AtomicInteger(0);;
 
     private AtomicInteger processingActive = new AtomicInteger(0);;
 
+    /** Number of dequeued mails which are not done yet */
+    private AtomicInteger inFlight = new AtomicInteger(0);
+
     /** Spool threads are active */
     private AtomicBoolean active = new AtomicBoolean(false);
 
@@ -77,6 +102,27 @@ public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, Mai
 
     private int numDequeueThreads;
 
+    /** Max count of mails which are dequeued at once */
+    private int dequeueBatchSize;
+
+    /** Timeout (in ms) to wait for the first mail of a batch dequeue */
+    private final static long DEQUEUE_TIMEOUT = 10000;
+
+    /**
+     * Only dequeue if a worker thread is free, so mails are not piling up
+     * (uncommitted) in the work queue of the worker threads
+     */
+    private boolean boundedHandOff;
+
+    /** Free worker threads, only used for the bounded hand-off */
+    private Semaphore idleWorkers;
+
+    /** Time (in ms) the dequeue threads waited for a free worker */
+    private final LatencyHistogram handOffWaitTime = new LatencyHistogram();
+
+    /** Count of hand-offs which needed to wait for a free worker */
+    private final AtomicLong handOffWaitCount = new AtomicLong();
+
     @Resource(name = "mailqueuefactory")
     public void setMailQueueFactory(MailQueueFactory queueFactory) {
         this.queueFactory = queueFactory;
@@ -95,6 +141,25 @@ public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, Mai
         numDequeueThreads = config.getInt("dequeueThreads", 2);
 
         numThreads = config.getInt("threads", 100);
+
+        dequeueBatchSize = config.getInt("dequeueBatchSize", 1);
+
+        boundedHandOff = config.getBoolean("boundedHandOff", false);
+
+        String mode = config.getString("executionMode", MODE_THREADS);
+        if (MODE_LIGHTWEIGHT.equals(mode)) {
+            lightweight = true;
+            numThreads = config.getInt("maxConcurrency", 1000);
+            threadStackSize = config.getLong("threadStackSize", 256) * 1024;
+
+            // the max concurrency is enforced by the bounded hand-off
+            boundedHandOff = true;
+        } else if (!MODE_THREADS.equals(mode)) {
+            throw new ConfigurationException("Unknown executionMode " + mode);
+        }
+        if (numThreads < 1) {
+            throw new ConfigurationException("At least one thread is needed for spooling");
+        }
     }
 
     /**
@@ -107,12 +172,24 @@ public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, Mai
         queue = queueFactory.getQueue(MailQueueFactory.SPOOL);
 
         if (logger.isInfoEnabled()) {
-            StringBuffer infoBuffer = new StringBuffer(64).append(getClass().getName()).append(" uses ").append(numThreads).append(" Thread(s)");
+            StringBuffer infoBuffer = new StringBuffer(64).append(getClass().getName()).append(" uses ");
+            if (lightweight) {
+                infoBuffer.append("up to ").append(numThreads).append(" lightweight Thread(s)");
+            } else {
+                infoBuffer.append(numThreads).append(" Thread(s)");
+            }
             logger.info(infoBuffer.toString());
         }
 
         active.set(true);
-        workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "spooler", numThreads);
+        if (boundedHandOff) {
+            idleWorkers = new Semaphore(numThreads);
+        }
+        if (lightweight) {
+            workerService = JMXEnabledThreadPoolExecutor.newElasticThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", numThreads, new NamedThreadFactory("spooler", Thread.NORM_PRIORITY, threadStackSize));
+        } else {
+            workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "spooler", numThreads);
+        }
         dequeueService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "dequeuer", numDequeueThreads);
         
         for (int i = 0; i < numDequeueThreads; i++) {
@@ -134,57 +211,56 @@ public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, Mai
 
         while (active.get()) {
 
-            final MailQueueItem queueItem;
+            int workers = 0;
             try {
-                queueItem = queue.deQueue();
-                workerService.execute(new Runnable() {
-
-                    @Override
-                    public void run() {
+                if (boundedHandOff) {
+                    // block until a worker is free before dequeue, so the
+                    // mail stays in the queue where the other spooler
+                    // instances can get it
+                    workers = acquireWorkers(dequeueBatchSize);
+                }
+                if (dequeueBatchSize > 1) {
+                    // only fetch as many mails as there are idle workers, so
+                    // the other dequeue threads and spooler instances get a
+                    // chance too
+                    int batchSize = boundedHandOff ? workers : Math.min(dequeueBatchSize, Math.max(1, numThreads - processingActive.get()));
+                    List<MailQueueItem> queueItems = queue.deQueue(batchSize, DEQUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+                    for (int i = 0; i < queueItems.size(); i++) {
+                        // the worker is released by the task, or by execute if the task is rejected
+                        workers--;
                         try {
-                            numActive.incrementAndGet();
-
-                            // increase count
-                            processingActive.incrementAndGet();
-
-                            Mail mail = queueItem.getMail();
-                            if (logger.isDebugEnabled()) {
-                                StringBuffer debugBuffer = new StringBuffer(64).append("==== Begin processing mail ").append(mail.getName()).append("====");
-                                logger.debug(debugBuffer.toString());
-                            }
-
-                            try {
-                                mailProcessor.service(mail);
-                                queueItem.done(true);
-                            } catch (Exception e) {
-                                if (active.get() && logger.isErrorEnabled()) {
-                                    logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-                                }
-                                queueItem.done(false);
-
-                            } finally {
-                                LifecycleUtil.dispose(mail);
-                                mail = null;
+                            execute(queueItems.get(i));
+                        } catch (RejectedExecutionException e) {
+                            // give the rest of the batch back to the queue
+                            for (int j = i + 1; j < queueItems.size(); j++) {
+                                rollback(queueItems.get(j));
                             }
-                        } catch (Throwable e) {
-                            if (active.get() && logger.isErrorEnabled()) {
-                                logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-
-                            }
-                        } finally {
-                            processingActive.decrementAndGet();
-                            numActive.decrementAndGet();
+                            throw e;
                         }
-
                     }
-                });
-                  
-               
+                } else {
+                    MailQueueItem queueItem = queue.deQueue();
+                    workers--;
+                    execute(queueItem);
+                }
             } catch (MailQueueException e1) {
                 if (active.get() && logger.isErrorEnabled()) {
                     logger.error("Exception dequeue mail", e1);
 
                 }
+            } catch (RejectedExecutionException e) {
+                if (active.get() && logger.isErrorEnabled()) {
+                    logger.error("Unable to process dequeued mail", e);
+                }
+            } catch (InterruptedException e) {
+                // dispose() was called
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                // release the workers which did not get a mail
+                if (workers > 0) {
+                    idleWorkers.release(workers);
+                }
             }
           
 
@@ -194,6 +270,110 @@ public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, Mai
         }
     }
 
+    /**
+     * Wait until at least one worker is free and reserve up to max free
+     * workers
+     * 
+     * @param max
+     * @return count the count of reserved workers
+     * @throws InterruptedException
+     */
+    private int acquireWorkers(int max) throws InterruptedException {
+        if (idleWorkers.tryAcquire()) {
+            handOffWaitTime.record(0);
+        } else {
+            handOffWaitCount.incrementAndGet();
+            long start = System.currentTimeMillis();
+            idleWorkers.acquire();
+            handOffWaitTime.record(System.currentTimeMillis() - start);
+        }
+        int count = 1;
+        while (count < max && idleWorkers.tryAcquire()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Process the given {@link MailQueueItem} via the worker threads
+     * 
+     * @param queueItem
+     */
+    private void execute(final MailQueueItem queueItem) {
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    numActive.incrementAndGet();
+
+                    // increase count
+                    processingActive.incrementAndGet();
+
+                    Mail mail = queueItem.getMail();
+                    if (logger.isDebugEnabled()) {
+                        StringBuffer debugBuffer = new StringBuffer(64).append("==== Begin processing mail ").append(mail.getName()).append("====");
+                        logger.debug(debugBuffer.toString());
+                    }
+
+                    try {
+                        mailProcessor.service(mail);
+                        queueItem.done(true);
+                    } catch (Exception e) {
+                        if (active.get() && logger.isErrorEnabled()) {
+                            logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+                        }
+                        queueItem.done(false);
+
+                    } finally {
+                        LifecycleUtil.dispose(mail);
+                        mail = null;
+                    }
+                } catch (Throwable e) {
+                    if (active.get() && logger.isErrorEnabled()) {
+                        logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+
+                    }
+                } finally {
+                    processingActive.decrementAndGet();
+                    numActive.decrementAndGet();
+                    inFlight.decrementAndGet();
+                    if (idleWorkers != null) {
+                        idleWorkers.release();
+                    }
+                }
+
+            }
+        };
+        inFlight.incrementAndGet();
+        try {
+            workerService.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            if (idleWorkers != null) {
+                idleWorkers.release();
+            }
+            rollback(queueItem);
+            throw e;
+        }
+    }
+
+    /**
+     * Give the given {@link MailQueueItem} back to the queue without
+     * processing it
+     * 
+     * @param queueItem
+     */
+    private void rollback(MailQueueItem queueItem) {
+        try {
+            queueItem.done(false);
+        } catch (MailQueueException e) {
+            if (logger.isErrorEnabled()) {
+                logger.error("Unable to give back mail " + queueItem.getMail().getName(), e);
+            }
+        }
+    }
+
     /**
      * The dispose operation is called at the end of a components lifecycle.
      * Instances of this class use this method to release and destroy any
@@ -245,4 +425,52 @@ public class JamesMailSpooler implements Runnable, Configurable, LogEnabled, Mai
     public int getCurrentSpoolCount() {
         return processingActive.get();
     }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean#isBoundedHandOff()
+     */
+    public boolean isBoundedHandOff() {
+        return boundedHandOff;
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean#getInFlightCount()
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean#getHandOffWaitCount()
+     */
+    public long getHandOffWaitCount() {
+        return handOffWaitCount.get();
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean#getHandOffWaitTimeMean()
+     */
+    public double getHandOffWaitTimeMean() {
+        return handOffWaitTime.getMean();
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean#getHandOffWaitTimeP99()
+     */
+    public long getHandOffWaitTimeP99() {
+        return handOffWaitTime.getPercentile(0.99);
+    }
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean#getHandOffWaitTimeMax()
+     */
+    public long getHandOffWaitTimeMax() {
+        return handOffWaitTime.getMax();
+    }
 }
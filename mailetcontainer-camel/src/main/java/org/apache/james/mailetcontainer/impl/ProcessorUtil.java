@@ -21,13 +21,26 @@ package org.apache.james.mailetcontainer.impl;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.mail.MessagingException;
 
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.MailetConfig;
 import org.apache.mailet.MailetException;
+import org.apache.mailet.Matcher;
 import org.slf4j.Logger;
 
 public class ProcessorUtil {
@@ -91,4 +104,213 @@ public class ProcessorUtil {
             throw new MailetException("The recipient list contains objects other than MailAddress objects");
         }
     }
+
+    /**
+     * Call the given {@link Matcher} for the {@link Mail} and split it if
+     * only some of the recipients matched. In this case the matched
+     * recipients are removed from the given {@link Mail} and a new
+     * {@link Mail} which holds them is returned. The listeners are notified
+     * after the {@link Matcher} was called.
+     * 
+     * @param matcher
+     * @param onMatchException
+     *            the configured onMatchException or <code>null</code>
+     * @param mail
+     * @param logger
+     * @param listeners
+     * @return matchedMail the given {@link Mail} if all recipients matched,
+     *         the new {@link Mail} if some matched or <code>null</code> if
+     *         none matched
+     * @throws MessagingException
+     */
+    @SuppressWarnings("unchecked")
+    public static Mail split(Matcher matcher, String onMatchException, Mail mail, Logger logger, List<MailetProcessorListener> listeners) throws MessagingException {
+        Collection<MailAddress> matchedRcpts = null;
+        // the recipients collection of the mail is never modified while
+        // splitting, so there is no need to copy it for the listeners
+        Collection<MailAddress> origRcpts = mail.getRecipients();
+        long start = System.currentTimeMillis();
+        MessagingException ex = null;
+
+        try {
+            try {
+                // call the matcher
+                matchedRcpts = matcher.match(mail);
+
+                if (matchedRcpts != null && matchedRcpts != mail.getRecipients()) {
+                    // Make sure all the objects are MailAddress objects
+                    verifyMailAddresses(matchedRcpts);
+                }
+
+            } catch (MessagingException me) {
+                ex = me;
+                if (onMatchException == null) {
+                    onMatchException = Mail.ERROR;
+                } else {
+                    onMatchException = onMatchException.trim().toLowerCase(Locale.US);
+                }
+                if (onMatchException.compareTo("nomatch") == 0) {
+                    matchedRcpts = null;
+                } else if (onMatchException.compareTo("matchall") == 0) {
+                    matchedRcpts = mail.getRecipients();
+                    // no need to verify addresses
+                } else {
+                    handleException(me, mail, matcher.getMatcherConfig().getMatcherName(), onMatchException, logger);
+                }
+            }
+
+            // check if the matcher matched
+            if (matchedRcpts == null || matchedRcpts.isEmpty()) {
+                return null;
+            }
+            Collection<MailAddress> rcpts = mail.getRecipients();
+            if (matchedRcpts == rcpts) {
+                // all recipients matched
+                return mail;
+            }
+
+            List<MailAddress> unmatchedRcpts = getUnmatchedRecipients(rcpts, matchedRcpts);
+            if (unmatchedRcpts.isEmpty()) {
+                // all recipients matched
+                return mail;
+            }
+            mail.setRecipients(unmatchedRcpts);
+
+            Mail newMail = new MailImpl(mail);
+            newMail.setRecipients(matchedRcpts);
+            return newMail;
+        } finally {
+
+            long complete = System.currentTimeMillis() - start;
+            for (int i = 0; i < listeners.size(); i++) {
+                MailetProcessorListener listener = listeners.get(i);
+                // need to check if its null or empty!
+                if (matchedRcpts == null || matchedRcpts.isEmpty()) {
+                    listener.afterMatcher(matcher, mail.getName(), origRcpts, null, complete, ex);
+                } else {
+                    listener.afterMatcher(matcher, mail.getName(), origRcpts, matchedRcpts, complete, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the recipients which are not part of the matched recipients.
+     * Every matched recipient removes at most one occurrence of itself, like
+     * {@link List#remove(Object)} would do.
+     * 
+     * The matched recipients get marked in a {@link BitSet} which is indexed
+     * like the recipients. Matchers return the matched recipients in the
+     * order of the recipients most of the time, so they are looked up by
+     * scanning forward. Once a matched recipient is not found that way the
+     * remaining ones are looked up via an index of the recipients. So this
+     * takes linear time, regardless of the count of matched recipients.
+     * 
+     * @param rcpts
+     *            the recipients, this collection is not modified
+     * @param matchedRcpts
+     * @return unmatchedRcpts the unmatched recipients in their original
+     *         order, empty if all recipients matched
+     */
+    public static List<MailAddress> getUnmatchedRecipients(Collection<MailAddress> rcpts, Collection<MailAddress> matchedRcpts) {
+        MailAddress[] addresses = rcpts.toArray(new MailAddress[rcpts.size()]);
+        BitSet matched = new BitSet(addresses.length);
+        Map<MailAddress, Integer> index = null;
+        int matchedCount = 0;
+        int pos = 0;
+
+        Iterator<MailAddress> matchedIt = matchedRcpts.iterator();
+        while (matchedIt.hasNext() && matchedCount < addresses.length) {
+            MailAddress address = matchedIt.next();
+            int found = -1;
+            if (index == null) {
+                for (int i = pos; i < addresses.length; i++) {
+                    if (!matched.get(i) && addresses[i].equals(address)) {
+                        found = i;
+                        pos = i + 1;
+                        break;
+                    }
+                }
+                if (found == -1) {
+                    // not in order, so switch to the index
+                    index = new HashMap<MailAddress, Integer>(addresses.length * 4 / 3 + 1);
+                    for (int i = addresses.length - 1; i >= 0; i--) {
+                        index.put(addresses[i], i);
+                    }
+                }
+            }
+            if (index != null) {
+                Integer first = index.get(address);
+                if (first != null) {
+                    // skip duplicates which are already marked
+                    for (int i = first; i < addresses.length; i++) {
+                        if (!matched.get(i) && addresses[i].equals(address)) {
+                            found = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (found != -1) {
+                matched.set(found);
+                matchedCount++;
+            }
+        }
+
+        if (matchedCount == addresses.length) {
+            return Collections.emptyList();
+        }
+        List<MailAddress> unmatchedRcpts = new ArrayList<MailAddress>(addresses.length - matchedCount);
+        for (int i = matched.nextClearBit(0); i < addresses.length; i = matched.nextClearBit(i + 1)) {
+            unmatchedRcpts.add(addresses[i]);
+        }
+        return unmatchedRcpts;
+    }
+
+    /**
+     * Call the given {@link Mailet} for the {@link Mail} and handle a thrown
+     * {@link MessagingException} as configured via onMailetException. The
+     * listeners are notified after the {@link Mailet} was called.
+     * 
+     * @param mailet
+     * @param mail
+     * @param logger
+     * @param listeners
+     * @throws MessagingException
+     */
+    public static void service(Mailet mailet, Mail mail, Logger logger, List<MailetProcessorListener> listeners) throws MessagingException {
+        long start = System.currentTimeMillis();
+        MessagingException ex = null;
+        try {
+            mailet.service(mail);
+        } catch (MessagingException me) {
+            ex = me;
+            String onMailetException = null;
+
+            MailetConfig mailetConfig = mailet.getMailetConfig();
+            if (mailetConfig instanceof MailetConfigImpl) {
+                onMailetException = ((MailetConfigImpl) mailetConfig).getInitAttribute("onMailetException");
+            }
+            if (onMailetException == null) {
+                onMailetException = Mail.ERROR;
+            } else {
+                onMailetException = onMailetException.trim().toLowerCase(Locale.US);
+            }
+            if (onMailetException.compareTo("ignore") == 0) {
+                // ignore the exception and continue
+                // this option should not be used if the mail object can be
+                // changed by the mailet
+                verifyMailAddresses(mail.getRecipients());
+            } else {
+                handleException(me, mail, mailet.getMailetConfig().getMailetName(), onMailetException, logger);
+            }
+
+        } finally {
+            long complete = System.currentTimeMillis() - start;
+            for (int i = 0; i < listeners.size(); i++) {
+                MailetProcessorListener listener = listeners.get(i);
+                listener.afterMailet(mailet, mail.getName(), mail.getState(), complete, ex);
+            }
+        }
+    }
 }
@@ -18,19 +18,11 @@
  ****************************************************************/
 package org.apache.james.mailetcontainer.impl.camel;
 
-import java.util.List;
-import java.util.Locale;
-
-import javax.mail.MessagingException;
-
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
-import org.apache.james.mailetcontainer.impl.MailetConfigImpl;
 import org.apache.james.mailetcontainer.impl.ProcessorUtil;
-import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
 import org.apache.mailet.Mail;
 import org.apache.mailet.Mailet;
-import org.apache.mailet.MailetConfig;
 import org.slf4j.Logger;
 
 /**
@@ -56,43 +48,9 @@ public class CamelProcessor implements Processor {
     /**
      * Call the wrapped mailet for the exchange
      */
-    @SuppressWarnings("unchecked")
     public void process(Exchange exchange) throws Exception {
         Mail mail = exchange.getIn().getBody(Mail.class);
-        long start = System.currentTimeMillis();
-        MessagingException ex = null;
-        try {
-            mailet.service(mail);
-        } catch (MessagingException me) {
-            ex = me;
-            String onMailetException = null;
-
-            MailetConfig mailetConfig = mailet.getMailetConfig();
-            if (mailetConfig instanceof MailetConfigImpl) {
-                onMailetException = ((MailetConfigImpl) mailetConfig).getInitAttribute("onMailetException");
-            }
-            if (onMailetException == null) {
-                onMailetException = Mail.ERROR;
-            } else {
-                onMailetException = onMailetException.trim().toLowerCase(Locale.US);
-            }
-            if (onMailetException.compareTo("ignore") == 0) {
-                // ignore the exception and continue
-                // this option should not be used if the mail object can be
-                // changed by the mailet
-                ProcessorUtil.verifyMailAddresses(mail.getRecipients());
-            } else {
-                ProcessorUtil.handleException(me, mail, mailet.getMailetConfig().getMailetName(), onMailetException, logger);
-            }
-
-        } finally {
-            List<MailetProcessorListener> listeners = processor.getListeners();
-            long complete = System.currentTimeMillis() - start;
-            for (int i = 0; i < listeners.size(); i++) {
-                MailetProcessorListener listener = listeners.get(i);
-                listener.afterMailet(mailet, mail.getName(), mail.getState(), complete, ex);
-            }
-        }
+        ProcessorUtil.service(mailet, mail, logger, processor.getListeners());
     }
 
 }
@@ -20,10 +20,7 @@
 package org.apache.james.mailetcontainer.impl.camel;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 
 import javax.mail.MessagingException;
 
@@ -31,11 +28,8 @@ import org.apache.camel.Body;
 import org.apache.camel.Handler;
 import org.apache.camel.InOnly;
 import org.apache.camel.Property;
-import org.apache.james.core.MailImpl;
 import org.apache.james.mailetcontainer.impl.ProcessorUtil;
-import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor.MailetProcessorListener;
 import org.apache.mailet.Mail;
-import org.apache.mailet.MailAddress;
 import org.apache.mailet.Matcher;
 import org.slf4j.Logger;
 
@@ -70,103 +64,25 @@ public class MatcherSplitter {
      * @return mailMessageList
      * @throws MessagingException
      */
-    @SuppressWarnings("unchecked")
     @Handler
     public List<Mail> split(@Property(MATCHER_PROPERTY) Matcher matcher, @Property(ON_MATCH_EXCEPTION_PROPERTY) String onMatchException, @Property(LOGGER_PROPERTY) Logger logger, @Property(MAILETCONTAINER_PROPERTY) CamelMailetProcessor container, @Body Mail mail) throws MessagingException {
-        Collection<MailAddress> matchedRcpts = null;
-        Collection<MailAddress> origRcpts = new ArrayList<MailAddress>(mail.getRecipients());
-        long start = System.currentTimeMillis();
-        MessagingException ex = null;
+        List<Mail> mails = new ArrayList<Mail>();
+        Mail matchedMail = ProcessorUtil.split(matcher, onMatchException, mail, logger, container.getListeners());
 
-        try {
-            List<Mail> mails = new ArrayList<Mail>();
-            boolean fullMatch = false;
+        if (matchedMail != null) {
+            // Set a header because the matcher matched. This can be used
+            // later when processing the route
+            matchedMail.setAttribute(MATCHER_MATCHED_ATTRIBUTE, true);
 
-            try {
-                // call the matcher
-                matchedRcpts = matcher.match(mail);
-
-                if (matchedRcpts == null) {
-                    // In case the matcher returned null, create an empty
-                    // Collection
-                    matchedRcpts = new ArrayList<MailAddress>(0);
-                } else if (matchedRcpts != mail.getRecipients()) {
-                    // Make sure all the objects are MailAddress objects
-                    ProcessorUtil.verifyMailAddresses(matchedRcpts);
-                }
-
-            } catch (MessagingException me) {
-                ex = me;
-                if (onMatchException == null) {
-                    onMatchException = Mail.ERROR;
-                } else {
-                    onMatchException = onMatchException.trim().toLowerCase(Locale.US);
-                }
-                if (onMatchException.compareTo("nomatch") == 0) {
-                    // In case the matcher returned null, create an empty
-                    // Collection
-                    matchedRcpts = new ArrayList<MailAddress>(0);
-                } else if (onMatchException.compareTo("matchall") == 0) {
-                    matchedRcpts = mail.getRecipients();
-                    // no need to verify addresses
-                } else {
-                    ProcessorUtil.handleException(me, mail, matcher.getMatcherConfig().getMatcherName(), onMatchException, logger);
-                }
-            }
-
-            // check if the matcher matched
-            if (matchedRcpts != null && matchedRcpts.isEmpty() == false) {
-                List<MailAddress> rcpts = new ArrayList<MailAddress>(mail.getRecipients());
-
-                Iterator<MailAddress> rcptsIterator = matchedRcpts.iterator();
-
-                while (rcptsIterator.hasNext()) {
-                    // loop through the recipients and remove the recipients
-                    // that matched
-                    rcpts.remove(rcptsIterator.next());
-                }
-
-                if (rcpts.isEmpty()) {
-                    // all recipients matched
-                    fullMatch = true;
-                } else {
-                    mail.setRecipients(rcpts);
-
-                    Mail newMail = new MailImpl(mail);
-                    newMail.setRecipients(matchedRcpts);
-
-                    // Set a header because the matcher matched. This can be
-                    // used later when processing the route
-                    newMail.setAttribute(MATCHER_MATCHED_ATTRIBUTE, true);
-
-                    // add the new generated mail to the mails list
-                    mails.add(newMail);
-                }
-            }
-
-            if (fullMatch) {
-                // Set a header because the matcher matched. This can be used
-                // later when processing the route
-                mail.setAttribute(MATCHER_MATCHED_ATTRIBUTE, true);
+            if (matchedMail != mail) {
+                // add the new generated mail to the mails list
+                mails.add(matchedMail);
             }
+        }
 
-            // add mailMsg to the mails list
-            mails.add(mail);
-
-            return mails;
-        } finally {
+        // add mailMsg to the mails list
+        mails.add(mail);
 
-            long complete = System.currentTimeMillis() - start;
-            List<MailetProcessorListener> listeners = container.getListeners();
-            for (int i = 0; i < listeners.size(); i++) {
-                MailetProcessorListener listener = listeners.get(i);
-                // need to check if its null or empty!
-                if (matchedRcpts == null || matchedRcpts.isEmpty()) {
-                    listener.afterMatcher(matcher, mail.getName(), origRcpts, null, complete, ex);
-                } else {
-                    listener.afterMatcher(matcher, mail.getName(), origRcpts, matchedRcpts, complete, ex);
-                }
-            }
-        }
+        return mails;
     }
 }
@@ -0,0 +1,186 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl.pipeline;
+
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.mailetcontainer.impl.MailetConfigImpl;
+import org.apache.james.mailetcontainer.impl.MatcherMailetPair;
+import org.apache.james.mailetcontainer.impl.ProcessorUtil;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
+import org.apache.mailet.Mail;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.MailetConfig;
+import org.apache.mailet.Matcher;
+
+/**
+ * {@link AbstractStateMailetProcessor} implementation which compiles the
+ * {@link Matcher} / {@link Mailet} routing into arrays and runs it in the
+ * calling thread, without Camel.
+ * 
+ * The routing is the same as the one of
+ * {@link org.apache.james.mailetcontainer.impl.camel.CamelMailetProcessor}:
+ * <ul>
+ * <li>If only some recipients match, the {@link Mail} is split. The new
+ * {@link Mail} with the matched recipients runs through the rest of the
+ * processor first, then the original {@link Mail} continues.</li>
+ * <li>A {@link Mail} with state {@link Mail#GHOST} is disposed, a {@link Mail}
+ * with another state is handed over to the processor of that state.</li>
+ * <li>A {@link Mail} which reaches the end with an unchanged state is
+ * ghosted by the {@link AbstractStateMailetProcessor.TerminatingMailet}.</li>
+ * <li>If the processing of a split {@link Mail} fails, the other parts are
+ * still processed and the failure is thrown afterwards.</li>
+ * </ul>
+ */
+public class PipelineMailetProcessor extends AbstractStateMailetProcessor {
+
+    private Matcher[] matchers;
+    private Mailet[] mailets;
+    private String[] onMatchExceptions;
+    private Mailet terminatingMailet;
+    private String state;
+
+    /**
+     * @see
+     * org.apache.james.mailetcontainer.api.MailProcessor#service(org.apache.mailet.Mail)
+     */
+    public void service(Mail mail) throws MessagingException {
+        try {
+            process(mail, 0);
+        } catch (MessagingException e) {
+            throw new MessagingException("Unable to process mail " + mail.getName(), e);
+        } catch (RuntimeException e) {
+            throw new MessagingException("Unable to process mail " + mail.getName(), e);
+        }
+    }
+
+    /**
+     * Process the given {@link Mail} starting with the {@link Matcher} /
+     * {@link Mailet} pair at the given index
+     * 
+     * @param mail
+     * @param index
+     * @throws MessagingException
+     */
+    private void process(Mail mail, int index) throws MessagingException {
+        MessagingException failure = null;
+        List<MailetProcessorListener> listeners = getListeners();
+
+        for (int i = index; i < matchers.length; i++) {
+            Mail matchedMail = ProcessorUtil.split(matchers[i], onMatchExceptions[i], mail, getLogger(), listeners);
+            if (matchedMail == mail) {
+                ProcessorUtil.service(mailets[i], mail, getLogger(), listeners);
+            } else if (matchedMail != null) {
+                // the split off mail runs through the rest of the processor
+                // before the original mail continues
+                try {
+                    ProcessorUtil.service(mailets[i], matchedMail, getLogger(), listeners);
+                    if (proceed(matchedMail)) {
+                        process(matchedMail, i + 1);
+                    }
+                } catch (MessagingException e) {
+                    failure = e;
+                }
+            }
+
+            if (!proceed(mail)) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return;
+            }
+        }
+
+        if (state.equals(mail.getState())) {
+            // the mail state did not change till the end of the processor, so
+            // we need to call the TerminatingMailet to make sure we don't
+            // fall into a endless loop
+            ProcessorUtil.service(terminatingMailet, mail, getLogger(), listeners);
+        } else if (Mail.GHOST.equals(mail.getState())) {
+            dispose(mail);
+        } else {
+            getLogger().debug("End of mailetprocessor for state " + state + " reached");
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Check if the given {@link Mail} should continue in this processor. If
+     * not it is disposed or handed over to the processor of its new state
+     * 
+     * @param mail
+     * @return proceed
+     * @throws MessagingException
+     */
+    private boolean proceed(Mail mail) throws MessagingException {
+        String mailState = mail.getState();
+        if (Mail.GHOST.equals(mailState)) {
+            dispose(mail);
+            return false;
+        }
+        if (!state.equals(mailState)) {
+            toProcessor(mail);
+            getLogger().debug("End of mailetprocessor for state " + state + " reached");
+            return false;
+        }
+        return true;
+    }
+
+    private void dispose(Mail mail) {
+        LifecycleUtil.dispose(mail.getMessage());
+        LifecycleUtil.dispose(mail);
+    }
+
+    /**
+     * Compile the given {@link MatcherMailetPair}'s into arrays
+     * 
+     * @see
+     * org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor#setupRouting
+     * (java.util.List)
+     */
+    protected void setupRouting(List<MatcherMailetPair> pairs) throws MessagingException {
+        int size = pairs.size();
+        Matcher[] matchers = new Matcher[size];
+        Mailet[] mailets = new Mailet[size];
+        String[] onMatchExceptions = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            MatcherMailetPair pair = pairs.get(i);
+            matchers[i] = pair.getMatcher();
+            mailets[i] = pair.getMailet();
+
+            MailetConfig mailetConfig = mailets[i].getMailetConfig();
+            if (mailetConfig instanceof MailetConfigImpl) {
+                onMatchExceptions[i] = ((MailetConfigImpl) mailetConfig).getInitAttribute("onMatchException");
+            }
+        }
+
+        this.state = getState();
+        this.terminatingMailet = new TerminatingMailet();
+        this.matchers = matchers;
+        this.mailets = mailets;
+        this.onMatchExceptions = onMatchExceptions;
+    }
+}
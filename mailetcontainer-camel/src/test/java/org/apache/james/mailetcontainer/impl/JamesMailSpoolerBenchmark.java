@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.mock.MockMailQueueFactory;
+import org.apache.mailet.Mail;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmark which compares the execution modes of the
+ * {@link JamesMailSpooler} with a mailet chain which mostly waits for I/O
+ * (simulated by sleeping, like a mailet which waits for DNS, JDBC, spamd or a
+ * remote SMTP server). For every mode the throughput, the peak count of live
+ * threads and the used heap are reported. This is not executed as part of the
+ * unit tests, run it via its main method:
+ * 
+ * <pre>
+ * JamesMailSpoolerBenchmark [mails] [ioSteps] [ioMillis]
+ * </pre>
+ */
+public class JamesMailSpoolerBenchmark {
+
+    private final int mails;
+    private final int ioSteps;
+    private final long ioMillis;
+
+    public JamesMailSpoolerBenchmark(int mails, int ioSteps, long ioMillis) {
+        this.mails = mails;
+        this.ioSteps = ioSteps;
+        this.ioMillis = ioMillis;
+    }
+
+    /**
+     * Spool the configured count of mails with a spooler which uses the given
+     * execution configuration
+     * 
+     * @param label
+     * @param executionConfig
+     * @throws Exception
+     */
+    public void run(String label, String executionConfig) throws Exception {
+        MailQueueFactory factory = new MockMailQueueFactory();
+        MailQueue queue = factory.getQueue(MailQueueFactory.SPOOL);
+        IOBoundMailProcessor processor = new IOBoundMailProcessor();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<spooler>");
+        sb.append(executionConfig);
+        sb.append("<dequeueThreads>4</dequeueThreads>");
+        sb.append("<dequeueBatchSize>50</dequeueBatchSize>");
+        sb.append("</spooler>");
+        DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
+        builder.load(new ByteArrayInputStream(sb.toString().getBytes()));
+
+        for (int i = 0; i < mails; i++) {
+            MailImpl mail = new MailImpl();
+            mail.setName("benchmark-" + i);
+            queue.enQueue(mail);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        long heapBefore = usedHeap();
+        threads.resetPeakThreadCount();
+        int threadsBefore = threads.getThreadCount();
+
+        JamesMailSpooler spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger("Benchmark"));
+        spooler.setMailQueueFactory(factory);
+        spooler.setMailProcessor(processor);
+        spooler.configure(builder);
+
+        long start = System.currentTimeMillis();
+        spooler.init();
+
+        // sample the heap while the spooler is busy
+        long heapPeak = 0;
+        while (!processor.done.await(100, TimeUnit.MILLISECONDS)) {
+            heapPeak = Math.max(heapPeak, usedHeap());
+        }
+        long time = System.currentTimeMillis() - start;
+        int peakThreads = threads.getPeakThreadCount() - threadsBefore;
+        spooler.dispose();
+
+        System.out.println(label + " mails=" + mails + " io=" + ioSteps + "x" + ioMillis + "ms throughput=" + Math.round(mails * 1000d / Math.max(1, time)) + " msg/s peakThreads=" + peakThreads + " peakHeap="
+                + ((heapPeak - heapBefore) / 1024) + " KB");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * {@link MailProcessor} which blocks for a fixed time per step, like a
+     * mailet chain which waits for remote services
+     */
+    private final class IOBoundMailProcessor implements MailProcessor {
+        private final CountDownLatch done = new CountDownLatch(mails);
+
+        public void service(Mail mail) throws MessagingException {
+            try {
+                for (int i = 0; i < ioSteps; i++) {
+                    Thread.sleep(ioMillis);
+                }
+            } catch (InterruptedException e) {
+                throw new MessagingException("Interrupted", e);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int ioSteps = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long ioMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+        JamesMailSpoolerBenchmark benchmark = new JamesMailSpoolerBenchmark(mails, ioSteps, ioMillis);
+        // warm up
+        benchmark.run("warmup", "<threads>100</threads>");
+
+        benchmark.run("threads(100)", "<threads>100</threads>");
+        benchmark.run("threads(100, boundedHandOff)", "<threads>100</threads><boundedHandOff>true</boundedHandOff>");
+        benchmark.run("threads(1000)", "<threads>1000</threads>");
+        benchmark.run("lightweight(1000, 256KB)", "<executionMode>lightweight</executionMode><maxConcurrency>1000</maxConcurrency><threadStackSize>256</threadStackSize>");
+        benchmark.run("lightweight(1000, 128KB)", "<executionMode>lightweight</executionMode><maxConcurrency>1000</maxConcurrency><threadStackSize>128</threadStackSize>");
+    }
+}
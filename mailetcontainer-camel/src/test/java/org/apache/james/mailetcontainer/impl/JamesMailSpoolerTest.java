@@ -0,0 +1,165 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.mock.MockMailQueueFactory;
+import org.apache.mailet.Mail;
+import org.slf4j.LoggerFactory;
+
+public class JamesMailSpoolerTest extends TestCase {
+
+    private final static int MAILS = 6;
+    private final static int THREADS = 2;
+
+    private JamesMailSpooler spooler;
+    private BlockingMailProcessor processor;
+    private MailQueue queue;
+
+    private JamesMailSpooler createSpooler(boolean boundedHandOff, int dequeueBatchSize) throws Exception {
+        return createSpooler("<threads>" + THREADS + "</threads><boundedHandOff>" + boundedHandOff + "</boundedHandOff>", dequeueBatchSize);
+    }
+
+    private JamesMailSpooler createSpooler(String executionConfig, int dequeueBatchSize) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<spooler>");
+        sb.append(executionConfig);
+        sb.append("<dequeueThreads>1</dequeueThreads>");
+        sb.append("<dequeueBatchSize>").append(dequeueBatchSize).append("</dequeueBatchSize>");
+        sb.append("</spooler>");
+        DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
+        builder.load(new ByteArrayInputStream(sb.toString().getBytes()));
+
+        MailQueueFactory factory = new MockMailQueueFactory();
+        queue = factory.getQueue(MailQueueFactory.SPOOL);
+        processor = new BlockingMailProcessor();
+
+        JamesMailSpooler spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger("MockLog"));
+        spooler.setMailQueueFactory(factory);
+        spooler.setMailProcessor(processor);
+        spooler.configure(builder);
+        spooler.init();
+        return spooler;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (spooler != null) {
+            processor.release.countDown();
+            spooler.dispose();
+        }
+        super.tearDown();
+    }
+
+    public void testUnboundedHandOff() throws Exception {
+        spooler = createSpooler(false, 1);
+        enQueueMails();
+
+        // all mails are dequeued even if no thread is free to process them
+        waitForInFlight(MAILS);
+        assertEquals(0, spooler.getHandOffWaitCount());
+
+        processor.release.countDown();
+        waitForInFlight(0);
+        assertEquals(MAILS, processor.started.get());
+    }
+
+    public void testBoundedHandOff() throws Exception {
+        checkBoundedHandOff(1);
+    }
+
+    public void testBoundedHandOffWithBatch() throws Exception {
+        checkBoundedHandOff(5);
+    }
+
+    public void testLightweightExecution() throws Exception {
+        spooler = createSpooler("<executionMode>lightweight</executionMode><maxConcurrency>" + THREADS + "</maxConcurrency><threadStackSize>128</threadStackSize>", 5);
+        assertEquals(THREADS, spooler.getThreadCount());
+        checkBoundedHandOff();
+    }
+
+    private void checkBoundedHandOff(int dequeueBatchSize) throws Exception {
+        spooler = createSpooler(true, dequeueBatchSize);
+        checkBoundedHandOff();
+    }
+
+    private void checkBoundedHandOff() throws Exception {
+        assertTrue(spooler.isBoundedHandOff());
+        enQueueMails();
+
+        // only as many mails as there are threads are dequeued
+        waitForInFlight(THREADS);
+        Thread.sleep(500);
+        assertEquals(THREADS, spooler.getInFlightCount());
+        assertEquals(THREADS, processor.started.get());
+        assertTrue(spooler.getHandOffWaitCount() > 0);
+
+        processor.release.countDown();
+        waitForInFlight(0);
+        assertEquals(MAILS, processor.started.get());
+        assertTrue(spooler.getHandOffWaitTimeMax() >= 400);
+    }
+
+    private void enQueueMails() throws MessagingException {
+        for (int i = 0; i < MAILS; i++) {
+            MailImpl mail = new MailImpl();
+            mail.setName("test-" + i);
+            queue.enQueue(mail);
+        }
+    }
+
+    private void waitForInFlight(int count) throws InterruptedException {
+        long stop = System.currentTimeMillis() + 5000;
+        while (spooler.getInFlightCount() != count && System.currentTimeMillis() < stop) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, spooler.getInFlightCount());
+    }
+
+    /**
+     * {@link MailProcessor} which blocks until it gets released
+     */
+    private final static class BlockingMailProcessor implements MailProcessor {
+        private final AtomicInteger started = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        public void service(Mail mail) throws MessagingException {
+            started.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new MessagingException("Interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.mailet.MailAddress;
+
+/**
+ * Micro benchmark which compares the recipient splitting of
+ * {@link ProcessorUtil#getUnmatchedRecipients(Collection, Collection)} with
+ * removing the matched recipients from a copy of the recipients via
+ * {@link List#remove(Object)}. It is run for mails with 1, 50 and 1000
+ * recipients where every second recipient matches. This is not executed as
+ * part of the unit tests, run it via its main method:
+ * 
+ * <pre>
+ * MatcherSplitBenchmark [iterations]
+ * </pre>
+ */
+public class MatcherSplitBenchmark {
+
+    private final List<MailAddress> rcpts;
+    private final List<MailAddress> matchedRcpts;
+
+    public MatcherSplitBenchmark(int count) throws Exception {
+        rcpts = new ArrayList<MailAddress>(count);
+        matchedRcpts = new ArrayList<MailAddress>(count);
+        for (int i = 0; i < count; i++) {
+            MailAddress address = new MailAddress("test" + i + "@localhost");
+            rcpts.add(address);
+            if (i % 2 == 1 || count == 1) {
+                matchedRcpts.add(address);
+            }
+        }
+    }
+
+    /**
+     * The recipient splitting as it was done before, by copying the recipients
+     * and removing every matched one
+     */
+    private List<MailAddress> removeMatched() {
+        List<MailAddress> unmatched = new ArrayList<MailAddress>(rcpts);
+        Iterator<MailAddress> it = matchedRcpts.iterator();
+        while (it.hasNext()) {
+            unmatched.remove(it.next());
+        }
+        return unmatched;
+    }
+
+    private List<MailAddress> bitset() {
+        return ProcessorUtil.getUnmatchedRecipients(rcpts, matchedRcpts);
+    }
+
+    public void run(int iterations) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += removeMatched().size();
+        }
+        long removeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += bitset().size();
+        }
+        long bitsetTime = System.nanoTime() - start;
+
+        System.out.println("recipients=" + rcpts.size() + " matched=" + matchedRcpts.size() + " remove=" + (removeTime / iterations) + " ns/op bitset=" + (bitsetTime / iterations) + " ns/op (" + sink + ")");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int[] counts = new int[] { 1, 50, 1000 };
+
+        // warm up
+        for (int i = 0; i < counts.length; i++) {
+            new MatcherSplitBenchmark(counts[i]).run(iterations);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            new MatcherSplitBenchmark(counts[i]).run(iterations);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mailet.MailAddress;
+
+import junit.framework.TestCase;
+
+public class ProcessorUtilTest extends TestCase {
+
+    private List<MailAddress> createRecipients(int count) throws Exception {
+        List<MailAddress> rcpts = new ArrayList<MailAddress>();
+        for (int i = 0; i < count; i++) {
+            rcpts.add(new MailAddress("test" + i + "@localhost"));
+        }
+        return rcpts;
+    }
+
+    public void testUnmatchedRecipientsInOrder() throws Exception {
+        List<MailAddress> rcpts = createRecipients(5);
+        List<MailAddress> unmatched = ProcessorUtil.getUnmatchedRecipients(rcpts, Arrays.asList(rcpts.get(1), rcpts.get(3)));
+        assertEquals(Arrays.asList(rcpts.get(0), rcpts.get(2), rcpts.get(4)), unmatched);
+
+        // the recipients must not get modified
+        assertEquals(5, rcpts.size());
+    }
+
+    public void testUnmatchedRecipientsOutOfOrder() throws Exception {
+        List<MailAddress> rcpts = createRecipients(5);
+        List<MailAddress> unmatched = ProcessorUtil.getUnmatchedRecipients(rcpts, Arrays.asList(rcpts.get(4), rcpts.get(0), rcpts.get(2)));
+        assertEquals(Arrays.asList(rcpts.get(1), rcpts.get(3)), unmatched);
+    }
+
+    public void testUnmatchedRecipientsAllMatched() throws Exception {
+        List<MailAddress> rcpts = createRecipients(3);
+        List<MailAddress> matched = new ArrayList<MailAddress>(rcpts);
+        matched.add(new MailAddress("other@localhost"));
+        assertTrue(ProcessorUtil.getUnmatchedRecipients(rcpts, matched).isEmpty());
+    }
+
+    public void testUnmatchedRecipientsUnknown() throws Exception {
+        List<MailAddress> rcpts = createRecipients(3);
+        List<MailAddress> unmatched = ProcessorUtil.getUnmatchedRecipients(rcpts, Arrays.asList(new MailAddress("other@localhost"), rcpts.get(1)));
+        assertEquals(Arrays.asList(rcpts.get(0), rcpts.get(2)), unmatched);
+    }
+
+    public void testUnmatchedRecipientsDuplicates() throws Exception {
+        MailAddress a = new MailAddress("a@localhost");
+        MailAddress b = new MailAddress("b@localhost");
+        List<MailAddress> rcpts = Arrays.asList(a, b, a, b);
+
+        // every match only removes one occurrence
+        assertEquals(Arrays.asList(b, a, b), ProcessorUtil.getUnmatchedRecipients(rcpts, Arrays.asList(a)));
+        assertEquals(Arrays.asList(a, b), ProcessorUtil.getUnmatchedRecipients(rcpts, Arrays.asList(b, a)));
+        assertEquals(Arrays.asList(b, b), ProcessorUtil.getUnmatchedRecipients(rcpts, Arrays.asList(a, a)));
+    }
+}
@@ -0,0 +1,175 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.mailetcontainer.impl.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.mock.MockMailet;
+import org.apache.james.mailetcontainer.api.mock.MockMailetContext;
+import org.apache.james.mailetcontainer.api.mock.MockMailetLoader;
+import org.apache.james.mailetcontainer.api.mock.MockMatcher;
+import org.apache.james.mailetcontainer.api.mock.MockMatcherLoader;
+import org.apache.james.mailetcontainer.impl.camel.CamelMailetProcessor;
+import org.apache.james.mailetcontainer.lib.AbstractStateMailetProcessor;
+import org.apache.mailet.MailAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmark which compares the {@link CamelMailetProcessor} with the
+ * {@link PipelineMailetProcessor} for a processor with a configurable count of
+ * matcher / mailet pairs. Every mail has two recipients. If partial matches
+ * are enabled every second matcher only matches one of them, so the mail gets
+ * split. For both processors the throughput and the garbage collection
+ * activity are reported. This is not executed as part of the unit tests, run
+ * it via its main method:
+ * 
+ * <pre>
+ * PipelineMailetProcessorBenchmark [mails] [mailets] [partialMatches]
+ * </pre>
+ */
+public class PipelineMailetProcessorBenchmark {
+
+    private final static String STATE = "root";
+
+    private final int mails;
+    private final int mailets;
+    private final boolean partialMatches;
+    private final Logger log = LoggerFactory.getLogger("Benchmark");
+
+    public PipelineMailetProcessorBenchmark(int mails, int mailets, boolean partialMatches) {
+        this.mails = mails;
+        this.mailets = mailets;
+        this.partialMatches = partialMatches;
+    }
+
+    /**
+     * Create the processor configuration. All mailets keep the state of the
+     * mail, only the last one ghosts it
+     * 
+     * @return config
+     * @throws Exception
+     */
+    private HierarchicalConfiguration createConfig() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<processor state=\"").append(STATE).append("\">");
+        for (int i = 0; i < mailets; i++) {
+            int count = partialMatches && i % 2 == 1 ? 1 : 2;
+            sb.append("<mailet match=\"").append(MockMatcher.class.getName()).append("=").append(count).append("\" class=\"").append(MockMailet.class.getName()).append("\">");
+            sb.append("<state>").append(STATE).append("</state>");
+            sb.append("</mailet>");
+        }
+        sb.append("<mailet match=\"").append(MockMatcher.class.getName()).append("=2\" class=\"").append(MockMailet.class.getName()).append("\">");
+        sb.append("<state>ghost</state>");
+        sb.append("</mailet>");
+        sb.append("</processor>");
+
+        DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
+        builder.load(new ByteArrayInputStream(sb.toString().getBytes()));
+        return builder;
+    }
+
+    private AbstractStateMailetProcessor createCamelProcessor() throws Exception {
+        CamelMailetProcessor processor = new CamelMailetProcessor();
+        processor.setCamelContext(new DefaultCamelContext());
+        return configure(processor);
+    }
+
+    private AbstractStateMailetProcessor createPipelineProcessor() throws Exception {
+        return configure(new PipelineMailetProcessor());
+    }
+
+    private AbstractStateMailetProcessor configure(AbstractStateMailetProcessor processor) throws Exception {
+        processor.setLog(log);
+        processor.setMailetContext(new MockMailetContext());
+        processor.setMailetLoader(new MockMailetLoader());
+        processor.setMatcherLoader(new MockMatcherLoader());
+        processor.configure(createConfig());
+        processor.init();
+        return processor;
+    }
+
+    /**
+     * Service the configured count of mails with the given processor
+     * 
+     * @param label
+     * @param processor
+     * @throws Exception
+     */
+    public void run(String label, AbstractStateMailetProcessor processor) throws Exception {
+        List<MailAddress> recipients = new ArrayList<MailAddress>();
+        recipients.add(new MailAddress("test@localhost"));
+        recipients.add(new MailAddress("test2@localhost"));
+
+        System.gc();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < mails; i++) {
+            MailImpl mail = new MailImpl();
+            mail.setName("benchmark-" + i);
+            mail.setState(STATE);
+            mail.setRecipients(new ArrayList<MailAddress>(recipients));
+            processor.service(mail);
+        }
+        long time = System.nanoTime() - start;
+        processor.destroy();
+
+        System.out.println(label + " mails=" + mails + " mailets=" + mailets + " partialMatches=" + partialMatches + " throughput=" + Math.round(mails * 1000000000d / Math.max(1, time)) + " msg/s avg="
+                + (time / mails) + " ns gcCount=" + (gcCount() - gcCountBefore) + " gcTime=" + (gcTime() - gcTimeBefore) + " ms");
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int mailets = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        boolean partialMatches = args.length > 2 ? Boolean.parseBoolean(args[2]) : false;
+
+        PipelineMailetProcessorBenchmark benchmark = new PipelineMailetProcessorBenchmark(mails, mailets, partialMatches);
+        // warm up
+        benchmark.run("warmup camel", benchmark.createCamelProcessor());
+        benchmark.run("warmup pipeline", benchmark.createPipelineProcessor());
+
+        benchmark.run("camel", benchmark.createCamelProcessor());
+        benchmark.run("pipeline", benchmark.createPipelineProcessor());
+    }
+}
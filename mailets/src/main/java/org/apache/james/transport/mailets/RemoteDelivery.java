@@ -19,6 +19,7 @@
 
 package org.apache.james.transport.mailets;
 
+import org.apache.james.core.MailImpl;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
 import org.apache.james.dnsservice.library.MXHostAddressIterator;
@@ -656,7 +657,8 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             // Store the new message containers, organized by server, in the
             // outgoing mail repository
             String name = mail.getName();
-            for (Map.Entry<String, Collection<MailAddress>> entry : targets.entrySet()) {
+            if (targets.size() == 1) {
+                Map.Entry<String, Collection<MailAddress>> entry = targets.entrySet().iterator().next();
                 if (isDebug) {
                     StringBuilder logMessageBuffer = new StringBuilder(128).append("Sending mail to ").append(entry.getValue()).append(" on host ").append(entry.getKey());
                     log(logMessageBuffer.toString());
@@ -669,6 +671,31 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 } catch (MailQueueException e) {
                     log("Unable to queue mail " + mail.getName() + " for recipients + " + mail.getRecipients().toString(), e);
                 }
+            } else {
+                // Enqueue the per server copies as one batch, so the queue
+                // only needs to pay the transaction costs once
+                Collection<Mail> copies = new ArrayList<Mail>(targets.size());
+                try {
+                    for (Map.Entry<String, Collection<MailAddress>> entry : targets.entrySet()) {
+                        if (isDebug) {
+                            StringBuilder logMessageBuffer = new StringBuilder(128).append("Sending mail to ").append(entry.getValue()).append(" on host ").append(entry.getKey());
+                            log(logMessageBuffer.toString());
+                        }
+                        StringBuilder nameBuffer = new StringBuilder(128).append(name).append("-to-").append(entry.getKey());
+                        MailImpl copy = new MailImpl(mail, nameBuffer.toString());
+                        copy.setRecipients(entry.getValue());
+                        copy.setState(mail.getState());
+                        copy.setErrorMessage(mail.getErrorMessage());
+                        copies.add(copy);
+                    }
+                    queue.enQueue(copies);
+                } catch (MessagingException e) {
+                    log("Unable to queue mail " + name + " for recipients + " + recipients.toString(), e);
+                } finally {
+                    for (Mail copy : copies) {
+                        LifecycleUtil.dispose(copy);
+                    }
+                }
             }
         } else {
             // Store the mail unaltered for processing by the gateway server(s)
@@ -82,6 +82,10 @@ public class ProtocolHandlerChainImpl implements ProtocolHandlerChain{
             HierarchicalConfiguration hConf = children.get(i);
             String className = hConf.getString("[@class]", null);
             if (className != null) {
+                // let handlers which register MBeans use the name of the server
+                if (jmxName != null && !hConf.containsKey("jmxName")) {
+                    hConf.addProperty("jmxName", jmxName);
+                }
                 handlers.add(loader.load(className, hConf));
             } else {
                 throw new ConfigurationException("Missing @class attribute in configuration: " + ConfigurationUtils.toString(hConf));
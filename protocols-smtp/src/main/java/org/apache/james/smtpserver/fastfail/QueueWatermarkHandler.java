@@ -0,0 +1,163 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Resource;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.MailEnvelope;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MailHook;
+import org.apache.james.protocols.smtp.hook.MessageHook;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueueWatermarks;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+
+/**
+ * <p>
+ * Temporary reject new mails while the queue the mails are spooled to is
+ * saturated, so the ingress does not fill up the store of the queue while the
+ * spooler falls behind. The queue is checked on MAIL FROM and again once the
+ * DATA was received, and the transaction is deferred with a 4xx code if one
+ * of the configured high watermarks was reached. New mails are accepted again
+ * once the queue drained below the low watermarks. The queue is checked by a
+ * background thread, so a slow size query never blocks the SMTP worker; the
+ * transactions use the last known state meanwhile.
+ * </p>
+ * <p>
+ * The throttling state is exposed via JMX, using the jmxName of the server
+ * the handlerchain belongs to unless a jmxName is configured for the handler.
+ * </p>
+ * 
+ * <pre>
+ * &lt;handler class="org.apache.james.smtpserver.fastfail.QueueWatermarkHandler"&gt;
+ *   &lt;queue&gt;spool&lt;/queue&gt;
+ *   &lt;highWatermark&gt;10000&lt;/highWatermark&gt;
+ *   &lt;lowWatermark&gt;8000&lt;/lowWatermark&gt;
+ *   &lt;highAgeWatermark&gt;600000&lt;/highAgeWatermark&gt;
+ *   &lt;lowAgeWatermark&gt;300000&lt;/lowAgeWatermark&gt;
+ *   &lt;checkInterval&gt;1000&lt;/checkInterval&gt;
+ * &lt;/handler&gt;
+ * </pre>
+ */
+public class QueueWatermarkHandler implements MailHook, MessageHook, InitializingLifecycleAwareProtocolHandler {
+
+    private MailQueueFactory queueFactory;
+    private MailQueueWatermarks watermarks;
+    private MBeanServer mbeanServer;
+    private String mbeanName;
+    private ExecutorService checker;
+
+    @Resource(name = "mailqueuefactory")
+    public void setMailQueueFactory(MailQueueFactory queueFactory) {
+        this.queueFactory = queueFactory;
+    }
+
+    /**
+     * Set the watermarks to use. This is only useful for testing, normally the
+     * watermarks are created from the configuration in
+     * {@link #init(Configuration)}
+     * 
+     * @param watermarks
+     */
+    public void setWatermarks(MailQueueWatermarks watermarks) {
+        this.watermarks = watermarks;
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+        String queueName = config.getString("queue", MailQueueFactory.SPOOL);
+        MailQueue queue = queueFactory.getQueue(queueName);
+        if (!(queue instanceof ManageableMailQueue)) {
+            throw new ConfigurationException("Queue " + queueName + " does not support size queries");
+        }
+        watermarks = new MailQueueWatermarks((ManageableMailQueue) queue);
+        watermarks.setHighWatermark(config.getLong("highWatermark", -1));
+        watermarks.setLowWatermark(config.getLong("lowWatermark", -1));
+        watermarks.setHighAgeWatermark(config.getLong("highAgeWatermark", -1));
+        watermarks.setLowAgeWatermark(config.getLong("lowAgeWatermark", -1));
+        watermarks.setCheckInterval(config.getLong("checkInterval", MailQueueWatermarks.DEFAULT_CHECK_INTERVAL));
+        checker = Executors.newSingleThreadExecutor(new NamedThreadFactory("queuewatermark-" + queueName));
+        watermarks.setExecutor(checker);
+
+        mbeanName = "org.apache.james:type=server,name=" + config.getString("jmxName", "smtpserver") + ",chain=handlerchain,handler=queuewatermark,queue=" + queueName;
+        try {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(watermarks, new ObjectName(mbeanName));
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to register mbean " + mbeanName, e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.unregisterMBean(new ObjectName(mbeanName));
+            } catch (Exception e) {
+                // ignore here;
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailHook#doMail(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    public HookResult doMail(SMTPSession session, MailAddress sender) {
+        return check(session);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailEnvelope)
+     */
+    public HookResult onMessage(SMTPSession session, MailEnvelope mail) {
+        return check(session);
+    }
+
+    private HookResult check(SMTPSession session) {
+        if (watermarks.isSaturated()) {
+            watermarks.deferred();
+            if (session.getLogger().isInfoEnabled()) {
+                session.getLogger().info("Deferring mail from " + session.getRemoteAddress().getAddress().getHostAddress() + " as queue " + watermarks.getQueue() + " is saturated (size=" + watermarks.getSize() + ", oldestAge=" + watermarks.getOldestAge() + "ms)");
+            }
+            return new HookResult(HookReturnCode.DENYSOFT, SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.SYSTEM_FULL) + " Mail system is busy, please try again later");
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+}
@@ -0,0 +1,283 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.core.MailImpl;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueueWatermarks;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.smtpserver.fastfail.QueueWatermarkHandler;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class QueueWatermarkHandlerTest extends TestCase {
+
+    private SizedMailQueue queue;
+    private MailQueueWatermarks watermarks;
+    private QueueWatermarkHandler handler;
+    private SMTPSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        queue = new SizedMailQueue();
+        watermarks = new MailQueueWatermarks(queue);
+        watermarks.setCheckInterval(0);
+        handler = new QueueWatermarkHandler();
+        handler.setWatermarks(watermarks);
+        session = new BaseFakeSMTPSession() {
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return new InetSocketAddress("127.0.0.1", 0);
+            }
+
+            @Override
+            public Logger getLogger() {
+                return LoggerFactory.getLogger("QueueWatermarkHandlerTest");
+            }
+        };
+    }
+
+    public void testSizeWatermarks() {
+        watermarks.setHighWatermark(100);
+        watermarks.setLowWatermark(50);
+
+        queue.size = 99;
+        assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+
+        queue.size = 100;
+        assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+        assertEquals(HookReturnCode.DENYSOFT, handler.onMessage(session, null).getResult());
+
+        // stay saturated until we drained below the low watermark
+        queue.size = 70;
+        assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+
+        queue.size = 50;
+        assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+        assertEquals(HookReturnCode.DECLINED, handler.onMessage(session, null).getResult());
+
+        assertEquals(1, watermarks.getSaturatedCount());
+        assertEquals(3, watermarks.getDeferredCount());
+    }
+
+    public void testAgeWatermarks() throws Exception {
+        watermarks.setHighAgeWatermark(60000);
+        watermarks.setLowAgeWatermark(30000);
+
+        MailImpl mail = new MailImpl();
+        mail.setLastUpdated(new Date(System.currentTimeMillis() - 10000));
+        queue.mails.add(mail);
+        assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+
+        mail.setLastUpdated(new Date(System.currentTimeMillis() - 120000));
+        assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+        assertTrue(watermarks.getOldestAge() >= 120000);
+
+        mail.setLastUpdated(new Date(System.currentTimeMillis() - 45000));
+        assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+
+        queue.mails.clear();
+        assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+    }
+
+    public void testCheckInterval() {
+        watermarks.setHighWatermark(100);
+        watermarks.setCheckInterval(60000);
+
+        queue.size = 100;
+        assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+
+        // the last state is used until the interval is over
+        queue.size = 0;
+        assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+        assertFalse(watermarks.check());
+        assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+    }
+
+    public void testAsyncCheck() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        queue = new SizedMailQueue() {
+
+            @Override
+            public long getSize() throws MailQueueException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new MailQueueException("Interrupted");
+                }
+                return super.getSize();
+            }
+        };
+        queue.size = 100;
+        watermarks = new MailQueueWatermarks(queue);
+        watermarks.setHighWatermark(100);
+        watermarks.setCheckInterval(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        watermarks.setExecutor(executor);
+        handler.setWatermarks(watermarks);
+
+        try {
+            // the check blocks, so the last state must be used meanwhile
+            assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+            assertEquals(HookReturnCode.DECLINED, handler.doMail(session, null).getResult());
+
+            latch.countDown();
+            long start = System.currentTimeMillis();
+            while (!watermarks.isSaturated() && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            assertEquals(HookReturnCode.DENYSOFT, handler.doMail(session, null).getResult());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testMBeanPerServer() throws Exception {
+        MailQueueFactory factory = new MailQueueFactory() {
+
+            public MailQueue getQueue(String name) {
+                return queue;
+            }
+        };
+        QueueWatermarkHandler smtp = new QueueWatermarkHandler();
+        smtp.setMailQueueFactory(factory);
+        QueueWatermarkHandler lmtp = new QueueWatermarkHandler();
+        lmtp.setMailQueueFactory(factory);
+
+        // the handlerchain passes the jmxName of the server to the handler
+        DefaultConfigurationBuilder config = new DefaultConfigurationBuilder();
+        config.addProperty("highWatermark", 100);
+        config.addProperty("jmxName", "smtpserver");
+        smtp.init(config);
+        config.setProperty("jmxName", "lmtpserver");
+        lmtp.init(config);
+
+        try {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("org.apache.james:type=server,name=smtpserver,chain=handlerchain,handler=queuewatermark,queue=spool")));
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("org.apache.james:type=server,name=lmtpserver,chain=handlerchain,handler=queuewatermark,queue=spool")));
+        } finally {
+            smtp.destroy();
+            lmtp.destroy();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("org.apache.james:type=server,name=smtpserver,chain=handlerchain,handler=queuewatermark,queue=spool")));
+    }
+
+    /**
+     * {@link ManageableMailQueue} which only supports the operations needed to
+     * check the watermarks
+     */
+    private static class SizedMailQueue implements ManageableMailQueue {
+        private long size;
+        private final List<Mail> mails = new ArrayList<Mail>();
+
+        public long getSize() throws MailQueueException {
+            return size;
+        }
+
+        public long getSize(int priority) throws MailQueueException {
+            return size;
+        }
+
+        public MailQueueIterator browse() throws MailQueueException {
+            final Iterator<Mail> it = mails.iterator();
+            return new MailQueueIterator() {
+
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public MailQueueItemView next() {
+                    final Mail mail = it.next();
+                    return new MailQueueItemView() {
+
+                        public Mail getMail() {
+                            return mail;
+                        }
+
+                        public long getNextDelivery() {
+                            return -1;
+                        }
+                    };
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Read-only");
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        public long flush() throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public long clear() throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public long remove(Type type, String value) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public void enQueue(Mail mail) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public void enQueue(Collection<Mail> mails) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public MailQueueItem deQueue() throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -18,8 +18,11 @@
  ****************************************************************/
 package org.apache.james.queue.activemq;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.List;
 import java.util.Map;
 
@@ -44,7 +47,9 @@ import org.apache.activemq.util.JMSExceptionSupport;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageInputStream;
 import org.apache.james.core.MimeMessageSource;
+import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.jms.JMSConsumerPool.PooledConsumer;
 import org.apache.james.queue.jms.JMSMailQueue;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
@@ -142,12 +147,17 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
     
     /**
-     * Produce the mail to the JMS Queue
+     * Produce the mail to the JMS Queue. If the {@link MimeMessage} of the mail
+     * was read from a {@link BlobMessage} and was not modified since then, the
+     * blob content is reused and a reference to it is added instead of
+     * uploading it again. See {@link BlobReferences}. The {@link URL} of the
+     * blob is added to the given properties once the message was sent, so it
+     * can get discarded if a transacted caller rolls back
      */
-    protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
-        MessageProducer producer = null;
+    protected void produceMail(Session session, MessageProducer producer, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
         BlobMessage blobMessage = null;
-        boolean reuse = false;
+        File reusedBlob = null;
+        String blobRef = null;
 
         try {
 
@@ -157,34 +167,34 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 MimeMessage wrapper = mm;
 
                 ActiveMQSession amqSession = getAMQSession(session);
-                
-                /*
-                 * Remove this optimization as it could lead to problems when the same blob content
-                 * is shared across different messages. 
-                 * 
-                 * I still think it would be a good idea to somehow do this but at the moment it's just 
-                 * safer to disable it.
-                 * 
-                 * TODO: Re-Enable it again once it works!
-                 * 
-                 * See JAMES-1240
+
                 if (wrapper instanceof MimeMessageCopyOnWriteProxy) {
                     wrapper = ((MimeMessageCopyOnWriteProxy) mm).getWrappedMessage();
                 }
 
                 if (wrapper instanceof MimeMessageWrapper) {
-                    URL blobUrl = (URL) mail.getAttribute(JAMES_BLOB_URL);
+                    Object blobUrl = mail.getAttribute(JAMES_BLOB_URL);
                     String fromQueue = (String) mail.getAttribute(JAMES_QUEUE_NAME);
                     MimeMessageWrapper mwrapper = (MimeMessageWrapper) wrapper;
 
-                    if (blobUrl != null && fromQueue != null && mwrapper.isModified() == false) {
+                    // make sure the message was really read from the blob
+                    if (blobUrl instanceof URL && fromQueue != null && mwrapper.isModified() == false && blobUrl.toString().equals(mwrapper.getSourceId())) {
                         // the message content was not changed so don't need to
-                        // upload it again and can just point to the url
-                        blobMessage = amqSession.createBlobMessage(blobUrl);
-                        reuse = true;
+                        // upload it again and can just point to the url. The
+                        // file is kept until the last message which reference
+                        // it is done. See JAMES-1240
+                        File blob = getBlobFile((URL) blobUrl);
+                        if (blob != null) {
+                            blobRef = BlobReferences.addReference(blob);
+                            if (blobRef != null) {
+                                reusedBlob = blob;
+                                blobMessage = amqSession.createBlobMessage((URL) blobUrl);
+                                props.put(JAMES_BLOB_REF, blobRef);
+                            }
+                        }
                     }
 
-                }*/
+                }
                 if (blobMessage == null) {
                     // just use the MimeMessageInputStream which can read every
                     // MimeMessage implementation
@@ -195,34 +205,73 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 // store the queue name in the props
                 props.put(JAMES_QUEUE_NAME, queuename);
 
-                Queue queue = session.createQueue(queuename);
-
-                producer = session.createProducer(queue);
                 for (Map.Entry<String, Object> entry : props.entrySet()) {
                     blobMessage.setObjectProperty(entry.getKey(), entry.getValue());
                 }
                 producer.send(blobMessage, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+                props.put(JAMES_BLOB_URL, blobMessage.getURL());
                     
               
 
             } else {
-                super.produceMail(session, props, msgPrio, mail);
+                super.produceMail(session, producer, props, msgPrio, mail);
             }
         } catch (JMSException e) {
-            if (!reuse && blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
+            if (reusedBlob != null) {
+                BlobReferences.removeReference(reusedBlob, blobRef);
+            } else if (blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
                 ((ActiveMQBlobMessage) blobMessage).deleteFile();
             }
             throw e;
-        } finally {
+        }
+
+    }
+
+    /**
+     * Also delete the blob of a produced {@link BlobMessage}. If the blob is
+     * reused only the reference of the message is removed, see
+     * {@link BlobReferences}
+     */
+    protected void discardProduced(Session session, Map<String, Object> props) {
+        super.discardProduced(session, props);
 
+        Object url = props.get(JAMES_BLOB_URL);
+        if (url instanceof URL) {
             try {
-                if (producer != null)
-                    producer.close();
+                // the blob is deleted via the configured BlobDownloadStrategy,
+                // the same way as if the message was consumed
+                ActiveMQBlobMessage blobMessage = (ActiveMQBlobMessage) getAMQSession(session).createBlobMessage((URL) url);
+                String blobRef = (String) props.get(JAMES_BLOB_REF);
+                if (blobRef != null) {
+                    blobMessage.setStringProperty(JAMES_BLOB_REF, blobRef);
+                }
+                blobMessage.deleteFile();
             } catch (JMSException e) {
-                // ignore here
+                logger.error("Unable to delete blob " + url + " for queue " + queuename, e);
+            } catch (IOException e) {
+                logger.error("Unable to delete blob " + url + " for queue " + queuename, e);
             }
         }
+    }
 
+    /**
+     * Return the {@link File} for the given blob {@link URL} or
+     * <code>null</code> if it is not stored in the local filesystem
+     * 
+     * @param url
+     * @return file
+     */
+    protected File getBlobFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
@@ -251,6 +300,12 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
         return new ActiveMQMailQueueItem(mail, connection, session, consumer, message, logger);
     }
 
+    @Override
+    protected MailQueueItem createMailQueueItem(PooledConsumer pooled, Message message) throws JMSException, MessagingException {
+        Mail mail = createMail(message);
+        return new ActiveMQMailQueueItem(mail, pooled, message, logger);
+    }
+
     @Override
     public List<Message> removeWithSelector(String selector) throws MailQueueException {
         List<Message> mList = super.removeWithSelector(selector);
@@ -289,10 +344,14 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
     /**
      * Try to use ActiveMQ StatisticsPlugin to get size and if that fails
-     * fallback to {@link JMSMailQueue#getSize()}
+     * fallback to {@link JMSMailQueue#getSize()}. If an index or delay buckets
+     * are used the size is calculated by {@link JMSMailQueue#getSize()}
      */
     @Override
     public long getSize() throws MailQueueException {
+        if (getIndex() != null || getQueueNames().size() > 1) {
+            return super.getSize();
+        }
 
         Connection connection = null;
         Session session = null;
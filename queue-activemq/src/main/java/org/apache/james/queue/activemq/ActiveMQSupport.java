@@ -40,4 +40,10 @@ public interface ActiveMQSupport extends JMSSupport {
      */
     final static String JAMES_REUSE_BLOB_URL = " JAMES_REUSE_BLOB_URL";
 
+    /**
+     * The reference a Blobmessage holds on a reused Blobmessage content. See
+     * {@link BlobReferences}
+     */
+    final static String JAMES_BLOB_REF = "JAMES_BLOB_REF";
+
 }
@@ -0,0 +1,156 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.activemq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Reference counting for blob files which are shared by more then one
+ * {@link org.apache.activemq.BlobMessage}. This allows to hand over the content
+ * of an unmodified message from one queue to another without upload it again.
+ * </p>
+ * <p>
+ * Every message which points to a blob file holds its own reference, which is
+ * stored as an empty marker file in the <code>.refs</code> directory next to
+ * the blob file, so the references survive a restart. The message which
+ * uploaded the file holds the reference {@link #UPLOAD_REFERENCE}, every
+ * message which reuses the file gets a new one. A blob file is only deleted
+ * once no reference is left, no matter in which order the messages are done.
+ * </p>
+ * <p>
+ * Adding and removing references is serialized within the JVM, so this only
+ * works if only one process access the blob files.
+ * </p>
+ */
+public final class BlobReferences {
+
+    /**
+     * The reference which is held by the message which uploaded the blob file
+     */
+    public final static String UPLOAD_REFERENCE = "upload";
+
+    private final static int LOCKS = 64;
+    private final static Object[] locks = new Object[LOCKS];
+
+    static {
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private BlobReferences() {
+    }
+
+    /**
+     * Add the reference of the uploading message to the given blob file. This
+     * must be called once the blob file was written
+     * 
+     * @param blob
+     * @throws IOException
+     */
+    public static void addUploadReference(File blob) throws IOException {
+        synchronized (getLock(blob)) {
+            File refs = getReferencesDir(blob);
+            if (!refs.exists() && !refs.mkdirs()) {
+                throw new IOException("Unable to create directory " + refs.getAbsolutePath());
+            }
+            File ref = new File(refs, UPLOAD_REFERENCE);
+            if (!ref.exists() && !ref.createNewFile()) {
+                throw new IOException("Unable to create reference " + ref.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Add a reference to the given blob file
+     * 
+     * @param blob
+     * @return the reference or <code>null</code> if the blob file does not
+     *         exist anymore
+     * @throws IOException
+     */
+    public static String addReference(File blob) throws IOException {
+        synchronized (getLock(blob)) {
+            if (!blob.exists()) {
+                return null;
+            }
+            File refs = getReferencesDir(blob);
+            if (!refs.exists() && !refs.mkdirs()) {
+                throw new IOException("Unable to create directory " + refs.getAbsolutePath());
+            }
+            String ref = UUID.randomUUID().toString();
+            if (!new File(refs, ref).createNewFile()) {
+                throw new IOException("Reference " + ref + " for blob " + blob + " exists already");
+            }
+            return ref;
+        }
+    }
+
+    /**
+     * Remove the given reference without deleting the blob file
+     * 
+     * @param blob
+     * @param ref
+     */
+    public static void removeReference(File blob, String ref) {
+        synchronized (getLock(blob)) {
+            File refs = getReferencesDir(blob);
+            new File(refs, ref).delete();
+            refs.delete();
+        }
+    }
+
+    /**
+     * Remove the given reference and delete the blob file if no other
+     * reference is left
+     * 
+     * @param blob
+     * @param ref
+     *            the reference or <code>null</code> if the caller uploaded the
+     *            blob file
+     * @throws IOException
+     *             if the blob file could not get deleted
+     */
+    public static void delete(File blob, String ref) throws IOException {
+        synchronized (getLock(blob)) {
+            File refs = getReferencesDir(blob);
+            new File(refs, ref != null ? ref : UPLOAD_REFERENCE).delete();
+            String[] left = refs.list();
+            if (left != null && left.length > 0) {
+                // still in use by other messages
+                return;
+            }
+            refs.delete();
+            if (blob.exists() && !blob.delete()) {
+                throw new IOException("Unable to delete file " + blob);
+            }
+        }
+    }
+
+    private static File getReferencesDir(File blob) {
+        return new File(blob.getPath() + ".refs");
+    }
+
+    private static Object getLock(File blob) {
+        return locks[(blob.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % LOCKS];
+    }
+}
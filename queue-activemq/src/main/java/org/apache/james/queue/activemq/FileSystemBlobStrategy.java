@@ -77,6 +77,10 @@ public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadS
                 out.flush();
             }
             out.flush();
+
+            // the uploading message holds a reference until it is done
+            BlobReferences.addUploadReference(f);
+
             // File.toURL() is deprecated
             return f.toURI().toURL();
         } finally {
@@ -99,16 +103,19 @@ public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadS
     }
 
     /**
+     * Remove the reference of the message and delete the file if it is not
+     * referenced by any other message anymore. See {@link BlobReferences}
+     * 
      * @see
      * org.apache.activemq.blob.BlobDownloadStrategy#deleteFile(org.apache.activemq.command.ActiveMQBlobMessage)
      */
     public void deleteFile(ActiveMQBlobMessage message) throws IOException, JMSException {
         File f = getFile(message);
-        synchronized (f) {
-            if (f.exists() && !f.delete()) {
-                throw new IOException("Unable to delete file " + f);
-            }
-        }
+
+        // the file is only deleted if no other message reference it. The
+        // uploading message has no JAMES_BLOB_REF property and so removes the
+        // upload reference
+        BlobReferences.delete(f, message.getStringProperty(JAMES_BLOB_REF));
     }
 
     /**
@@ -22,9 +22,22 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.james.core.MailImpl;
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.mailet.Mail;
 
 public class ActiveMQMailQueueBlobTest extends ActiveMQMailQueueTest {
     public final static String BASE_DIR = "file://target/james-test";
@@ -62,6 +75,143 @@ public class ActiveMQMailQueueBlobTest extends ActiveMQMailQueueTest {
         return true;
     }
 
+    public void testBlobReuse() throws Exception {
+        JMSMailQueue queue2 = createQueue(createConnectionFactory(), "test2");
+
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        MailQueueItem item = queue.deQueue();
+        URL url = (URL) item.getMail().getAttribute(ActiveMQSupport.JAMES_BLOB_URL);
+        assertNotNull(url);
+
+        // hand over the unmodified mail to the next queue
+        queue2.enQueue(item.getMail());
+        item.done(true);
+
+        // the blob is still referenced by the message of the second queue
+        File blob = new File(url.toURI());
+        assertTrue(blob.exists());
+
+        MailQueueItem item2 = queue2.deQueue();
+        assertEquals(url, item2.getMail().getAttribute(ActiveMQSupport.JAMES_BLOB_URL));
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+
+        assertFalse(blob.exists());
+    }
+
+    public void testBlobReuseReverseOrder() throws Exception {
+        JMSMailQueue queue2 = createQueue(createConnectionFactory(), "test2");
+
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        MailQueueItem item = queue.deQueue();
+        URL url = (URL) item.getMail().getAttribute(ActiveMQSupport.JAMES_BLOB_URL);
+        assertNotNull(url);
+        File blob = new File(url.toURI());
+
+        queue2.enQueue(item.getMail());
+
+        // the message of the second queue is done first
+        MailQueueItem item2 = queue2.deQueue();
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+
+        // the blob is still referenced by the uploading message
+        assertTrue(blob.exists());
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        assertFalse(blob.exists());
+    }
+
+    public void testBlobReuseRollback() throws Exception {
+        JMSMailQueue queue2 = createQueue(createConnectionFactory(), "test2");
+
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        MailQueueItem item = queue.deQueue();
+        URL url = (URL) item.getMail().getAttribute(ActiveMQSupport.JAMES_BLOB_URL);
+        assertNotNull(url);
+        File blob = new File(url.toURI());
+
+        queue2.enQueue(item.getMail());
+
+        // the uploading message goes back to the queue
+        item.done(false);
+        assertTrue(blob.exists());
+
+        MailQueueItem item2 = queue2.deQueue();
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+
+        // the redelivered message still needs the blob
+        assertTrue(blob.exists());
+        MailQueueItem redelivered = queue.deQueue();
+        assertEquals(url, redelivered.getMail().getAttribute(ActiveMQSupport.JAMES_BLOB_URL));
+        checkMail(mail, redelivered.getMail());
+        redelivered.done(true);
+
+        assertFalse(blob.exists());
+    }
+
+    public void testBlobsDiscardedOnBatchRollback() throws Exception {
+        JMSMailQueue queue2 = createQueue(createConnectionFactory(), "test2");
+        File blobDir = fs.getFile(BASE_DIR);
+        int files = countFiles(blobDir);
+
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        MailQueueItem item = queue.deQueue();
+
+        // the first mail reuses its blob, the second one uploads a new blob
+        // and the third one fails
+        Mail mail2 = createMail();
+        mail2.setName(mail.getName() + "-2");
+        Mail broken = createMail();
+        broken.setName(mail.getName() + "-broken");
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties())) {
+
+            @Override
+            public void writeTo(OutputStream os) throws IOException, MessagingException {
+                throw new IOException("Broken message");
+            }
+        };
+        message.setText("test");
+        message.saveChanges();
+        ((MailImpl) broken).setMessage(message);
+
+        try {
+            queue2.enQueue(Arrays.asList(item.getMail(), mail2, broken));
+            fail("The batch should fail");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        Thread.sleep(200);
+        assertEquals(0, queue2.getSize());
+
+        // neither the blobs nor the reference markers of the batch are left
+        item.done(true);
+        assertEquals(files, countFiles(blobDir));
+    }
+
+    private int countFiles(File file) {
+        if (file.isFile()) {
+            return 1;
+        }
+        int count = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                count += countFiles(child);
+            }
+        }
+        return count;
+    }
+
     private final class MyFileSystem implements FileSystem {
 
         public InputStream getResource(String url) throws IOException {
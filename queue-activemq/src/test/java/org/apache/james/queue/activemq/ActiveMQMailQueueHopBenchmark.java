@@ -0,0 +1,174 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.activemq;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.james.core.MailImpl;
+import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throughput benchmark for routing large mails over multiple
+ * {@link ActiveMQMailQueue}'s which use blob messages. Every hop dequeues the
+ * mail from one queue and enqueues it to the next one. Unmodified mails reuse
+ * the blob content of the previous hop, modified ones need to upload it
+ * again. This is not executed as part of the unit tests, run it via its main
+ * method:
+ * 
+ * <pre>
+ * ActiveMQMailQueueHopBenchmark [mails] [hops] [size in kb]
+ * </pre>
+ */
+public class ActiveMQMailQueueHopBenchmark {
+
+    private final static String BASE_DIR = "file://target/hop-benchmark";
+
+    private final ActiveMQConnectionFactory connectionFactory;
+    private final int mails;
+    private final int hops;
+    private final int size;
+
+    public ActiveMQMailQueueHopBenchmark(ActiveMQConnectionFactory connectionFactory, int mails, int hops, int size) {
+        this.connectionFactory = connectionFactory;
+        this.mails = mails;
+        this.hops = hops;
+        this.size = size;
+    }
+
+    /**
+     * Route all mails over all hops
+     * 
+     * @param modify
+     *            if <code>true</code> a header is added on every hop, so the
+     *            content can not get reused
+     * @throws Exception
+     */
+    public void run(boolean modify) throws Exception {
+        ActiveMQMailQueue[] queues = new ActiveMQMailQueue[hops + 1];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ActiveMQMailQueue(connectionFactory, "hop" + i, true, LoggerFactory.getLogger("Benchmark"));
+        }
+        try {
+            for (int i = 0; i < mails; i++) {
+                queues[0].enQueue(createMail(i));
+            }
+
+            long start = System.currentTimeMillis();
+            for (int hop = 0; hop < hops; hop++) {
+                for (int i = 0; i < mails; i++) {
+                    MailQueueItem item = queues[hop].deQueue();
+                    Mail mail = item.getMail();
+                    if (modify) {
+                        mail.getMessage().addHeader("X-Hop", String.valueOf(hop));
+                    }
+                    queues[hop + 1].enQueue(mail);
+                    item.done(true);
+                }
+            }
+            long time = Math.max(1, System.currentTimeMillis() - start);
+
+            for (int i = 0; i < mails; i++) {
+                queues[hops].deQueue().done(true);
+            }
+
+            long transfers = (long) mails * hops;
+            System.out.println("modify=" + modify + " mails=" + mails + " hops=" + hops + " size=" + size + "kb " + Math.round(transfers * 1000d / time) + " hops/s " + Math.round(transfers * size * 1000d / 1024 / time) + " MB/s");
+        } finally {
+            for (ActiveMQMailQueue queue : queues) {
+                queue.dispose();
+            }
+        }
+    }
+
+    private MailImpl createMail(int i) throws Exception {
+        StringBuilder text = new StringBuilder(size * 1024);
+        while (text.length() < size * 1024) {
+            text.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+        }
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText(text.toString());
+        message.setHeader("Subject", "benchmark " + i);
+        message.saveChanges();
+        return new MailImpl("benchmark-" + i, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int hops = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+        BrokerService broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("benchmark");
+        broker.start();
+        try {
+            FileSystemBlobTransferPolicy policy = new FileSystemBlobTransferPolicy();
+            policy.setFileSystem(new LocalFileSystem());
+            policy.setDefaultUploadUrl(BASE_DIR);
+
+            ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://benchmark?create=false");
+            connectionFactory.getPrefetchPolicy().setQueuePrefetch(0);
+            connectionFactory.setBlobTransferPolicy(policy);
+
+            ActiveMQMailQueueHopBenchmark benchmark = new ActiveMQMailQueueHopBenchmark(connectionFactory, mails, hops, size);
+            // warm up
+            benchmark.run(false);
+
+            benchmark.run(true);
+            benchmark.run(false);
+        } finally {
+            broker.stop();
+        }
+    }
+
+    private final static class LocalFileSystem implements FileSystem {
+
+        public InputStream getResource(String url) throws IOException {
+            return null;
+        }
+
+        public File getFile(String fileURL) throws FileNotFoundException {
+            if (fileURL.startsWith("file://")) {
+                return new File(fileURL.substring("file://".length()));
+            } else if (fileURL.startsWith("file:/")) {
+                return new File(fileURL.substring("file:".length()));
+            }
+            throw new FileNotFoundException();
+        }
+
+        public File getBasedir() throws FileNotFoundException {
+            throw new FileNotFoundException();
+        }
+    }
+}
@@ -19,6 +19,8 @@
 
 package org.apache.james.queue.api;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
@@ -81,6 +83,18 @@ public interface MailQueue {
      */
     void enQueue(Mail mail) throws MailQueueException;
 
+    /**
+     * Enqueue all the given Mails to the queue. Implementations should take
+     * care to store the whole batch within one transaction (or at least one
+     * sync to the storage), so bulk producers don't need to pay these costs for
+     * every single Mail. The Mails must not get modified until this method
+     * returns.
+     * 
+     * @param mails
+     * @throws MailQueueException
+     */
+    void enQueue(Collection<Mail> mails) throws MailQueueException;
+
     /**
      * Dequeue the next ready-to-process Mail of the queue. This method will
      * block until a Mail is ready and then process the operation.
@@ -91,6 +105,25 @@ public interface MailQueue {
      */
     MailQueueItem deQueue() throws MailQueueException;
 
+    /**
+     * Dequeue up to max ready-to-process Mails of the queue. This method will
+     * block until at least one Mail is ready or the timeout was reached. After
+     * that only Mails which are ready at this time are added, so the returned
+     * {@link List} may contain less then max items or even be empty.
+     * 
+     * Every returned {@link MailQueueItem} is independent of the others, so
+     * {@link MailQueueItem#done(boolean)} MUST get called for each of them.
+     * 
+     * @param max
+     *            the max count of items to return
+     * @param timeout
+     *            the max time to wait for the first item
+     * @param unit
+     * @return items
+     * @throws MailQueueException
+     */
+    List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException;
+
     /**
      * Exception which will get thrown if any problems occur while working the
      * {@link MailQueue}
@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of the MBeans a {@link MailQueueFactory} registered for its
+ * {@link MailQueue}'s, so they can all be unregistered again when the factory
+ * is destroyed
+ */
+public class MailQueueMBeanRegistry {
+
+    private final MBeanServer mbeanServer;
+    private final List<String> mbeans = new ArrayList<String>();
+
+    public MailQueueMBeanRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public MailQueueMBeanRegistry(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Register the given object under the given name
+     * 
+     * @param mbeanName
+     * @param mbean
+     * @throws JMException
+     */
+    public synchronized void register(String mbeanName, Object mbean) throws JMException {
+        mbeanServer.registerMBean(mbean, new ObjectName(mbeanName));
+        mbeans.add(mbeanName);
+    }
+
+    /**
+     * Register the given object under the given name. An MBean which was
+     * registered under this name before, for example by another registry, is
+     * unregistered first
+     * 
+     * @param mbeanName
+     * @param mbean
+     * @throws JMException
+     */
+    public synchronized void replace(String mbeanName, Object mbean) throws JMException {
+        ObjectName name = new ObjectName(mbeanName);
+        if (mbeanServer.isRegistered(name)) {
+            mbeanServer.unregisterMBean(name);
+        }
+        register(mbeanName, mbean);
+    }
+
+    /**
+     * Register the {@link MailQueueMetrics} of the given queue, if it keeps
+     * track of them
+     * 
+     * @param queuename
+     * @param queue
+     * @throws JMException
+     */
+    public void registerMetrics(String queuename, MailQueue queue) throws JMException {
+        if (queue instanceof MailQueueMetricsSupport) {
+            register(MailQueueMetrics.getMBeanName(queuename), ((MailQueueMetricsSupport) queue).getMetrics());
+        }
+    }
+
+    /**
+     * Unregister the MBean with the given name
+     * 
+     * @param mbeanName
+     * @throws JMException
+     */
+    public synchronized void unregister(String mbeanName) throws JMException {
+        mbeanServer.unregisterMBean(new ObjectName(mbeanName));
+        mbeans.remove(mbeanName);
+    }
+
+    /**
+     * Unregister all MBeans which were registered via this instance. Failures
+     * are ignored as this is only used on shutdown.
+     */
+    public synchronized void unregisterAll() {
+        // iterate over a copy as unregister(..) removes from the list
+        for (String mbeanName : new ArrayList<String>(mbeans)) {
+            try {
+                unregister(mbeanName);
+            } catch (Exception e) {
+                // ignore on shutdown
+            }
+        }
+        mbeans.clear();
+    }
+
+    /**
+     * Return the names of all MBeans which are currently registered via this
+     * instance
+     * 
+     * @return names
+     */
+    public synchronized List<String> getRegistered() {
+        return new ArrayList<String>(mbeans);
+    }
+}
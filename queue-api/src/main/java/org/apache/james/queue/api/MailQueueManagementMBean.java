@@ -31,6 +31,15 @@ public interface MailQueueManagementMBean {
      */
     long getSize() throws Exception;
 
+    /**
+     * Return the size of the queue for the given priority or -1 if the size
+     * could not get calculated
+     * 
+     * @param priority
+     * @return size the size or -1 if it could not get calculated
+     */
+    long getSize(int priority) throws Exception;
+
     /**
      * Flush queue to make every Mail ready to consume.
      * 
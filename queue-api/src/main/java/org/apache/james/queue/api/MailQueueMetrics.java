@@ -0,0 +1,366 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.mailet.Mail;
+
+/**
+ * <p>
+ * Counters, rates and latency histograms of a {@link MailQueue}. The
+ * {@link MailQueue} implementation is responsible to record the operations:
+ * </p>
+ * <ul>
+ * <li>the enqueue latency is the time an enqueue operation took</li>
+ * <li>the dwell time is the time a mail waited in the queue after it was
+ * ready for dequeue, so delays requested on enqueue are not counted</li>
+ * <li>the done latency is the time {@link MailQueue.MailQueueItem#done(boolean)}
+ * took</li>
+ * </ul>
+ */
+public class MailQueueMetrics implements MailQueueMetricsMBean {
+
+    /** Max count of mails which are browsed to find the oldest ready mail */
+    public final static int MAX_AGE_SCAN = 20;
+
+    private final ManageableMailQueue queue;
+
+    private final AtomicLong enqueueFailures = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final Rate enqueueRate = new Rate();
+    private final Rate dequeueRate = new Rate();
+    private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    private final LatencyHistogram dwellTime = new LatencyHistogram();
+    private final LatencyHistogram doneLatency = new LatencyHistogram();
+
+    /**
+     * @param queue
+     *            the queue which is used to calculate the age of the oldest
+     *            mail. May be <code>null</code>
+     */
+    public MailQueueMetrics(ManageableMailQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Return the name under which the metrics of the queue with the given name
+     * are registered via JMX
+     * 
+     * @param queuename
+     * @return mbeanName
+     */
+    public static String getMBeanName(String queuename) {
+        return "org.apache.james:type=component,name=queuemetrics,queue=" + queuename;
+    }
+
+    /**
+     * Record a successful enqueue operation
+     * 
+     * @param count
+     *            the count of mails which were enqueued
+     * @param start
+     *            the {@link System#nanoTime()} at which the operation started
+     */
+    public void enqueued(int count, long start) {
+        enqueueLatency.record((System.nanoTime() - start) / 1000);
+        enqueueRate.mark(count);
+    }
+
+    /**
+     * Record a failed enqueue operation
+     */
+    public void enqueueFailed() {
+        enqueueFailures.incrementAndGet();
+    }
+
+    /**
+     * Record a dequeued mail
+     * 
+     * @param readyTime
+     *            the time (in ms) at which the mail was ready for dequeue
+     */
+    public void dequeued(long readyTime) {
+        dwellTime.record(System.currentTimeMillis() - readyTime);
+        dequeueRate.mark(1);
+    }
+
+    /**
+     * Record a finished {@link MailQueue.MailQueueItem#done(boolean)} call
+     * 
+     * @param success
+     * @param start
+     *            the {@link System#nanoTime()} at which the call started
+     */
+    public void done(boolean success, long start) {
+        doneLatency.record((System.nanoTime() - start) / 1000);
+        if (success) {
+            commits.incrementAndGet();
+        } else {
+            rollbacks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the age (in ms) of the oldest ready mail of the given queue. This
+     * only browses the first mails of the queue and use their
+     * {@link Mail#getLastUpdated()}, so it is an estimate.
+     * 
+     * @param queue
+     * @param maxScan
+     *            the max count of mails to browse
+     * @return age or 0 if no ready mail was found
+     * @throws MailQueueException
+     */
+    public static long getOldestAge(ManageableMailQueue queue, int maxScan) throws MailQueueException {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        MailQueueIterator it = queue.browse();
+        try {
+            int scanned = 0;
+            while (scanned < maxScan && it.hasNext()) {
+                MailQueueItemView view = it.next();
+                scanned++;
+                if (view.getNextDelivery() > now) {
+                    // delayed mails are not late
+                    continue;
+                }
+                Date lastUpdated = view.getMail().getLastUpdated();
+                if (lastUpdated != null && lastUpdated.getTime() < oldest) {
+                    oldest = lastUpdated.getTime();
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return now - oldest;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getOldestAge()
+     */
+    public long getOldestAge() {
+        if (queue == null) {
+            return -1;
+        }
+        try {
+            return getOldestAge(queue, MAX_AGE_SCAN);
+        } catch (MailQueueException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getEnqueueCount()
+     */
+    public long getEnqueueCount() {
+        return enqueueRate.getCount();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getDequeueCount()
+     */
+    public long getDequeueCount() {
+        return dequeueRate.getCount();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getCommitCount()
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getRollbackCount()
+     */
+    public long getRollbackCount() {
+        return rollbacks.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getEnqueueFailureCount()
+     */
+    public long getEnqueueFailureCount() {
+        return enqueueFailures.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getEnqueueRate()
+     */
+    public double getEnqueueRate() {
+        return enqueueRate.getRate();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#getDequeueRate()
+     */
+    public double getDequeueRate() {
+        return dequeueRate.getRate();
+    }
+
+    public long getEnqueueLatencyP50() {
+        return enqueueLatency.getPercentile(0.5);
+    }
+
+    public long getEnqueueLatencyP99() {
+        return enqueueLatency.getPercentile(0.99);
+    }
+
+    public long getEnqueueLatencyP999() {
+        return enqueueLatency.getPercentile(0.999);
+    }
+
+    public long getEnqueueLatencyMax() {
+        return enqueueLatency.getMax();
+    }
+
+    public long getDwellTimeP50() {
+        return dwellTime.getPercentile(0.5);
+    }
+
+    public long getDwellTimeP99() {
+        return dwellTime.getPercentile(0.99);
+    }
+
+    public long getDwellTimeP999() {
+        return dwellTime.getPercentile(0.999);
+    }
+
+    public long getDwellTimeMax() {
+        return dwellTime.getMax();
+    }
+
+    public long getDoneLatencyP50() {
+        return doneLatency.getPercentile(0.5);
+    }
+
+    public long getDoneLatencyP99() {
+        return doneLatency.getPercentile(0.99);
+    }
+
+    public long getDoneLatencyP999() {
+        return doneLatency.getPercentile(0.999);
+    }
+
+    public long getDoneLatencyMax() {
+        return doneLatency.getMax();
+    }
+
+    /**
+     * Return the histogram of the enqueue latencies (in microseconds)
+     * 
+     * @return enqueueLatency
+     */
+    public LatencyHistogram getEnqueueLatency() {
+        return enqueueLatency;
+    }
+
+    /**
+     * Return the histogram of the dwell times (in ms)
+     * 
+     * @return dwellTime
+     */
+    public LatencyHistogram getDwellTime() {
+        return dwellTime;
+    }
+
+    /**
+     * Return the histogram of the done latencies (in microseconds)
+     * 
+     * @return doneLatency
+     */
+    public LatencyHistogram getDoneLatency() {
+        return doneLatency;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsMBean#reset()
+     */
+    public void reset() {
+        enqueueFailures.set(0);
+        commits.set(0);
+        rollbacks.set(0);
+        enqueueRate.reset();
+        dequeueRate.reset();
+        enqueueLatency.reset();
+        dwellTime.reset();
+        doneLatency.reset();
+    }
+
+    /**
+     * Counter which also calculates the rate of the last full minute
+     */
+    private final static class Rate {
+        private final static long WINDOW = 60 * 1000;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong windowCount = new AtomicLong();
+        private volatile long windowStart = System.currentTimeMillis();
+        private volatile double lastRate = 0;
+
+        public void mark(long n) {
+            roll(System.currentTimeMillis());
+            count.addAndGet(n);
+            windowCount.addAndGet(n);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getRate() {
+            long now = System.currentTimeMillis();
+            roll(now);
+            long start = windowStart;
+            if (lastRate == 0 && now - start < WINDOW) {
+                // no full window yet, so use the current one
+                return windowCount.get() * 1000d / Math.max(1, now - start);
+            }
+            return lastRate;
+        }
+
+        public synchronized void reset() {
+            count.set(0);
+            windowCount.set(0);
+            windowStart = System.currentTimeMillis();
+            lastRate = 0;
+        }
+
+        private void roll(long now) {
+            if (now - windowStart >= WINDOW) {
+                synchronized (this) {
+                    long start = windowStart;
+                    if (now - start >= WINDOW) {
+                        long n = windowCount.getAndSet(0);
+                        // if no event was marked for more then one window the
+                        // rate is 0
+                        lastRate = now - start >= 2 * WINDOW ? 0 : n * 1000d / (now - start);
+                        windowStart = now;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+/**
+ * JMX MBean which exposes the {@link MailQueueMetrics} of a {@link MailQueue}.
+ * Latencies are given in microseconds, dwell times and ages in milliseconds
+ * and rates in mails per second.
+ */
+public interface MailQueueMetricsMBean {
+
+    /**
+     * Return the count of enqueued mails
+     * 
+     * @return count
+     */
+    long getEnqueueCount();
+
+    /**
+     * Return the count of dequeued mails. Mails which were rolled back are
+     * counted again on the next dequeue
+     * 
+     * @return count
+     */
+    long getDequeueCount();
+
+    /**
+     * Return the count of dequeued mails which were done successfully
+     * 
+     * @return count
+     */
+    long getCommitCount();
+
+    /**
+     * Return the count of dequeued mails which were rolled back
+     * 
+     * @return count
+     */
+    long getRollbackCount();
+
+    /**
+     * Return the count of enqueue operations which failed
+     * 
+     * @return count
+     */
+    long getEnqueueFailureCount();
+
+    /**
+     * Return the enqueue rate of the last minute
+     * 
+     * @return rate
+     */
+    double getEnqueueRate();
+
+    /**
+     * Return the dequeue rate of the last minute
+     * 
+     * @return rate
+     */
+    double getDequeueRate();
+
+    long getEnqueueLatencyP50();
+
+    long getEnqueueLatencyP99();
+
+    long getEnqueueLatencyP999();
+
+    long getEnqueueLatencyMax();
+
+    long getDwellTimeP50();
+
+    long getDwellTimeP99();
+
+    long getDwellTimeP999();
+
+    long getDwellTimeMax();
+
+    long getDoneLatencyP50();
+
+    long getDoneLatencyP99();
+
+    long getDoneLatencyP999();
+
+    long getDoneLatencyMax();
+
+    /**
+     * Return the age of the oldest ready mail in the queue, or -1 if the queue
+     * does not support browsing
+     * 
+     * @return age
+     */
+    long getOldestAge();
+
+    /**
+     * Reset all counters and histograms
+     */
+    void reset();
+}
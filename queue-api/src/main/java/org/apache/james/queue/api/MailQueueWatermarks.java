@@ -0,0 +1,291 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+
+/**
+ * <p>
+ * Keep track of high and low watermarks for the size of a
+ * {@link ManageableMailQueue} and for the age of its oldest ready mail, so
+ * ingress services can defer new mails while the queue is saturated instead of
+ * filling up the underlying store.
+ * </p>
+ * <p>
+ * The queue gets saturated once one of the high watermarks is reached and
+ * stays saturated until all checked values are back at or below their low
+ * watermarks. As {@link ManageableMailQueue#getSize()} may be expensive the
+ * queue is checked at most once per check interval, all other calls just
+ * return the last state. If an {@link Executor} is set the check is done by
+ * it, so the caller never waits on the queue and gets the last state until
+ * the check finished.
+ * </p>
+ * <p>
+ * The age is calculated by browsing the first ready mails of the queue and
+ * using their {@link org.apache.mailet.Mail#getLastUpdated()}, so it is only an estimate. It is
+ * not checked at all if no age watermark is set.
+ * </p>
+ */
+public class MailQueueWatermarks implements MailQueueWatermarksMBean {
+
+    public final static long DEFAULT_CHECK_INTERVAL = 1000;
+
+    private final ManageableMailQueue queue;
+
+    private volatile long highWatermark = -1;
+    private volatile long lowWatermark = -1;
+    private volatile long highAgeWatermark = -1;
+    private volatile long lowAgeWatermark = -1;
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    private volatile boolean saturated = false;
+    private volatile long size = 0;
+    private volatile long oldestAge = 0;
+    private volatile long lastCheck = 0;
+
+    private final AtomicBoolean checking = new AtomicBoolean(false);
+    private volatile Executor executor;
+
+    private final AtomicLong saturatedCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+
+    public MailQueueWatermarks(ManageableMailQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Return <code>true</code> if the queue is saturated. This checks the
+     * queue if the last check is older then the check interval.
+     * 
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#isSaturated()
+     */
+    public boolean isSaturated() {
+        if (System.currentTimeMillis() - lastCheck >= checkInterval) {
+            if (executor != null) {
+                checkAsync();
+                return saturated;
+            }
+            synchronized (this) {
+                // another thread may have checked it while we waited for the
+                // lock
+                if (System.currentTimeMillis() - lastCheck >= checkInterval) {
+                    check();
+                }
+            }
+        }
+        return saturated;
+    }
+
+    /**
+     * Set the {@link Executor} which is used to check the queue. If
+     * <code>null</code> (the default) the queue is checked by the thread which
+     * calls {@link #isSaturated()}
+     * 
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private void checkAsync() {
+        // only one check at a time
+        if (!checking.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        check();
+                    } finally {
+                        checking.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // executor was shut down, keep the last state
+            checking.set(false);
+        }
+    }
+
+    /**
+     * Check the queue now and update the saturated state
+     * 
+     * @return saturated
+     */
+    public synchronized boolean check() {
+        long now = System.currentTimeMillis();
+        lastCheck = now;
+
+        try {
+            if (highWatermark > 0) {
+                size = queue.getSize();
+            }
+            if (highAgeWatermark > 0) {
+                oldestAge = MailQueueMetrics.getOldestAge(queue, MailQueueMetrics.MAX_AGE_SCAN);
+            }
+        } catch (MailQueueException e) {
+            // keep the last state
+            return saturated;
+        }
+
+        if (saturated) {
+            boolean sizeOk = highWatermark <= 0 || size <= getEffectiveLowWatermark();
+            boolean ageOk = highAgeWatermark <= 0 || oldestAge <= getEffectiveLowAgeWatermark();
+            if (sizeOk && ageOk) {
+                saturated = false;
+            }
+        } else {
+            boolean sizeHigh = highWatermark > 0 && size >= highWatermark;
+            boolean ageHigh = highAgeWatermark > 0 && oldestAge >= highAgeWatermark;
+            if (sizeHigh || ageHigh) {
+                saturated = true;
+                saturatedCount.incrementAndGet();
+            }
+        }
+        return saturated;
+    }
+
+    /**
+     * Record that a transaction was deferred because the queue was saturated
+     */
+    public void deferred() {
+        deferredCount.incrementAndGet();
+    }
+
+    /**
+     * Return the queue which is checked
+     * 
+     * @return queue
+     */
+    public ManageableMailQueue getQueue() {
+        return queue;
+    }
+
+    private long getEffectiveLowWatermark() {
+        return lowWatermark < 0 ? highWatermark : lowWatermark;
+    }
+
+    private long getEffectiveLowAgeWatermark() {
+        return lowAgeWatermark < 0 ? highAgeWatermark : lowAgeWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getSize()
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getOldestAge()
+     */
+    public long getOldestAge() {
+        return oldestAge;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getHighWatermark()
+     */
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#setHighWatermark(long)
+     */
+    public void setHighWatermark(long highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getLowWatermark()
+     */
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#setLowWatermark(long)
+     */
+    public void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getHighAgeWatermark()
+     */
+    public long getHighAgeWatermark() {
+        return highAgeWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#setHighAgeWatermark(long)
+     */
+    public void setHighAgeWatermark(long highAgeWatermark) {
+        this.highAgeWatermark = highAgeWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getLowAgeWatermark()
+     */
+    public long getLowAgeWatermark() {
+        return lowAgeWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#setLowAgeWatermark(long)
+     */
+    public void setLowAgeWatermark(long lowAgeWatermark) {
+        this.lowAgeWatermark = lowAgeWatermark;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getCheckInterval()
+     */
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#setCheckInterval(long)
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getSaturatedCount()
+     */
+    public long getSaturatedCount() {
+        return saturatedCount.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueWatermarksMBean#getDeferredCount()
+     */
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+}
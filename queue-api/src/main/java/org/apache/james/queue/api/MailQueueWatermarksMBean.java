@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+/**
+ * JMX MBean which exposes the watermarks and the current throttling state of
+ * a {@link MailQueueWatermarks}
+ */
+public interface MailQueueWatermarksMBean {
+
+    /**
+     * Return <code>true</code> if the queue is saturated and new mails should
+     * be deferred
+     * 
+     * @return saturated
+     */
+    boolean isSaturated();
+
+    /**
+     * Return the size of the queue as seen on the last check
+     * 
+     * @return size
+     */
+    long getSize();
+
+    /**
+     * Return the age (in ms) of the oldest ready mail as seen on the last
+     * check or 0 if the age is not checked
+     * 
+     * @return age
+     */
+    long getOldestAge();
+
+    /**
+     * Return the size at which the queue gets saturated or -1 if the size is
+     * not checked
+     * 
+     * @return highWatermark
+     */
+    long getHighWatermark();
+
+    /**
+     * Set the size at which the queue gets saturated. Use -1 to disable
+     * 
+     * @param highWatermark
+     */
+    void setHighWatermark(long highWatermark);
+
+    /**
+     * Return the size the queue needs to drain to before it is not saturated
+     * anymore
+     * 
+     * @return lowWatermark
+     */
+    long getLowWatermark();
+
+    /**
+     * Set the size the queue needs to drain to before it is not saturated
+     * anymore. Use -1 to use the high watermark
+     * 
+     * @param lowWatermark
+     */
+    void setLowWatermark(long lowWatermark);
+
+    /**
+     * Return the age (in ms) of the oldest ready mail at which the queue gets
+     * saturated or -1 if the age is not checked
+     * 
+     * @return highAgeWatermark
+     */
+    long getHighAgeWatermark();
+
+    /**
+     * Set the age (in ms) of the oldest ready mail at which the queue gets
+     * saturated. Use -1 to disable
+     * 
+     * @param highAgeWatermark
+     */
+    void setHighAgeWatermark(long highAgeWatermark);
+
+    /**
+     * Return the age (in ms) the oldest ready mail needs to fall below before
+     * the queue is not saturated anymore
+     * 
+     * @return lowAgeWatermark
+     */
+    long getLowAgeWatermark();
+
+    /**
+     * Set the age (in ms) the oldest ready mail needs to fall below before the
+     * queue is not saturated anymore. Use -1 to use the high age watermark
+     * 
+     * @param lowAgeWatermark
+     */
+    void setLowAgeWatermark(long lowAgeWatermark);
+
+    /**
+     * Return the min time (in ms) between two checks of the queue
+     * 
+     * @return checkInterval
+     */
+    long getCheckInterval();
+
+    /**
+     * Set the min time (in ms) between two checks of the queue
+     * 
+     * @param checkInterval
+     */
+    void setCheckInterval(long checkInterval);
+
+    /**
+     * Return how often the queue got saturated
+     * 
+     * @return saturatedCount
+     */
+    long getSaturatedCount();
+
+    /**
+     * Return the count of SMTP/LMTP transactions which were deferred because
+     * the queue was saturated
+     * 
+     * @return deferredCount
+     */
+    long getDeferredCount();
+}
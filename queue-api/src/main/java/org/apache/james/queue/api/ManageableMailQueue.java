@@ -39,6 +39,19 @@ public interface ManageableMailQueue extends MailQueue {
      */
     public long getSize() throws MailQueueException;
 
+    /**
+     * Return the size of the queue for the given priority. See
+     * {@link MailPrioritySupport} for the possible values. Implementations
+     * which does not support priorities should return the size of the whole
+     * queue for {@link MailPrioritySupport#NORMAL_PRIORITY} and 0 for all
+     * others
+     * 
+     * @param priority
+     * @return size
+     * @throws MailQueueException
+     */
+    public long getSize(int priority) throws MailQueueException;
+
     /**
      * Flush the queue, which means it will make all message ready for dequeue
      * 
@@ -89,6 +89,17 @@ public class MailQueueManagement extends StandardMBean implements MailQueueManag
         }
     }
 
+    /**
+     * @see org.apache.james.queue.api.MailQueueManagementMBean#getSize(int)
+     */
+    public long getSize(int priority) throws Exception {
+        try {
+            return queue.getSize(priority);
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
     /**
      * @see
      * org.apache.james.queue.api.MailQueueManagementMBean#removeWithName(java.lang.String)
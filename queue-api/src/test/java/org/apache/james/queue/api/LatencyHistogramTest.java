@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 60; i++) {
+            histogram.record(i);
+        }
+        assertEquals(60, histogram.getCount());
+        assertEquals(60, histogram.getMax());
+        assertEquals(30, histogram.getPercentile(0.5));
+        assertEquals(54, histogram.getPercentile(0.9));
+        assertEquals(60, histogram.getPercentile(1.0));
+        assertEquals(1, histogram.getPercentile(0.0));
+        assertEquals(30.5, histogram.getMean(), 0.0001);
+    }
+
+    public void testNegativeValuesAreRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-10);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    public void testBucketBoundaries() {
+        // every value must end up in a bucket whose upper bound is >= the
+        // value and not more then ~3% off
+        long[] values = new long[] { 63, 64, 65, 127, 128, 129, 1000, 1023, 1024, 4095, 4096, 1000000, Long.MAX_VALUE / 2 };
+        for (int i = 0; i < values.length; i++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(values[i]);
+            // add a bigger value so the max does not cap the result
+            histogram.record(Long.MAX_VALUE);
+            long p = histogram.getPercentile(0.5);
+            assertTrue(values[i] + " reported as " + p, p >= values[i]);
+            assertTrue(values[i] + " reported as " + p, p - values[i] <= values[i] / 32);
+        }
+    }
+
+    public void testPercentileAccuracy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertWithin(50000, histogram.getPercentile(0.5));
+        assertWithin(99000, histogram.getPercentile(0.99));
+        assertWithin(99900, histogram.getPercentile(0.999));
+        assertEquals(100000, histogram.getMax());
+    }
+
+    public void testPercentileNeverExceedsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(1001);
+        assertEquals(1001, histogram.getPercentile(0.99));
+        assertEquals(1001, histogram.getPercentile(1.0));
+    }
+
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(10000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.99));
+
+        histogram.record(5);
+        assertEquals(5, histogram.getPercentile(0.99));
+    }
+
+    public void testConcurrentRecord() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int a = 0; a < 10000; a++) {
+                        histogram.record(a);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(9999, histogram.getMax());
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * 3 / 100);
+    }
+}
@@ -0,0 +1,102 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.james.queue.api.mock.MockMailQueue;
+
+public class MailQueueMetricsTest extends TestCase {
+
+    public void testCounters() {
+        MailQueueMetrics metrics = new MailQueueMetrics(null);
+        long start = System.nanoTime();
+        metrics.enqueued(3, start);
+        metrics.enqueued(1, start);
+        metrics.enqueueFailed();
+        metrics.dequeued(System.currentTimeMillis());
+        metrics.done(true, start);
+        metrics.done(false, start);
+        metrics.done(true, start);
+
+        assertEquals(4, metrics.getEnqueueCount());
+        assertEquals(1, metrics.getEnqueueFailureCount());
+        assertEquals(1, metrics.getDequeueCount());
+        assertEquals(2, metrics.getCommitCount());
+        assertEquals(1, metrics.getRollbackCount());
+        assertEquals(2, metrics.getEnqueueLatency().getCount());
+        assertEquals(1, metrics.getDwellTime().getCount());
+        assertEquals(3, metrics.getDoneLatency().getCount());
+    }
+
+    public void testDwellTime() {
+        MailQueueMetrics metrics = new MailQueueMetrics(null);
+        metrics.dequeued(System.currentTimeMillis() - 1000);
+        assertTrue(metrics.getDwellTimeMax() >= 1000);
+        assertTrue(metrics.getDwellTimeP50() >= 1000);
+        assertTrue(metrics.getDwellTimeP99() <= metrics.getDwellTimeMax());
+    }
+
+    public void testReset() {
+        MailQueueMetrics metrics = new MailQueueMetrics(null);
+        metrics.enqueued(1, System.nanoTime());
+        metrics.enqueueFailed();
+        metrics.dequeued(System.currentTimeMillis());
+        metrics.done(false, System.nanoTime());
+        metrics.reset();
+
+        assertEquals(0, metrics.getEnqueueCount());
+        assertEquals(0, metrics.getEnqueueFailureCount());
+        assertEquals(0, metrics.getDequeueCount());
+        assertEquals(0, metrics.getCommitCount());
+        assertEquals(0, metrics.getRollbackCount());
+        assertEquals(0, metrics.getEnqueueLatency().getCount());
+        assertEquals(0, metrics.getDwellTimeMax());
+    }
+
+    public void testOldestAgeWithoutQueue() {
+        assertEquals(-1, new MailQueueMetrics(null).getOldestAge());
+    }
+
+    public void testRegistryUnregistersAll() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        MailQueueMBeanRegistry registry = new MailQueueMBeanRegistry(server);
+        for (int i = 0; i < 5; i++) {
+            registry.register(MailQueueMetrics.getMBeanName("test" + i), new MailQueueMetrics(null));
+        }
+        assertEquals(5, registry.getRegistered().size());
+
+        registry.unregisterAll();
+        assertEquals(0, registry.getRegistered().size());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(server.isRegistered(new ObjectName(MailQueueMetrics.getMBeanName("test" + i))));
+        }
+    }
+
+    public void testRegistryRegistersMetricsOnlyIfSupported() throws Exception {
+        MailQueueMBeanRegistry registry = new MailQueueMBeanRegistry(ManagementFactory.getPlatformMBeanServer());
+        registry.registerMetrics("mock", new MockMailQueue());
+        assertEquals(0, registry.getRegistered().size());
+    }
+}
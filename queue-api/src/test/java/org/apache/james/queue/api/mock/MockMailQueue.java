@@ -19,6 +19,9 @@
 
 package org.apache.james.queue.api.mock;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
@@ -67,6 +70,39 @@ public class MockMailQueue implements MailQueue {
         }
     }
 
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        if (throwException) {
+            throwException = false;
+            throw new MailQueueException("Mock");
+        }
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        try {
+            Mail mail = queue.poll(timeout, unit);
+            while (mail != null) {
+                final Mail m = mail;
+                items.add(new MailQueueItem() {
+
+                    public Mail getMail() {
+                        return m;
+                    }
+
+                    public void done(boolean success) throws MailQueueException {
+                        // do nothing here
+                    }
+                });
+                if (items.size() >= max) {
+                    break;
+                }
+                mail = queue.poll();
+            }
+            if (queue.isEmpty())
+                lastMail = null;
+            return items;
+        } catch (InterruptedException e) {
+            throw new MailQueueException("Mock", e);
+        }
+    }
+
     public void enQueue(final Mail mail, long delay, TimeUnit unit) throws MailQueueException {
         if (throwException) {
             throwException = false;
@@ -100,6 +136,12 @@ public class MockMailQueue implements MailQueue {
         }
     }
 
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        for (Mail mail : mails) {
+            enQueue(mail);
+        }
+    }
+
     public Mail getLastMail() {
         return lastMail;
     }
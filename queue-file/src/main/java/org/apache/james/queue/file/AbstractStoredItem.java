@@ -0,0 +1,163 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.file.FileMailQueueStore.StoredItem;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Base class for {@link StoredItem} implementations which keeps the metadata
+ * of the stored {@link Mail} in memory
+ */
+public abstract class AbstractStoredItem implements StoredItem {
+
+    private long nextDelivery;
+    private volatile long readyTime = System.currentTimeMillis();
+    private int priority = MailPrioritySupport.NORMAL_PRIORITY;
+    private String name;
+    private String sender;
+    private List<String> recipients = Collections.emptyList();
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#getNextDelivery()
+     */
+    public long getNextDelivery() {
+        return nextDelivery;
+    }
+
+    public void setNextDelivery(long nextDelivery) {
+        this.nextDelivery = nextDelivery;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#getReadyTime()
+     */
+    public long getReadyTime() {
+        return readyTime;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#setReadyTime(long)
+     */
+    public void setReadyTime(long readyTime) {
+        this.readyTime = readyTime;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#getPriority()
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#getName()
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#getSender()
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#getRecipients()
+     */
+    public Collection<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Take the name, sender and recipients from the given {@link Mail}
+     * 
+     * @param mail
+     */
+    public void setEnvelope(Mail mail) {
+        name = mail.getName();
+        MailAddress s = mail.getSender();
+        sender = s == null ? null : s.toString();
+        Collection<MailAddress> rcpts = mail.getRecipients();
+        if (rcpts == null || rcpts.isEmpty()) {
+            recipients = Collections.emptyList();
+        } else {
+            recipients = new ArrayList<String>(rcpts.size());
+            Iterator<MailAddress> it = rcpts.iterator();
+            while (it.hasNext()) {
+                recipients.add(it.next().toString());
+            }
+        }
+    }
+
+    /**
+     * Write the name, sender and recipients
+     * 
+     * @param out
+     * @throws IOException
+     */
+    public void writeEnvelope(DataOutput out) throws IOException {
+        out.writeBoolean(name != null);
+        if (name != null) {
+            out.writeUTF(name);
+        }
+        out.writeBoolean(sender != null);
+        if (sender != null) {
+            out.writeUTF(sender);
+        }
+        out.writeInt(recipients.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            out.writeUTF(recipients.get(i));
+        }
+    }
+
+    /**
+     * Read the name, sender and recipients which were written via
+     * {@link #writeEnvelope(DataOutput)}
+     * 
+     * @param in
+     * @throws IOException
+     */
+    public void readEnvelope(DataInput in) throws IOException {
+        name = in.readBoolean() ? in.readUTF() : null;
+        sender = in.readBoolean() ? in.readUTF() : null;
+        int count = in.readInt();
+        recipients = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(in.readUTF());
+        }
+    }
+}
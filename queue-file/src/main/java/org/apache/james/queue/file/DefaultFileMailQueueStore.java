@@ -0,0 +1,522 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.james.core.MailEnvelopeCodec;
+import org.apache.james.core.MappedFileMimeMessageSource;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+/**
+ * {@link FileMailQueueStore} which stores every {@link Mail} as two files. One
+ * file holds the serialized {@link Mail} object and the other one the message.
+ * The files are spread over {@link #SPLITCOUNT} sub-directories.
+ * 
+ * The object file starts with a small metadata record (key, next delivery time,
+ * message size, priority, name, sender and recipients), so the recovery does not need to deserialize the
+ * {@link Mail}'s. The sub-directories are recovered in parallel.
+ */
+public class DefaultFileMailQueueStore implements FileMailQueueStore {
+
+    private final static String MSG_EXTENSION = ".msg";
+    private final static String OBJECT_EXTENSION = ".obj";
+    private final static int SPLITCOUNT = 10;
+    /**
+     * Magic of the metadata record with key, next delivery, message size,
+     * priority, name, sender and recipients
+     */
+    private final static int METADATA_MAGIC = 0x4A514D47;
+
+    private final File queueDir;
+    private final String queueDirName;
+    private final int recoveryThreads;
+    private final Logger log;
+    private boolean compactEnvelope;
+    private boolean memoryMapped;
+
+    public DefaultFileMailQueueStore(File queueDir, Logger log) throws IOException {
+        this(queueDir, SPLITCOUNT, log);
+    }
+
+    /**
+     * @param queueDir
+     * @param recoveryThreads
+     *            the count of threads which are used to recover the
+     *            sub-directories on startup
+     * @param log
+     * @throws IOException
+     */
+    public DefaultFileMailQueueStore(File queueDir, int recoveryThreads, Logger log) throws IOException {
+        this.queueDir = queueDir;
+        this.queueDirName = queueDir.getAbsolutePath();
+        this.recoveryThreads = Math.max(1, recoveryThreads);
+        this.log = log;
+
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            File qDir = new File(queueDir, Integer.toString(i));
+            if (!qDir.exists() && !qDir.mkdirs()) {
+                throw new IOException("Unable to create queue directory " + qDir);
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the given queue directory contains mails
+     * which were stored by a {@link DefaultFileMailQueueStore}
+     * 
+     * @param queueDir
+     * @return contains
+     */
+    public static boolean containsMails(File queueDir) {
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            String[] files = new File(queueDir, Integer.toString(i)).list(new FilenameFilter() {
+
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(OBJECT_EXTENSION);
+                }
+            });
+            if (files != null && files.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If <code>true</code> the envelopes are written via the
+     * {@link MailEnvelopeCodec} instead of Java serialization. Envelopes of
+     * both formats can always be read.
+     * 
+     * @param compactEnvelope
+     */
+    public void setCompactEnvelope(boolean compactEnvelope) {
+        this.compactEnvelope = compactEnvelope;
+    }
+
+    /**
+     * If <code>true</code> the message files are read via a
+     * {@link MappedFileMimeMessageSource} instead of a
+     * {@link SharedFileInputStream}
+     * 
+     * @param memoryMapped
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Recover all sub-directories in parallel
+     * 
+     * @see org.apache.james.queue.file.FileMailQueueStore#recover(org.apache.james.queue.file.FileMailQueueStore.RecoveryHandler)
+     */
+    public void recover(final RecoveryHandler handler) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(recoveryThreads, SPLITCOUNT));
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 1; i <= SPLITCOUNT; i++) {
+                final File qDir = new File(queueDir, Integer.toString(i));
+                results.add(executor.submit(new Callable<Integer>() {
+
+                    public Integer call() throws Exception {
+                        return recoverDir(qDir, handler);
+                    }
+                }));
+            }
+            int count = 0;
+            for (int i = 0; i < results.size(); i++) {
+                count += results.get(i).get();
+            }
+            if (log.isInfoEnabled()) {
+                log.info("Recovered " + count + " mails from " + queueDirName);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while recover " + queueDirName);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Unable to recover " + queueDirName, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Recover all items of the given directory
+     * 
+     * @param qDir
+     * @param handler
+     * @return count of recovered items
+     */
+    private int recoverDir(File qDir, RecoveryHandler handler) {
+        String[] files = qDir.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                if (name.endsWith(OBJECT_EXTENSION)) {
+                    return true;
+                }
+                return false;
+            }
+        });
+        if (files == null) {
+            log.error("Unable to list queue directory " + qDir);
+            return 0;
+        }
+        String dirName = qDir.getAbsolutePath();
+        int count = 0;
+        for (int a = 0; a < files.length; a++) {
+            final String name = files[a];
+            final String baseName = name.substring(0, name.length() - OBJECT_EXTENSION.length());
+            FileItem item = new FileItem(dirName + "/" + name, dirName + "/" + baseName + MSG_EXTENSION);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(item.getObjectFile()), 512));
+                String key = readMetadata(in, item);
+                if (key == null) {
+                    // written by an older version without metadata, so we
+                    // need to load the whole mail
+                    Mail mail = MailEnvelopeCodec.read(in);
+                    Long nextDelivery = (Long) mail.getAttribute(FileMailQueue.NEXT_DELIVERY);
+                    key = baseName;
+                    item.setNextDelivery(nextDelivery == null ? 0L : nextDelivery);
+                    item.setMessageSize(new File(item.getMessageFile()).length());
+                    item.setPriority(FileMailQueue.getPriority(mail));
+                    item.setEnvelope(mail);
+                }
+
+                handler.recovered(key, item, item.getNextDelivery());
+                count++;
+            } catch (ClassNotFoundException e1) {
+                log.error("Unable to load Mail", e1);
+            } catch (IOException e) {
+                log.error("Unable to load Mail", e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (Exception e) {
+                        // ignore on close
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read the metadata record at the start of the stream into the given
+     * {@link FileItem}. If the stream does not start with a metadata record it
+     * is reset to its start
+     * 
+     * @param in
+     *            stream which must support mark and reset
+     * @param item
+     * @return key or <code>null</code> if there is no metadata record
+     * @throws IOException
+     */
+    private String readMetadata(DataInputStream in, FileItem item) throws IOException {
+        in.mark(4);
+        if (in.readInt() != METADATA_MAGIC) {
+            in.reset();
+            return null;
+        }
+        String key = in.readUTF();
+        item.setNextDelivery(in.readLong());
+        item.setMessageSize(in.readLong());
+        item.setPriority(in.readInt());
+        item.readEnvelope(in);
+        return key;
+    }
+
+    /**
+     * Write the msg and object file for the given {@link Mail}. The object file
+     * is written last, so it is only recovered if the msg file is complete.
+     * 
+     * @see org.apache.james.queue.file.FileMailQueueStore#store(java.lang.String,
+     *      org.apache.mailet.Mail, long, int, boolean)
+     */
+    public StoredItem store(String key, Mail mail, long nextDelivery, int priority, boolean syncNow) throws IOException, MessagingException {
+        FileOutputStream out = null;
+        FileOutputStream foout = null;
+        ObjectOutputStream oout = null;
+        try {
+            int i = (int) (Math.random() * SPLITCOUNT + 1);
+
+            String name = queueDirName + "/" + i + "/" + key;
+
+            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
+            item.setNextDelivery(nextDelivery);
+            item.setPriority(priority);
+            item.setEnvelope(mail);
+
+            out = new FileOutputStream(item.getMessageFile());
+            mail.getMessage().writeTo(out);
+            out.flush();
+            if (syncNow) out.getFD().sync();
+            item.setMessageSize(out.getChannel().position());
+
+            foout = new FileOutputStream(item.getObjectFile());
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(foout));
+            dout.writeInt(METADATA_MAGIC);
+            dout.writeUTF(key);
+            dout.writeLong(nextDelivery);
+            dout.writeLong(item.getMessageSize());
+            dout.writeInt(priority);
+            item.writeEnvelope(dout);
+            if (compactEnvelope) {
+                MailEnvelopeCodec.encode(mail, dout);
+                dout.flush();
+            } else {
+                oout = new ObjectOutputStream(dout);
+                oout.writeObject(mail);
+                oout.flush();
+            }
+            if (syncNow) foout.getFD().sync();
+            return item;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            if (oout != null) {
+                try {
+                    oout.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            if (foout != null) {
+                try {
+                    foout.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore#sync(java.util.Collection)
+     */
+    public void sync(Collection<StoredItem> items) throws IOException {
+        for (StoredItem item : items) {
+            ((FileItem) item).sync();
+        }
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        // nothing to do
+    }
+
+    private final class FileMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private File file;
+        private SharedFileInputStream in;
+
+        public FileMimeMessageSource(File file) throws IOException {
+            this.file = file;
+            this.in = new SharedFileInputStream(file);
+        }
+
+        @Override
+        public String getSourceId() {
+            return file.getAbsolutePath();
+        }
+
+        /**
+         * Get an input stream to retrieve the data stored in the temporary file
+         * 
+         * @return a <code>BufferedInputStream</code> containing the data
+         */
+        public InputStream getInputStream() throws IOException {
+            return in.newStream(0, -1);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return file.length();
+        }
+
+        /**
+         * @see org.apache.james.core.MimeMessageSource#disposeSource()
+         */
+        public void dispose() {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+
+            file = null;
+        }
+
+    }
+
+    /**
+     * Helper class which is used to reference the path to the object and msg
+     * file
+     * 
+     * 
+     */
+    private final class FileItem extends AbstractStoredItem {
+        private String objectfile;
+        private String messagefile;
+        private long messageSize;
+
+        public FileItem(String objectfile, String messagefile) {
+            this.objectfile = objectfile;
+            this.messagefile = messagefile;
+        }
+
+        public String getObjectFile() {
+            return objectfile;
+        }
+
+        public String getMessageFile() {
+            return messagefile;
+        }
+
+        public long getMessageSize() {
+            return messageSize;
+        }
+
+        public void setMessageSize(long messageSize) {
+            this.messageSize = messageSize;
+        }
+
+        /**
+         * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#loadMail(boolean)
+         */
+        public Mail loadMail(boolean withMessage) throws MailQueueException {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(getObjectFile()))));
+                // skip the metadata
+                readMetadata(in, this);
+                Mail mail = MailEnvelopeCodec.read(in);
+                if (withMessage) {
+                    File messageFile = new File(getMessageFile());
+                    MimeMessageSource source;
+                    if (memoryMapped) {
+                        source = new MappedFileMimeMessageSource(messageFile);
+                    } else {
+                        source = new FileMimeMessageSource(messageFile);
+                    }
+                    mail.setMessage(new MimeMessageCopyOnWriteProxy(source));
+                }
+                return mail;
+
+                // TODO: Think about exception handling in detail
+            } catch (FileNotFoundException e) {
+                throw new MailQueueException("Unable to load mail", e);
+            } catch (IOException e) {
+                throw new MailQueueException("Unable to load mail", e);
+            } catch (ClassNotFoundException e) {
+                throw new MailQueueException("Unable to load mail", e);
+            } catch (MessagingException e) {
+                throw new MailQueueException("Unable to load mail", e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore on close
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sync the object and msg file to disk
+         * 
+         * @throws IOException
+         */
+        public void sync() throws IOException {
+            sync(getObjectFile());
+            sync(getMessageFile());
+        }
+
+        private void sync(String file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+
+        public void delete() throws MailQueueException {
+            File msgFile = new File(getMessageFile());
+            File objectFile = new File(getObjectFile());
+
+            if (objectFile.exists()) {
+                if (!objectFile.delete()) {
+                    throw new MailQueueException("Unable to delete mail");
+                }
+            }
+            if (msgFile.exists()) {
+                if (!msgFile.delete()) {
+                    log.debug("Remove of msg file for mail failed");
+                }
+
+            }
+        }
+
+    }
+}
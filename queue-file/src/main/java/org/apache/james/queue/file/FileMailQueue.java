@@ -19,33 +19,32 @@
 package org.apache.james.queue.file;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
-import javax.mail.util.SharedFileInputStream;
 
-import org.apache.james.core.MimeMessageCopyOnWriteProxy;
-import org.apache.james.core.MimeMessageSource;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueueMetrics;
+import org.apache.james.queue.api.MailQueueMetricsSupport;
 import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.file.FileMailQueueStore.RecoveryHandler;
+import org.apache.james.queue.file.FileMailQueueStore.StoredItem;
+import org.apache.james.queue.file.TimingWheel.ExpirationHandler;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 
@@ -54,202 +53,226 @@ import org.slf4j.Logger;
  * 
  * On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of load the needed meta-data into memory for fast access.
  * 
+ * How the {@link Mail}'s are stored on disk is up to the used {@link FileMailQueueStore}.
  * 
+ * Mails which are ready for dequeue are kept in {@link PriorityLanes}, so mails with a higher {@link MailPrioritySupport#MAIL_PRIORITY}
+ * get dequeued before the ones with lower priority without starving them.
  * 
  */
-public class FileMailQueue implements ManageableMailQueue {
-
-    private final ConcurrentHashMap<String, FileItem> keyMappings = new ConcurrentHashMap<String, FileMailQueue.FileItem>();
-    private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final static AtomicLong COUNTER = new AtomicLong();
-    private final String queueDirName;
-    private final File queueDir;
+public class FileMailQueue implements ManageableMailQueue, MailPrioritySupport, MailQueueMetricsSupport, Disposable {
+
+    private final ConcurrentHashMap<String, StoredItem> keyMappings = new ConcurrentHashMap<String, StoredItem>();
+    private final PriorityLanes inmemoryQueue = new PriorityLanes();
+    private final AtomicLong[] sizes = new AtomicLong[HIGH_PRIORITY - LOW_PRIORITY + 1];
+    private final KeyIndex nameIndex = new KeyIndex();
+    private final KeyIndex senderIndex = new KeyIndex();
+    private final KeyIndex recipientIndex = new KeyIndex();
+    private final TimingWheel delayedKeys;
+    // seeded with the current time so keys do not clash with the ones of
+    // mails which were recovered after a restart
+    private final static AtomicLong COUNTER = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final FileMailQueueStore store;
     private final Logger log;
+    private final MailQueueMetrics metrics = new MailQueueMetrics(this);
     
     private final boolean sync;
-    private final static String MSG_EXTENSION = ".msg";
-    private final static String OBJECT_EXTENSION = ".obj";
-    private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
-    private final static int SPLITCOUNT = 10;
+    final static String NEXT_DELIVERY = "FileQueueNextDelivery";
+
+    /**
+     * Delay (in ms) before a mail which could not be loaded is tried again
+     */
+    final static long LOAD_RETRY_DELAY = 60000;
 
     public FileMailQueue(File parentDir, String queuename, boolean sync, Logger log) throws IOException {
+        this(new DefaultFileMailQueueStore(new File(parentDir, queuename), log), sync, log);
+    }
+
+    public FileMailQueue(FileMailQueueStore store, boolean sync, Logger log) throws IOException {
         this.log = log;
         this.sync = sync;
-        this.queueDir = new File(parentDir, queuename);
-        this.queueDirName = queueDir.getAbsolutePath();
+        this.store = store;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new AtomicLong();
+        }
+        this.delayedKeys = new TimingWheel("FileMailQueue delay scheduler", new ExpirationHandler() {
+
+            @Override
+            public void expired(String key, int priority) {
+                StoredItem item = keyMappings.get(key);
+                if (item != null) {
+                    // flushed before it was due
+                    item.setReadyTime(Math.min(item.getReadyTime(), System.currentTimeMillis()));
+                }
+                inmemoryQueue.put(key, priority);
+            }
+        });
 
         init();
     }
     
     private void init() throws IOException {
-        
-        for (int i = 1; i <= SPLITCOUNT; i++) {
-            File qDir = new File(queueDir, Integer.toString(i));
-            if (!qDir.exists() && !qDir.mkdirs()) {
-                throw new IOException("Unable to create queue directory " +  qDir);
-            }
-            String[] files = queueDir.list(new FilenameFilter() {
-                
-                @Override
-                public boolean accept(File dir, String name) {
-                    if (name.endsWith(OBJECT_EXTENSION)) {
-                        return true;
-                    }
-                    return false;
-                }
-            });
-            for (int a = 0; a < files.length; a++) {
-                final String name = files[a];
-                ObjectInputStream oin = null;
-                
-
-                try {
-                    final String msgFileName = name.substring(0, name.length() - OBJECT_EXTENSION.length()) + MSG_EXTENSION;
-
-                    FileItem item = new FileItem(queueDirName + "/" + name, queueDirName + "/" + msgFileName);
-
-                    oin = new ObjectInputStream(new FileInputStream(item.getObjectFile()));
-                    Mail mail = (Mail) oin.readObject();
-                    Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
-                    if (next == null) {
-                        next = 0L;
-                    }
+        store.recover(new RecoveryHandler() {
 
+            @Override
+            public void recovered(String key, StoredItem item, long next) {
+                addMapping(key, item);
 
-                    final String key = mail.getName();
-                    keyMappings.put(key, item);
-                    if (next <= System.currentTimeMillis()) {
+                // keep it in the timing wheel if it is not ready yet
+                enQueueKey(key, item, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
 
-                        try {
-                            inmemoryQueue.put(key);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    } else {
-
-                        // Schedule a task which will put the mail in the queue
-                        // for processing after a given delay
-                        scheduler.schedule(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                try {
-                                    inmemoryQueue.put(key);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                    throw new RuntimeException("Unable to init", e);
-                                }
-                            }
-                        }, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-                    }
+    /**
+     * Return the priority of the given {@link Mail}, as set via the
+     * {@link MailPrioritySupport#MAIL_PRIORITY} attribute
+     * 
+     * @param mail
+     * @return priority
+     */
+    static int getPriority(Mail mail) {
+        Object prio = mail.getAttribute(MAIL_PRIORITY);
+        if (prio instanceof Integer) {
+            return Math.max(LOW_PRIORITY, Math.min(HIGH_PRIORITY, (Integer) prio));
+        }
+        return NORMAL_PRIORITY;
+    }
 
-                } catch (ClassNotFoundException e1) {
-                    log.error("Unable to load Mail", e1);
-                } catch (IOException e) {
-                    log.error("Unable to load Mail", e);
-                } finally {
-                    if (oin != null) {
-                        try {
-                            oin.close();
-                        } catch (Exception e) {
-                            // ignore on close
-                        }
-                    }
-                }
+    private void addMapping(String key, StoredItem item) {
+        if (keyMappings.put(key, item) == null) {
+            sizes[item.getPriority() - LOW_PRIORITY].incrementAndGet();
+            nameIndex.add(item.getName(), key);
+            senderIndex.add(item.getSender(), key);
+            recipientIndex.addAll(item.getRecipients(), key);
+        }
+    }
 
-            }
+    private StoredItem removeMapping(String key) {
+        StoredItem item = keyMappings.remove(key);
+        if (item != null) {
+            sizes[item.getPriority() - LOW_PRIORITY].decrementAndGet();
+            nameIndex.remove(item.getName(), key);
+            senderIndex.remove(item.getSender(), key);
+            recipientIndex.removeAll(item.getRecipients(), key);
         }
+        return item;
     }
-    
-    
-    
-    
+
     @Override
     public void enQueue(final Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        long start = System.nanoTime();
         final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
-        FileOutputStream out = null;
-        FileOutputStream foout = null;
-        ObjectOutputStream oout = null;
         try {
-            int i = (int) (Math.random() * SPLITCOUNT + 1);
-
-            
-            String name = queueDirName + "/" + i + "/" + key;
-            
-            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
-
-            foout = new FileOutputStream(item.getObjectFile());
-            oout = new ObjectOutputStream(foout);
-            oout.writeObject(mail);
-            oout.flush();
-            if (sync) foout.getFD().sync();
-            out = new FileOutputStream(item.getMessageFile());
-           
-            mail.getMessage().writeTo(out);
-            out.flush();
-            if (sync) out.getFD().sync();
-            
-            keyMappings.put(key, item);
-        
-
+            long next = 0;
             if (delay > 0) {
-                mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
-                // The message should get delayed so schedule it for later 
-                scheduler.schedule(new Runnable() {
-                    
-                    @Override
-                    public void run() {
-                        try {                           
-                            inmemoryQueue.put(key);
-
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }                                
-                    }
-                }, delay, unit);
-            
-            } else {
-                inmemoryQueue.put(key);
+                next = System.currentTimeMillis() + unit.toMillis(delay);
+                mail.setAttribute(NEXT_DELIVERY, next);
             }
-            
+            int priority = getPriority(mail);
+            StoredItem item = store.store(key, mail, next, priority, sync);
+
+            addMapping(key, item);
+
+            enQueueKey(key, item, delay, unit);
+
             //TODO: Think about exception handling in detail
         } catch (FileNotFoundException e) {
+            metrics.enqueueFailed();
             throw new MailQueueException("Unable to enqueue mail", e);
         } catch (IOException e) {
+            metrics.enqueueFailed();
             throw new MailQueueException("Unable to enqueue mail", e);
 
         } catch (MessagingException e) {
+            metrics.enqueueFailed();
             throw new MailQueueException("Unable to enqueue mail", e);
-        } catch (InterruptedException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
+        }
+        metrics.enqueued(1, start);
 
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
+    }
+
+    /**
+     * Enqueue all the given {@link Mail}'s. All mails are stored first and
+     * only synced to disk (if sync is enabled) after all of them were stored.
+     * How many <code>fsync</code> calls this needs depends on the
+     * {@link FileMailQueueStore}: the {@link SegmentFileMailQueueStore} syncs
+     * the whole batch with one <code>fsync</code>, while the
+     * {@link DefaultFileMailQueueStore} still needs two per mail (the object
+     * and the message file), so for it a batch of N mails costs 2N
+     * <code>fsync</code> calls. The mails are only made available for dequeue
+     * after all of them were stored and synced. If storing or syncing fails,
+     * or the thread gets interrupted, all already stored mails of the batch
+     * are deleted again, so either all or none of the mails are enqueued.
+     * 
+     * @see org.apache.james.queue.api.MailQueue#enQueue(java.util.Collection)
+     */
+    @Override
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        long start = System.nanoTime();
+        Map<String, StoredItem> written = new LinkedHashMap<String, StoredItem>();
+        try {
+            for (Mail mail : mails) {
+                String key = mail.getName() + "-" + COUNTER.incrementAndGet();
+                written.put(key, store.store(key, mail, 0, getPriority(mail), false));
             }
-            if (oout != null) {
-                try {
-                    oout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
+            if (sync) {
+                store.sync(written.values());
             }
-            if (foout != null) {
-                try {
-                    foout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
+            for (Entry<String, StoredItem> entry : written.entrySet()) {
+                addMapping(entry.getKey(), entry.getValue());
+                enQueueKey(entry.getKey(), entry.getValue(), 0, TimeUnit.MILLISECONDS);
             }
+        } catch (InterruptedIOException e) {
+            rollback(written.values());
+            metrics.enqueueFailed();
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Interrupted while enqueue mails", e);
+        } catch (IOException e) {
+            rollback(written.values());
+            metrics.enqueueFailed();
+            throw new MailQueueException("Unable to enqueue mails", e);
+        } catch (MessagingException e) {
+            rollback(written.values());
+            metrics.enqueueFailed();
+            throw new MailQueueException("Unable to enqueue mails", e);
         }
+        metrics.enqueued(written.size(), start);
+    }
 
+    /**
+     * Delete the given items which were stored as part of a failed batch
+     * 
+     * @param items
+     */
+    private void rollback(Collection<StoredItem> items) {
+        for (StoredItem item : items) {
+            try {
+                item.delete();
+            } catch (MailQueueException e) {
+                log.info("Unable to delete mail", e);
+            }
+        }
+    }
+
+    /**
+     * Make the key available for dequeue, either now or after the given delay
+     * 
+     * @param key
+     * @param item
+     * @param delay
+     * @param unit
+     */
+    private void enQueueKey(String key, StoredItem item, long delay, TimeUnit unit) {
+        if (delay > 0) {
+            // The message should get delayed so keep it in the timing wheel
+            // until it is ready
+            long next = System.currentTimeMillis() + unit.toMillis(delay);
+            item.setReadyTime(next);
+            delayedKeys.add(key, item.getPriority(), next);
+        } else {
+            item.setReadyTime(System.currentTimeMillis());
+            inmemoryQueue.put(key, item.getPriority());
+        }
     }
 
     
@@ -262,7 +285,7 @@ public class FileMailQueue implements ManageableMailQueue {
     @Override
     public MailQueueItem deQueue() throws MailQueueException {
         try {
-            FileItem item = null;
+            StoredItem item = null;
             String k = null;
             while (item == null) {
                 k = inmemoryQueue.take();
@@ -270,181 +293,169 @@ public class FileMailQueue implements ManageableMailQueue {
                 item = keyMappings.get(k);
 
             }
-            final String key = k;
-            final FileItem fitem = item;
-            ObjectInputStream oin = null;
             try {
-                final File objectFile = new File(fitem.getObjectFile());
-                final File msgFile = new File(fitem.getMessageFile());
-                oin = new ObjectInputStream(new FileInputStream(objectFile));
-                final Mail mail = (Mail) oin.readObject();
-                mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
-                return new MailQueueItem() {
-
-                    @Override
-                    public Mail getMail() {
-                        return mail;
-                    }
-
-                    @Override
-                    public void done(boolean success) throws MailQueueException {
-                        if (!success) {
-                            try {
-                                inmemoryQueue.put(key);
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                throw new MailQueueException("Unable to rollback", e);
-                            }
-                        } else {
-                            fitem.delete();
-                        }
+                return createMailQueueItem(k, item);
+            } catch (MailQueueException e) {
+                retryLater(k, item);
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
 
-                        LifecycleUtil.dispose(mail);
-                    }
-                };
-                
-                // TODO: Think about exception handling in detail
-            } catch (FileNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (IOException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (ClassNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (MessagingException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-                
-            } finally {
-                if (oin != null) {
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        try {
+            long waitUntil = System.nanoTime() + unit.toNanos(timeout);
+            String k = null;
+            while (items.size() < max) {
+                if (items.isEmpty()) {
+                    // block until the first item is ready
+                    k = inmemoryQueue.poll(waitUntil - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } else {
+                    k = inmemoryQueue.poll();
+                }
+                if (k == null) {
+                    break;
+                }
+                StoredItem item = keyMappings.get(k);
+                if (item != null) {
                     try {
-                        oin.close();
-                    } catch (IOException e) {
-                        // ignore on close
+                        items.add(createMailQueueItem(k, item));
+                    } catch (MailQueueException e) {
+                        retryLater(k, item);
+                        throw e;
                     }
                 }
             }
-
+            return items;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            rollbackDequeued(items);
             throw new MailQueueException("Unable to dequeue", e);
+        } catch (MailQueueException e) {
+            if (items.isEmpty()) {
+                throw e;
+            }
+            // return what we have so far
+            log.info("Unable to dequeue more mails", e);
+            return items;
         }
     }
 
-    private final class FileMimeMessageSource extends MimeMessageSource implements Disposable{
-
-        private File file;
-        private SharedFileInputStream in;
-
-        public FileMimeMessageSource(File file) throws IOException {
-            this.file = file;
-            this.in = new SharedFileInputStream(file);
-        }
-        
-        @Override
-        public String getSourceId() {
-            return file.getAbsolutePath();
-        }
-
-        /**
-         * Get an input stream to retrieve the data stored in the temporary file
-         * 
-         * @return a <code>BufferedInputStream</code> containing the data
-         */
-        public InputStream getInputStream() throws IOException {
-            return in.newStream(0, -1);
-        }
-
-
-        @Override
-        public long getMessageSize() throws IOException {
-            return file.length();
-        }
-        
+    /**
+     * Keep the key of a mail which could not be loaded in the queue, but
+     * delay it, so a broken mail is not tried again and again. A
+     * {@link #flush()} makes it ready again at once
+     * 
+     * @param key
+     * @param item
+     */
+    private void retryLater(String key, StoredItem item) {
+        log.error("Unable to load mail " + key + ", retry in " + LOAD_RETRY_DELAY + "ms");
+        enQueueKey(key, item, LOAD_RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
 
-        /**
-         * @see org.apache.james.core.MimeMessageSource#disposeSource()
-         */
-        public void dispose() {
+    /**
+     * Put the given items back to the queue
+     * 
+     * @param items
+     */
+    private void rollbackDequeued(List<MailQueueItem> items) {
+        for (MailQueueItem item : items) {
             try {
-                in.close();
-            } catch (IOException e) {
+                item.done(false);
+            } catch (MailQueueException e) {
+                log.error("Unable to rollback dequeued mail", e);
             }
-            
-            file = null;
         }
-        
     }
-    
+
     /**
-     * Helper class which is used to reference the path to the object and msg file
+     * Load the {@link Mail} of the given {@link StoredItem} and create a
+     * {@link MailQueueItem} for it
      * 
-     *
+     * @param key
+     * @param sitem
+     * @return item
+     * @throws MailQueueException
      */
-    private final class FileItem {
-        private String objectfile;
-        private String messagefile;
+    private MailQueueItem createMailQueueItem(final String key, final StoredItem sitem) throws MailQueueException {
+        final Mail mail = sitem.loadMail(true);
+        metrics.dequeued(sitem.getReadyTime());
+        return new MailQueueItem() {
 
-        public FileItem(String objectfile, String messagefile) {
-            this.objectfile = objectfile;
-            this.messagefile = messagefile;
-        }
-        
-        
-        public String getObjectFile() {
-            return objectfile;
-        }
-        
-        public String getMessageFile() {
-            return messagefile;
-        }
-        
-        public void delete() throws MailQueueException {
-            File msgFile = new File(getMessageFile());
-            File objectFile = new File(getObjectFile());
-            
-            if (objectFile.exists()) {
-                if (!objectFile.delete()) {
-                    throw new MailQueueException("Unable to delete mail");
-                } 
+            @Override
+            public Mail getMail() {
+                return mail;
             }
-            if (msgFile.exists()) {
-                if (!msgFile.delete()) {
-                    log.debug("Remove of msg file for mail failed");
+
+            @Override
+            public void done(boolean success) throws MailQueueException {
+                long start = System.nanoTime();
+                if (!success) {
+                    sitem.setReadyTime(System.currentTimeMillis());
+                    inmemoryQueue.put(key, sitem.getPriority());
+                } else {
+                    removeMapping(key);
+                    sitem.delete();
                 }
-                
+
+                LifecycleUtil.dispose(mail);
+                metrics.done(success, start);
             }
-        }
-        
+        };
     }
+
     @Override
     public long getSize() throws MailQueueException {
         return keyMappings.size();
     }
 
+    /**
+     * Return the size of the queue for the given priority
+     * 
+     * @see org.apache.james.queue.api.ManageableMailQueue#getSize(int)
+     */
     @Override
-    public long flush() throws MailQueueException {
-        Iterator<String> keys = keyMappings.keySet().iterator();
-        long i = 0;
-        while(keys.hasNext()) {
-            String key = keys.next();
-            if (inmemoryQueue.contains(key) == false) {
-                inmemoryQueue.add(key);
-                i++;
-            }
+    public long getSize(int priority) throws MailQueueException {
+        if (priority < LOW_PRIORITY || priority > HIGH_PRIORITY) {
+            return 0;
         }
-        return i;
+        return sizes[priority - LOW_PRIORITY].get();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsSupport#getMetrics()
+     */
+    public MailQueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Make all delayed mails ready for dequeue
+     * 
+     * @see org.apache.james.queue.api.ManageableMailQueue#flush()
+     */
+    @Override
+    public long flush() throws MailQueueException {
+        return delayedKeys.flush();
     }
 
     @Override
     public long clear() throws MailQueueException {
-        final Iterator<Entry<String, FileItem>> items = keyMappings.entrySet().iterator();
+        final Iterator<Entry<String, StoredItem>> items = keyMappings.entrySet().iterator();
         long count = 0;
         while(items.hasNext()) {
-            Entry<String, FileItem> entry = items.next();
-            FileItem item = entry.getValue();
+            Entry<String, StoredItem> entry = items.next();
+            StoredItem item = entry.getValue();
             String key = entry.getKey();
            
             item.delete();
-            keyMappings.remove(key);
+            removeMapping(key);
             count++;
 
         }
@@ -452,32 +463,42 @@ public class FileMailQueue implements ManageableMailQueue {
     }
 
     /**
-     * TODO: implement me
+     * Remove all mails which match. The matching keys are looked up via
+     * in-memory indexes, so only the matching mails are touched
      * 
      * @see ManageableMailQueue#remove(org.apache.james.queue.api.ManageableMailQueue.Type, String)
      */
     @Override
     public long remove(Type type, String value) throws MailQueueException {
+        List<String> keys;
         switch (type) {
         case Name:
-            FileItem item = keyMappings.remove(value);
+            keys = nameIndex.get(value);
+            break;
+        case Sender:
+            keys = senderIndex.get(value);
+            break;
+        case Recipient:
+            keys = recipientIndex.get(value);
+            break;
+        default:
+            throw new MailQueueException("Not supported yet");
+        }
+
+        long count = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            StoredItem item = removeMapping(keys.get(i));
             if (item != null) {
                 item.delete();
-                return 1;
-            } else {
-                return 0;
+                count++;
             }
-            
-        default:
-            break;
         }
-        throw new MailQueueException("Not supported yet");
-
+        return count;
     }
 
     @Override
     public MailQueueIterator browse() throws MailQueueException {
-        final Iterator<FileItem> items = keyMappings.values().iterator();
+        final Iterator<StoredItem> items = keyMappings.values().iterator();
         return new MailQueueIterator() {
             private MailQueueItemView item = null;
 
@@ -502,15 +523,15 @@ public class FileMailQueue implements ManageableMailQueue {
             public boolean hasNext() {
                 if (item == null) {
                     while (items.hasNext()) {
-                        ObjectInputStream in = null;
                         try {
-                            in = new ObjectInputStream(new FileInputStream(items.next().getObjectFile()));
-                            final Mail mail = (Mail) in.readObject();
+                            final StoredItem sitem = items.next();
+                            final Mail mail = sitem.loadMail(false);
                             item = new MailQueueItemView() {
 
                                 @Override
                                 public long getNextDelivery() {
-                                    return (Long) mail.getAttribute(NEXT_DELIVERY);
+                                    long next = sitem.getNextDelivery();
+                                    return next > 0 ? next : -1;
                                 }
 
                                 @Override
@@ -519,21 +540,8 @@ public class FileMailQueue implements ManageableMailQueue {
                                 }
                             };
                             return true;
-                        } catch (FileNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } catch (IOException e) {
+                        } catch (MailQueueException e) {
                             log.info("Unable to load mail", e);
-
-                        } catch (ClassNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } finally {
-                            if (in != null) {
-                                try {
-                                    in.close();
-                                } catch (IOException e) {
-                                    // ignore on close
-                                }
-                            }
                         }
                     }
                     return false;
@@ -548,5 +556,12 @@ public class FileMailQueue implements ManageableMailQueue {
             }
         };
     }
-    
+
+    /**
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        delayedKeys.dispose();
+        store.dispose();
+    }
 }
@@ -18,16 +18,23 @@
  ****************************************************************/
 package org.apache.james.queue.file;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.management.JMException;
 
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueueMBeanRegistry;
+import org.apache.james.queue.api.MailQueueMetrics;
 import org.slf4j.Logger;
 
 /**
@@ -37,10 +44,17 @@ import org.slf4j.Logger;
  */
 public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
 
-    private Map<String, MailQueue> queues = new HashMap<String, MailQueue>();
+    private Map<String, MailQueue> queues = new ConcurrentHashMap<String, MailQueue>();
     private FileSystem fs;
     private Logger log;
     private boolean sync = true;
+    private boolean useSegments = false;
+    private long segmentSize = SegmentFileMailQueueStore.DEFAULT_SEGMENT_SIZE;
+    private double segmentCompactionRatio = SegmentFileMailQueueStore.DEFAULT_COMPACTION_RATIO;
+    private boolean useJMX = true;
+    private boolean compactEnvelope = false;
+    private boolean memoryMapped = false;
+    private MailQueueMBeanRegistry mbeans = new MailQueueMBeanRegistry();
     
     @Resource(name = "filesystem")
     public void setFileSystem(FileSystem fs) {
@@ -60,17 +74,130 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
     }
     
     /**
+     * If <code>true</code> the later created {@link FileMailQueue} will append all {@link org.apache.mailet.Mail}'s to rolling segment files
+     * via the {@link SegmentFileMailQueueStore} instead of using two files per mail. This saves the file creates and deletes per mail and allows to
+     * share one <code>fsync</code> between all concurrent enqueue operations.
+     * 
+     * The default is <code>false</code>
+     * 
+     * @param useSegments
+     */
+    public void setUseSegments(boolean useSegments) {
+        this.useSegments = useSegments;
+    }
+
+    /**
+     * Set the max size (in bytes) of a segment file. Only used if {@link #setUseSegments(boolean)} is <code>true</code>
+     * 
+     * The default is 64MB
+     * 
+     * @param segmentSize
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Set the ratio of its size below which the live mails of a full segment file are copied to a new segment, so the file can get deleted.
+     * <code>0</code> disables the compaction, so a segment file is kept till all of its mails are done. Only used if
+     * {@link #setUseSegments(boolean)} is <code>true</code>
+     * 
+     * The default is 0.25
+     * 
+     * @param segmentCompactionRatio
+     */
+    public void setSegmentCompactionRatio(double segmentCompactionRatio) {
+        this.segmentCompactionRatio = segmentCompactionRatio;
+    }
+
+    /**
+     * If <code>true</code> the later created {@link FileMailQueue} will write the envelopes of the {@link org.apache.mailet.Mail}'s via the
+     * {@link org.apache.james.core.MailEnvelopeCodec} instead of Java serialization. Envelopes of both formats can always be read.
+     * 
+     * The default is <code>false</code>
+     * 
+     * @param compactEnvelope
+     */
+    public void setCompactEnvelope(boolean compactEnvelope) {
+        this.compactEnvelope = compactEnvelope;
+    }
+
+    /**
+     * If <code>true</code> the later created {@link FileMailQueue} will read the message content via a memory mapping of the files
+     * ({@link org.apache.james.core.MappedFileMimeMessageSource}), so concurrent readers of the same message don't need to synchronize.
+     * 
+     * The default is <code>false</code>
+     * 
+     * @param memoryMapped
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * If <code>true</code> the {@link MailQueueMetrics} of the later created {@link FileMailQueue} are registered via JMX
+     * 
+     * The default is <code>true</code>
+     * 
+     * @param useJMX
+     */
+    public void setUseJMX(boolean useJMX) {
+        this.useJMX = useJMX;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        synchronized (queues) {
+            mbeans.unregisterAll();
+            Iterator<MailQueue> it = queues.values().iterator();
+            while (it.hasNext()) {
+                LifecycleUtil.dispose(it.next());
+            }
+        }
+    }
+
+    /**
+     * Return the queue with the given name. It is only created once, as two
+     * {@link FileMailQueue}'s for the same directory would corrupt each other
+     * 
      * @see org.apache.james.queue.api.MailQueueFactory#getQueue(java.lang.String)
      */
     public MailQueue getQueue(String name) {
         MailQueue queue = queues.get(name);
         if (queue == null) {
             synchronized (queues) {
+                // check again as another thread may have created it meanwhile
+                queue = queues.get(name);
+                if (queue != null) {
+                    return queue;
+                }
+                FileMailQueue fileQueue = null;
                 try {
-                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, log);
+                    File queueDir = new File(fs.getFile("file://var/store/queue"), name);
+                    FileMailQueueStore store;
+                    if (useSegments) {
+                        SegmentFileMailQueueStore segmentStore = new SegmentFileMailQueueStore(queueDir, segmentSize, log);
+                        segmentStore.setCompactEnvelope(compactEnvelope);
+                        segmentStore.setMemoryMapped(memoryMapped);
+                        segmentStore.setCompactionRatio(segmentCompactionRatio);
+                        store = segmentStore;
+                    } else {
+                        DefaultFileMailQueueStore defaultStore = new DefaultFileMailQueueStore(queueDir, log);
+                        defaultStore.setCompactEnvelope(compactEnvelope);
+                        defaultStore.setMemoryMapped(memoryMapped);
+                        store = defaultStore;
+                    }
+                    fileQueue = new FileMailQueue(store, sync, log);
+                    if (useJMX) {
+                        mbeans.registerMetrics(name, fileQueue);
+                    }
+                    queue = fileQueue;
                     queues.put(name, queue);
                 } catch (IOException e) {
                     throw new RuntimeException("Unable to access queue " + name, e);
+                } catch (JMException e) {
+                    fileQueue.dispose();
+                    throw new RuntimeException("Unable to register mbean", e);
                 }
             }
         }
@@ -0,0 +1,170 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.mailet.Mail;
+
+/**
+ * Storage which is used by the {@link FileMailQueue} to persist the queued
+ * {@link Mail}'s. The {@link FileMailQueue} itself only keeps the keys and the
+ * returned {@link StoredItem}'s in memory.
+ */
+public interface FileMailQueueStore extends Disposable {
+
+    /**
+     * Store the given {@link Mail}
+     * 
+     * @param key
+     *            the unique key of the mail within the queue
+     * @param mail
+     * @param nextDelivery
+     *            the time (in ms) when the mail should get delivered or 0 if
+     *            it is ready now
+     * @param priority
+     *            the priority of the mail, which needs to be available again
+     *            after recovery
+     * @param syncNow
+     *            if <code>true</code> the mail is synced to disk before this
+     *            method returns
+     * @return item
+     * @throws IOException
+     * @throws MessagingException
+     */
+    StoredItem store(String key, Mail mail, long nextDelivery, int priority, boolean syncNow) throws IOException, MessagingException;
+
+    /**
+     * Sync all the given items, which were stored without syncing, to disk
+     * 
+     * @param items
+     * @throws IOException
+     */
+    void sync(Collection<StoredItem> items) throws IOException;
+
+    /**
+     * Load all stored items and pass them to the given {@link RecoveryHandler}.
+     * This is called once on startup of the {@link FileMailQueue}.
+     * Implementations may call the {@link RecoveryHandler} from more then one
+     * thread at the same time
+     * 
+     * @param handler
+     * @throws IOException
+     */
+    void recover(RecoveryHandler handler) throws IOException;
+
+    /**
+     * A {@link Mail} which was stored by the {@link FileMailQueueStore}
+     */
+    public interface StoredItem {
+
+        /**
+         * Load the stored {@link Mail}
+         * 
+         * @param withMessage
+         *            if <code>true</code> the message will be loaded (lazy)
+         *            too, otherwise only the envelope is loaded
+         * @return mail
+         * @throws MailQueueException
+         */
+        Mail loadMail(boolean withMessage) throws MailQueueException;
+
+        /**
+         * Return the priority the {@link Mail} was stored with
+         * 
+         * @return priority
+         */
+        int getPriority();
+
+        /**
+         * Return the time (in ms) when the {@link Mail} should get delivered
+         * or 0 if it was ready when stored
+         * 
+         * @return nextDelivery
+         */
+        long getNextDelivery();
+
+        /**
+         * Return the time (in ms) when the {@link Mail} was ready for dequeue
+         * the last time. This is not persisted, so it is the recovery time for
+         * recovered ready mails
+         * 
+         * @return readyTime
+         */
+        long getReadyTime();
+
+        /**
+         * Set the time (in ms) when the {@link Mail} was ready for dequeue
+         * 
+         * @param readyTime
+         */
+        void setReadyTime(long readyTime);
+
+        /**
+         * Return the name of the stored {@link Mail}
+         * 
+         * @return name
+         */
+        String getName();
+
+        /**
+         * Return the sender of the stored {@link Mail} or <code>null</code>
+         * if it has none
+         * 
+         * @return sender
+         */
+        String getSender();
+
+        /**
+         * Return the recipients of the stored {@link Mail}
+         * 
+         * @return recipients
+         */
+        Collection<String> getRecipients();
+
+        /**
+         * Delete the stored {@link Mail}
+         * 
+         * @throws MailQueueException
+         */
+        void delete() throws MailQueueException;
+    }
+
+    /**
+     * Callback for {@link FileMailQueueStore#recover(RecoveryHandler)}
+     */
+    public interface RecoveryHandler {
+
+        /**
+         * Called for every {@link StoredItem} which was recovered
+         * 
+         * @param key
+         * @param item
+         * @param nextDelivery
+         *            the time (in ms) when the mail should get delivered or 0
+         *            if it is ready now
+         */
+        void recovered(String key, StoredItem item, long nextDelivery);
+    }
+}
@@ -0,0 +1,113 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory secondary index which maps a value (like the sender of a mail) to
+ * the keys of all queued mails with this value
+ */
+public class KeyIndex {
+
+    private final Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+
+    /**
+     * Add the key for the given value
+     * 
+     * @param value
+     *            the value or <code>null</code>, which is not indexed
+     * @param key
+     */
+    public synchronized void add(String value, String key) {
+        if (value == null) {
+            return;
+        }
+        Set<String> keys = index.get(value);
+        if (keys == null) {
+            keys = new HashSet<String>(2);
+            index.put(value, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Add the key for all the given values
+     * 
+     * @param values
+     * @param key
+     */
+    public synchronized void addAll(Collection<String> values, String key) {
+        for (String value : values) {
+            add(value, key);
+        }
+    }
+
+    /**
+     * Remove the key for the given value
+     * 
+     * @param value
+     * @param key
+     */
+    public synchronized void remove(String value, String key) {
+        if (value == null) {
+            return;
+        }
+        Set<String> keys = index.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Remove the key for all the given values
+     * 
+     * @param values
+     * @param key
+     */
+    public synchronized void removeAll(Collection<String> values, String key) {
+        for (String value : values) {
+            remove(value, key);
+        }
+    }
+
+    /**
+     * Return a copy of all keys for the given value
+     * 
+     * @param value
+     * @return keys
+     */
+    public synchronized List<String> get(String value) {
+        Set<String> keys = index.get(value);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(keys);
+    }
+}
@@ -0,0 +1,212 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+
+/**
+ * <p>
+ * In-memory queue of keys which are ready for dequeue, split into one lane
+ * per priority (from {@link MailPrioritySupport#LOW_PRIORITY} to
+ * {@link MailPrioritySupport#HIGH_PRIORITY}).
+ * </p>
+ * <p>
+ * Keys are taken via weighted round-robin: a lane with priority <i>p</i> gets
+ * <i>p + 1</i> turns per round. So high priority keys are served first most of
+ * the time without starving the lower priority lanes. Within a lane the keys
+ * are served in FIFO order.
+ * </p>
+ */
+public class PriorityLanes {
+
+    private final static int LANES = MailPrioritySupport.HIGH_PRIORITY - MailPrioritySupport.LOW_PRIORITY + 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    @SuppressWarnings("unchecked")
+    private final LinkedList<String>[] lanes = new LinkedList[LANES];
+
+    /** The lane to use for every turn of a round */
+    private final int[] schedule;
+    private int turn;
+    private int size;
+
+    public PriorityLanes() {
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new LinkedList<String>();
+        }
+
+        // interleave the turns, so a lane does not get all its turns in a row
+        List<Integer> turns = new LinkedList<Integer>();
+        for (int round = 0; round < LANES; round++) {
+            for (int lane = LANES - 1; lane >= 0; lane--) {
+                if (lane >= round) {
+                    turns.add(lane);
+                }
+            }
+        }
+        schedule = new int[turns.size()];
+        for (int i = 0; i < schedule.length; i++) {
+            schedule[i] = turns.get(i);
+        }
+    }
+
+    /**
+     * Return the lane which is used for the given priority. Priorities out of
+     * range are mapped to the nearest lane
+     * 
+     * @param priority
+     * @return lane
+     */
+    private int lane(int priority) {
+        return Math.max(0, Math.min(LANES - 1, priority - MailPrioritySupport.LOW_PRIORITY));
+    }
+
+    /**
+     * Add the key to the lane of the given priority
+     * 
+     * @param key
+     * @param priority
+     */
+    public void put(String key, int priority) {
+        lock.lock();
+        try {
+            lanes[lane(priority)].add(key);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key, waiting if necessary until one is available
+     * 
+     * @return key
+     * @throws InterruptedException
+     */
+    public String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key, waiting up to the given time until one is available
+     * 
+     * @param timeout
+     * @param unit
+     * @return key or <code>null</code> if the timeout was reached
+     * @throws InterruptedException
+     */
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key if one is available
+     * 
+     * @return key or <code>null</code> if there is none
+     */
+    public String poll() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the key of the next turn which has a non-empty lane. Must be
+     * called while holding the lock and only if size is greater then 0
+     * 
+     * @return key
+     */
+    private String next() {
+        while (true) {
+            LinkedList<String> lane = lanes[schedule[turn]];
+            turn = (turn + 1) % schedule.length;
+            if (!lane.isEmpty()) {
+                size--;
+                if (size > 0) {
+                    notEmpty.signal();
+                }
+                return lane.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Return the count of keys in all lanes
+     * 
+     * @return size
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the count of keys in the lane of the given priority
+     * 
+     * @param priority
+     * @return size
+     */
+    public int size(int priority) {
+        lock.lock();
+        try {
+            return lanes[lane(priority)].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,1062 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.james.core.MailEnvelopeCodec;
+import org.apache.james.core.MappedFileMimeMessageSource;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+/**
+ * <p>
+ * Log-structured {@link FileMailQueueStore}. The envelope and the message of
+ * every {@link Mail} are appended as one record to a rolling segment file, so
+ * a store operation does not need to create any file.
+ * </p>
+ * <p>
+ * A writer owns the segment it appends to until its record is complete, so
+ * streaming a large message does not block other writers. Concurrent writers
+ * get a segment of their own, which is started on demand, so there is at most
+ * one open segment per concurrent writer. Once a segment reached the
+ * configured max size it is sealed and no more records get appended to it.
+ * </p>
+ * <p>
+ * Syncing to disk is done via group commit: all threads which are waiting for
+ * a sync at the same time are served by a single <code>fsync</code> of the
+ * open segments. A segment is synced before it gets sealed.
+ * </p>
+ * <p>
+ * Mails which were stored by a {@link DefaultFileMailQueueStore} in the same
+ * queue directory, for example before the queue was switched to segments,
+ * are imported into the segments on recovery.
+ * </p>
+ * <p>
+ * Deleting an item only marks its record as deleted. A segment is removed
+ * from disk once all of its items were deleted and no more records get
+ * appended to it.
+ * </p>
+ * <p>
+ * Once the live records of a sealed segment take less then the compaction
+ * ratio of its size, they are copied to a writable segment, so a few mails
+ * which are delayed for a long time do not keep mostly deleted segments on
+ * disk. This is done by the thread which deleted an item or sealed the
+ * segment. The copies are synced before the original records are marked as
+ * deleted. If the store crashes in between, both records are found on
+ * recovery and only the first one is used.
+ * </p>
+ * <p>
+ * The layout of a record is:
+ * 
+ * <pre>
+ * int    magic
+ * byte   status (live or deleted)
+ * short  key length
+ * byte[] key (UTF-8)
+ * long   next delivery
+ * int    priority
+ * int    metadata length
+ * byte[] metadata (name, sender and recipients)
+ * int    envelope length
+ * long   message length
+ * byte[] envelope (encoded or serialized Mail)
+ * byte[] message
+ * </pre>
+ * 
+ * The message is streamed into the segment, so its length is only written
+ * after it. Till then the length is -1, so a record whose message was not
+ * completely written is cut off on recovery.
+ * </p>
+ */
+public class SegmentFileMailQueueStore implements FileMailQueueStore {
+
+    /** Default max size of a segment (64MB) */
+    public final static long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Default compaction ratio */
+    public final static double DEFAULT_COMPACTION_RATIO = 0.25;
+
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SEGMENT_EXTENSION = ".log";
+    private final static int RECORD_MAGIC = 0x4A514D33;
+    private final static byte STATUS_LIVE = 1;
+    private final static byte STATUS_DELETED = 0;
+
+    /**
+     * Length of the fixed part of the record header, without the key and the
+     * metadata
+     */
+    private final static int HEADER_LENGTH = 4 + 1 + 2 + 8 + 4 + 4 + 4 + 8;
+
+    /** Offset of the status byte within a record */
+    private final static int STATUS_OFFSET = 4;
+
+    private final File queueDir;
+    private final File segmentDir;
+    private final long maxSegmentSize;
+    private final Logger log;
+    private boolean compactEnvelope;
+    private boolean memoryMapped;
+    private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    /** All segments which are not removed yet. Guarded by itself */
+    private final Map<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /** Segments which accept appends. Guarded by this */
+    private final List<Segment> writable = new ArrayList<Segment>();
+    /** Writable segments which are not owned by a writer. Guarded by this */
+    private final LinkedList<Segment> idle = new LinkedList<Segment>();
+    private long nextSegmentId = 1;
+    private long appendSeq;
+
+    private final Object syncLock = new Object();
+    private long syncedSeq;
+    private boolean syncInProgress;
+
+    public SegmentFileMailQueueStore(File queueDir, long maxSegmentSize, Logger log) throws IOException {
+        this.queueDir = queueDir;
+        this.segmentDir = new File(queueDir, "segments");
+        this.maxSegmentSize = maxSegmentSize;
+        this.log = log;
+
+        if (!segmentDir.exists() && !segmentDir.mkdirs()) {
+            throw new IOException("Unable to create segment directory " + segmentDir);
+        }
+    }
+
+    /**
+     * If <code>true</code> the envelopes are written via the
+     * {@link MailEnvelopeCodec} instead of Java serialization. Envelopes of
+     * both formats can always be read.
+     * 
+     * @param compactEnvelope
+     */
+    public void setCompactEnvelope(boolean compactEnvelope) {
+        this.compactEnvelope = compactEnvelope;
+    }
+
+    /**
+     * If <code>true</code> the messages are read out of the segment files via a
+     * {@link MappedFileMimeMessageSource} instead of a
+     * {@link SharedFileInputStream}
+     * 
+     * @param memoryMapped
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Set the ratio of its size below which the live records of a sealed
+     * segment are copied to a writable segment, so the segment can get
+     * removed. <code>0</code> disables the compaction, so a segment is only
+     * removed once all of its items were deleted.
+     * 
+     * The default is {@link #DEFAULT_COMPACTION_RATIO}
+     * 
+     * @param compactionRatio
+     */
+    public void setCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * Read all segments and pass the live items to the handler. All existing
+     * segments are sealed afterwards, new records are appended to a new
+     * segment. Mails of a {@link DefaultFileMailQueueStore} in the same queue
+     * directory are imported afterwards. Recovered segments are compacted if
+     * needed.
+     * 
+     * @see org.apache.james.queue.file.FileMailQueueStore#recover(org.apache.james.queue.file.FileMailQueueStore.RecoveryHandler)
+     */
+    public void recover(RecoveryHandler handler) throws IOException {
+        String[] files = segmentDir.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        Arrays.sort(files);
+
+        Set<String> keys = new HashSet<String>();
+        List<Segment> recovered = new ArrayList<Segment>();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i];
+            long id;
+            try {
+                id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                log.info("Ignore unknown file " + name + " in " + segmentDir);
+                continue;
+            }
+            Segment segment = new Segment(id, new File(segmentDir, name));
+            synchronized (segments) {
+                segments.put(id, segment);
+            }
+            synchronized (this) {
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            }
+            recoverSegment(segment, handler, keys);
+
+            // no records get appended to recovered segments
+            segment.seal();
+            recovered.add(segment);
+        }
+
+        importFileItems(handler, keys);
+
+        for (int i = 0; i < recovered.size(); i++) {
+            compactIfNeeded(recovered.get(i));
+        }
+    }
+
+    /**
+     * Import the mails which were stored by a {@link DefaultFileMailQueueStore}
+     * in the queue directory. They are appended to the segments and deleted
+     * once the segments are synced. A mail whose key was already recovered
+     * from the segments was imported before, but not deleted, so it is only
+     * deleted now. A mail which can not be imported is kept and tried again
+     * on the next recovery.
+     * 
+     * @param handler
+     * @param keys
+     *            the keys which were recovered from the segments
+     * @throws IOException
+     */
+    private void importFileItems(final RecoveryHandler handler, final Set<String> keys) throws IOException {
+        if (!DefaultFileMailQueueStore.containsMails(queueDir)) {
+            return;
+        }
+        log.info("Import the mails of " + queueDir + " into segments");
+
+        DefaultFileMailQueueStore fileStore = new DefaultFileMailQueueStore(queueDir, log);
+        final List<StoredItem> imported = Collections.synchronizedList(new ArrayList<StoredItem>());
+        try {
+            // the handler may get called from more then one thread
+            fileStore.recover(new RecoveryHandler() {
+
+                public void recovered(String key, StoredItem item, long nextDelivery) {
+                    if (keys.contains(key)) {
+                        imported.add(item);
+                        return;
+                    }
+                    Mail mail = null;
+                    try {
+                        mail = item.loadMail(true);
+                        StoredItem copy = store(key, mail, nextDelivery, item.getPriority(), false);
+                        handler.recovered(key, copy, nextDelivery);
+                        imported.add(item);
+                    } catch (MailQueueException e) {
+                        log.error("Unable to import mail " + key + ", keep it", e);
+                    } catch (IOException e) {
+                        log.error("Unable to import mail " + key + ", keep it", e);
+                    } catch (MessagingException e) {
+                        log.error("Unable to import mail " + key + ", keep it", e);
+                    } finally {
+                        LifecycleUtil.dispose(mail);
+                    }
+                }
+            });
+
+            // the copies need to be on disk before the files get deleted
+            long seq;
+            synchronized (this) {
+                seq = appendSeq;
+            }
+            sync(seq);
+            for (int i = 0; i < imported.size(); i++) {
+                try {
+                    imported.get(i).delete();
+                } catch (MailQueueException e) {
+                    log.warn("Unable to delete imported mail", e);
+                }
+            }
+            log.info("Imported " + imported.size() + " mails of " + queueDir + " into segments");
+        } finally {
+            fileStore.dispose();
+        }
+    }
+
+    /**
+     * Read all records of the given {@link Segment}. A record which was not
+     * completely written (for example because of a crash) is cut off, together
+     * with everything after it. A live record whose key was recovered already
+     * is a copy which was made by a compaction that did not complete, so it is
+     * marked as deleted.
+     * 
+     * @param segment
+     * @param handler
+     * @param keys
+     *            the keys of all recovered items, the keys of the live items
+     *            of this segment get added
+     * @throws IOException
+     */
+    private void recoverSegment(Segment segment, RecoveryHandler handler, Set<String> keys) throws IOException {
+        long fileLength = segment.file.length();
+        long offset = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            while (offset < fileLength) {
+                if (fileLength - offset < HEADER_LENGTH) {
+                    break;
+                }
+                if (in.readInt() != RECORD_MAGIC) {
+                    break;
+                }
+                SegmentItem item = new SegmentItem(segment, offset);
+                byte status = in.readByte();
+                byte[] keyBytes = new byte[in.readUnsignedShort()];
+                in.readFully(keyBytes);
+                item.setNextDelivery(in.readLong());
+                item.setPriority(in.readInt());
+                int metadataLength = in.readInt();
+                if (metadataLength < 0 || offset + HEADER_LENGTH + keyBytes.length + metadataLength > fileLength) {
+                    break;
+                }
+                byte[] metadata = new byte[metadataLength];
+                in.readFully(metadata);
+                item.readEnvelope(new DataInputStream(new ByteArrayInputStream(metadata)));
+                long headerLength = HEADER_LENGTH + keyBytes.length + metadataLength;
+                int envelopeLength = in.readInt();
+                long messageLength = in.readLong();
+
+                long envelopeOffset = offset + headerLength;
+                long messageOffset = envelopeOffset + envelopeLength;
+                long end = messageOffset + messageLength;
+                if (envelopeLength < 0 || messageLength < 0 || end > fileLength) {
+                    break;
+                }
+                item.setLocation(envelopeOffset, envelopeLength, messageOffset, messageLength);
+
+                skipFully(in, end - envelopeOffset);
+
+                if (status == STATUS_LIVE) {
+                    String key = new String(keyBytes, "UTF-8");
+                    if (keys.add(key)) {
+                        segment.added(item);
+                        handler.recovered(key, item, item.getNextDelivery());
+                    } else {
+                        segment.markDeleted(offset);
+                    }
+                }
+                offset = end;
+            }
+        } catch (EOFException e) {
+            // handled below
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+
+        if (offset < fileLength) {
+            log.warn("Found incomplete record in " + segment.file + " at offset " + offset + ", truncate it");
+            segment.channel.truncate(offset);
+        }
+        segment.size = offset;
+        segment.channel.position(offset);
+    }
+
+    private Mail deserialize(byte[] envelope) throws IOException {
+        try {
+            return MailEnvelopeCodec.read(new ByteArrayInputStream(envelope));
+        } catch (ClassNotFoundException e) {
+            IOException ioe = new IOException("Unable to load envelope");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore#store(java.lang.String,
+     *      org.apache.mailet.Mail, long, int, boolean)
+     */
+    public StoredItem store(String key, Mail mail, long nextDelivery, int priority, boolean syncNow) throws IOException, MessagingException {
+        // serialize the envelope before the segment is locked
+        byte[] envelope;
+        if (compactEnvelope) {
+            envelope = MailEnvelopeCodec.encode(mail);
+        } else {
+            ByteArrayOutputStream envelopeOut = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(envelopeOut);
+            oout.writeObject(mail);
+            oout.close();
+            envelope = envelopeOut.toByteArray();
+        }
+
+        SegmentItem item = new SegmentItem();
+        item.setNextDelivery(nextDelivery);
+        item.setPriority(priority);
+        item.setEnvelope(mail);
+        ByteArrayOutputStream metadataOut = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(metadataOut);
+        item.writeEnvelope(dout);
+        dout.close();
+        byte[] metadata = metadataOut.toByteArray();
+
+        byte[] keyBytes = key.getBytes("UTF-8");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + keyBytes.length + metadata.length + envelope.length);
+        header.putInt(RECORD_MAGIC);
+        header.put(STATUS_LIVE);
+        header.putShort((short) keyBytes.length);
+        header.put(keyBytes);
+        header.putLong(nextDelivery);
+        header.putInt(priority);
+        header.putInt(metadata.length);
+        header.put(metadata);
+        header.putInt(envelope.length);
+        // the message length is not known yet. It is written after the
+        // message, till then the record is treated as incomplete on recovery
+        int messageLengthOffset = header.position();
+        header.putLong(-1);
+        header.put(envelope);
+        header.flip();
+
+        // the segment is owned by this thread till it is released, so the
+        // message is streamed into it without blocking other writers
+        Segment segment = acquireSegment();
+        long offset = segment.size;
+        boolean success = false;
+        try {
+            while (header.hasRemaining()) {
+                segment.channel.write(header);
+            }
+
+            // stream the message to the segment instead of buffering it
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(segment.channel));
+            mail.getMessage().writeTo(out);
+            out.flush();
+
+            long end = segment.channel.position();
+            long messageOffset = offset + header.limit();
+            ByteBuffer messageLength = ByteBuffer.allocate(8);
+            messageLength.putLong(end - messageOffset);
+            messageLength.flip();
+            while (messageLength.hasRemaining()) {
+                segment.channel.write(messageLength, offset + messageLengthOffset + messageLength.position());
+            }
+
+            segment.size = end;
+            long envelopeOffset = messageOffset - envelope.length;
+            item.setSegment(segment, offset);
+            item.setLocation(envelopeOffset, envelope.length, messageOffset, end - messageOffset);
+            segment.added(item);
+            success = true;
+        } finally {
+            if (!success) {
+                discard(segment, offset);
+            }
+        }
+        long seq = releaseSegment(segment);
+        compactIfNeeded(segment);
+        if (syncNow) {
+            sync(seq);
+        }
+        return item;
+    }
+
+    /**
+     * @see org.apache.james.queue.file.FileMailQueueStore#sync(java.util.Collection)
+     */
+    public void sync(Collection<StoredItem> items) throws IOException {
+        if (items.isEmpty()) {
+            return;
+        }
+        long seq;
+        synchronized (this) {
+            seq = appendSeq;
+        }
+        sync(seq);
+    }
+
+    /**
+     * Make sure all records up to the given append sequence are synced to
+     * disk. If another thread is syncing already, wait for it and check again
+     * afterwards, so one <code>fsync</code> serves all waiting threads.
+     * 
+     * @param seq
+     * @throws IOException
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            while (syncInProgress && syncedSeq < seq) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for sync");
+                }
+            }
+            if (syncedSeq >= seq) {
+                return;
+            }
+            syncInProgress = true;
+        }
+
+        long target;
+        List<Segment> open;
+        synchronized (this) {
+            // sealed segments were synced before they got sealed
+            target = appendSeq;
+            open = new ArrayList<Segment>(writable);
+        }
+        boolean synced = false;
+        try {
+            for (int i = 0; i < open.size(); i++) {
+                open.get(i).force();
+            }
+            synced = true;
+        } finally {
+            synchronized (syncLock) {
+                syncInProgress = false;
+                if (synced && target > syncedSeq) {
+                    syncedSeq = target;
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Return a writable segment which is owned by the calling thread till it
+     * gets released via {@link #releaseSegment(Segment)}. A new segment is
+     * started if all writable segments are owned by other writers.
+     * 
+     * @return segment
+     * @throws IOException
+     */
+    private synchronized Segment acquireSegment() throws IOException {
+        if (!idle.isEmpty()) {
+            return idle.removeLast();
+        }
+        long id = nextSegmentId++;
+        Segment segment = new Segment(id, new File(segmentDir, SEGMENT_PREFIX + String.format("%019d", id) + SEGMENT_EXTENSION));
+        synchronized (segments) {
+            segments.put(id, segment);
+        }
+        writable.add(segment);
+        return segment;
+    }
+
+    /**
+     * Release a segment which was acquired via {@link #acquireSegment()}. If it
+     * reached the max size it is synced and sealed, as the group commit only
+     * syncs writable segments. As the message size is not known in advance, a
+     * segment may get bigger then the max size by one record.
+     * 
+     * @param segment
+     * @return the append sequence of the last record of the segment
+     * @throws IOException
+     */
+    private long releaseSegment(Segment segment) throws IOException {
+        if (segment.size < maxSegmentSize && !segment.broken) {
+            synchronized (this) {
+                idle.add(segment);
+                return ++appendSeq;
+            }
+        }
+        try {
+            segment.force();
+        } finally {
+            synchronized (this) {
+                writable.remove(segment);
+            }
+            segment.seal();
+        }
+        synchronized (this) {
+            return ++appendSeq;
+        }
+    }
+
+    /**
+     * Compact the given segment if it is sealed and its live records take less
+     * then the compaction ratio of its size. A failed compaction is only
+     * logged, as it is tried again on the next delete.
+     * 
+     * @param segment
+     */
+    private void compactIfNeeded(Segment segment) {
+        if (!segment.startCompaction()) {
+            return;
+        }
+        try {
+            compact(segment);
+        } catch (IOException e) {
+            log.warn("Unable to compact segment " + segment.file, e);
+        } finally {
+            segment.compactionDone();
+        }
+    }
+
+    /**
+     * Copy all live records of the given segment to writable segments. Once
+     * the copies are synced, the original records are marked as deleted and
+     * released, so the segment gets removed.
+     * 
+     * @param segment
+     * @throws IOException
+     */
+    private void compact(Segment segment) throws IOException {
+        List<SegmentItem> items = segment.getItems();
+        List<SegmentItem> moved = new ArrayList<SegmentItem>();
+        List<Long> offsets = new ArrayList<Long>();
+        long seq = 0;
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                SegmentItem item = items.get(i);
+                synchronized (item) {
+                    // deleted or moved since the items were listed
+                    if (item.deleted || item.segment != segment) {
+                        continue;
+                    }
+                    long offset = item.recordOffset;
+                    seq = copy(item);
+                    moved.add(item);
+                    offsets.add(offset);
+                }
+            }
+        } finally {
+            if (!moved.isEmpty()) {
+                sync(seq);
+                for (int i = 0; i < moved.size(); i++) {
+                    segment.markDeleted(offsets.get(i));
+                    segment.released(moved.get(i));
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Compacted segment " + segment.file + " by moving " + moved.size() + " records");
+        }
+    }
+
+    /**
+     * Append a copy of the record of the given item to a writable segment and
+     * point the item to it. Must be called while holding the lock of the item.
+     * 
+     * @param item
+     * @return the append sequence of the copy
+     * @throws IOException
+     */
+    private long copy(SegmentItem item) throws IOException {
+        Segment from = item.segment;
+        long length = item.getRecordLength();
+        Segment to = acquireSegment();
+        long offset = to.size;
+        boolean success = false;
+        try {
+            long position = item.recordOffset;
+            long end = position + length;
+            while (position < end) {
+                long transferred = from.channel.transferTo(position, end - position, to.channel);
+                if (transferred <= 0) {
+                    throw new EOFException("Unexpected end of segment " + from.file);
+                }
+                position += transferred;
+            }
+            to.size = offset + length;
+            item.move(to, offset);
+            to.added(item);
+            success = true;
+        } finally {
+            if (!success) {
+                discard(to, offset);
+            }
+        }
+        return releaseSegment(to);
+    }
+
+    /**
+     * Cut off a record which was not completely written, so the next record
+     * does not get appended after garbage. If this is not possible the segment
+     * is sealed on release.
+     * 
+     * @param segment
+     * @param offset
+     */
+    private void discard(Segment segment, long offset) {
+        try {
+            segment.channel.truncate(offset);
+            segment.channel.position(offset);
+        } catch (IOException e) {
+            log.info("Unable to truncate " + segment.file + ", seal it", e);
+            segment.broken = true;
+        }
+        try {
+            releaseSegment(segment);
+        } catch (IOException e) {
+            log.info("Unable to release segment " + segment.file, e);
+        }
+    }
+
+    /**
+     * Close all segments
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        synchronized (this) {
+            writable.clear();
+            idle.clear();
+        }
+        synchronized (segments) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * A segment file and its live items
+     */
+    private final class Segment {
+        private final long id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+
+        /**
+         * Guards the closing of the channel, so a sync does not force a
+         * channel which gets closed concurrently
+         */
+        private final Object closeLock = new Object();
+        private boolean closed;
+
+        /**
+         * Current length of the segment. Only changed by the writer which owns
+         * the segment
+         */
+        private volatile long size;
+
+        /** Set if a failed record could not get cut off */
+        private boolean broken;
+
+        private final Set<SegmentItem> items = new HashSet<SegmentItem>();
+        private long liveBytes;
+        private boolean sealed;
+        private boolean removed;
+        private boolean compacting;
+
+        public Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+        }
+
+        public synchronized void added(SegmentItem item) {
+            if (items.add(item)) {
+                liveBytes += item.getRecordLength();
+            }
+        }
+
+        public synchronized List<SegmentItem> getItems() {
+            return new ArrayList<SegmentItem>(items);
+        }
+
+        /**
+         * Mark the record at the given offset as deleted. The change is not
+         * synced to disk, so a crash may only cause a mail to get delivered
+         * again.
+         * 
+         * @param recordOffset
+         * @throws IOException
+         */
+        public synchronized void markDeleted(long recordOffset) throws IOException {
+            if (removed) {
+                return;
+            }
+            ByteBuffer status = ByteBuffer.wrap(new byte[] { STATUS_DELETED });
+            while (status.hasRemaining()) {
+                channel.write(status, recordOffset + STATUS_OFFSET + status.position());
+            }
+        }
+
+        public synchronized void released(SegmentItem item) {
+            if (items.remove(item)) {
+                liveBytes -= item.getRecordLength();
+            }
+            removeIfUnused();
+        }
+
+        /**
+         * Return <code>true</code> if the segment needs to be compacted and
+         * no other thread compacts it already
+         * 
+         * @return start
+         */
+        public synchronized boolean startCompaction() {
+            if (!sealed || removed || compacting || items.isEmpty() || liveBytes >= size * compactionRatio) {
+                return false;
+            }
+            compacting = true;
+            return true;
+        }
+
+        public synchronized void compactionDone() {
+            compacting = false;
+        }
+
+        /**
+         * No more records get appended to this segment
+         */
+        public synchronized void seal() {
+            sealed = true;
+            removeIfUnused();
+        }
+
+        private void removeIfUnused() {
+            if (sealed && items.isEmpty() && !removed) {
+                removed = true;
+                close();
+                synchronized (segments) {
+                    segments.remove(id);
+                }
+                if (!file.delete()) {
+                    // will get deleted on the next recovery as it has no live
+                    // records
+                    log.debug("Unable to delete segment " + file);
+                }
+            }
+        }
+
+        /**
+         * Force all records of this segment to disk. A closed segment was
+         * already forced before it got sealed, or the store was disposed, so
+         * it is skipped.
+         * 
+         * @throws IOException
+         */
+        public void force() throws IOException {
+            synchronized (closeLock) {
+                if (!closed) {
+                    channel.force(false);
+                }
+            }
+        }
+
+        public void close() {
+            synchronized (closeLock) {
+                closed = true;
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    /**
+     * A record within a {@link Segment}. The record may get moved to another
+     * segment by a compaction, so its location is guarded by the item.
+     */
+    private final class SegmentItem extends AbstractStoredItem {
+        private Segment segment;
+        private long recordOffset;
+        private long envelopeOffset;
+        private int envelopeLength;
+        private long messageOffset;
+        private long messageLength;
+        private boolean deleted;
+
+        public SegmentItem() {
+        }
+
+        public SegmentItem(Segment segment, long recordOffset) {
+            setSegment(segment, recordOffset);
+        }
+
+        public void setSegment(Segment segment, long recordOffset) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+        }
+
+        public void setLocation(long envelopeOffset, int envelopeLength, long messageOffset, long messageLength) {
+            this.envelopeOffset = envelopeOffset;
+            this.envelopeLength = envelopeLength;
+            this.messageOffset = messageOffset;
+            this.messageLength = messageLength;
+        }
+
+        /**
+         * Point this item to a copy of its record at the given offset of the
+         * given segment
+         * 
+         * @param segment
+         * @param recordOffset
+         */
+        public void move(Segment segment, long recordOffset) {
+            long delta = recordOffset - this.recordOffset;
+            setSegment(segment, recordOffset);
+            envelopeOffset += delta;
+            messageOffset += delta;
+        }
+
+        public long getRecordLength() {
+            return messageOffset + messageLength - recordOffset;
+        }
+
+        /**
+         * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#loadMail(boolean)
+         */
+        public synchronized Mail loadMail(boolean withMessage) throws MailQueueException {
+            try {
+                ByteBuffer envelope = ByteBuffer.allocate(envelopeLength);
+                while (envelope.hasRemaining()) {
+                    if (segment.channel.read(envelope, envelopeOffset + envelope.position()) < 0) {
+                        throw new EOFException("Unexpected end of segment " + segment.file);
+                    }
+                }
+                Mail mail = deserialize(envelope.array());
+                if (withMessage) {
+                    MimeMessageSource source;
+                    if (memoryMapped) {
+                        source = new MappedFileMimeMessageSource(segment.file, messageOffset, messageLength);
+                    } else {
+                        source = new SegmentMimeMessageSource(segment.file, messageOffset, messageLength);
+                    }
+                    mail.setMessage(new MimeMessageCopyOnWriteProxy(source));
+                }
+                return mail;
+            } catch (IOException e) {
+                throw new MailQueueException("Unable to load mail", e);
+            } catch (MessagingException e) {
+                throw new MailQueueException("Unable to load mail", e);
+            }
+        }
+
+        /**
+         * @see org.apache.james.queue.file.FileMailQueueStore.StoredItem#delete()
+         */
+        public void delete() throws MailQueueException {
+            Segment released;
+            synchronized (this) {
+                if (deleted) {
+                    return;
+                }
+                deleted = true;
+                released = segment;
+                try {
+                    segment.markDeleted(recordOffset);
+                } catch (IOException e) {
+                    throw new MailQueueException("Unable to delete mail", e);
+                } finally {
+                    segment.released(this);
+                }
+            }
+            compactIfNeeded(released);
+        }
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads the message out of a segment file
+     */
+    private final class SegmentMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private final File file;
+        private final long start;
+        private final long length;
+        private SharedFileInputStream in;
+
+        public SegmentMimeMessageSource(File file, long start, long length) throws IOException {
+            this.file = file;
+            this.start = start;
+            this.length = length;
+            this.in = new SharedFileInputStream(file);
+        }
+
+        @Override
+        public String getSourceId() {
+            return file.getAbsolutePath() + "#" + start;
+        }
+
+        /**
+         * @see org.apache.james.core.MimeMessageSource#getInputStream()
+         */
+        public InputStream getInputStream() throws IOException {
+            return in.newStream(start, start + length);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return length;
+        }
+
+        /**
+         * @see org.apache.james.lifecycle.api.Disposable#dispose()
+         */
+        public void dispose() {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
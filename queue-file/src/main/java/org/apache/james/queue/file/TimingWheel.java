@@ -0,0 +1,228 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.lifecycle.api.Disposable;
+
+/**
+ * <p>
+ * Hashed timing wheel which holds the keys of delayed mails until they are
+ * ready for dequeue. Adding a key is O(1) and only a small entry (key,
+ * priority and remaining rounds) is kept in memory per key.
+ * </p>
+ * <p>
+ * The wheel has a fixed count of buckets and is advanced by one bucket every
+ * tick. A key is put into the bucket of the tick its deadline falls into,
+ * together with the count of full rounds the wheel needs to turn before the
+ * key expires. On every tick a single thread walks the current bucket and
+ * hands the expired keys to the {@link ExpirationHandler}. Keys expire at most
+ * one tick after their deadline.
+ * </p>
+ */
+public class TimingWheel implements Disposable {
+
+    /** Default duration (in ms) of a tick */
+    public final static long DEFAULT_TICK_DURATION = 100;
+
+    /** Default count of buckets */
+    public final static int DEFAULT_WHEEL_SIZE = 4096;
+
+    private final long tickDuration;
+    private final List<Entry>[] wheel;
+    private final int mask;
+    private final ExpirationHandler handler;
+    private final long startTime;
+    private final Thread worker;
+
+    /** Last processed tick. Guarded by this */
+    private long tick;
+    private int size;
+    private volatile boolean running = true;
+
+    public TimingWheel(String name, ExpirationHandler handler) {
+        this(name, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, handler);
+    }
+
+    /**
+     * @param name
+     *            the name of the worker thread
+     * @param tickDuration
+     *            the duration (in ms) of a tick
+     * @param wheelSize
+     *            the count of buckets, rounded up to the next power of two
+     * @param handler
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickDuration, int wheelSize, ExpirationHandler handler) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater then 0");
+        }
+        int buckets = 1;
+        while (buckets < wheelSize) {
+            buckets <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.wheel = new List[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new ArrayList<Entry>();
+        }
+        this.mask = buckets - 1;
+        this.handler = handler;
+        this.startTime = System.currentTimeMillis();
+
+        worker = new Thread(new Runnable() {
+
+            public void run() {
+                TimingWheel.this.run();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Add the key, so it expires once the given deadline was reached. If the
+     * deadline was reached already the key expires at once
+     * 
+     * @param key
+     * @param priority
+     * @param deadline
+     *            the time (in ms) when the key expires
+     */
+    public synchronized void add(String key, int priority, long deadline) {
+        long target = (deadline - startTime + tickDuration - 1) / tickDuration;
+        if (deadline <= startTime || target <= tick) {
+            handler.expired(key, priority);
+            return;
+        }
+        wheel[(int) (target & mask)].add(new Entry(key, priority, (target - tick - 1) / wheel.length));
+        size++;
+    }
+
+    /**
+     * Expire all keys now
+     * 
+     * @return count of expired keys
+     */
+    public synchronized int flush() {
+        int count = 0;
+        for (int i = 0; i < wheel.length; i++) {
+            List<Entry> bucket = wheel[i];
+            for (int a = 0; a < bucket.size(); a++) {
+                Entry entry = bucket.get(a);
+                handler.expired(entry.key, entry.priority);
+                count++;
+            }
+            bucket.clear();
+        }
+        size = 0;
+        return count;
+    }
+
+    /**
+     * Return the count of keys which did not expire yet
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Advance the wheel until it gets disposed
+     */
+    private void run() {
+        long next = 1;
+        while (running) {
+            long sleep = startTime + next * tickDuration - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // check if we should stop
+                    continue;
+                }
+            }
+            expire(next);
+            next++;
+        }
+    }
+
+    /**
+     * Process the bucket of the given tick
+     * 
+     * @param currentTick
+     */
+    private synchronized void expire(long currentTick) {
+        tick = currentTick;
+        List<Entry> bucket = wheel[(int) (currentTick & mask)];
+        int remaining = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Entry entry = bucket.get(i);
+            if (entry.rounds <= 0) {
+                size--;
+                handler.expired(entry.key, entry.priority);
+            } else {
+                entry.rounds--;
+                bucket.set(remaining++, entry);
+            }
+        }
+        // drop the expired entries
+        bucket.subList(remaining, bucket.size()).clear();
+    }
+
+    /**
+     * Stop the worker thread. Keys which did not expire yet are dropped
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Callback for expired keys
+     */
+    public interface ExpirationHandler {
+
+        /**
+         * Called once the deadline of the key was reached
+         * 
+         * @param key
+         * @param priority
+         */
+        void expired(String key, int priority);
+    }
+
+    private final static class Entry {
+        private final String key;
+        private final int priority;
+        private long rounds;
+
+        public Entry(String key, int priority, long rounds) {
+            this.key = key;
+            this.priority = priority;
+            this.rounds = rounds;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Startup benchmark for {@link FileMailQueue}. It fills a queue with the given
+ * count of mails and then measures how long it takes to create a new
+ * {@link FileMailQueue} which recovers all of them. Every run recovers its own
+ * directory, which was filled before any recovery started, so no run profits
+ * from a page cache which was warmed up by a previous run. For cold cache
+ * numbers the caches of the OS need to be dropped between filling and
+ * recovering (for example via <code>/proc/sys/vm/drop_caches</code> on
+ * Linux), the benchmark waits for a key press if <code>pause</code> is given.
+ * This is not executed as part of the unit tests, run it via its main method:
+ * 
+ * <pre>
+ * FileMailQueueRecoveryBenchmark [mails] [directory] [pause]
+ * </pre>
+ */
+public class FileMailQueueRecoveryBenchmark {
+
+    private final static int BATCH_SIZE = 1000;
+
+    private final int mails;
+    private final File baseDir;
+    private final Logger log = LoggerFactory.getLogger("Benchmark");
+
+    private final boolean pause;
+
+    public FileMailQueueRecoveryBenchmark(File baseDir, int mails, boolean pause) {
+        this.baseDir = baseDir;
+        this.mails = mails;
+        this.pause = pause;
+    }
+
+    /**
+     * Fill the queue with the configured count of mails
+     * 
+     * @param store
+     * @throws Exception
+     */
+    public void fill(FileMailQueueStore store) throws Exception {
+        FileMailQueue queue = new FileMailQueue(store, false, log);
+        try {
+            List<Mail> batch = new ArrayList<Mail>();
+            for (int i = 0; i < mails; i++) {
+                batch.add(createMail(i));
+                if (batch.size() == BATCH_SIZE) {
+                    queue.enQueue(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                queue.enQueue(batch);
+            }
+        } finally {
+            queue.dispose();
+        }
+    }
+
+    /**
+     * Recover the queue from the given store
+     * 
+     * @param store
+     * @return time needed (in ms)
+     * @throws Exception
+     */
+    public long recover(FileMailQueueStore store) throws Exception {
+        long start = System.currentTimeMillis();
+        FileMailQueue queue = new FileMailQueue(store, false, log);
+        long time = System.currentTimeMillis() - start;
+        try {
+            if (queue.getSize() != mails) {
+                throw new IllegalStateException("Recovered " + queue.getSize() + " of " + mails + " mails");
+            }
+        } finally {
+            queue.dispose();
+        }
+        return time;
+    }
+
+    private MailImpl createMail(int i) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("benchmark mail " + i);
+        message.setHeader("Subject", "benchmark");
+        message.saveChanges();
+        return new MailImpl("benchmark-" + i, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+    }
+
+    /**
+     * Run the benchmark against a {@link DefaultFileMailQueueStore} and a
+     * {@link SegmentFileMailQueueStore}
+     * 
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        // fill a separate directory per run before recovering any of them
+        File singleDir = new File(baseDir, "default-1");
+        File parallelDir = new File(baseDir, "default-10");
+        File segmentDir = new File(baseDir, "segment");
+        fill(new DefaultFileMailQueueStore(singleDir, log));
+        fill(new DefaultFileMailQueueStore(parallelDir, log));
+        fill(new SegmentFileMailQueueStore(segmentDir, SegmentFileMailQueueStore.DEFAULT_SEGMENT_SIZE, log));
+
+        if (pause) {
+            System.out.println("Drop the caches and press enter to start the recovery");
+            System.in.read();
+        }
+
+        System.out.println("store=default mails=" + mails + " threads=1 recovery=" + recover(new DefaultFileMailQueueStore(singleDir, 1, log)) + " ms");
+        System.out.println("store=default mails=" + mails + " threads=10 recovery=" + recover(new DefaultFileMailQueueStore(parallelDir, 10, log)) + " ms");
+        System.out.println("store=segment mails=" + mails + " recovery=" + recover(new SegmentFileMailQueueStore(segmentDir, SegmentFileMailQueueStore.DEFAULT_SEGMENT_SIZE, log)) + " ms");
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File baseDir = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "filemailqueue-benchmark");
+        boolean pause = args.length > 2 && "pause".equals(args[2]);
+
+        delete(baseDir);
+        try {
+            new FileMailQueueRecoveryBenchmark(baseDir, mails, pause).run();
+        } finally {
+            delete(baseDir);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileMailQueueTest extends TestCase {
+
+    private final static AtomicInteger COUNTER = new AtomicInteger();
+
+    protected final Logger log = LoggerFactory.getLogger("MockLog");
+    protected File queueDir;
+    protected FileMailQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        queueDir = File.createTempFile("filemailqueue", "");
+        queueDir.delete();
+        queue = createQueue();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (queue != null) {
+            queue.dispose();
+        }
+        FileUtils.deleteDirectory(queueDir);
+    }
+
+    protected FileMailQueueStore createStore() throws IOException {
+        return new DefaultFileMailQueueStore(queueDir, log);
+    }
+
+    protected FileMailQueue createQueue() throws IOException {
+        return new FileMailQueue(createStore(), true, log);
+    }
+
+    /**
+     * Dispose the queue and create a new one for the same directory, which
+     * needs to recover the stored mails
+     */
+    protected void reopenQueue() throws IOException {
+        queue.dispose();
+        queue = null;
+        queue = createQueue();
+    }
+
+    protected MailImpl createMail() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName("mail" + COUNTER.incrementAndGet());
+        mail.setAttribute("test1", System.currentTimeMillis());
+        mail.setErrorMessage(UUID.randomUUID().toString());
+        mail.setLastUpdated(new Date());
+        mail.setRecipients(Arrays.asList(new MailAddress("test@test"), new MailAddress("test@test2")));
+        mail.setSender(new MailAddress("sender@senderdomain"));
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.setHeader("testheader", "testvalue");
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void checkMail(Mail enqueuedMail, Mail dequeuedMail) throws MessagingException, IOException {
+        assertEquals(enqueuedMail.getName(), dequeuedMail.getName());
+        assertEquals(enqueuedMail.getErrorMessage(), dequeuedMail.getErrorMessage());
+        assertEquals(enqueuedMail.getSender(), dequeuedMail.getSender());
+        assertEquals(enqueuedMail.getRecipients(), dequeuedMail.getRecipients());
+        assertEquals(enqueuedMail.getAttribute("test1"), dequeuedMail.getAttribute("test1"));
+
+        Enumeration<String> enQueuedHeaders = enqueuedMail.getMessage().getAllHeaderLines();
+        Enumeration<String> deQueuedHeaders = dequeuedMail.getMessage().getAllHeaderLines();
+        while (enQueuedHeaders.hasMoreElements()) {
+            assertEquals(enQueuedHeaders.nextElement(), deQueuedHeaders.nextElement());
+        }
+        assertFalse(deQueuedHeaders.hasMoreElements());
+        assertEquals(enqueuedMail.getMessage().getContent(), dequeuedMail.getMessage().getContent());
+    }
+
+    private MailQueueItem deQueue(long timeout) throws MailQueueException {
+        List<MailQueueItem> items = queue.deQueue(1, timeout, TimeUnit.MILLISECONDS);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    public void testFIFO() throws Exception {
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        assertEquals(2, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(false);
+
+        // the mail is put back to the end of the queue
+        assertEquals(2, queue.getSize());
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail2, item2.getMail());
+        item2.done(true);
+
+        assertEquals(1, queue.getSize());
+        MailQueueItem item3 = queue.deQueue();
+        checkMail(mail, item3.getMail());
+        item3.done(true);
+
+        assertEquals(0, queue.getSize());
+        assertNull(deQueue(100));
+    }
+
+    public void testBatchEnQueue() throws Exception {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        queue.enQueue(Arrays.<Mail> asList(mail, mail2));
+        assertEquals(2, queue.getSize());
+
+        List<MailQueueItem> items = queue.deQueue(10, 100, TimeUnit.MILLISECONDS);
+        assertEquals(2, items.size());
+        checkMail(mail, items.get(0).getMail());
+        checkMail(mail2, items.get(1).getMail());
+        for (MailQueueItem item : items) {
+            item.done(true);
+        }
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testBatchEnQueueRollback() throws Exception {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        // can not be serialized, so storing the second mail fails
+        mail2.setAttribute("unserializable", new NotSerializableAttribute());
+
+        try {
+            queue.enQueue(Arrays.<Mail> asList(mail, mail2));
+            fail("Batch should fail");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        assertEquals(0, queue.getSize());
+        assertNull(deQueue(100));
+
+        // nothing of the batch must get recovered
+        reopenQueue();
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testMailKeptIfLoadFails() throws Exception {
+        queue.dispose();
+        FailingLoadStore failingStore = new FailingLoadStore(createStore());
+        queue = new FileMailQueue(failingStore, true, log);
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        failingStore.failing = mail2.getName();
+
+        // the mails which could be loaded are returned
+        List<MailQueueItem> items = queue.deQueue(10, 100, TimeUnit.MILLISECONDS);
+        assertEquals(1, items.size());
+        checkMail(mail, items.get(0).getMail());
+        items.get(0).done(true);
+
+        // the other one is kept, but not tried again at once
+        assertEquals(1, queue.getSize());
+        assertNull(deQueue(100));
+
+        failingStore.failing = null;
+        assertEquals(1, queue.flush());
+        MailQueueItem item = deQueue(100);
+        checkMail(mail2, item.getMail());
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testPriorityLanes() throws Exception {
+        List<Mail> normal = new ArrayList<Mail>();
+        for (int i = 0; i < 3; i++) {
+            Mail mail = createMail();
+            normal.add(mail);
+            queue.enQueue(mail);
+        }
+        List<Mail> high = new ArrayList<Mail>();
+        for (int i = 0; i < 3; i++) {
+            Mail mail = createMail();
+            mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.HIGH_PRIORITY);
+            high.add(mail);
+            queue.enQueue(mail);
+        }
+        Mail low = createMail();
+        low.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+        queue.enQueue(low);
+
+        assertEquals(3, queue.getSize(MailPrioritySupport.HIGH_PRIORITY));
+        assertEquals(3, queue.getSize(MailPrioritySupport.NORMAL_PRIORITY));
+        assertEquals(1, queue.getSize(MailPrioritySupport.LOW_PRIORITY));
+
+        // every lane is served in FIFO order and the high priority lane is
+        // always served first within a round
+        List<Mail> dequeued = new ArrayList<Mail>();
+        for (int i = 0; i < 7; i++) {
+            MailQueueItem item = queue.deQueue();
+            dequeued.add(item.getMail());
+            item.done(true);
+        }
+        assertEquals(high.get(0).getName(), dequeued.get(0).getName());
+        assertEquals(normal.get(0).getName(), dequeued.get(1).getName());
+        assertEquals(low.getName(), dequeued.get(2).getName());
+        assertEquals(high.get(1).getName(), dequeued.get(3).getName());
+        assertEquals(normal.get(1).getName(), dequeued.get(4).getName());
+        assertEquals(high.get(2).getName(), dequeued.get(5).getName());
+        assertEquals(normal.get(2).getName(), dequeued.get(6).getName());
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testDelayedMailVisibleAtDueTime() throws Exception {
+        Mail delayed = createMail();
+        long start = System.currentTimeMillis();
+        queue.enQueue(delayed, 1000, TimeUnit.MILLISECONDS);
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        assertEquals(2, queue.getSize());
+
+        // the not delayed mail is dequeued first
+        MailQueueItem item = deQueue(100);
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        // the delayed one is not visible before it is due
+        assertNull(deQueue(500));
+
+        MailQueueItem item2 = deQueue(2000);
+        assertNotNull(item2);
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        checkMail(delayed, item2.getMail());
+        item2.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testFlushDelayedMail() throws Exception {
+        Mail delayed = createMail();
+        queue.enQueue(delayed, 1, TimeUnit.HOURS);
+        assertNull(deQueue(200));
+
+        assertEquals(1, queue.flush());
+        MailQueueItem item = deQueue(100);
+        checkMail(delayed, item.getMail());
+        item.done(true);
+    }
+
+    public void testRemoveByIndex() throws Exception {
+        MailImpl mail = createMail();
+        mail.setName("remove@me1");
+        MailImpl mail2 = createMail();
+        mail2.setName("remove@me2");
+        mail2.setSender(new MailAddress("other@senderdomain"));
+        MailImpl mail3 = createMail();
+        mail3.setRecipients(Arrays.asList(new MailAddress("other@test")));
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3);
+        assertEquals(3, queue.getSize());
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, "remove@me1"));
+        assertEquals(0, queue.remove(ManageableMailQueue.Type.Name, "remove@me1"));
+        assertEquals(2, queue.getSize());
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Sender, "other@senderdomain"));
+        assertEquals(1, queue.getSize());
+
+        assertEquals(0, queue.remove(ManageableMailQueue.Type.Recipient, "test@test"));
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Recipient, "other@test"));
+        assertEquals(0, queue.getSize());
+
+        // removed mails are not dequeued or recovered
+        assertNull(deQueue(100));
+        reopenQueue();
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testRecovery() throws Exception {
+        Mail mail = createMail();
+        Mail high = createMail();
+        high.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.HIGH_PRIORITY);
+        Mail done = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(high);
+        queue.enQueue(done);
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(high, item.getMail());
+        item.done(true);
+
+        reopenQueue();
+        assertEquals(2, queue.getSize());
+        assertEquals(0, queue.getSize(MailPrioritySupport.HIGH_PRIORITY));
+
+        // the index is rebuilt from the recovered metadata
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, done.getName()));
+
+        MailQueueItem item2 = deQueue(100);
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testRecoveryOfDelayedMail() throws Exception {
+        Mail delayed = createMail();
+        queue.enQueue(delayed, 1, TimeUnit.HOURS);
+
+        reopenQueue();
+        assertEquals(1, queue.getSize());
+        assertNull(deQueue(200));
+        assertEquals(1, queue.flush());
+        checkMail(delayed, deQueue(100).getMail());
+    }
+
+    public void testMailWithoutName() throws Exception {
+        MailImpl mail = createMail();
+        mail.setName(null);
+        queue.enQueue(mail);
+
+        reopenQueue();
+        assertEquals(1, queue.getSize());
+        MailQueueItem item = deQueue(100);
+        assertNull(item.getMail().getName());
+        item.done(true);
+    }
+
+    public void testRecoveryOfManyMails() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            Mail mail = createMail();
+            if (i % 5 == 0) {
+                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+            }
+            names.add(mail.getName());
+            queue.enQueue(mail);
+        }
+
+        reopenQueue();
+        assertEquals(50, queue.getSize());
+        assertEquals(10, queue.getSize(MailPrioritySupport.LOW_PRIORITY));
+        assertEquals(40, queue.getSize(MailPrioritySupport.NORMAL_PRIORITY));
+
+        List<String> dequeued = new ArrayList<String>();
+        for (MailQueueItem item : queue.deQueue(100, 100, TimeUnit.MILLISECONDS)) {
+            dequeued.add(item.getMail().getName());
+            item.done(true);
+        }
+        assertEquals(50, dequeued.size());
+        assertTrue(dequeued.containsAll(names));
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testLargeMessage() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("This is line ").append(i).append(" of a large message\r\n");
+        }
+        MailImpl mail = createMail();
+        mail.getMessage().setText(text.toString());
+        mail.getMessage().saveChanges();
+        queue.enQueue(mail);
+
+        reopenQueue();
+        MailQueueItem item = deQueue(100);
+        checkMail(mail, item.getMail());
+        assertEquals(mail.getMessageSize(), item.getMail().getMessageSize());
+        item.done(true);
+    }
+
+    /**
+     * {@link FileMailQueueStore} which fails to load the mail with the given
+     * name
+     */
+    private final static class FailingLoadStore implements FileMailQueueStore {
+        private final FileMailQueueStore store;
+        private volatile String failing;
+
+        public FailingLoadStore(FileMailQueueStore store) {
+            this.store = store;
+        }
+
+        public StoredItem store(String key, Mail mail, long nextDelivery, int priority, boolean syncNow) throws IOException, MessagingException {
+            final StoredItem item = store.store(key, mail, nextDelivery, priority, syncNow);
+            return new StoredItem() {
+                public Mail loadMail(boolean withMessage) throws MailQueueException {
+                    if (item.getName().equals(failing)) {
+                        throw new MailQueueException("Unable to load mail " + failing);
+                    }
+                    return item.loadMail(withMessage);
+                }
+
+                public int getPriority() {
+                    return item.getPriority();
+                }
+
+                public long getNextDelivery() {
+                    return item.getNextDelivery();
+                }
+
+                public long getReadyTime() {
+                    return item.getReadyTime();
+                }
+
+                public void setReadyTime(long readyTime) {
+                    item.setReadyTime(readyTime);
+                }
+
+                public String getName() {
+                    return item.getName();
+                }
+
+                public String getSender() {
+                    return item.getSender();
+                }
+
+                public Collection<String> getRecipients() {
+                    return item.getRecipients();
+                }
+
+                public void delete() throws MailQueueException {
+                    item.delete();
+                }
+            };
+        }
+
+        public void sync(Collection<StoredItem> items) throws IOException {
+            store.sync(items);
+        }
+
+        public void recover(RecoveryHandler handler) throws IOException {
+            store.recover(handler);
+        }
+
+        public void dispose() {
+            store.dispose();
+        }
+    }
+
+    private final static class NotSerializableAttribute implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+            throw new NotSerializableException("Test");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+
+public class PriorityLanesTest extends TestCase {
+
+    public void testOrderAcrossLanes() throws Exception {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.put("low1", MailPrioritySupport.LOW_PRIORITY);
+        lanes.put("low2", MailPrioritySupport.LOW_PRIORITY);
+        lanes.put("normal1", MailPrioritySupport.NORMAL_PRIORITY);
+        lanes.put("normal2", MailPrioritySupport.NORMAL_PRIORITY);
+        lanes.put("high1", MailPrioritySupport.HIGH_PRIORITY);
+        lanes.put("high2", MailPrioritySupport.HIGH_PRIORITY);
+        assertEquals(6, lanes.size());
+        assertEquals(2, lanes.size(MailPrioritySupport.HIGH_PRIORITY));
+
+        assertEquals("high1", lanes.take());
+        assertEquals("normal1", lanes.take());
+        assertEquals("low1", lanes.take());
+        assertEquals("high2", lanes.take());
+        assertEquals("normal2", lanes.take());
+        assertEquals("low2", lanes.take());
+        assertEquals(0, lanes.size());
+        assertNull(lanes.poll());
+    }
+
+    public void testLowPriorityNotStarved() throws Exception {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.put("low", MailPrioritySupport.LOW_PRIORITY);
+        for (int i = 0; i < 1000; i++) {
+            lanes.put("high" + i, MailPrioritySupport.HIGH_PRIORITY);
+        }
+
+        // the lowest lane gets one turn per round of 55 turns, and the high
+        // lane 10 of them
+        int count = 0;
+        while (!"low".equals(lanes.poll())) {
+            count++;
+        }
+        assertTrue(count <= 10);
+    }
+
+    public void testPriorityOutOfRange() throws Exception {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.put("tooLow", -5);
+        lanes.put("tooHigh", 100);
+        assertEquals(1, lanes.size(MailPrioritySupport.LOW_PRIORITY));
+        assertEquals(1, lanes.size(MailPrioritySupport.HIGH_PRIORITY));
+        assertEquals("tooHigh", lanes.poll());
+        assertEquals("tooLow", lanes.poll());
+    }
+
+    public void testPollTimeout() throws Exception {
+        final PriorityLanes lanes = new PriorityLanes();
+        long start = System.currentTimeMillis();
+        assertNull(lanes.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 190);
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                lanes.put("key", MailPrioritySupport.NORMAL_PRIORITY);
+            }
+        }.start();
+        assertEquals("key", lanes.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,292 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+
+/**
+ * Runs the {@link FileMailQueueTest} against the
+ * {@link SegmentFileMailQueueStore}
+ */
+public class SegmentFileMailQueueTest extends FileMailQueueTest {
+
+    private long segmentSize = SegmentFileMailQueueStore.DEFAULT_SEGMENT_SIZE;
+    private double compactionRatio = SegmentFileMailQueueStore.DEFAULT_COMPACTION_RATIO;
+
+    @Override
+    protected FileMailQueueStore createStore() throws IOException {
+        SegmentFileMailQueueStore store = new SegmentFileMailQueueStore(queueDir, segmentSize, log);
+        store.setCompactionRatio(compactionRatio);
+        return store;
+    }
+
+    private File[] listSegments() {
+        File[] files = new File(queueDir, "segments").listFiles(new FilenameFilter() {
+
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    public void testRecoveryAfterTruncatedRecord() throws Exception {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.dispose();
+        queue = null;
+
+        // simulate a crash while the last record was written
+        File[] segments = listSegments();
+        assertEquals(1, segments.length);
+        RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+        long length = raf.length();
+        try {
+            raf.setLength(length - 10);
+        } finally {
+            raf.close();
+        }
+
+        queue = createQueue();
+        assertEquals(1, queue.getSize());
+
+        // the incomplete record was cut off
+        assertTrue(segments[0].length() < length - 10);
+
+        Mail mail3 = createMail();
+        queue.enQueue(mail3);
+        reopenQueue();
+        assertEquals(2, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail3, item2.getMail());
+        item2.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testRollSegments() throws Exception {
+        segmentSize = 1;
+        reopenQueue();
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        Mail mail3 = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3);
+
+        // every record is appended to a new segment
+        assertEquals(3, listSegments().length);
+
+        reopenQueue();
+        assertEquals(3, queue.getSize());
+        for (Mail m : Arrays.asList(mail, mail2, mail3)) {
+            MailQueueItem item = queue.deQueue();
+            checkMail(m, item.getMail());
+            item.done(true);
+        }
+    }
+
+    public void testSegmentDeletedAfterAllItemsDone() throws Exception {
+        segmentSize = 1;
+        reopenQueue();
+
+        queue.enQueue(createMail());
+        queue.enQueue(createMail());
+        queue.enQueue(createMail());
+        assertEquals(3, listSegments().length);
+
+        // every segment was sealed once it reached the max size
+        for (MailQueueItem i : queue.deQueue(3, 100, TimeUnit.MILLISECONDS)) {
+            i.done(true);
+        }
+        assertEquals(0, listSegments().length);
+    }
+
+    public void testSegmentCompacted() throws Exception {
+        // measure the size of a record
+        queue.enQueue(createMail());
+        queue.deQueue().done(true);
+        long recordSize = listSegments()[0].length();
+
+        // five records per segment
+        segmentSize = recordSize * 5 - recordSize / 2;
+        compactionRatio = 0.3;
+        reopenQueue();
+
+        Mail delayed = createMail();
+        queue.enQueue(delayed, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 4; i++) {
+            queue.enQueue(createMail());
+        }
+        File[] segments = listSegments();
+        assertEquals(1, segments.length);
+
+        // the segment is kept while its live records are above the ratio
+        for (int i = 0; i < 3; i++) {
+            queue.deQueue().done(true);
+        }
+        assertTrue(segments[0].exists());
+
+        // the delayed mail is copied to a new segment
+        queue.deQueue().done(true);
+        assertFalse(segments[0].exists());
+        assertEquals(1, listSegments().length);
+        assertEquals(1, queue.getSize());
+
+        reopenQueue();
+        assertEquals(1, queue.getSize());
+        assertEquals(1, queue.flush());
+        MailQueueItem item = queue.deQueue();
+        checkMail(delayed, item.getMail());
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testWritableSegmentDeletedOnRecovery() throws Exception {
+        queue.enQueue(createMail());
+        queue.deQueue().done(true);
+
+        // only sealed segments without live items are deleted
+        assertEquals(1, listSegments().length);
+
+        // the writable segment is sealed on recovery and has no live item
+        reopenQueue();
+        assertEquals(0, queue.getSize());
+        assertEquals(0, listSegments().length);
+    }
+
+    public void testImportOfDefaultStoreMails() throws Exception {
+        queue.dispose();
+        queue = new FileMailQueue(new DefaultFileMailQueueStore(queueDir, log), true, log);
+        Mail mail = createMail();
+        Mail delayed = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(delayed, 1, TimeUnit.HOURS);
+
+        // switch the queue to segments
+        reopenQueue();
+        assertEquals(2, queue.getSize());
+        assertFalse(DefaultFileMailQueueStore.containsMails(queueDir));
+
+        // the mails are only imported once
+        reopenQueue();
+        assertEquals(2, queue.getSize());
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        assertEquals(1, queue.flush());
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(delayed, item2.getMail());
+        item2.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testLargeMessageDoesNotBlockOtherWriters() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final MailImpl blocked = createMail();
+        blocked.setMessage(new MimeMessage(blocked.getMessage()) {
+
+            @Override
+            public void writeTo(OutputStream os) throws IOException, MessagingException {
+                writing.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                super.writeTo(os);
+            }
+        });
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    queue.enQueue(blocked);
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            }
+        };
+        writer.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // the message of the first mail is still streamed to its segment
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        assertEquals(2, listSegments().length);
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        proceed.countDown();
+        writer.join(5000);
+        assertTrue(failures.isEmpty());
+
+        reopenQueue();
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(blocked, item2.getMail());
+        item2.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testSegmentKeptWhileItemIsLive() throws Exception {
+        segmentSize = 1;
+        reopenQueue();
+
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        queue.enQueue(createMail());
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+
+        // the segment of the dequeued mail is sealed but not done yet
+        assertEquals(2, listSegments().length);
+        item.done(true);
+        assertEquals(1, listSegments().length);
+    }
+}
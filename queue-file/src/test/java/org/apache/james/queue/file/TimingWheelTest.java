@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.james.queue.file.TimingWheel.ExpirationHandler;
+
+public class TimingWheelTest extends TestCase {
+
+    private final Map<String, Long> expired = Collections.synchronizedMap(new HashMap<String, Long>());
+    private TimingWheel wheel;
+
+    @Override
+    protected void setUp() throws Exception {
+        // small wheel, so keys need more then one round
+        wheel = new TimingWheel("test", 20, 8, new ExpirationHandler() {
+
+            public void expired(String key, int priority) {
+                expired.put(key, System.currentTimeMillis());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        wheel.dispose();
+    }
+
+    private void waitFor(String key, long timeout) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeout;
+        while (!expired.containsKey(key) && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void testExpireAtDeadline() throws Exception {
+        long now = System.currentTimeMillis();
+        wheel.add("short", 5, now + 50);
+        wheel.add("long", 5, now + 500);
+        assertEquals(2, wheel.size());
+
+        waitFor("short", 2000);
+        waitFor("long", 2000);
+        assertTrue(expired.get("short") >= now + 50);
+        assertTrue(expired.get("long") >= now + 500);
+        // at most one tick late, plus some scheduling slack
+        assertTrue(expired.get("long") < now + 500 + 200);
+        assertEquals(0, wheel.size());
+    }
+
+    public void testExpireNowIfDeadlinePassed() throws Exception {
+        wheel.add("past", 5, System.currentTimeMillis() - 1000);
+        assertTrue(expired.containsKey("past"));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testFlush() throws Exception {
+        wheel.add("key1", 5, System.currentTimeMillis() + 60000);
+        wheel.add("key2", 5, System.currentTimeMillis() + 120000);
+        assertEquals(2, wheel.flush());
+        assertTrue(expired.containsKey("key1"));
+        assertTrue(expired.containsKey("key2"));
+        assertEquals(0, wheel.size());
+    }
+}
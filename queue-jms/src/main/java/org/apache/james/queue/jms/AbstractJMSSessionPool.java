@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+/**
+ * Base class for pools of JMS {@link Session}'s which all share one long-lived
+ * {@link Connection}. If the {@link Connection} reports an error all idle
+ * sessions are closed and a new {@link Connection} is created on the next
+ * borrow.
+ * 
+ * @param <T>
+ *            the pooled type
+ */
+public abstract class AbstractJMSSessionPool<T extends AbstractJMSSessionPool.PooledSession> implements JMSSessionPoolMBean {
+
+    protected final ConnectionFactory connectionFactory;
+    protected final String queuename;
+    private final LinkedList<T> idle = new LinkedList<T>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private int maxIdle;
+    private Connection connection;
+
+    public AbstractJMSSessionPool(ConnectionFactory connectionFactory, String queuename, int maxIdle) {
+        this.connectionFactory = connectionFactory;
+        this.queuename = queuename;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Create a new pooled instance for the given {@link Connection}
+     * 
+     * @param connection
+     * @return pooled
+     * @throws JMSException
+     */
+    protected abstract T createPooledSession(Connection connection) throws JMSException;
+
+    /**
+     * Return an idle instance or create a new one if non is idle.
+     * 
+     * @return pooled
+     * @throws JMSException
+     */
+    public T borrow() throws JMSException {
+        T pooled;
+        synchronized (idle) {
+            pooled = idle.poll();
+        }
+        if (pooled == null) {
+            pooled = createPooledSession(getConnection());
+            created.incrementAndGet();
+        }
+        active.incrementAndGet();
+        return pooled;
+    }
+
+    /**
+     * Return the instance to the pool. If the pool already holds the max count
+     * of idle instances it will get closed
+     * 
+     * @param pooled
+     */
+    public void release(T pooled) {
+        active.decrementAndGet();
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(pooled);
+                return;
+            }
+        }
+        pooled.close();
+    }
+
+    /**
+     * Close the instance and make sure it will not get returned to the pool.
+     * This should be used if the session is in an unknown state
+     * 
+     * @param pooled
+     */
+    public void invalidate(T pooled) {
+        active.decrementAndGet();
+        pooled.close();
+    }
+
+    /**
+     * Close all idle instances and the shared {@link Connection}
+     */
+    public void close() {
+        closeIdle(0);
+        closeConnection();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getIdleCount()
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getActiveCount()
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getCreatedCount()
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getMaxIdle()
+     */
+    public int getMaxIdle() {
+        synchronized (idle) {
+            return maxIdle;
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#setMaxIdle(int)
+     */
+    public void setMaxIdle(int maxIdle) {
+        synchronized (idle) {
+            this.maxIdle = maxIdle;
+        }
+        closeIdle(maxIdle);
+    }
+
+    private void closeIdle(int keep) {
+        while (true) {
+            T pooled;
+            synchronized (idle) {
+                if (idle.size() <= keep) {
+                    return;
+                }
+                pooled = idle.removeLast();
+            }
+            pooled.close();
+        }
+    }
+
+    private synchronized Connection getConnection() throws JMSException {
+        if (connection == null) {
+            Connection con = connectionFactory.createConnection();
+            try {
+                con.setExceptionListener(new ExceptionListener() {
+
+                    public void onException(JMSException exception) {
+                        // the connection is broken, so make sure we will
+                        // create a new one on the next borrow
+                        close();
+                    }
+                });
+            } catch (JMSException e) {
+                // some providers do not allow to set an ExceptionListener
+            }
+            con.start();
+            connection = con;
+        }
+        return connection;
+    }
+
+    private synchronized void closeConnection() {
+        try {
+            if (connection != null)
+                connection.close();
+        } catch (JMSException e) {
+            // ignore here
+        }
+        connection = null;
+    }
+
+    /**
+     * A pooled {@link Session}
+     */
+    public abstract static class PooledSession {
+        protected final Session session;
+
+        protected PooledSession(Session session) {
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * Return this instance to its pool
+         */
+        public abstract void release();
+
+        /**
+         * Close this instance and make sure it is not used anymore
+         */
+        public abstract void invalidate();
+
+        /**
+         * Close the {@link Session} and all resources which belong to it
+         */
+        protected void close() {
+            try {
+                session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+}
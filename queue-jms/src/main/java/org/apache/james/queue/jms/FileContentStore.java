@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Stores the content of large {@link MimeMessage}'s in the local filesystem,
+ * so only a reference to it needs to get transfered through the JMS Provider.
+ * The content is spread over a number of sub-directories to keep the count of
+ * files per directory low.
+ */
+public class FileContentStore {
+
+    private final static int SPLITCOUNT = 10;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final boolean sync;
+
+    /**
+     * Construct a new store
+     * 
+     * @param directory
+     *            the directory in which the content is stored
+     * @param sync
+     *            if <code>true</code> the content is synced to the disk before
+     *            the reference is returned
+     * @throws IOException
+     */
+    public FileContentStore(File directory, boolean sync) throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            File dir = new File(directory, String.valueOf(i));
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Unable to create directory " + dir.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Store the content of the given {@link MimeMessage} and return the
+     * reference to it
+     * 
+     * @param message
+     * @return reference
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public String store(MimeMessage message) throws MessagingException, IOException {
+        String id = UUID.randomUUID().toString();
+        String ref = ((id.hashCode() & Integer.MAX_VALUE) % SPLITCOUNT + 1) + "/" + id;
+        File file = getFile(ref);
+
+        FileOutputStream fOut = null;
+        boolean stored = false;
+        try {
+            fOut = new FileOutputStream(file);
+            OutputStream out = new BufferedOutputStream(fOut, BUFFER_SIZE);
+            message.writeTo(out);
+            out.flush();
+            if (sync) {
+                fOut.getFD().sync();
+            }
+            stored = true;
+        } finally {
+            if (fOut != null) {
+                try {
+                    fOut.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            if (!stored) {
+                file.delete();
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * Return the {@link File} which holds the content for the given reference
+     * 
+     * @param ref
+     * @return file
+     * @throws IOException
+     */
+    public File getFile(String ref) throws IOException {
+        if (ref == null || ref.indexOf("..") != -1) {
+            throw new IOException("Invalid content reference " + ref);
+        }
+        return new File(directory, ref);
+    }
+
+    /**
+     * Delete the content for the given reference
+     * 
+     * @param ref
+     * @throws IOException
+     */
+    public void delete(String ref) throws IOException {
+        File file = getFile(ref);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete file " + file);
+        }
+    }
+
+    /**
+     * Return the directory in which the content is stored
+     * 
+     * @return directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+}
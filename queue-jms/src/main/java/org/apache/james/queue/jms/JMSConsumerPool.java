@@ -0,0 +1,150 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+/**
+ * <p>
+ * Pool of transacted {@link Session}'s and {@link MessageConsumer}'s which are
+ * used to dequeue from a JMS Queue. All sessions share one long-lived
+ * {@link Connection}, so a dequeue operation does not need to pay the setup
+ * costs for a new connection, session and consumer for every single message.
+ * </p>
+ * <p>
+ * A {@link PooledConsumer} is borrowed for the time a dequeued message is in
+ * progress and returned to the pool once the transaction was committed. As the
+ * message selector used for dequeue depends on the current time, the
+ * {@link MessageConsumer} is re-created (within the same {@link Session}) if
+ * its selector is older then the configured max age.
+ * </p>
+ * <p>
+ * Idle consumers may hold prefetched messages, so the JMS provider should be
+ * configured with a queue prefetch of 0 when using this pool.
+ * </p>
+ */
+public class JMSConsumerPool extends AbstractJMSSessionPool<JMSConsumerPool.PooledConsumer> {
+
+    private final long maxSelectorAge;
+
+    /**
+     * Construct a new pool
+     *
+     * @param connectionFactory
+     * @param queuename
+     * @param maxIdle
+     *            the max count of idle sessions which are kept open
+     * @param maxSelectorAge
+     *            the max age (in ms) of the message selector before the
+     *            consumer gets re-created
+     */
+    public JMSConsumerPool(ConnectionFactory connectionFactory, String queuename, int maxIdle, long maxSelectorAge) {
+        super(connectionFactory, queuename, maxIdle);
+        this.maxSelectorAge = maxSelectorAge;
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.AbstractJMSSessionPool#createPooledSession(javax.jms.Connection)
+     */
+    protected PooledConsumer createPooledSession(Connection connection) throws JMSException {
+        return new PooledConsumer(connection.createSession(true, Session.SESSION_TRANSACTED));
+    }
+
+    /**
+     * A transacted {@link Session} and the {@link MessageConsumer} which
+     * belongs to it
+     */
+    public final class PooledConsumer extends AbstractJMSSessionPool.PooledSession {
+        private MessageConsumer consumer;
+        private long consumerCreated;
+
+        private PooledConsumer(Session session) {
+            super(session);
+        }
+
+        /**
+         * Receive the next message which matches the given selector. The
+         * selector is only used if the {@link MessageConsumer} needs to get
+         * (re-)created
+         *
+         * @param selector
+         * @param timeout
+         *            the timeout in ms. If 0 or less it will not wait at all
+         * @return message or null if non was received within the timeout
+         * @throws JMSException
+         */
+        public Message receive(String selector, long timeout) throws JMSException {
+            long now = System.currentTimeMillis();
+            if (consumer != null && now - consumerCreated > maxSelectorAge) {
+                closeConsumer();
+            }
+            if (consumer == null) {
+                Queue queue = session.createQueue(queuename);
+                consumer = session.createConsumer(queue, selector);
+                consumerCreated = now;
+            }
+            if (timeout > 0) {
+                return consumer.receive(timeout);
+            } else {
+                return consumer.receiveNoWait();
+            }
+        }
+
+        public MessageConsumer getConsumer() {
+            return consumer;
+        }
+
+        /**
+         * @see org.apache.james.queue.jms.AbstractJMSSessionPool.PooledSession#release()
+         */
+        public void release() {
+            JMSConsumerPool.this.release(this);
+        }
+
+        /**
+         * @see org.apache.james.queue.jms.AbstractJMSSessionPool.PooledSession#invalidate()
+         */
+        public void invalidate() {
+            JMSConsumerPool.this.invalidate(this);
+        }
+
+        private void closeConsumer() {
+            if (consumer != null) {
+                try {
+                    consumer.close();
+                } catch (JMSException e) {
+                    // ignore on close
+                }
+            }
+            consumer = null;
+        }
+
+        @Override
+        protected void close() {
+            closeConsumer();
+            super.close();
+        }
+    }
+}
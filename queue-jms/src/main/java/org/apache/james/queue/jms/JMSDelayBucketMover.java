@@ -0,0 +1,345 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.queue.api.MailPrioritySupport;
+
+/**
+ * <p>
+ * Moves delayed messages out of the delay bucket queues of a
+ * {@link JMSMailQueue} into the queue itself once they are due.
+ * </p>
+ * <p>
+ * A message is parked in the biggest bucket which is not longer then its
+ * delay, and every message of a bucket is due exactly the delay of the bucket
+ * after it was parked. So the messages of a bucket are due in the order they
+ * were parked and the head of every bucket queue is the message which is due
+ * first. The mover receives the head of each bucket within its own transacted
+ * {@link Session} and keeps it there until it is due. Then a copy is send to
+ * the queue, or parked again for the remaining delay if there is one, and the
+ * transaction is committed. A remaining delay which is shorter then the
+ * smallest bucket is parked in the smallest bucket, so a mail whose delay can
+ * not be made up of the bucket delays is delivered up to the smallest bucket
+ * delay later then requested, but never earlier.
+ * </p>
+ */
+public class JMSDelayBucketMover implements Disposable, JMSSupport {
+
+    /** Max time (in ms) to wait before looking for new messages */
+    private final static long POLL_INTERVAL = 1000;
+
+    /** Time (in ms) to wait before trying again after an error */
+    private final static long RETRY_INTERVAL = 5000;
+
+    private final JMSMailQueue queue;
+    private final long[] buckets;
+    private final Bucket[] states;
+    private final Thread worker;
+    private final Object lock = new Object();
+
+    /** Guarded by lock */
+    private Connection connection;
+    private int suspended;
+    private boolean running = true;
+
+    /**
+     * @param queue
+     * @param buckets
+     *            the delays (in ms) of the buckets in ascending order
+     */
+    public JMSDelayBucketMover(JMSMailQueue queue, long[] buckets) {
+        this.queue = queue;
+        this.buckets = buckets;
+        this.states = new Bucket[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            states[i] = new Bucket(queue.getDelayQueueName(buckets[i]));
+        }
+
+        worker = new Thread(new Runnable() {
+
+            public void run() {
+                JMSDelayBucketMover.this.run();
+            }
+        }, "JMSDelayBucketMover-" + queue.queuename);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Return the delay of the bucket which should be used for the given delay.
+     * This is the biggest bucket which is not longer then the delay or the
+     * smallest bucket if there is non. A message must be due exactly the
+     * returned delay after it was parked, otherwise the messages of a bucket
+     * are not due in the order they were parked anymore
+     * 
+     * @param delay
+     *            the delay in ms
+     * @return bucket
+     */
+    public long getBucket(long delay) {
+        for (int i = buckets.length - 1; i >= 0; i--) {
+            if (buckets[i] <= delay) {
+                return buckets[i];
+            }
+        }
+        return buckets[0];
+    }
+
+    /**
+     * Return the delays of all buckets
+     * 
+     * @return buckets
+     */
+    public long[] getBuckets() {
+        return buckets.clone();
+    }
+
+    /**
+     * Move all delayed messages to the queue now, regardless if they are due
+     * or not
+     * 
+     * @return count of moved messages
+     * @throws JMSException
+     */
+    public long flush() throws JMSException {
+        synchronized (lock) {
+            long count = 0;
+            boolean done = false;
+            try {
+                open();
+                for (Bucket bucket : states) {
+                    if (bucket.pending == null) {
+                        bucket.pending = bucket.consumer.receiveNoWait();
+                    }
+                    while (bucket.pending != null) {
+                        moveToQueue(bucket, true);
+                        count++;
+                        bucket.pending = bucket.consumer.receiveNoWait();
+                    }
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    close();
+                }
+                lock.notifyAll();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Stop moving messages and hand back the messages which are kept by the
+     * mover to the bucket queues, so they are visible to other consumers.
+     * Every call must be followed by a call of {@link #resume()}
+     */
+    public void suspend() {
+        synchronized (lock) {
+            suspended++;
+            close();
+        }
+    }
+
+    /**
+     * Resume moving messages after {@link #suspend()} was called
+     */
+    public void resume() {
+        synchronized (lock) {
+            suspended--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            worker.join(RETRY_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            close();
+        }
+    }
+
+    private void run() {
+        synchronized (lock) {
+            while (running) {
+                long wait = POLL_INTERVAL;
+                if (suspended == 0) {
+                    try {
+                        wait = Math.min(wait, moveDue());
+                    } catch (Exception e) {
+                        queue.logger.error("Unable to move delayed mails of queue " + queue.queuename, e);
+                        close();
+                        wait = RETRY_INTERVAL;
+                    }
+                }
+                try {
+                    if (wait > 0) {
+                        lock.wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move all due messages
+     * 
+     * @return the time (in ms) until the next known message is due
+     * @throws JMSException
+     */
+    private long moveDue() throws JMSException {
+        open();
+        long next = Long.MAX_VALUE;
+        for (Bucket bucket : states) {
+            while (true) {
+                if (bucket.pending == null) {
+                    bucket.pending = bucket.consumer.receiveNoWait();
+                    if (bucket.pending == null) {
+                        break;
+                    }
+                }
+                long due = getDue(bucket.pending);
+                long now = System.currentTimeMillis();
+                if (due > now) {
+                    next = Math.min(next, due - now);
+                    break;
+                }
+                moveToQueue(bucket, false);
+                bucket.pending = null;
+            }
+        }
+        return next;
+    }
+
+    private long getDue(Message message) throws JMSException {
+        if (message.propertyExists(JAMES_DELAY_BUCKET_DUE)) {
+            return message.getLongProperty(JAMES_DELAY_BUCKET_DUE);
+        }
+        return message.getLongProperty(JAMES_NEXT_DELIVERY);
+    }
+
+    /**
+     * Send a copy of the pending message of the bucket to the queue, or park
+     * it again if it is not due yet, and commit
+     */
+    private void moveToQueue(Bucket bucket, boolean force) throws JMSException {
+        Message pending = bucket.pending;
+        Message copy = queue.copy(bucket.session, pending);
+
+        int priority = MailPrioritySupport.NORMAL_PRIORITY;
+        if (pending.propertyExists(JAMES_MAIL_PRIORITY)) {
+            priority = pending.getIntProperty(JAMES_MAIL_PRIORITY);
+        }
+
+        long remaining = pending.getLongProperty(JAMES_NEXT_DELIVERY) - System.currentTimeMillis();
+        if (!force && remaining > 0) {
+            long delay = getBucket(remaining);
+            copy.setLongProperty(JAMES_DELAY_BUCKET_DUE, System.currentTimeMillis() + delay);
+            bucket.producer.send(bucket.session.createQueue(queue.getDelayQueueName(delay)), copy, Message.DEFAULT_DELIVERY_MODE, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+        } else {
+            if (force) {
+                copy.setBooleanProperty(JMSMailQueue.FORCE_DELIVERY, true);
+            }
+            bucket.producer.send(bucket.session.createQueue(queue.queuename), copy, Message.DEFAULT_DELIVERY_MODE, priority, Message.DEFAULT_TIME_TO_LIVE);
+        }
+        bucket.session.commit();
+        bucket.pending = null;
+        queue.moved(pending, copy);
+    }
+
+    private void open() throws JMSException {
+        if (connection != null) {
+            return;
+        }
+        boolean opened = false;
+        try {
+            connection = queue.connectionFactory.createConnection();
+            connection.start();
+            for (Bucket bucket : states) {
+                bucket.session = connection.createSession(true, Session.SESSION_TRANSACTED);
+                bucket.consumer = bucket.session.createConsumer(bucket.session.createQueue(bucket.queuename));
+                bucket.producer = bucket.session.createProducer(null);
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Close all sessions. Messages which are kept by the mover are handed
+     * back to the bucket queues
+     */
+    private void close() {
+        for (Bucket bucket : states) {
+            bucket.pending = null;
+            if (bucket.session != null) {
+                try {
+                    bucket.session.close();
+                } catch (JMSException e) {
+                    // ignore on close
+                }
+            }
+            bucket.session = null;
+            bucket.consumer = null;
+            bucket.producer = null;
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                // ignore on close
+            }
+        }
+        connection = null;
+    }
+
+    private final static class Bucket {
+        private final String queuename;
+        private Session session;
+        private MessageConsumer consumer;
+        private MessageProducer producer;
+        private Message pending;
+
+        private Bucket(String queuename) {
+            this.queuename = queuename;
+        }
+    }
+}
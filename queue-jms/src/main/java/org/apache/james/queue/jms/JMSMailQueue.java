@@ -22,6 +22,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -29,7 +31,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import javax.jms.BytesMessage;
@@ -49,9 +53,14 @@ import javax.mail.internet.MimeMessage;
 
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueMetrics;
+import org.apache.james.queue.api.MailQueueMetricsSupport;
 import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.jms.JMSConsumerPool.PooledConsumer;
+import org.apache.james.queue.jms.JMSProducerPool.PooledProducer;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
@@ -66,20 +75,409 @@ import org.slf4j.Logger;
  * It use {@link ObjectMessage} with a byte array as payload to store the
  * {@link Mail} objects.
  * </p>
+ * <p>
+ * If a consumer pool size greater then 0 is set via
+ * {@link #setConsumerPoolSize(int)} the dequeue operations will reuse
+ * long-lived sessions and consumers out of a {@link JMSConsumerPool}. The same
+ * is true for enqueue operations and the {@link JMSProducerPool} if
+ * {@link #setProducerPoolSize(int)} is used.
+ * </p>
+ * <p>
+ * If a {@link FileContentStore} is set via
+ * {@link #setContentStore(FileContentStore)}, the content of messages which
+ * are bigger then the configured large message threshold is written to the
+ * store and only a reference to it is send to the JMS Provider. The content is
+ * read lazy on dequeue and deleted once the dequeue operation was committed.
+ * </p>
+ * <p>
+ * If {@link #setUseIndex(boolean)} is used, a {@link JMSMailQueueIndex} is kept
+ * in step with the enqueue and dequeue operations. It is used to answer size
+ * queries without browsing the queue and to remove mails by sender, recipient
+ * or name with a selector which only matches the affected messages. The index
+ * is built from the queue content on first usage and only sees the operations
+ * of this instance, so it should only be used if no other process access the
+ * JMS Queue. It is re-synced with the queue content if a mismatch is noticed
+ * and, if {@link #setIndexResyncInterval(long)} is used, periodically, which
+ * also picks up messages which were expired or moved to a dead letter queue
+ * by the JMS Provider.
+ * </p>
+ * <p>
+ * If delay buckets are set via {@link #setDelayBuckets(long[])}, delayed mails
+ * are parked in one holding queue per bucket and moved to the queue by a
+ * {@link JMSDelayBucketMover} once they are due. The queue itself only holds
+ * mails which are ready, so dequeue does not need a message selector.
+ * </p>
  */
-public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport {
+public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport, MailQueueMetricsSupport, Disposable {
 
     protected final String queuename;
     protected final ConnectionFactory connectionFactory;
     protected final Logger logger;
     public final static String FORCE_DELIVERY = "FORCE_DELIVERY";
 
+    /** Timeout (in ms) used for receive a message on dequeue */
+    private final static long RECEIVE_TIMEOUT = 10000;
+
+    private JMSConsumerPool consumerPool;
+    private JMSProducerPool producerPool;
+
+    private FileContentStore contentStore;
+    private long largeMessageThreshold = -1;
+
+    private JMSMailQueueIndex index;
+    private long indexResyncInterval = 0;
+    private final Object rebuildLock = new Object();
+
+    /** Max count of keys which are used within one selector */
+    private final static int MAX_SELECTOR_KEYS = 500;
+
+    private JMSDelayBucketMover mover;
+
+    private final MailQueueMetrics metrics = new MailQueueMetrics(this);
+
     public JMSMailQueue(final ConnectionFactory connectionFactory, final String queuename, final Logger logger) {
         this.connectionFactory = connectionFactory;
         this.queuename = queuename;
         this.logger = logger;
     }
 
+    /**
+     * Set the max count of idle sessions which are kept open for dequeue. If
+     * the size is greater then 0, the sessions and consumers are reused across
+     * dequeued items instead of creating a new connection, session and consumer
+     * for every single message. The default is 0 which means no pooling is
+     * used.
+     * 
+     * This must get called before the queue is used.
+     * 
+     * @param consumerPoolSize
+     */
+    public void setConsumerPoolSize(int consumerPoolSize) {
+        if (consumerPool != null) {
+            consumerPool.close();
+            consumerPool = null;
+        }
+        if (consumerPoolSize > 0) {
+            consumerPool = new JMSConsumerPool(connectionFactory, queuename, consumerPoolSize, RECEIVE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Set the max count of idle sessions which are kept open for enqueue. If
+     * the size is greater then 0, the sessions and producers are reused across
+     * enqueue operations. The default is 0 which means no pooling is used.
+     * 
+     * This must get called before the queue is used.
+     * 
+     * @param producerPoolSize
+     */
+    public void setProducerPoolSize(int producerPoolSize) {
+        if (producerPool != null) {
+            producerPool.close();
+            producerPool = null;
+        }
+        if (producerPoolSize > 0) {
+            producerPool = new JMSProducerPool(connectionFactory, queuename, producerPoolSize);
+        }
+    }
+
+    /**
+     * Set the {@link FileContentStore} which is used to store the content of
+     * large messages outside of the JMS Provider. This is only used if a large
+     * message threshold is set via {@link #setLargeMessageThreshold(long)}.
+     * 
+     * This must get called before the queue is used.
+     * 
+     * @param contentStore
+     */
+    public void setContentStore(FileContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * Set the size (in bytes) above which the message content is stored in
+     * the {@link FileContentStore} and only a reference to it is enqueued.
+     * Messages with an unknown size are always stored there. The default is
+     * <code>-1</code> which means all messages are send as payload of an
+     * {@link ObjectMessage}.
+     * 
+     * This must get called before the queue is used.
+     * 
+     * @param largeMessageThreshold
+     */
+    public void setLargeMessageThreshold(long largeMessageThreshold) {
+        this.largeMessageThreshold = largeMessageThreshold;
+    }
+
+    /**
+     * Set the delays (in ms) of the buckets which are used to park delayed
+     * mails. A delayed mail is parked in the holding queue of the biggest
+     * bucket which is not longer then its delay, and parked again for the
+     * remaining delay once it is due. A remaining delay shorter then the
+     * smallest bucket is rounded up to it, so the delivery may get postponed
+     * up to the smallest bucket delay. The buckets should match the delays
+     * used by the mailets, for example the retry delays of the RemoteDelivery
+     * mailet. The default is <code>null</code>, which means
+     * delayed mails stay in the queue and a message selector is used on
+     * dequeue.
+     * 
+     * This must get called before the queue is used.
+     * 
+     * @param delayBuckets
+     */
+    public void setDelayBuckets(long[] delayBuckets) {
+        if (mover != null) {
+            mover.dispose();
+            mover = null;
+        }
+        if (delayBuckets != null && delayBuckets.length > 0) {
+            long[] buckets = delayBuckets.clone();
+            Arrays.sort(buckets);
+            mover = new JMSDelayBucketMover(this, buckets);
+        }
+    }
+
+    /**
+     * Return the name of the holding queue for the delay bucket
+     * 
+     * @param bucket
+     *            the delay of the bucket in ms
+     * @return name
+     */
+    protected String getDelayQueueName(long bucket) {
+        return queuename + ".delay." + bucket;
+    }
+
+    /**
+     * Return the names of all JMS Queues which hold mails of this queue. This
+     * includes the holding queues of the delay buckets
+     * 
+     * @return names
+     */
+    protected List<String> getQueueNames() {
+        List<String> names = new ArrayList<String>();
+        names.add(queuename);
+        if (mover != null) {
+            for (long bucket : mover.getBuckets()) {
+                names.add(getDelayQueueName(bucket));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Called by the {@link JMSDelayBucketMover} after the given message was
+     * moved by sending the given copy
+     * 
+     * @param message
+     * @param copy
+     * @throws JMSException
+     */
+    protected void moved(Message message, Message copy) throws JMSException {
+        if (index != null && message.getStringProperty(JAMES_MAIL_INDEX_KEY) == null) {
+            // the message is indexed by its JMS Message ID which was changed
+            index.remove(message.getJMSMessageID());
+            index.add(copy.getJMSMessageID(), true, copy.getStringProperty(JAMES_MAIL_NAME), copy.getStringProperty(JAMES_MAIL_SENDER), copy.getStringProperty(JAMES_MAIL_RECIPIENTS), getPriority(copy));
+        }
+    }
+
+    /**
+     * Set if a {@link JMSMailQueueIndex} should be used for size queries and
+     * removals. The default is <code>false</code>.
+     * 
+     * This must get called before the queue is used.
+     * 
+     * @param useIndex
+     */
+    public void setUseIndex(boolean useIndex) {
+        if (useIndex) {
+            index = new JMSMailQueueIndex();
+        } else {
+            index = null;
+        }
+    }
+
+    /**
+     * Set the interval (in ms) after which the {@link JMSMailQueueIndex} is
+     * re-synced with the content of the JMS Queue. This is needed if messages
+     * can leave the JMS Queue without this instance, for example because they
+     * expire. The default is 0, which means the index is only re-synced if a
+     * mismatch is noticed.
+     * 
+     * @param indexResyncInterval
+     */
+    public void setIndexResyncInterval(long indexResyncInterval) {
+        this.indexResyncInterval = indexResyncInterval;
+    }
+
+    /**
+     * Return the {@link JMSMailQueueIndex} or <code>null</code> if no index is
+     * used. The index is built if this was not done before, and re-synced if
+     * it is stale
+     * 
+     * @return index
+     * @throws MailQueueException
+     */
+    public JMSMailQueueIndex getIndex() throws MailQueueException {
+        if (index != null && index.needsRebuild(indexResyncInterval)) {
+            synchronized (rebuildLock) {
+                // another thread may have rebuilt it while we waited for the
+                // lock
+                if (index.needsRebuild(indexResyncInterval)) {
+                    rebuildIndex();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * (Re-)build the {@link JMSMailQueueIndex} by browsing the JMS Queue. Only
+     * the properties of the messages are read. The index is not locked while
+     * the JMS Queue is browsed, the updates done meanwhile are applied to the
+     * new content once it is complete
+     * 
+     * @throws MailQueueException
+     */
+    @SuppressWarnings("unchecked")
+    public void rebuildIndex() throws MailQueueException {
+        if (index == null) {
+            return;
+        }
+        synchronized (rebuildLock) {
+            index.startRebuild();
+            JMSMailQueueIndex built = new JMSMailQueueIndex();
+            built.setInitialized(true);
+
+            Connection connection = null;
+            Session session = null;
+            QueueBrowser browser = null;
+            try {
+                connection = connectionFactory.createConnection();
+                connection.start();
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+                for (String name : getQueueNames()) {
+                    browser = session.createBrowser(session.createQueue(name));
+                    Enumeration<Message> messages = browser.getEnumeration();
+                    while (messages.hasMoreElements()) {
+                        Message m = messages.nextElement();
+                        String key = m.getStringProperty(JAMES_MAIL_INDEX_KEY);
+                        boolean messageId = key == null;
+                        if (messageId) {
+                            key = m.getJMSMessageID();
+                        }
+                        built.add(key, messageId, m.getStringProperty(JAMES_MAIL_NAME), m.getStringProperty(JAMES_MAIL_SENDER), m.getStringProperty(JAMES_MAIL_RECIPIENTS), getPriority(m));
+                    }
+                    browser.close();
+                    browser = null;
+                }
+                index.finishRebuild(built);
+            } catch (Exception e) {
+                index.abortRebuild();
+                logger.error("Unable to build index of queue " + queuename, e);
+                throw new MailQueueException("Unable to build index of queue " + queuename, e);
+            } finally {
+                try {
+                    if (browser != null)
+                        browser.close();
+                } catch (JMSException e1) {
+                    // ignore here
+                }
+
+                try {
+                    if (session != null)
+                        session.close();
+                } catch (JMSException e1) {
+                    // ignore here
+                }
+
+                try {
+                    if (connection != null)
+                        connection.close();
+                } catch (JMSException e1) {
+                    // ignore here
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the message which was produced with the given properties to the
+     * {@link JMSMailQueueIndex}
+     * 
+     * @param props
+     * @param msgPrio
+     */
+    protected void indexMail(Map<String, Object> props, int msgPrio) {
+        if (index != null) {
+            index.add((String) props.get(JAMES_MAIL_INDEX_KEY), false, (String) props.get(JAMES_MAIL_NAME), (String) props.get(JAMES_MAIL_SENDER), (String) props.get(JAMES_MAIL_RECIPIENTS), msgPrio);
+        }
+    }
+
+    /**
+     * Remove the given message from the {@link JMSMailQueueIndex}
+     * 
+     * @param message
+     * @throws JMSException
+     */
+    protected void unindexMail(Message message) throws JMSException {
+        if (index != null) {
+            String key = message.getStringProperty(JAMES_MAIL_INDEX_KEY);
+            if (key == null) {
+                key = message.getJMSMessageID();
+            }
+            if (!index.remove(key)) {
+                // the message was enqueued by someone else
+                index.markStale();
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsSupport#getMetrics()
+     */
+    public MailQueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Return the {@link JMSConsumerPool} used for dequeue or <code>null</code>
+     * if no pooling is used
+     * 
+     * @return consumerPool
+     */
+    public JMSConsumerPool getConsumerPool() {
+        return consumerPool;
+    }
+
+    /**
+     * Return the {@link JMSProducerPool} used for enqueue or <code>null</code>
+     * if no pooling is used
+     * 
+     * @return producerPool
+     */
+    public JMSProducerPool getProducerPool() {
+        return producerPool;
+    }
+
+    /**
+     * Close all pooled resources
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        if (mover != null) {
+            mover.dispose();
+        }
+        if (consumerPool != null) {
+            consumerPool.close();
+        }
+        if (producerPool != null) {
+            producerPool.close();
+        }
+    }
+
     /**
      * <p>
      * Dequeues a mail when it is ready to process. As JMS does not support delay scheduling out-of-the box,
@@ -93,58 +491,84 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * </p>
      */
     public MailQueueItem deQueue() throws MailQueueException {
-        Connection connection = null;
-        Session session = null;
-        Message message = null;
-        MessageConsumer consumer = null;
-
         while (true) {
-            try {
-                connection = connectionFactory.createConnection();
-                connection.start();
+            MailQueueItem item = receiveItem(RECEIVE_TIMEOUT);
+            if (item != null) {
+                return item;
+            }
+        }
+    }
 
-                session = connection.createSession(true, Session.SESSION_TRANSACTED);
-                Queue queue = session.createQueue(queuename);
-                consumer = session.createConsumer(queue, getMessageSelector());
+    /**
+     * Dequeue up to max ready messages. Every returned item use its own
+     * transacted {@link Session}, so each of them can be committed or rolled
+     * back independently. This is most efficient if a consumer pool is used.
+     * 
+     * @see org.apache.james.queue.api.MailQueue#deQueue(int, long,
+     *      java.util.concurrent.TimeUnit)
+     */
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        MailQueueItem item = receiveItem(Math.max(1, unit.toMillis(timeout)));
+        while (item != null) {
+            items.add(item);
+            if (items.size() >= max) {
+                break;
+            }
+            try {
+                // only take what is ready right now
+                item = receiveItem(0);
+            } catch (MailQueueException e) {
+                if (items.isEmpty()) {
+                    throw e;
+                }
+                // return what we have so far, the error will show up again
+                // on the next dequeue
+                logger.info("Unable to dequeue more messages from queue " + queuename, e);
+                item = null;
+            }
+        }
+        return items;
+    }
 
-                message = consumer.receive(10000);
+    /**
+     * Receive the next ready message and create a {@link MailQueueItem} for it.
+     * 
+     * @param timeout
+     *            the time (in ms) to wait for a message. If it is 0 or less
+     *            it will not wait at all
+     * @return item or <code>null</code> if no message was ready within the
+     *         timeout
+     * @throws MailQueueException
+     */
+    protected MailQueueItem receiveItem(long timeout) throws MailQueueException {
+        if (consumerPool != null) {
+            return receivePooledItem(timeout);
+        }
 
-                if (message != null) {
-                    return createMailQueueItem(connection, session, consumer, message);
-                } else {
-                    session.commit();
+        Connection connection = null;
+        Session session = null;
+        Message message = null;
+        MessageConsumer consumer = null;
 
-                    if (consumer != null) {
+        try {
+            connection = connectionFactory.createConnection();
+            connection.start();
 
-                        try {
-                            consumer.close();
-                        } catch (JMSException e1) {
-                            // ignore on rollback
-                        }
-                    }
-                    try {
-                        if (session != null)
-                            session.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
+            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            Queue queue = session.createQueue(queuename);
+            consumer = session.createConsumer(queue, getMessageSelector());
 
-                    try {
-                        if (connection != null)
-                            connection.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
-                }
+            if (timeout > 0) {
+                message = consumer.receive(timeout);
+            } else {
+                message = consumer.receiveNoWait();
+            }
 
-            } catch (Exception e) {
-                if (session != null) {
-                    try {
-                        session.rollback();
-                    } catch (JMSException e1) {
-                        // ignore on rollback
-                    }
-                }
+            if (message != null) {
+                return withCommitActions(createMailQueueItem(connection, session, consumer, message), message);
+            } else {
+                session.commit();
 
                 if (consumer != null) {
 
@@ -167,53 +591,303 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 } catch (JMSException e1) {
                     // ignore here
                 }
-                throw new MailQueueException("Unable to dequeue next message", e);
+                return null;
+            }
+
+        } catch (Exception e) {
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+
+            if (consumer != null) {
+
+                try {
+                    consumer.close();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+            throw new MailQueueException("Unable to dequeue next message", e);
+        }
+    }
+
+    /**
+     * Receive the next ready message by using a {@link PooledConsumer} of the
+     * {@link JMSConsumerPool}. The {@link PooledConsumer} is returned to the
+     * pool once the {@link MailQueueItem} is done.
+     * 
+     * @param timeout
+     * @return item or <code>null</code> if no message was ready within the
+     *         timeout
+     * @throws MailQueueException
+     */
+    protected MailQueueItem receivePooledItem(long timeout) throws MailQueueException {
+        PooledConsumer pooled = null;
+        try {
+            pooled = consumerPool.borrow();
+            Message message = pooled.receive(getMessageSelector(), timeout);
+
+            if (message != null) {
+                return withCommitActions(createMailQueueItem(pooled, message), message);
+            } else {
+                pooled.getSession().commit();
+                pooled.release();
+                return null;
+            }
+        } catch (Exception e) {
+            if (pooled != null) {
+                try {
+                    pooled.getSession().rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+                pooled.invalidate();
+            }
+            throw new MailQueueException("Unable to dequeue next message", e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail,
+     * long, java.util.concurrent.TimeUnit)
+     */
+    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        long start = System.nanoTime();
+        long mydelay = 0;
+
+        if (delay > 0) {
+            mydelay = TimeUnit.MILLISECONDS.convert(delay, unit);
+        }
+
+        try {
+            if (mover != null && mydelay > 0) {
+                enQueueDelayed(mail, mydelay);
+            } else if (producerPool != null) {
+                enQueuePooled(mail, mydelay);
+            } else {
+                enQueueUnpooled(mail, mydelay);
+            }
+        } catch (MailQueueException e) {
+            metrics.enqueueFailed();
+            throw e;
+        }
+        metrics.enqueued(1, start);
+    }
+
+    /**
+     * Enqueue the mail by using a new {@link Connection} and {@link Session}
+     * 
+     * @param mail
+     * @param mydelay
+     * @throws MailQueueException
+     */
+    protected void enQueueUnpooled(Mail mail, long mydelay) throws MailQueueException {
+        Connection connection = null;
+        Session session = null;
+
+        try {
+
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+            int msgPrio = getPriority(mail);
+            Map<String, Object> props = getJMSProperties(mail, mydelay);
+
+            produceMail(session, props, msgPrio, mail);
+            indexMail(props, msgPrio);
+
+        } catch (Exception e) {
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            throw new MailQueueException("Unable to enqueue mail " + mail, e);
+
+        } finally {
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Enqueue all mails within one transacted {@link Session}, so either all
+     * or non of them are stored in the queue. If the {@link Session} is rolled
+     * back everything which was already stored for the produced messages is
+     * discarded again. See {@link #discardProduced(Session, Map)}
+     * 
+     * @see org.apache.james.queue.api.MailQueue#enQueue(java.util.Collection)
+     */
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        long start = System.nanoTime();
+        Connection connection = null;
+        Session session = null;
+        MessageProducer producer = null;
+        List<Map<String, Object>> produced = new ArrayList<Map<String, Object>>();
+        boolean committed = false;
+
+        try {
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            producer = session.createProducer(session.createQueue(queuename));
+
+            List<Integer> priorities = new ArrayList<Integer>();
+            for (Mail mail : mails) {
+                Map<String, Object> props = getJMSProperties(mail, 0);
+                int msgPrio = getPriority(mail);
+                produceMail(session, producer, props, msgPrio, mail);
+                produced.add(props);
+                priorities.add(msgPrio);
+            }
+            session.commit();
+            committed = true;
+
+            for (int i = 0; i < produced.size(); i++) {
+                indexMail(produced.get(i), priorities.get(i));
+            }
+            metrics.enqueued(produced.size(), start);
+        } catch (Exception e) {
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            if (!committed) {
+                // no message references the stored content anymore
+                for (Map<String, Object> props : produced) {
+                    discardProduced(session, props);
+                }
+            }
+            metrics.enqueueFailed();
+            throw new MailQueueException("Unable to enqueue mails " + mails, e);
+
+        } finally {
+            try {
+                if (producer != null)
+                    producer.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e) {
+                // ignore here
             }
         }
-
     }
 
     /**
-     * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail,
-     * long, java.util.concurrent.TimeUnit)
+     * Enqueue the mail by using a {@link PooledProducer} of the
+     * {@link JMSProducerPool}
+     * 
+     * @param mail
+     * @param delayInMillis
+     * @throws MailQueueException
      */
-    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        Connection connection = null;
-        Session session = null;
+    protected void enQueuePooled(Mail mail, long delayInMillis) throws MailQueueException {
+        PooledProducer pooled = null;
+        try {
+            pooled = producerPool.borrow();
 
-        long mydelay = 0;
+            int msgPrio = getPriority(mail);
+            Map<String, Object> props = getJMSProperties(mail, delayInMillis);
 
-        if (delay > 0) {
-            mydelay = TimeUnit.MILLISECONDS.convert(delay, unit);
+            produceMail(pooled.getSession(), pooled.getProducer(), props, msgPrio, mail);
+            pooled.release();
+            indexMail(props, msgPrio);
+        } catch (Exception e) {
+            if (pooled != null) {
+                pooled.invalidate();
+            }
+            throw new MailQueueException("Unable to enqueue mail " + mail, e);
         }
+    }
 
-        try {
+    /**
+     * Park the mail in the holding queue of its delay bucket. The messages of
+     * a holding queue all use the same JMS priority, so they are ordered by the
+     * time they are due. The priority of the mail is kept in a property and
+     * restored once the mail is moved to the queue
+     * 
+     * @param mail
+     * @param delayInMillis
+     * @throws MailQueueException
+     */
+    protected void enQueueDelayed(Mail mail, long delayInMillis) throws MailQueueException {
+        Connection connection = null;
+        Session session = null;
+        MessageProducer producer = null;
 
+        try {
             connection = connectionFactory.createConnection();
             connection.start();
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 
-            int msgPrio = NORMAL_PRIORITY;
-            Object prio = mail.getAttribute(MAIL_PRIORITY);
-            if (prio instanceof Integer) {
-                msgPrio = (Integer) prio;
-            }
-
-            Map<String, Object> props = getJMSProperties(mail, mydelay);
+            long bucket = mover.getBucket(delayInMillis);
+            producer = session.createProducer(session.createQueue(getDelayQueueName(bucket)));
 
-            produceMail(session, props, msgPrio, mail);
+            int msgPrio = getPriority(mail);
+            Map<String, Object> props = getJMSProperties(mail, delayInMillis);
+            props.put(JAMES_MAIL_PRIORITY, msgPrio);
+            // always due after the delay of the bucket, so the bucket stays
+            // ordered by due time
+            props.put(JAMES_DELAY_BUCKET_DUE, System.currentTimeMillis() + bucket);
 
+            produceMail(session, producer, props, Message.DEFAULT_PRIORITY, mail);
+            indexMail(props, msgPrio);
         } catch (Exception e) {
-            if (session != null) {
-                try {
-                    session.rollback();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
-            }
             throw new MailQueueException("Unable to enqueue mail " + mail, e);
-
         } finally {
+            try {
+                if (producer != null)
+                    producer.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
             try {
                 if (session != null)
                     session.close();
@@ -230,6 +904,36 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         }
     }
 
+    /**
+     * Return the priority of the mail which is stored in the given
+     * {@link Message}
+     * 
+     * @param message
+     * @return priority
+     * @throws JMSException
+     */
+    protected int getPriority(Message message) throws JMSException {
+        if (message.propertyExists(JAMES_MAIL_PRIORITY)) {
+            return message.getIntProperty(JAMES_MAIL_PRIORITY);
+        }
+        return message.getJMSPriority();
+    }
+
+    /**
+     * Return the JMS priority to use for the given {@link Mail}
+     * 
+     * @param mail
+     * @return priority
+     */
+    protected int getPriority(Mail mail) {
+        int msgPrio = NORMAL_PRIORITY;
+        Object prio = mail.getAttribute(MAIL_PRIORITY);
+        if (prio instanceof Integer) {
+            msgPrio = (Integer) prio;
+        }
+        return msgPrio;
+    }
+
     /**
      * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail)
      */
@@ -247,38 +951,203 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             Queue queue = session.createQueue(queuename);
 
             producer = session.createProducer(queue);
-            ObjectMessage message = session.createObjectMessage();
+            produceMail(session, producer, props, msgPrio, mail);
+
+        } finally {
+
+            try {
+                if (producer != null)
+                    producer.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+
+    }
+
+    /**
+     * Produce the mail to the JMS Queue by using the given
+     * {@link MessageProducer}
+     */
+    protected void produceMail(Session session, MessageProducer producer, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+        long size = mail.getMessageSize();
+        if (isLargeMessage(size)) {
+            produceMailReference(session, producer, props, msgPrio, mail);
+            return;
+        }
+
+        ObjectMessage message = session.createObjectMessage();
+
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            message.setObjectProperty(entry.getKey(), entry.getValue());
+        }
 
+        ByteArrayOutputStream out;
+        if (size > -1) {
+            out = new ByteArrayOutputStream((int) size);
+        } else {
+            out = new ByteArrayOutputStream();
+        }
+        mail.getMessage().writeTo(out);
+
+        // store the byte array in a ObjectMessage so we can use a
+        // SharedByteArrayInputStream later
+        // without the need of copy the day
+        message.setObject(out.toByteArray());
+
+        producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * Return <code>true</code> if a message with the given size should get
+     * stored in the {@link FileContentStore}
+     * 
+     * @param size
+     *            the size of the message or -1 if unknown
+     * @return large
+     */
+    protected boolean isLargeMessage(long size) {
+        return contentStore != null && largeMessageThreshold > -1 && (size < 0 || size > largeMessageThreshold);
+    }
+
+    /**
+     * Stream the content of the mail to the {@link FileContentStore} and
+     * produce a {@link Message} which only holds the reference to it. The
+     * reference is also added to the given properties, so a transacted
+     * caller can delete the content if it rolls back. If the {@link Message}
+     * could not be send the stored content is deleted again
+     */
+    protected void produceMailReference(Session session, MessageProducer producer, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+        String ref = contentStore.store(mail.getMessage());
+        props.put(JAMES_MAIL_CONTENT_REF, ref);
+        boolean sent = false;
+        try {
+            Message message = session.createMessage();
             for (Map.Entry<String, Object> entry : props.entrySet()) {
                 message.setObjectProperty(entry.getKey(), entry.getValue());
             }
 
-            long size = mail.getMessageSize();
-            ByteArrayOutputStream out;
-            if (size > -1) {
-                out = new ByteArrayOutputStream((int) size);
-            } else {
-                out = new ByteArrayOutputStream();
+            producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+            sent = true;
+        } finally {
+            if (!sent) {
+                deleteContent(ref);
             }
-            mail.getMessage().writeTo(out);
+        }
+    }
 
-            // store the byte array in a ObjectMessage so we can use a
-            // SharedByteArrayInputStream later
-            // without the need of copy the day
-            message.setObject(out.toByteArray());
+    /**
+     * Discard everything which was stored outside of the JMS provider for a
+     * message which was produced with the given properties within a
+     * transacted {@link Session} that was rolled back. This deletes the
+     * content from the {@link FileContentStore}. Errors are only logged
+     * 
+     * @param session
+     *            the rolled back session
+     * @param props
+     *            the properties which were passed to
+     *            {@link #produceMail(Session, MessageProducer, Map, int, Mail)}
+     */
+    protected void discardProduced(Session session, Map<String, Object> props) {
+        String ref = (String) props.get(JAMES_MAIL_CONTENT_REF);
+        if (ref != null) {
+            deleteContent(ref);
+        }
+    }
 
-            producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+    /**
+     * Return the reference to the content in the {@link FileContentStore} or
+     * <code>null</code> if the content is the payload of the {@link Message}
+     * 
+     * @param message
+     * @return ref
+     * @throws JMSException
+     */
+    protected String getContentReference(Message message) throws JMSException {
+        return message.getStringProperty(JAMES_MAIL_CONTENT_REF);
+    }
 
-        } finally {
+    /**
+     * Delete the content with the given reference from the
+     * {@link FileContentStore}. Errors are only logged
+     * 
+     * @param ref
+     */
+    protected void deleteContent(String ref) {
+        if (contentStore == null) {
+            logger.error("Unable to delete content " + ref + " as no content store is configured for queue " + queuename);
+            return;
+        }
+        try {
+            contentStore.delete(ref);
+        } catch (IOException e) {
+            logger.error("Unable to delete content " + ref + " for queue " + queuename, e);
+        }
+    }
 
-            try {
-                if (producer != null)
-                    producer.close();
-            } catch (JMSException e) {
-                // ignore here
+    /**
+     * Return a {@link MailQueueItem} which deletes the content of the given
+     * {@link Message} from the {@link FileContentStore} and removes it from the
+     * {@link JMSMailQueueIndex} once the dequeue operation was committed. The
+     * dwell time and the latency of the dequeue operation are recorded in the
+     * {@link MailQueueMetrics} of this queue.
+     * 
+     * @param item
+     * @param message
+     * @return item
+     * @throws JMSException
+     */
+    protected MailQueueItem withCommitActions(final MailQueueItem item, final Message message) throws JMSException {
+        final String ref = getContentReference(message);
+        metrics.dequeued(getReadyTime(message));
+        return new MailQueueItem() {
+
+            /**
+             * @see org.apache.james.queue.api.MailQueue.MailQueueItem#getMail()
+             */
+            public Mail getMail() {
+                return item.getMail();
             }
-        }
 
+            /**
+             * @see org.apache.james.queue.api.MailQueue.MailQueueItem#done(boolean)
+             */
+            public void done(boolean success) throws MailQueueException {
+                long start = System.nanoTime();
+                item.done(success);
+                if (success) {
+                    if (ref != null) {
+                        deleteContent(ref);
+                    }
+                    try {
+                        unindexMail(message);
+                    } catch (JMSException e) {
+                        logger.error("Unable to remove mail " + item.getMail().getName() + " from index of queue " + queuename, e);
+                    }
+                }
+                metrics.done(success, start);
+            }
+        };
+    }
+
+    /**
+     * Return the time (in ms) at which the given {@link Message} became ready
+     * for dequeue. This is the time of the enqueue operation or the time of
+     * the next delivery, if the message was delayed.
+     * 
+     * @param message
+     * @return readyTime
+     * @throws JMSException
+     */
+    protected long getReadyTime(Message message) throws JMSException {
+        long readyTime = message.getJMSTimestamp();
+        if (message.propertyExists(FORCE_DELIVERY) && message.getBooleanProperty(FORCE_DELIVERY)) {
+            return readyTime;
+        }
+        if (message.propertyExists(JAMES_NEXT_DELIVERY)) {
+            readyTime = Math.max(readyTime, message.getLongProperty(JAMES_NEXT_DELIVERY));
+        }
+        return readyTime;
     }
 
     /**
@@ -302,6 +1171,9 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         props.put(JAMES_MAIL_LAST_UPDATED, mail.getLastUpdated().getTime());
         props.put(JAMES_MAIL_MESSAGE_SIZE, mail.getMessageSize());
         props.put(JAMES_MAIL_NAME, mail.getName());
+        if (index != null) {
+            props.put(JAMES_MAIL_INDEX_KEY, UUID.randomUUID().toString());
+        }
 
         StringBuilder recipientsBuilder = new StringBuilder();
 
@@ -371,7 +1243,14 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * @throws MessagingException
      */
     protected void populateMailMimeMessage(Message message, Mail mail) throws MessagingException, JMSException {
-        if (message instanceof ObjectMessage) {
+        String ref = getContentReference(message);
+        if (ref != null) {
+            if (contentStore == null) {
+                throw new MailQueueException("No content store configured to read content " + ref + " of JMS Message " + message);
+            }
+            long size = message.getLongProperty(JAMES_MAIL_MESSAGE_SIZE);
+            mail.setMessage(new MimeMessageCopyOnWriteProxy(new MimeMessageContentStoreSource(contentStore, ref, message.getJMSMessageID(), size)));
+        } else if (message instanceof ObjectMessage) {
             mail.setMessage(new MimeMessageCopyOnWriteProxy(new MimeMessageObjectMessageSource((ObjectMessage) message)));
         } else {
             throw new MailQueueException("Not supported JMS Message received " + message);
@@ -481,15 +1360,89 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         return new JMSMailQueueItem(mail, connection, session, consumer);
     }
 
+    /**
+     * Create a {@link org.apache.james.queue.api.MailQueue.MailQueueItem} which
+     * use the given {@link PooledConsumer}
+     * 
+     * @param pooled
+     * @param message
+     * @return item
+     * @throws JMSException
+     * @throws MessagingException
+     */
+    protected MailQueueItem createMailQueueItem(PooledConsumer pooled, Message message) throws JMSException, MessagingException {
+        final Mail mail = createMail(message);
+        return new JMSMailQueueItem(mail, pooled);
+    }
+
     protected String getMessageSelector() {
+        if (mover != null) {
+            // only ready mails are in the queue
+            return null;
+        }
         return JAMES_NEXT_DELIVERY + " <= " + System.currentTimeMillis() + " OR " + FORCE_DELIVERY + " = true";
     }
 
     /**
      * @see org.apache.james.queue.api.ManageableMailQueue#getSize()
      */
-    @SuppressWarnings("unchecked")
     public long getSize() throws MailQueueException {
+        if (index != null) {
+            return getIndex().size();
+        }
+        return getSize((String) null);
+    }
+
+    /**
+     * Return the count of messages with the given JMS priority
+     * 
+     * @see org.apache.james.queue.api.ManageableMailQueue#getSize(int)
+     */
+    public long getSize(int priority) throws MailQueueException {
+        if (index != null) {
+            return getIndex().size(priority);
+        }
+        if (mover != null) {
+            // parked mails use a property for the priority
+            long size = getSize(queuename, "JMSPriority = " + priority);
+            for (long bucket : mover.getBuckets()) {
+                size += getSize(getDelayQueueName(bucket), JAMES_MAIL_PRIORITY + " = " + priority);
+            }
+            return size;
+        }
+        return getSize("JMSPriority = " + priority);
+    }
+
+    /**
+     * Count the messages which match the given selector by browsing the queue
+     * and the holding queues of the delay buckets
+     * 
+     * @param selector
+     *            the selector or <code>null</code> to count all messages
+     * @return size
+     * @throws MailQueueException
+     */
+    protected long getSize(String selector) throws MailQueueException {
+        long size = 0;
+        for (String name : getQueueNames()) {
+            size += getSize(name, selector);
+        }
+        return size;
+    }
+
+    /**
+     * Count the messages of the given JMS Queue which match the given
+     * selector by browsing it
+     * 
+     * @param name
+     *            the name of the JMS Queue
+     * @param selector
+     *            the selector or <code>null</code> to count all messages
+     * @return size
+     * @throws MailQueueException
+     */
+    @SuppressWarnings("unchecked")
+    protected long getSize(String name, String selector) throws MailQueueException {
         Connection connection = null;
         Session session = null;
         QueueBrowser browser = null;
@@ -498,9 +1451,9 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             connection = connectionFactory.createConnection();
             connection.start();
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Queue queue = session.createQueue(queuename);
+            Queue queue = session.createQueue(name);
 
-            browser = session.createBrowser(queue);
+            browser = session.createBrowser(queue, selector);
 
             Enumeration<Message> messages = browser.getEnumeration();
 
@@ -540,6 +1493,16 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * @see org.apache.james.queue.api.ManageableMailQueue#flush()
      */
     public long flush() throws MailQueueException {
+        if (mover != null) {
+            // only the parked mails are not ready yet
+            try {
+                return mover.flush();
+            } catch (JMSException e) {
+                logger.error("Unable to flush mail", e);
+                throw new MailQueueException("Unable to flush queue " + queuename, e);
+            }
+        }
+
         Connection connection = null;
         Session session = null;
         Message message = null;
@@ -632,12 +1595,41 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     }
 
     /**
-     * Remove messages with the given selector
+     * Remove messages with the given selector. This includes the mails which
+     * are parked in the holding queues of the delay buckets
      * 
      * @param selector
      * @return messages
      */
     public List<Message> removeWithSelector(String selector) throws MailQueueException {
+        if (mover == null) {
+            return removeWithSelector(queuename, selector, 2000);
+        }
+
+        // make sure the mover does not keep any message
+        mover.suspend();
+        try {
+            List<Message> messages = new ArrayList<Message>();
+            for (String name : getQueueNames()) {
+                messages.addAll(removeWithSelector(name, selector, 500));
+            }
+            return messages;
+        } finally {
+            mover.resume();
+        }
+    }
+
+    /**
+     * Remove messages with the given selector from the given JMS Queue
+     * 
+     * @param name
+     *            the name of the JMS Queue
+     * @param selector
+     * @param timeout
+     *            the time (in ms) to wait for the first message
+     * @return messages
+     */
+    protected List<Message> removeWithSelector(String name, String selector, long timeout) throws MailQueueException {
         Connection connection = null;
         Session session = null;
         Message message = null;
@@ -650,12 +1642,12 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             connection.start();
 
             session = connection.createSession(true, Session.SESSION_TRANSACTED);
-            Queue queue = session.createQueue(queuename);
+            Queue queue = session.createQueue(name);
             consumer = session.createConsumer(queue, selector);
             while (first || message != null) {
                 if (first) {
-                    // give the consumer 2000 ms to receive messages
-                    message = consumer.receive(2000);
+                    // give the consumer some time to receive messages
+                    message = consumer.receive(timeout);
                 } else {
                     message = consumer.receiveNoWait();
                 }
@@ -665,6 +1657,14 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 }
             }
             session.commit();
+
+            for (Message m : messages) {
+                String ref = getContentReference(m);
+                if (ref != null) {
+                    deleteContent(ref);
+                }
+                unindexMail(m);
+            }
             return messages;
         } catch (Exception e) {
             try {
@@ -711,13 +1711,18 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      */
     @SuppressWarnings("unchecked")
     protected Message copy(Session session, Message m) throws JMSException {
-        ObjectMessage message = (ObjectMessage) m;
-        ObjectMessage copy = session.createObjectMessage(message.getObject());
+        Message copy;
+        if (getContentReference(m) != null) {
+            // the content stays in the store, so only the reference is copied
+            copy = session.createMessage();
+        } else {
+            copy = session.createObjectMessage(((ObjectMessage) m).getObject());
+        }
 
-        Enumeration<String> properties = message.getPropertyNames();
+        Enumeration<String> properties = m.getPropertyNames();
         while (properties.hasMoreElements()) {
             String name = properties.nextElement();
-            copy.setObjectProperty(name, message.getObjectProperty(name));
+            copy.setObjectProperty(name, m.getObjectProperty(name));
         }
 
         return copy;
@@ -729,6 +1734,9 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * java.lang.String)
      */
     public long remove(Type type, String value) throws MailQueueException {
+        if (index != null) {
+            return removeIndexed(type, value);
+        }
         switch (type) {
         case Name:
             return count(removeWithSelector(JAMES_MAIL_NAME + " = '" + value + "'"));
@@ -742,6 +1750,57 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         return -1;
     }
 
+    /**
+     * Remove the mails which match by looking up their keys in the
+     * {@link JMSMailQueueIndex}. The messages are removed with selectors which
+     * only match these keys, so no removal is done at all if nothing matches
+     * 
+     * @param type
+     * @param value
+     * @return count
+     * @throws MailQueueException
+     */
+    protected long removeIndexed(Type type, String value) throws MailQueueException {
+        JMSMailQueueIndex index = getIndex();
+        Set<String> keys = index.getKeys(type, value);
+
+        List<String> indexKeys = new ArrayList<String>();
+        List<String> messageIds = new ArrayList<String>();
+        for (String key : keys) {
+            if (index.isMessageId(key)) {
+                messageIds.add(key);
+            } else {
+                indexKeys.add(key);
+            }
+        }
+
+        long count = 0;
+        count += removeWithKeys(JAMES_MAIL_INDEX_KEY, indexKeys);
+        count += removeWithKeys("JMSMessageID", messageIds);
+        if (count != keys.size()) {
+            // some of the messages were already gone or moved
+            index.markStale();
+        }
+        return count;
+    }
+
+    private long removeWithKeys(String property, List<String> keys) throws MailQueueException {
+        long count = 0;
+        for (int i = 0; i < keys.size(); i += MAX_SELECTOR_KEYS) {
+            List<String> chunk = keys.subList(i, Math.min(keys.size(), i + MAX_SELECTOR_KEYS));
+            StringBuilder selector = new StringBuilder(property).append(" IN (");
+            for (int a = 0; a < chunk.size(); a++) {
+                if (a > 0) {
+                    selector.append(", ");
+                }
+                selector.append('\'').append(chunk.get(a).replace("'", "''")).append('\'');
+            }
+            selector.append(')');
+            count += count(removeWithSelector(selector.toString()));
+        }
+        return count;
+    }
+
     /**
      * @see org.apache.james.queue.api.ManageableMailQueue#browse()
      */
@@ -749,20 +1808,44 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     public MailQueueIterator browse() throws MailQueueException {
         Connection connection = null;
         Session session = null;
-        QueueBrowser browser = null;
+        final List<QueueBrowser> browsers = new ArrayList<QueueBrowser>();
         try {
             connection = connectionFactory.createConnection();
             connection.start();
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Queue queue = session.createQueue(queuename);
 
-            browser = session.createBrowser(queue);
+            // browse the queue and the holding queues of the delay buckets
+            // one after the other
+            final List<Enumeration<Message>> enumerations = new ArrayList<Enumeration<Message>>();
+            for (String name : getQueueNames()) {
+                QueueBrowser browser = session.createBrowser(session.createQueue(name));
+                browsers.add(browser);
+                enumerations.add(browser.getEnumeration());
+            }
+
+            final Enumeration<Message> messages = new Enumeration<Message>() {
+                private int current = 0;
+
+                public boolean hasMoreElements() {
+                    while (current < enumerations.size()) {
+                        if (enumerations.get(current).hasMoreElements()) {
+                            return true;
+                        }
+                        current++;
+                    }
+                    return false;
+                }
 
-            final Enumeration<Message> messages = browser.getEnumeration();
+                public Message nextElement() {
+                    if (!hasMoreElements()) {
+                        throw new NoSuchElementException();
+                    }
+                    return enumerations.get(current).nextElement();
+                }
+            };
 
             final Connection myconnection = connection;
             final Session mysession = session;
-            final QueueBrowser mybrowser = browser;
 
             return new MailQueueIterator() {
 
@@ -824,11 +1907,12 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                  */
                 public void close() {
 
-                    try {
-                        if (mybrowser != null)
-                            mybrowser.close();
-                    } catch (JMSException e1) {
-                        // ignore here
+                    for (QueueBrowser browser : browsers) {
+                        try {
+                            browser.close();
+                        } catch (JMSException e1) {
+                            // ignore here
+                        }
                     }
 
                     try {
@@ -849,11 +1933,12 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
         } catch (Exception e) {
 
-            try {
-                if (browser != null)
+            for (QueueBrowser browser : browsers) {
+                try {
                     browser.close();
-            } catch (JMSException e1) {
-                // ignore here
+                } catch (JMSException e1) {
+                    // ignore here
+                }
             }
 
             try {
@@ -18,8 +18,12 @@
  ****************************************************************/
 package org.apache.james.queue.jms;
 
+import java.io.File;
+import java.io.IOException;
+
 import javax.annotation.Resource;
 import javax.jms.ConnectionFactory;
+import javax.management.StandardMBean;
 
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
@@ -31,18 +35,177 @@ import org.apache.james.queue.library.AbstractMailQueueFactory;
 public class JMSMailQueueFactory extends AbstractMailQueueFactory {
 
     protected ConnectionFactory connectionFactory;
+    private int consumerPoolSize = 0;
+    private int producerPoolSize = 0;
+    private long largeMessageThreshold = -1;
+    private File contentStoreDirectory;
+    private boolean syncContentStore = true;
+    private boolean useIndex = false;
+    private long indexResyncInterval = 0;
+    private long[] delayBuckets;
 
     @Resource(name = "jmsConnectionFactory")
     public void setConnectionFactory(ConnectionFactory connectionFactory) {
         this.connectionFactory = connectionFactory;
     }
 
+    /**
+     * Set the max count of idle dequeue sessions which are kept open per
+     * {@link JMSMailQueue}. If set to a value greater then 0 the sessions and
+     * consumers are reused across dequeue operations.
+     * 
+     * The default is <code>0</code>, which means no pooling is used
+     * 
+     * @param consumerPoolSize
+     */
+    public void setConsumerPoolSize(int consumerPoolSize) {
+        this.consumerPoolSize = consumerPoolSize;
+    }
+
+    /**
+     * Set the max count of idle enqueue sessions which are kept open per
+     * {@link JMSMailQueue}. If set to a value greater then 0 the sessions and
+     * producers are reused across enqueue operations.
+     * 
+     * The default is <code>0</code>, which means no pooling is used
+     * 
+     * @param producerPoolSize
+     */
+    public void setProducerPoolSize(int producerPoolSize) {
+        this.producerPoolSize = producerPoolSize;
+    }
+
+    /**
+     * Set the size (in bytes) above which the message content is stored in a
+     * local {@link FileContentStore} and only a reference to it is send to the
+     * JMS Provider. This needs a content store directory to be set.
+     * 
+     * The default is <code>-1</code>, which means the content is always send
+     * to the JMS Provider
+     * 
+     * @param largeMessageThreshold
+     */
+    public void setLargeMessageThreshold(long largeMessageThreshold) {
+        this.largeMessageThreshold = largeMessageThreshold;
+    }
+
+    /**
+     * Set the directory which is used for the {@link FileContentStore}. Every
+     * queue use its own sub-directory
+     * 
+     * @param contentStoreDirectory
+     */
+    public void setContentStoreDirectory(File contentStoreDirectory) {
+        this.contentStoreDirectory = contentStoreDirectory;
+    }
+
+    /**
+     * Set if the content written to the {@link FileContentStore} is synced to
+     * the disk before the reference gets enqueued. The default is
+     * <code>true</code>
+     * 
+     * @param syncContentStore
+     */
+    public void setSyncContentStore(boolean syncContentStore) {
+        this.syncContentStore = syncContentStore;
+    }
+
+    /**
+     * Set if every {@link JMSMailQueue} should keep a
+     * {@link JMSMailQueueIndex} for size queries and removals. This should
+     * only be used if no other process access the queues.
+     * 
+     * The default is <code>false</code>
+     * 
+     * @param useIndex
+     */
+    public void setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+    }
+
+    /**
+     * Set the interval (in ms) after which the {@link JMSMailQueueIndex} is
+     * re-synced with the content of the queue. See
+     * {@link JMSMailQueue#setIndexResyncInterval(long)}.
+     * 
+     * The default is 0, which means it is only re-synced if a mismatch is
+     * noticed
+     * 
+     * @param indexResyncInterval
+     */
+    public void setIndexResyncInterval(long indexResyncInterval) {
+        this.indexResyncInterval = indexResyncInterval;
+    }
+
+    /**
+     * Set the delays (in ms) of the buckets which are used to park delayed
+     * mails outside of the queues. See
+     * {@link JMSMailQueue#setDelayBuckets(long[])}.
+     * 
+     * The default is <code>null</code>, which means delayed mails stay in the
+     * queues and are selected via a message selector
+     * 
+     * @param delayBuckets
+     */
+    public void setDelayBuckets(long[] delayBuckets) {
+        this.delayBuckets = delayBuckets;
+    }
+
     /**
      * @see
      * org.apache.james.queue.library.AbstractMailQueueFactory#createMailQueue
      * (java.lang.String)
      */
     protected MailQueue createMailQueue(String name) {
-        return new JMSMailQueue(connectionFactory, name, log);
+        return configureMailQueue(new JMSMailQueue(connectionFactory, name, log));
+    }
+
+    /**
+     * Apply the configuration of this factory to the given
+     * {@link JMSMailQueue}
+     * 
+     * @param queue
+     * @return queue
+     */
+    protected JMSMailQueue configureMailQueue(JMSMailQueue queue) {
+        queue.setConsumerPoolSize(consumerPoolSize);
+        queue.setProducerPoolSize(producerPoolSize);
+        queue.setUseIndex(useIndex);
+        queue.setIndexResyncInterval(indexResyncInterval);
+        queue.setDelayBuckets(delayBuckets);
+        if (largeMessageThreshold > -1 && contentStoreDirectory != null) {
+            try {
+                queue.setContentStore(new FileContentStore(new File(contentStoreDirectory, queue.queuename), syncContentStore));
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to create content store for queue " + queue.queuename, e);
+            }
+            queue.setLargeMessageThreshold(largeMessageThreshold);
+        }
+        return queue;
+    }
+
+    /**
+     * Register the MBeans of the session pools in addition to the queue MBean
+     * 
+     * @see org.apache.james.queue.library.AbstractMailQueueFactory#registerMBean(java.lang.String,
+     *      org.apache.james.queue.api.MailQueue)
+     */
+    @Override
+    protected synchronized void registerMBean(String queuename, MailQueue queue) {
+        super.registerMBean(queuename, queue);
+
+        if (queue instanceof JMSMailQueue) {
+            JMSMailQueue jmsQueue = (JMSMailQueue) queue;
+            try {
+                if (jmsQueue.getConsumerPool() != null) {
+                    registerMBeanObject(getMBeanName(queuename) + ",sub-type=consumerpool", new StandardMBean(jmsQueue.getConsumerPool(), JMSSessionPoolMBean.class));
+                }
+                if (jmsQueue.getProducerPool() != null) {
+                    registerMBeanObject(getMBeanName(queuename) + ",sub-type=producerpool", new StandardMBean(jmsQueue.getProducerPool(), JMSSessionPoolMBean.class));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to register mbean", e);
+            }
+        }
     }
 }
\ No newline at end of file
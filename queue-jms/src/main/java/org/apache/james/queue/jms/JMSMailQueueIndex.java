@@ -0,0 +1,388 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+
+/**
+ * <p>
+ * In-memory index of the messages which are stored in a JMS Queue. Every
+ * message is identified by a key and indexed by its mail name, sender and
+ * recipients, so size queries and targeted removals don't need to walk the
+ * whole queue via a {@link javax.jms.QueueBrowser}.
+ * </p>
+ * <p>
+ * The index only reflects the operations which are done through the owning
+ * {@link JMSMailQueue}, so it is only accurate if this is the only process
+ * which access the JMS Queue. Messages which are consumed by other processes,
+ * moved to a dead letter queue or expired by the JMS Provider stay in the
+ * index until it is re-synced with the content of the JMS Queue. The owning
+ * {@link JMSMailQueue} does that periodically if configured and whenever it
+ * notice a mismatch via {@link #markStale()}.
+ * </p>
+ * <p>
+ * Until the index was built from the content of the JMS Queue all updates
+ * are ignored. While it is re-built the updates are applied and recorded, so
+ * they can be applied to the new content too, and the old content is used
+ * for queries until the new one is complete.
+ * </p>
+ */
+public class JMSMailQueueIndex {
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Set<String>> names = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> senders = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> recipients = new HashMap<String, Set<String>>();
+    private final long[] sizes = new long[10];
+    private boolean initialized;
+    private boolean stale;
+    private long lastBuild;
+    private List<Update> journal;
+
+    /**
+     * Add the message with the given key to the index. Adding a key twice
+     * has no effect
+     * 
+     * @param key
+     * @param messageId
+     *            <code>true</code> if the key is the JMS Message ID
+     * @param name
+     * @param sender
+     * @param rcpts
+     *            the recipients separated by
+     *            {@link JMSSupport#JAMES_MAIL_SEPARATOR}
+     * @param priority
+     */
+    public synchronized void add(String key, boolean messageId, String name, String sender, String rcpts, int priority) {
+        if (journal != null) {
+            journal.add(new Update(key, messageId, name, sender, rcpts, priority));
+        }
+        if (!initialized || entries.containsKey(key)) {
+            return;
+        }
+        List<String> rcptList = new ArrayList<String>();
+        if (rcpts != null) {
+            StringTokenizer tokenizer = new StringTokenizer(rcpts, JMSSupport.JAMES_MAIL_SEPARATOR);
+            while (tokenizer.hasMoreTokens()) {
+                rcptList.add(tokenizer.nextToken());
+            }
+        }
+        Entry entry = new Entry(messageId, name, sender, rcptList, clamp(priority));
+        entries.put(key, entry);
+        add(names, name, key);
+        add(senders, sender, key);
+        for (String rcpt : rcptList) {
+            add(recipients, rcpt, key);
+        }
+        sizes[entry.priority]++;
+    }
+
+    /**
+     * Remove the message with the given key from the index
+     * 
+     * @param key
+     * @return <code>true</code> if the key was indexed
+     */
+    public synchronized boolean remove(String key) {
+        if (journal != null) {
+            journal.add(new Update(key));
+        }
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        remove(names, entry.name, key);
+        remove(senders, entry.sender, key);
+        for (String rcpt : entry.recipients) {
+            remove(recipients, rcpt, key);
+        }
+        sizes[entry.priority]--;
+        return true;
+    }
+
+    /**
+     * Return the keys of all messages which match the given type and value
+     * 
+     * @param type
+     * @param value
+     * @return keys
+     */
+    public synchronized Set<String> getKeys(Type type, String value) {
+        Set<String> keys;
+        switch (type) {
+        case Name:
+            keys = names.get(value);
+            break;
+        case Sender:
+            keys = senders.get(value);
+            break;
+        case Recipient:
+            keys = recipients.get(value);
+            break;
+        default:
+            keys = null;
+            break;
+        }
+        if (keys == null) {
+            return new HashSet<String>();
+        }
+        return new HashSet<String>(keys);
+    }
+
+    /**
+     * Return <code>true</code> if the given key is the JMS Message ID of the
+     * message and not the value of the {@link JMSSupport#JAMES_MAIL_INDEX_KEY}
+     * property
+     * 
+     * @param key
+     * @return messageId
+     */
+    public synchronized boolean isMessageId(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.messageId;
+    }
+
+    /**
+     * Return the count of all indexed messages
+     * 
+     * @return size
+     */
+    public synchronized long size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the count of all indexed messages with the given JMS priority
+     * 
+     * @param priority
+     * @return size
+     */
+    public synchronized long size(int priority) {
+        if (priority < 0 || priority >= sizes.length) {
+            return 0;
+        }
+        return sizes[priority];
+    }
+
+    /**
+     * Remove all messages from the index and mark it as not initialized
+     */
+    public synchronized void clear() {
+        entries.clear();
+        names.clear();
+        senders.clear();
+        recipients.clear();
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 0;
+        }
+        initialized = false;
+    }
+
+    /**
+     * Start to record all updates, so they can be applied to the index which
+     * is built from the content of the JMS Queue in the meantime
+     */
+    public synchronized void startRebuild() {
+        journal = new ArrayList<Update>();
+    }
+
+    /**
+     * Replace the content of this index with the given one, which was built
+     * from the content of the JMS Queue since {@link #startRebuild()}, and
+     * apply all updates which were recorded in the meantime
+     * 
+     * @param built
+     */
+    public synchronized void finishRebuild(JMSMailQueueIndex built) {
+        List<Update> updates = journal;
+        journal = null;
+        clear();
+        synchronized (built) {
+            entries.putAll(built.entries);
+            names.putAll(built.names);
+            senders.putAll(built.senders);
+            recipients.putAll(built.recipients);
+            System.arraycopy(built.sizes, 0, sizes, 0, sizes.length);
+        }
+        initialized = true;
+        stale = false;
+        lastBuild = System.currentTimeMillis();
+        if (updates != null) {
+            for (Update update : updates) {
+                update.apply(this);
+            }
+        }
+    }
+
+    /**
+     * Stop to record the updates as the rebuild failed
+     */
+    public synchronized void abortRebuild() {
+        journal = null;
+    }
+
+    /**
+     * Mark the index as not in step with the JMS Queue anymore, so it gets
+     * re-synced before it is used the next time
+     */
+    public synchronized void markStale() {
+        if (initialized) {
+            stale = true;
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the index needs to be (re-)built before it
+     * is used. This is the case if it was never built, was marked as stale or
+     * was built longer ago then the given interval. While a rebuild is running
+     * only a never built index needs one.
+     * 
+     * @param resyncInterval
+     *            the max age (in ms) of the index, 0 means it never expires
+     * @return needsRebuild
+     */
+    public synchronized boolean needsRebuild(long resyncInterval) {
+        if (!initialized) {
+            return true;
+        }
+        if (journal != null) {
+            return false;
+        }
+        return stale || (resyncInterval > 0 && System.currentTimeMillis() - lastBuild >= resyncInterval);
+    }
+
+    /**
+     * Return <code>true</code> if the index was built and is kept in step with
+     * the JMS Queue
+     * 
+     * @return initialized
+     */
+    public synchronized boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Mark the index as initialized. From now on all updates are applied
+     * 
+     * @param initialized
+     */
+    public synchronized void setInitialized(boolean initialized) {
+        this.initialized = initialized;
+    }
+
+    private static int clamp(int priority) {
+        if (priority < 0) {
+            return 0;
+        } else if (priority > 9) {
+            return 9;
+        }
+        return priority;
+    }
+
+    private static void add(Map<String, Set<String>> map, String value, String key) {
+        if (value == null) {
+            return;
+        }
+        Set<String> keys = map.get(value);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            map.put(value, keys);
+        }
+        keys.add(key);
+    }
+
+    private static void remove(Map<String, Set<String>> map, String value, String key) {
+        if (value == null) {
+            return;
+        }
+        Set<String> keys = map.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                map.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Update which was recorded while the index was re-built
+     */
+    private final static class Update {
+        private final String key;
+        private final boolean add;
+        private final boolean messageId;
+        private final String name;
+        private final String sender;
+        private final String rcpts;
+        private final int priority;
+
+        private Update(String key, boolean messageId, String name, String sender, String rcpts, int priority) {
+            this.key = key;
+            this.add = true;
+            this.messageId = messageId;
+            this.name = name;
+            this.sender = sender;
+            this.rcpts = rcpts;
+            this.priority = priority;
+        }
+
+        private Update(String key) {
+            this.key = key;
+            this.add = false;
+            this.messageId = false;
+            this.name = null;
+            this.sender = null;
+            this.rcpts = null;
+            this.priority = 0;
+        }
+
+        private void apply(JMSMailQueueIndex index) {
+            if (add) {
+                index.add(key, messageId, name, sender, rcpts, priority);
+            } else {
+                index.remove(key);
+            }
+        }
+    }
+
+    private final static class Entry {
+        private final boolean messageId;
+        private final String name;
+        private final String sender;
+        private final Collection<String> recipients;
+        private final int priority;
+
+        private Entry(boolean messageId, String name, String sender, Collection<String> recipients, int priority) {
+            this.messageId = messageId;
+            this.name = name;
+            this.sender = sender;
+            this.recipients = recipients;
+            this.priority = priority;
+        }
+    }
+}
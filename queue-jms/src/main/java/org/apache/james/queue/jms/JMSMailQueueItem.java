@@ -26,6 +26,7 @@ import javax.jms.Session;
 
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.jms.JMSConsumerPool.PooledConsumer;
 import org.apache.mailet.Mail;
 
 /**
@@ -37,21 +38,41 @@ public class JMSMailQueueItem implements MailQueueItem {
     protected final Connection connection;
     protected final Session session;
     protected final MessageConsumer consumer;
+    protected final PooledConsumer pooled;
 
     public JMSMailQueueItem(Mail mail, Connection connection, Session session, MessageConsumer consumer) {
         this.mail = mail;
         this.connection = connection;
         this.session = session;
         this.consumer = consumer;
+        this.pooled = null;
+    }
+
+    /**
+     * Construct a {@link JMSMailQueueItem} which use a {@link PooledConsumer}.
+     * The {@link PooledConsumer} is returned to its pool once
+     * {@link #done(boolean)} was called
+     * 
+     * @param mail
+     * @param pooled
+     */
+    public JMSMailQueueItem(Mail mail, PooledConsumer pooled) {
+        this.mail = mail;
+        this.connection = null;
+        this.session = pooled.getSession();
+        this.consumer = pooled.getConsumer();
+        this.pooled = pooled;
     }
 
     /**
      * @see org.apache.james.queue.api.MailQueue.MailQueueItem#done(boolean)
      */
     public void done(boolean success) throws MailQueueException {
+        boolean committed = false;
         try {
             if (success) {
                 session.commit();
+                committed = true;
             } else {
                 try {
                     session.rollback();
@@ -62,26 +83,37 @@ public class JMSMailQueueItem implements MailQueueItem {
         } catch (JMSException ex) {
             throw new MailQueueException("Unable to commit dequeue operation for mail " + mail.getName(), ex);
         } finally {
-            if (consumer != null) {
+            if (pooled != null) {
+                // Only reuse the session if the commit was successful. On
+                // rollback we close it so the message is handed back to the
+                // broker the same way as without pooling
+                if (committed) {
+                    pooled.release();
+                } else {
+                    pooled.invalidate();
+                }
+            } else {
+                if (consumer != null) {
 
+                    try {
+                        consumer.close();
+                    } catch (JMSException e1) {
+                        // ignore on rollback
+                    }
+                }
                 try {
-                    consumer.close();
-                } catch (JMSException e1) {
-                    // ignore on rollback
+                    if (session != null)
+                        session.close();
+                } catch (JMSException e) {
+                    // ignore here
                 }
-            }
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
 
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e) {
-                // ignore here
+                try {
+                    if (connection != null)
+                        connection.close();
+                } catch (JMSException e) {
+                    // ignore here
+                }
             }
         }
     }
@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Pool of {@link Session}'s and {@link MessageProducer}'s which are used to
+ * enqueue to a JMS Queue. All sessions share one long-lived {@link Connection},
+ * so an enqueue operation does not need to pay the setup costs for a new
+ * connection, session and producer for every single message.
+ */
+public class JMSProducerPool extends AbstractJMSSessionPool<JMSProducerPool.PooledProducer> {
+
+    /**
+     * Construct a new pool
+     * 
+     * @param connectionFactory
+     * @param queuename
+     * @param maxIdle
+     *            the max count of idle sessions which are kept open
+     */
+    public JMSProducerPool(ConnectionFactory connectionFactory, String queuename, int maxIdle) {
+        super(connectionFactory, queuename, maxIdle);
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.AbstractJMSSessionPool#createPooledSession(javax.jms.Connection)
+     */
+    protected PooledProducer createPooledSession(Connection connection) throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            MessageProducer producer = session.createProducer(session.createQueue(queuename));
+            return new PooledProducer(session, producer);
+        } catch (JMSException e) {
+            try {
+                session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A {@link Session} and the {@link MessageProducer} which belongs to it
+     */
+    public final class PooledProducer extends AbstractJMSSessionPool.PooledSession {
+        private final MessageProducer producer;
+
+        private PooledProducer(Session session, MessageProducer producer) {
+            super(session);
+            this.producer = producer;
+        }
+
+        public MessageProducer getProducer() {
+            return producer;
+        }
+
+        /**
+         * @see org.apache.james.queue.jms.AbstractJMSSessionPool.PooledSession#release()
+         */
+        public void release() {
+            JMSProducerPool.this.release(this);
+        }
+
+        /**
+         * @see org.apache.james.queue.jms.AbstractJMSSessionPool.PooledSession#invalidate()
+         */
+        public void invalidate() {
+            JMSProducerPool.this.invalidate(this);
+        }
+
+        @Override
+        protected void close() {
+            try {
+                producer.close();
+            } catch (JMSException e) {
+                // ignore on close
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+/**
+ * JMX MBean for a pool of JMS sessions
+ */
+public interface JMSSessionPoolMBean {
+
+    /**
+     * Return the max count of idle sessions which are kept open
+     * 
+     * @return maxIdle
+     */
+    int getMaxIdle();
+
+    /**
+     * Set the max count of idle sessions which are kept open
+     * 
+     * @param maxIdle
+     */
+    void setMaxIdle(int maxIdle);
+
+    /**
+     * Return the count of idle sessions
+     * 
+     * @return idleCount
+     */
+    int getIdleCount();
+
+    /**
+     * Return the count of sessions which are currently in use
+     * 
+     * @return activeCount
+     */
+    int getActiveCount();
+
+    /**
+     * Return the count of sessions which were created since the pool was
+     * started
+     * 
+     * @return createdCount
+     */
+    long getCreatedCount();
+}
@@ -62,4 +62,28 @@ public interface JMSSupport {
     /** JMS Property which holds next delivery time as long (ms) */
     final static String JAMES_NEXT_DELIVERY = "JAMES_NEXT_DELIVERY";
 
+    /**
+     * JMS Property which holds the reference to the message content in the
+     * {@link FileContentStore} as String
+     */
+    final static String JAMES_MAIL_CONTENT_REF = "JAMES_MAIL_CONTENT_REF";
+
+    /**
+     * JMS Property which holds the unique key of the message in the
+     * {@link JMSMailQueueIndex} as String
+     */
+    final static String JAMES_MAIL_INDEX_KEY = "JAMES_MAIL_INDEX_KEY";
+
+    /**
+     * JMS Property which holds the priority of a mail which is parked in a
+     * delay bucket queue as int
+     */
+    final static String JAMES_MAIL_PRIORITY = "JAMES_MAIL_PRIORITY";
+
+    /**
+     * JMS Property which holds the time (in ms) when a mail which is parked in
+     * a delay bucket queue is due for the bucket as long
+     */
+    final static String JAMES_DELAY_BUCKET_DUE = "JAMES_DELAY_BUCKET_DUE";
+
 }
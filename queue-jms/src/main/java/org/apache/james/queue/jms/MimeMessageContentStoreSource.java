@@ -0,0 +1,77 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.james.core.MimeMessageSource;
+
+/**
+ * {@link MimeMessageSource} implementation which reads the content lazy out of
+ * a {@link FileContentStore}. Nothing is read until the content is accessed
+ * the first time.
+ */
+public class MimeMessageContentStoreSource extends MimeMessageSource {
+
+    private final FileContentStore store;
+    private final String ref;
+    private final String sourceId;
+    private final long size;
+
+    /**
+     * @param store
+     * @param ref
+     *            the reference of the content in the store
+     * @param sourceId
+     * @param size
+     *            the size of the content or -1 if unknown
+     */
+    public MimeMessageContentStoreSource(FileContentStore store, String ref, String sourceId, long size) {
+        this.store = store;
+        this.ref = ref;
+        this.sourceId = sourceId;
+        this.size = size;
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(store.getFile(ref)));
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getSourceId()
+     */
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    @Override
+    public long getMessageSize() throws IOException {
+        if (size > -1) {
+            return size;
+        }
+        return store.getFile(ref).length();
+    }
+
+}
@@ -18,22 +18,18 @@
  ****************************************************************/
 package org.apache.james.queue.library;
 
-import java.lang.management.ManagementFactory;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.management.MBeanServer;
-import javax.management.ObjectName;
 
 import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueueMBeanRegistry;
 import org.apache.james.queue.api.MailQueueManagementMBean;
 import org.apache.james.queue.api.ManageableMailQueue;
 import org.apache.james.queue.library.MailQueueManagement;
@@ -48,8 +44,7 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
     protected final Map<String, MailQueue> queues = new HashMap<String, MailQueue>();
     protected Logger log;
     private boolean useJMX = true;
-    private MBeanServer mbeanServer;
-    private List<String> mbeans = new ArrayList<String>();
+    private MailQueueMBeanRegistry mbeans;
 
     public void setUseJMX(boolean useJMX) {
         this.useJMX = useJMX;
@@ -57,13 +52,13 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
 
     @PostConstruct
     public void init() {
-        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        mbeans = new MailQueueMBeanRegistry();
     }
 
     @PreDestroy
     public void destroy() {
-        for (int i = 0; i < mbeans.size(); i++) {
-            unregisterMBean(mbeans.get(i));
+        if (mbeans != null) {
+            mbeans.unregisterAll();
         }
 
         Iterator<MailQueue> it = queues.values().iterator();
@@ -101,7 +96,7 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
 
     protected synchronized void registerMBean(String queuename, MailQueue queue) {
 
-        String mbeanName = "org.apache.james:type=component,name=queue,queue=" + queuename;
+        String mbeanName = getMBeanName(queuename);
         try {
             MailQueueManagementMBean mbean = null;
             if (queue instanceof ManageableMailQueue) {
@@ -110,19 +105,41 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
                 mbean = (MailQueueManagementMBean) queue;
             }
             if (mbean != null) {
-                mbeanServer.registerMBean(mbean, new ObjectName(mbeanName));
-                mbeans.add(mbeanName);
+                registerMBeanObject(mbeanName, mbean);
             }
+            mbeans.registerMetrics(queuename, queue);
         } catch (Exception e) {
             throw new RuntimeException("Unable to register mbean", e);
         }
 
     }
 
+    /**
+     * Return the name which is used to register the MBean of the queue with
+     * the given name
+     * 
+     * @param queuename
+     * @return mbeanName
+     */
+    protected String getMBeanName(String queuename) {
+        return "org.apache.james:type=component,name=queue,queue=" + queuename;
+    }
+
+    /**
+     * Register the given object under the given name. The MBean will get
+     * unregistered on {@link #destroy()}
+     * 
+     * @param mbeanName
+     * @param mbean
+     * @throws Exception
+     */
+    protected synchronized void registerMBeanObject(String mbeanName, Object mbean) throws Exception {
+        mbeans.register(mbeanName, mbean);
+    }
+
     protected synchronized void unregisterMBean(String mbeanName) {
         try {
-            mbeanServer.unregisterMBean(new ObjectName(mbeanName));
-            mbeans.remove(mbeanName);
+            mbeans.unregister(mbeanName);
         } catch (Exception e) {
             throw new RuntimeException("Unable to unregister mbean", e);
         }
@@ -0,0 +1,170 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.MailAddress;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple throughput benchmark for {@link JMSMailQueue} against an embedded
+ * ActiveMQ broker. This is not executed as part of the unit tests, run it via
+ * its main method:
+ * 
+ * <pre>
+ * JMSMailQueueBenchmark [mails] [threads]
+ * </pre>
+ */
+public class JMSMailQueueBenchmark {
+
+    private final static String QUEUE_NAME = "benchmark";
+
+    private final int mails;
+    private final int threads;
+    private final ActiveMQConnectionFactory connectionFactory;
+
+    public JMSMailQueueBenchmark(ActiveMQConnectionFactory connectionFactory, int mails, int threads) {
+        this.connectionFactory = connectionFactory;
+        this.mails = mails;
+        this.threads = threads;
+    }
+
+    /**
+     * Fill the queue with the configured count of mails
+     * 
+     * @param queue
+     * @return mails per second
+     * @throws Exception
+     */
+    public double enQueue(JMSMailQueue queue) throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < mails; i++) {
+            queue.enQueue(createMail(i));
+        }
+        return rate(mails, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Drain the queue with the configured count of threads, committing each
+     * dequeued item
+     * 
+     * @param queue
+     * @return mails per second
+     * @throws Exception
+     */
+    public double deQueue(final JMSMailQueue queue) throws Exception {
+        final AtomicInteger remaining = new AtomicInteger(mails);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        while (remaining.getAndDecrement() > 0) {
+                            MailQueueItem item = queue.deQueue();
+                            item.done(true);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }, "Benchmark Dequeue Thread #" + i).start();
+        }
+        latch.await();
+        return rate(mails, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Run the enqueue and dequeue benchmark against a {@link JMSMailQueue}
+     * which use the given pool sizes
+     * 
+     * @param consumerPoolSize
+     * @param producerPoolSize
+     * @throws Exception
+     */
+    public void run(int consumerPoolSize, int producerPoolSize) throws Exception {
+        JMSMailQueue queue = new JMSMailQueue(connectionFactory, QUEUE_NAME, LoggerFactory.getLogger("Benchmark"));
+        queue.setConsumerPoolSize(consumerPoolSize);
+        queue.setProducerPoolSize(producerPoolSize);
+        try {
+            double enqueueRate = enQueue(queue);
+            double dequeueRate = deQueue(queue);
+            System.out.println("consumerPoolSize=" + consumerPoolSize + " producerPoolSize=" + producerPoolSize + " mails=" + mails + " threads=" + threads + " enqueue=" + format(enqueueRate) + " msg/s dequeue=" + format(dequeueRate) + " msg/s");
+        } finally {
+            queue.dispose();
+        }
+    }
+
+    private MailImpl createMail(int i) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("benchmark mail " + i);
+        message.setHeader("Subject", "benchmark");
+        message.saveChanges();
+        return new MailImpl("benchmark-" + i, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+    }
+
+    private static double rate(int count, long millis) {
+        return count * 1000d / Math.max(1, millis);
+    }
+
+    private static String format(double rate) {
+        return String.valueOf(Math.round(rate));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        BrokerService broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("benchmark");
+        broker.start();
+        try {
+            ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://benchmark?create=false");
+            // same as the shipped configuration, see JAMES-1253
+            connectionFactory.getPrefetchPolicy().setQueuePrefetch(0);
+
+            JMSMailQueueBenchmark benchmark = new JMSMailQueueBenchmark(connectionFactory, mails, threads);
+            // warm up
+            benchmark.run(0, 0);
+
+            // without and with pooled sessions
+            benchmark.run(0, 0);
+            benchmark.run(threads, 0);
+            benchmark.run(threads, 1);
+        } finally {
+            broker.stop();
+        }
+    }
+}
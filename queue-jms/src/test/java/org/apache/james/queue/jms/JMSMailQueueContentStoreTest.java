@@ -0,0 +1,152 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.jms.ConnectionFactory;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.protocols.smtp.MailAddressException;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.Mail;
+
+/**
+ * Run all {@link JMSMailQueueTest} tests against a {@link JMSMailQueue} which
+ * store the content of all messages in a {@link FileContentStore}
+ */
+public class JMSMailQueueContentStoreTest extends JMSMailQueueTest {
+
+    private File directory;
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        JMSMailQueue queue = super.createQueue(factory, queueName);
+        directory = new File(System.getProperty("java.io.tmpdir"), "content-store-" + System.nanoTime());
+        try {
+            queue.setContentStore(new FileContentStore(directory, false));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        queue.setLargeMessageThreshold(0);
+        return queue;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    public void testContentDeletedOnDone() throws MessagingException, InterruptedException, MailAddressException {
+        queue.enQueue(createMail());
+        assertEquals(1, countFiles(directory));
+
+        MailQueueItem item = queue.deQueue();
+        item.done(true);
+        assertEquals(0, countFiles(directory));
+    }
+
+    public void testContentKeptOnRollback() throws MessagingException, InterruptedException, MailAddressException {
+        queue.enQueue(createMail());
+
+        MailQueueItem item = queue.deQueue();
+        item.done(false);
+        assertEquals(1, countFiles(directory));
+
+        item = queue.deQueue();
+        item.done(true);
+        assertEquals(0, countFiles(directory));
+    }
+
+    public void testContentDeletedOnRemove() throws MessagingException, InterruptedException, MailAddressException {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        mail2.setName(mail.getName() + "-2");
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        Thread.sleep(200);
+        assertEquals(2, countFiles(directory));
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, mail.getName()));
+        assertEquals(1, countFiles(directory));
+        queue.clear();
+        assertEquals(0, countFiles(directory));
+    }
+
+    public void testContentDeletedOnBatchRollback() throws MessagingException, InterruptedException, MailAddressException {
+        Mail mail = createMail();
+        Mail broken = createMail();
+        broken.setName(mail.getName() + "-broken");
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties())) {
+
+            @Override
+            public void writeTo(OutputStream os) throws IOException, MessagingException {
+                throw new IOException("Broken message");
+            }
+        };
+        message.setText("test");
+        message.saveChanges();
+        ((MailImpl) broken).setMessage(message);
+
+        try {
+            queue.enQueue(Arrays.asList(mail, broken));
+            fail("The batch should fail");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        Thread.sleep(200);
+        assertEquals(0, queue.getSize());
+        assertEquals(0, countFiles(directory));
+    }
+
+    private int countFiles(File file) {
+        if (file.isFile()) {
+            return 1;
+        }
+        int count = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                count += countFiles(child);
+            }
+        }
+        return count;
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
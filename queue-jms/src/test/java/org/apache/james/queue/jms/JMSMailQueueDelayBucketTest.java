@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.ConnectionFactory;
+import javax.mail.MessagingException;
+
+import org.apache.james.protocols.smtp.MailAddressException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+
+/**
+ * Run all {@link JMSMailQueueTest} tests against a {@link JMSMailQueue} which
+ * park delayed mails in delay bucket queues
+ */
+public class JMSMailQueueDelayBucketTest extends JMSMailQueueTest {
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        JMSMailQueue queue = super.createQueue(factory, queueName);
+        queue.setDelayBuckets(new long[] { 1000, 5000, 60000 });
+        return queue;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        queue.dispose();
+        super.tearDown();
+    }
+
+    public void testGetBucket() {
+        JMSDelayBucketMover mover = new JMSDelayBucketMover(queue, new long[] { 1000, 5000, 60000 });
+        try {
+            assertEquals(1000, mover.getBucket(1));
+            assertEquals(1000, mover.getBucket(1000));
+            assertEquals(1000, mover.getBucket(4999));
+            assertEquals(5000, mover.getBucket(5000));
+            assertEquals(60000, mover.getBucket(3600000));
+        } finally {
+            mover.dispose();
+        }
+    }
+
+    public void testMixedDelays() throws MessagingException, InterruptedException, MailAddressException {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        mail2.setName(mail.getName() + "-2");
+
+        // the mail which is parked first is due last
+        long start = System.currentTimeMillis();
+        queue.enQueue(mail, 4500, TimeUnit.MILLISECONDS);
+        queue.enQueue(mail2, 1500, TimeUnit.MILLISECONDS);
+
+        MailQueueItem item = queue.deQueue();
+        long dequeueTime = System.currentTimeMillis() - start;
+        assertEquals(mail2.getName(), item.getMail().getName());
+        item.done(true);
+        assertTrue(dequeueTime >= 1500);
+        assertTrue("Mail was kept behind a mail which is due later (" + dequeueTime + "ms)", dequeueTime < 4000);
+
+        item = queue.deQueue();
+        dequeueTime = System.currentTimeMillis() - start;
+        assertEquals(mail.getName(), item.getMail().getName());
+        item.done(true);
+        assertTrue(dequeueTime >= 4500);
+    }
+
+}
@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.MailAddress;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the cost of {@link JMSMailQueue#getSize()} and
+ * {@link JMSMailQueue#remove(ManageableMailQueue.Type, String)} with and
+ * without a {@link JMSMailQueueIndex} against an embedded ActiveMQ broker.
+ * This is not executed as part of the unit tests, run it via its main method:
+ * 
+ * <pre>
+ * JMSMailQueueIndexBenchmark [mails] [recipients]
+ * </pre>
+ */
+public class JMSMailQueueIndexBenchmark {
+
+    private final static String QUEUE_NAME = "indexbenchmark";
+
+    private final int mails;
+    private final int recipients;
+    private final ActiveMQConnectionFactory connectionFactory;
+
+    public JMSMailQueueIndexBenchmark(ActiveMQConnectionFactory connectionFactory, int mails, int recipients) {
+        this.connectionFactory = connectionFactory;
+        this.mails = mails;
+        this.recipients = recipients;
+    }
+
+    /**
+     * Fill the queue, then measure size queries and the removal of all mails
+     * of one recipient after the other
+     * 
+     * @param useIndex
+     * @throws Exception
+     */
+    public void run(boolean useIndex) throws Exception {
+        JMSMailQueue queue = new JMSMailQueue(connectionFactory, QUEUE_NAME, LoggerFactory.getLogger("Benchmark"));
+        queue.setUseIndex(useIndex);
+        try {
+            for (int i = 0; i < mails; i++) {
+                queue.enQueue(createMail(i));
+            }
+
+            long start = System.currentTimeMillis();
+            long size = queue.getSize();
+            long firstSize = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                queue.getSize();
+            }
+            double sizeTime = (System.currentTimeMillis() - start) / 100d;
+
+            start = System.currentTimeMillis();
+            long removed = 0;
+            for (int i = 0; i < recipients; i++) {
+                removed += queue.remove(ManageableMailQueue.Type.Recipient, "rcpt" + i + "@localhost");
+            }
+            double removeTime = (System.currentTimeMillis() - start) / (double) recipients;
+
+            System.out.println("useIndex=" + useIndex + " mails=" + size + " firstSize=" + firstSize + " ms getSize=" + sizeTime + " ms remove=" + removeTime + " ms/recipient removed=" + removed);
+        } finally {
+            queue.clear();
+            queue.dispose();
+        }
+    }
+
+    private MailImpl createMail(int i) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("benchmark mail " + i);
+        message.setHeader("Subject", "benchmark");
+        message.saveChanges();
+        return new MailImpl("benchmark-" + i, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt" + (i % recipients) + "@localhost")), message);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        BrokerService broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("benchmark");
+        broker.start();
+        try {
+            ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://benchmark?create=false");
+            // same as the shipped configuration, see JAMES-1253
+            connectionFactory.getPrefetchPolicy().setQueuePrefetch(0);
+
+            JMSMailQueueIndexBenchmark benchmark = new JMSMailQueueIndexBenchmark(connectionFactory, mails, recipients);
+            benchmark.run(false);
+            benchmark.run(true);
+        } finally {
+            broker.stop();
+        }
+    }
+}
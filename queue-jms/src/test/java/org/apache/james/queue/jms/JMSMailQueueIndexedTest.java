@@ -0,0 +1,118 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import javax.jms.ConnectionFactory;
+import javax.mail.MessagingException;
+
+import org.apache.james.protocols.smtp.MailAddressException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.mailet.Mail;
+
+/**
+ * Run all {@link JMSMailQueueTest} tests against a {@link JMSMailQueue} which
+ * use a {@link JMSMailQueueIndex} for size queries and removals
+ */
+public class JMSMailQueueIndexedTest extends JMSMailQueueTest {
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        JMSMailQueue queue = super.createQueue(factory, queueName);
+        queue.setUseIndex(true);
+        return queue;
+    }
+
+    /**
+     * Return a queue on the same JMS Queue which does not use an index, like
+     * another process would do
+     */
+    private JMSMailQueue createUnindexedQueue() {
+        return super.createQueue(createConnectionFactory(), QUEUE_NAME);
+    }
+
+    public void testIndexMatchesBrowse() throws MessagingException, InterruptedException, MailAddressException {
+        for (int i = 0; i < 10; i++) {
+            Mail mail = createMail();
+            mail.setName("mail" + i);
+            if (i < 3) {
+                mail.setAttribute(JMSMailQueue.MAIL_PRIORITY, JMSMailQueue.HIGH_PRIORITY);
+            } else if (i < 5) {
+                mail.setAttribute(JMSMailQueue.MAIL_PRIORITY, JMSMailQueue.LOW_PRIORITY);
+            }
+            queue.enQueue(mail);
+        }
+        Thread.sleep(200);
+
+        int browsed = 0;
+        MailQueueIterator it = queue.browse();
+        while (it.hasNext()) {
+            it.next();
+            browsed++;
+        }
+        it.close();
+        assertEquals(10, browsed);
+        assertEquals(browsed, queue.getSize());
+
+        // the unindexed queue counts with a message selector
+        JMSMailQueue unindexed = createUnindexedQueue();
+        assertEquals(3, queue.getSize(JMSMailQueue.HIGH_PRIORITY));
+        assertEquals(unindexed.getSize(JMSMailQueue.HIGH_PRIORITY), queue.getSize(JMSMailQueue.HIGH_PRIORITY));
+        assertEquals(unindexed.getSize(JMSMailQueue.NORMAL_PRIORITY), queue.getSize(JMSMailQueue.NORMAL_PRIORITY));
+        assertEquals(unindexed.getSize(JMSMailQueue.LOW_PRIORITY), queue.getSize(JMSMailQueue.LOW_PRIORITY));
+
+        // a rebuild from the JMS Queue must give the same result
+        queue.rebuildIndex();
+        assertEquals(10, queue.getSize());
+        assertEquals(3, queue.getSize(JMSMailQueue.HIGH_PRIORITY));
+        assertEquals(2, queue.getSize(JMSMailQueue.LOW_PRIORITY));
+        assertEquals(5, queue.getSize(JMSMailQueue.NORMAL_PRIORITY));
+    }
+
+    public void testResyncOnMismatch() throws MessagingException, InterruptedException, MailAddressException {
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        Thread.sleep(200);
+        assertEquals(1, queue.getSize());
+
+        // consumed by another process, which the index does not see
+        MailQueueItem item = createUnindexedQueue().deQueue();
+        item.done(true);
+        Thread.sleep(200);
+        assertEquals(1, queue.getSize());
+
+        // the removal notice that the mail is gone and re-sync the index
+        assertEquals(0, queue.remove(ManageableMailQueue.Type.Name, mail.getName()));
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testPeriodicResync() throws MessagingException, InterruptedException, MailAddressException {
+        queue.setIndexResyncInterval(100);
+        queue.enQueue(createMail());
+        Thread.sleep(200);
+        assertEquals(1, queue.getSize());
+
+        MailQueueItem item = createUnindexedQueue().deQueue();
+        item.done(true);
+        Thread.sleep(200);
+        assertEquals(0, queue.getSize());
+    }
+
+}
@@ -23,6 +23,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -140,6 +141,74 @@ public class JMSMailQueueTest extends TestCase {
         assertEquals(0, queue.getSize());
     }
 
+    public void testBatchEnQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        // should be empty
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+
+        queue.enQueue(Arrays.asList(mail, mail2));
+
+        Thread.sleep(200);
+
+        assertEquals(2, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail2, item2.getMail());
+        item2.done(true);
+
+        Thread.sleep(200);
+
+        // should be empty
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testBatchDeQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        // should be empty
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        Mail mail3 = createMail();
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3);
+
+        Thread.sleep(200);
+
+        List<MailQueueItem> items = queue.deQueue(2, 2, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        checkMail(mail, items.get(0).getMail());
+        checkMail(mail2, items.get(1).getMail());
+        items.get(0).done(true);
+
+        // rollback should put the mail back to the queue
+        items.get(1).done(false);
+
+        Thread.sleep(200);
+
+        items = queue.deQueue(5, 2, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        for (MailQueueItem item : items) {
+            item.done(true);
+        }
+
+        // should not block longer then the timeout if nothing is ready
+        items = queue.deQueue(5, 500, TimeUnit.MILLISECONDS);
+        assertTrue(items.isEmpty());
+
+        Thread.sleep(200);
+
+        // should be empty
+        assertEquals(0, queue.getSize());
+    }
+
     public void testDelayedDeQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
         // should be empty
         assertEquals(0, queue.getSize());
@@ -354,6 +423,9 @@ public class JMSMailQueueTest extends TestCase {
         Thread.sleep(200);
 
         assertEquals(2, queue.getSize());
+        assertEquals(1, queue.getSize(JMSMailQueue.HIGH_PRIORITY));
+        assertEquals(1, queue.getSize(JMSMailQueue.NORMAL_PRIORITY));
+        assertEquals(0, queue.getSize(JMSMailQueue.LOW_PRIORITY));
 
         // we should get mail2 first as it has a higher priority set
         assertEquals(2, queue.getSize());
@@ -0,0 +1,629 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueueMetrics;
+import org.apache.james.queue.api.MailQueueMetricsSupport;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * <p>
+ * Non-durable {@link ManageableMailQueue} implementation which keeps all
+ * {@link Mail}'s in memory. All queued mails are lost on shutdown, so this
+ * should only be used where durability is not needed, like for edge relays
+ * or tests.
+ * </p>
+ * <p>
+ * The queue is bounded by a max count of mails (including the ones which are
+ * currently dequeued but not done yet). If it is full, an enqueue operation
+ * fails with a {@link MailQueueException}.
+ * </p>
+ * <p>
+ * Ready mails are dequeued by priority and in FIFO order within the same
+ * priority. Delayed mails are kept ordered by their next delivery time and
+ * are moved to the ready mails by the dequeue operations once they are due, so
+ * no extra thread is needed.
+ * </p>
+ * <p>
+ * A copy of the {@link Mail} is stored on enqueue and every dequeue operation
+ * hands out another copy, so the stored {@link Mail} can be queued again
+ * unchanged if the dequeue operation is rolled back. The
+ * {@link javax.mail.internet.MimeMessage} is shared between the copies until
+ * one of them modifies it.
+ * </p>
+ */
+public class MemoryMailQueue implements ManageableMailQueue, MailPrioritySupport, MailQueueMetricsSupport, Disposable {
+
+    private final static Comparator<Entry> READY_ORDER = new Comparator<Entry>() {
+
+        public int compare(Entry e1, Entry e2) {
+            if (e1.priority != e2.priority) {
+                return e2.priority - e1.priority;
+            }
+            return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+        }
+    };
+
+    private final static Comparator<Entry> DELAYED_ORDER = new Comparator<Entry>() {
+
+        public int compare(Entry e1, Entry e2) {
+            if (e1.nextDelivery != e2.nextDelivery) {
+                return e1.nextDelivery < e2.nextDelivery ? -1 : 1;
+            }
+            return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+        }
+    };
+
+    private final String name;
+    private final int capacity;
+    private final MailQueueMetrics metrics = new MailQueueMetrics(this);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /** Guarded by lock */
+    private final PriorityQueue<Entry> ready = new PriorityQueue<Entry>(64, READY_ORDER);
+    private final PriorityQueue<Entry> delayed = new PriorityQueue<Entry>(64, DELAYED_ORDER);
+    private final long[] sizes = new long[10];
+    private int inProgress;
+    private long seq;
+
+    /**
+     * @param name
+     *            the name of the queue
+     * @param capacity
+     *            the max count of mails the queue holds
+     */
+    public MemoryMailQueue(String name, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater then 0");
+        }
+        this.name = name;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail,
+     *      long, java.util.concurrent.TimeUnit)
+     */
+    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        long start = System.nanoTime();
+        Entry entry = createEntry(mail, delay, unit);
+        lock.lock();
+        try {
+            if (getCount() >= capacity) {
+                LifecycleUtil.dispose(entry.mail);
+                metrics.enqueueFailed();
+                throw new MailQueueException("Unable to enqueue mail " + mail.getName() + ", queue " + name + " is full");
+            }
+            add(entry);
+        } finally {
+            lock.unlock();
+        }
+        metrics.enqueued(1, start);
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail)
+     */
+    public void enQueue(Mail mail) throws MailQueueException {
+        enQueue(mail, NO_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enqueue all mails or non of them if the queue has not enough free space
+     * 
+     * @see org.apache.james.queue.api.MailQueue#enQueue(java.util.Collection)
+     */
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        long start = System.nanoTime();
+        List<Entry> entries = new ArrayList<Entry>(mails.size());
+        try {
+            for (Mail mail : mails) {
+                entries.add(createEntry(mail, NO_DELAY, TimeUnit.MILLISECONDS));
+            }
+        } catch (MailQueueException e) {
+            dispose(entries);
+            metrics.enqueueFailed();
+            throw e;
+        }
+
+        lock.lock();
+        try {
+            if (getCount() + entries.size() > capacity) {
+                dispose(entries);
+                metrics.enqueueFailed();
+                throw new MailQueueException("Unable to enqueue " + entries.size() + " mails, queue " + name + " is full");
+            }
+            for (Entry entry : entries) {
+                add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.enqueued(entries.size(), start);
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#deQueue()
+     */
+    public MailQueueItem deQueue() throws MailQueueException {
+        lock.lock();
+        try {
+            while (true) {
+                long wait = promoteDue();
+                Entry entry = ready.poll();
+                if (entry != null) {
+                    return createItem(entry);
+                }
+                if (wait == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Interrupted while waiting for a mail of queue " + name, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#deQueue(int, long,
+     *      java.util.concurrent.TimeUnit)
+     */
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        List<Entry> entries = new ArrayList<Entry>();
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        lock.lock();
+        try {
+            while (true) {
+                long wait = promoteDue();
+                Entry entry = ready.poll();
+                while (entry != null) {
+                    items.add(createItem(entry));
+                    entries.add(entry);
+                    if (items.size() >= max) {
+                        return items;
+                    }
+                    entry = ready.poll();
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (!items.isEmpty() || remaining <= 0) {
+                    return items;
+                }
+                changed.await(Math.min(wait, remaining), TimeUnit.MILLISECONDS);
+            }
+        } catch (MailQueueException e) {
+            // put the mails of the batch back at their old position, the copy
+            // which failed was already put back by createItem(..)
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                inProgress--;
+                ready.add(entry);
+                sizes[entry.priority]++;
+                LifecycleUtil.dispose(items.get(i).getMail());
+            }
+            changed.signalAll();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (items.isEmpty()) {
+                throw new MailQueueException("Interrupted while waiting for a mail of queue " + name, e);
+            }
+            return items;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#getSize()
+     */
+    public long getSize() throws MailQueueException {
+        lock.lock();
+        try {
+            return ready.size() + delayed.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#getSize(int)
+     */
+    public long getSize(int priority) throws MailQueueException {
+        if (priority < 0 || priority >= sizes.length) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            return sizes[priority];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the max count of mails the queue holds
+     * 
+     * @return capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueMetricsSupport#getMetrics()
+     */
+    public MailQueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#flush()
+     */
+    public long flush() throws MailQueueException {
+        lock.lock();
+        try {
+            long count = delayed.size();
+            Entry entry;
+            long now = System.currentTimeMillis();
+            while ((entry = delayed.poll()) != null) {
+                entry.readyTime = now;
+                ready.add(entry);
+            }
+            changed.signalAll();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#clear()
+     */
+    public long clear() throws MailQueueException {
+        List<Entry> removed = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            removed.addAll(ready);
+            removed.addAll(delayed);
+            ready.clear();
+            delayed.clear();
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = 0;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        dispose(removed);
+        return removed.size();
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#remove(org.apache.james.queue.api.ManageableMailQueue.Type,
+     *      java.lang.String)
+     */
+    public long remove(Type type, String value) throws MailQueueException {
+        List<Entry> removed = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            remove(ready, type, value, removed);
+            remove(delayed, type, value, removed);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        dispose(removed);
+        return removed.size();
+    }
+
+    /**
+     * Return a snapshot of all mails of the queue. The ready mails are
+     * returned in dequeue order followed by the delayed mails
+     * 
+     * @see org.apache.james.queue.api.ManageableMailQueue#browse()
+     */
+    public MailQueueIterator browse() throws MailQueueException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            addSorted(ready, READY_ORDER, entries);
+            addSorted(delayed, DELAYED_ORDER, entries);
+        } finally {
+            lock.unlock();
+        }
+
+        return new MailQueueIterator() {
+            private int current = 0;
+
+            public boolean hasNext() {
+                return current < entries.size();
+            }
+
+            public MailQueueItemView next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = entries.get(current++);
+                final long nextDelivery = entry.nextDelivery;
+                final Mail mail;
+                try {
+                    mail = copy(entry.mail);
+                } catch (MessagingException e) {
+                    throw new RuntimeException("Unable to copy mail " + entry.mail.getName(), e);
+                }
+                return new MailQueueItemView() {
+
+                    public long getNextDelivery() {
+                        return nextDelivery;
+                    }
+
+                    public Mail getMail() {
+                        return mail;
+                    }
+                };
+            }
+
+            /**
+             * Not supported, read-only
+             */
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            public void close() {
+                entries.clear();
+            }
+        };
+    }
+
+    /**
+     * Dispose all queued mails
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        try {
+            clear();
+        } catch (MailQueueException e) {
+            // can not happen
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MailQueue:" + name;
+    }
+
+    /**
+     * Move all delayed mails which are due to the ready mails. Must be called
+     * with the lock held
+     * 
+     * @return the time (in ms) until the next delayed mail is due or
+     *         {@link Long#MAX_VALUE} if there is non
+     */
+    private long promoteDue() {
+        long now = System.currentTimeMillis();
+        Entry entry = delayed.peek();
+        while (entry != null && entry.nextDelivery <= now) {
+            ready.add(delayed.poll());
+            entry = delayed.peek();
+        }
+        if (entry == null) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(1, entry.nextDelivery - now);
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void add(Entry entry) {
+        entry.seq = seq++;
+        long now = System.currentTimeMillis();
+        if (entry.nextDelivery > now) {
+            entry.readyTime = entry.nextDelivery;
+            delayed.add(entry);
+        } else {
+            entry.readyTime = now;
+            ready.add(entry);
+        }
+        sizes[entry.priority]++;
+        changed.signalAll();
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private int getCount() {
+        return ready.size() + delayed.size() + inProgress;
+    }
+
+    private MailQueueItem createItem(final Entry entry) throws MailQueueException {
+        final Mail mail;
+        try {
+            mail = copy(entry.mail);
+        } catch (MessagingException e) {
+            // keep the mail
+            ready.add(entry);
+            throw new MailQueueException("Unable to copy mail " + entry.mail.getName(), e);
+        }
+        sizes[entry.priority]--;
+        inProgress++;
+        metrics.dequeued(entry.readyTime);
+
+        return new MailQueueItem() {
+            private boolean done = false;
+
+            public Mail getMail() {
+                return mail;
+            }
+
+            public void done(boolean success) throws MailQueueException {
+                long start = System.nanoTime();
+                lock.lock();
+                try {
+                    if (done) {
+                        return;
+                    }
+                    done = true;
+                    inProgress--;
+                    if (!success) {
+                        // put it back at the old position
+                        entry.readyTime = System.currentTimeMillis();
+                        ready.add(entry);
+                        sizes[entry.priority]++;
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (success) {
+                    LifecycleUtil.dispose(entry.mail);
+                }
+                metrics.done(success, start);
+            }
+        };
+    }
+
+    private Entry createEntry(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        long nextDelivery = -1;
+        if (delay > 0) {
+            nextDelivery = System.currentTimeMillis() + unit.toMillis(delay);
+        }
+        try {
+            return new Entry(copy(mail), getPriority(mail), nextDelivery);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to enqueue mail " + mail.getName(), e);
+        }
+    }
+
+    private static Mail copy(Mail mail) throws MessagingException {
+        MailImpl copy = new MailImpl(mail, mail.getName());
+        copy.setState(mail.getState());
+        copy.setErrorMessage(mail.getErrorMessage());
+        return copy;
+    }
+
+    private static int getPriority(Mail mail) {
+        Object prio = mail.getAttribute(MAIL_PRIORITY);
+        if (prio instanceof Integer) {
+            int p = (Integer) prio;
+            if (p < LOW_PRIORITY) {
+                return LOW_PRIORITY;
+            } else if (p > HIGH_PRIORITY) {
+                return HIGH_PRIORITY;
+            }
+            return p;
+        }
+        return NORMAL_PRIORITY;
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void remove(PriorityQueue<Entry> entries, Type type, String value, List<Entry> removed) {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (matches(entry.mail, type, value)) {
+                it.remove();
+                sizes[entry.priority]--;
+                removed.add(entry);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean matches(Mail mail, Type type, String value) {
+        switch (type) {
+        case Name:
+            return value.equals(mail.getName());
+        case Sender:
+            MailAddress sender = mail.getSender();
+            return sender != null && value.equals(sender.toString());
+        case Recipient:
+            Collection<MailAddress> rcpts = mail.getRecipients();
+            if (rcpts != null) {
+                for (MailAddress rcpt : rcpts) {
+                    if (value.equals(rcpt.toString())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    private static void addSorted(PriorityQueue<Entry> queue, Comparator<Entry> order, List<Entry> entries) {
+        PriorityQueue<Entry> copy = new PriorityQueue<Entry>(Math.max(1, queue.size()), order);
+        copy.addAll(queue);
+        Entry entry;
+        while ((entry = copy.poll()) != null) {
+            entries.add(entry);
+        }
+    }
+
+    private static void dispose(List<Entry> entries) {
+        for (Entry entry : entries) {
+            LifecycleUtil.dispose(entry.mail);
+        }
+    }
+
+    private final static class Entry {
+        private final Mail mail;
+        private final int priority;
+        private final long nextDelivery;
+        private long seq;
+        private long readyTime;
+
+        private Entry(Mail mail, int priority, long nextDelivery) {
+            this.mail = mail;
+            this.priority = priority;
+            this.nextDelivery = nextDelivery;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.lifecycle.api.LogEnabled;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueueMBeanRegistry;
+import org.apache.james.queue.api.MailQueueMetrics;
+import org.slf4j.Logger;
+
+/**
+ * {@link MailQueueFactory} implementation which returns {@link MemoryMailQueue} instances
+ * 
+ *
+ */
+public class MemoryMailQueueFactory implements MailQueueFactory, LogEnabled {
+
+    public final static int DEFAULT_CAPACITY = 10000;
+
+    private Map<String, MailQueue> queues = new HashMap<String, MailQueue>();
+    private Logger log;
+    private int capacity = DEFAULT_CAPACITY;
+    private boolean useJMX = true;
+    private MailQueueMBeanRegistry mbeans = new MailQueueMBeanRegistry();
+
+    /**
+     * Set the max count of {@link org.apache.mailet.Mail}'s which the later created {@link MemoryMailQueue} will hold. If a queue is full
+     * all enqueue operations will fail until some mails are dequeued.
+     * 
+     * The default is 10000
+     * 
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * If <code>true</code> the {@link MailQueueMetrics} of the later created {@link MemoryMailQueue} are registered via JMX
+     * 
+     * The default is <code>true</code>
+     * 
+     * @param useJMX
+     */
+    public void setUseJMX(boolean useJMX) {
+        this.useJMX = useJMX;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        synchronized (queues) {
+            mbeans.unregisterAll();
+
+            Iterator<MailQueue> it = queues.values().iterator();
+            while (it.hasNext()) {
+                MailQueue queue = it.next();
+                if (log != null) {
+                    try {
+                        long size = ((MemoryMailQueue) queue).getSize();
+                        if (size > 0) {
+                            log.warn("Discarding " + size + " mails of non-durable " + queue);
+                        }
+                    } catch (MailQueue.MailQueueException e) {
+                        // ignore on shutdown
+                    }
+                }
+                LifecycleUtil.dispose(queue);
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueFactory#getQueue(java.lang.String)
+     */
+    public MailQueue getQueue(String name) {
+        synchronized (queues) {
+            MailQueue queue = queues.get(name);
+            if (queue == null) {
+                MemoryMailQueue memoryQueue = new MemoryMailQueue(name, capacity);
+                if (useJMX) {
+                    try {
+                        mbeans.registerMetrics(name, memoryQueue);
+                    } catch (Exception e) {
+                        throw new RuntimeException("Unable to register mbean", e);
+                    }
+                }
+                queue = memoryQueue;
+                queues.put(name, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.LogEnabled#setLog(org.slf4j.Logger)
+     */
+    public void setLog(Logger log) {
+        this.log = log;
+    }
+
+}
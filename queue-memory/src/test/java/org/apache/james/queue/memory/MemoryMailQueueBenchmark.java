@@ -0,0 +1,193 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.file.FileMailQueue;
+import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.mailet.MailAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throughput benchmark which runs the same workload against a
+ * {@link MemoryMailQueue}, a {@link FileMailQueue} (with and without
+ * <code>fsync</code>) and a {@link JMSMailQueue} on an embedded non-persistent
+ * ActiveMQ broker. This is not executed as part of the unit tests, run it via
+ * its main method:
+ * 
+ * <pre>
+ * MemoryMailQueueBenchmark [mails] [threads] [directory]
+ * </pre>
+ */
+public class MemoryMailQueueBenchmark {
+
+    private final static String QUEUE_NAME = "benchmark";
+
+    private final int mails;
+    private final int threads;
+
+    public MemoryMailQueueBenchmark(int mails, int threads) {
+        this.mails = mails;
+        this.threads = threads;
+    }
+
+    /**
+     * Fill the queue with the configured count of mails
+     * 
+     * @param queue
+     * @return mails per second
+     * @throws Exception
+     */
+    public double enQueue(MailQueue queue) throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < mails; i++) {
+            queue.enQueue(createMail(i));
+        }
+        return rate(mails, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Drain the queue with the configured count of threads, committing each
+     * dequeued item
+     * 
+     * @param queue
+     * @return mails per second
+     * @throws Exception
+     */
+    public double deQueue(final MailQueue queue) throws Exception {
+        final AtomicInteger remaining = new AtomicInteger(mails);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        while (remaining.getAndDecrement() > 0) {
+                            MailQueueItem item = queue.deQueue();
+                            item.done(true);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }, "Benchmark Dequeue Thread #" + i).start();
+        }
+        latch.await();
+        return rate(mails, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Run the enqueue and dequeue benchmark against the given queue and
+     * dispose it afterwards
+     * 
+     * @param label
+     * @param queue
+     * @throws Exception
+     */
+    public void run(String label, MailQueue queue) throws Exception {
+        try {
+            double enqueueRate = enQueue(queue);
+            double dequeueRate = deQueue(queue);
+            System.out.println(label + " mails=" + mails + " threads=" + threads + " enqueue=" + format(enqueueRate) + " msg/s dequeue=" + format(dequeueRate) + " msg/s");
+        } finally {
+            LifecycleUtil.dispose(queue);
+        }
+    }
+
+    private MailImpl createMail(int i) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("benchmark mail " + i);
+        message.setHeader("Subject", "benchmark");
+        message.saveChanges();
+        return new MailImpl("benchmark-" + i, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+    }
+
+    private static double rate(int count, long millis) {
+        return count * 1000d / Math.max(1, millis);
+    }
+
+    private static String format(double rate) {
+        return String.valueOf(Math.round(rate));
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        File baseDir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"), "memory-queue-benchmark");
+        Logger log = LoggerFactory.getLogger("Benchmark");
+
+        BrokerService broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("benchmark");
+        broker.start();
+        try {
+            ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://benchmark?create=false");
+            // same as the shipped configuration, see JAMES-1253
+            connectionFactory.getPrefetchPolicy().setQueuePrefetch(0);
+
+            MemoryMailQueueBenchmark benchmark = new MemoryMailQueueBenchmark(mails, threads);
+            // warm up
+            benchmark.run("warmup", new MemoryMailQueue(QUEUE_NAME, mails));
+
+            benchmark.run("MemoryMailQueue", new MemoryMailQueue(QUEUE_NAME, mails));
+
+            delete(baseDir);
+            benchmark.run("FileMailQueue(sync=false)", new FileMailQueue(baseDir, QUEUE_NAME, false, log));
+            delete(baseDir);
+            benchmark.run("FileMailQueue(sync=true)", new FileMailQueue(baseDir, QUEUE_NAME, true, log));
+            delete(baseDir);
+
+            JMSMailQueue jmsQueue = new JMSMailQueue(connectionFactory, QUEUE_NAME, log);
+            jmsQueue.setConsumerPoolSize(threads);
+            jmsQueue.setProducerPoolSize(1);
+            benchmark.run("JMSMailQueue(non-persistent)", jmsQueue);
+        } finally {
+            broker.stop();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.MailQueueMetrics;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+public class MemoryMailQueueTest extends TestCase {
+    private MemoryMailQueue queue;
+    private int count = 0;
+
+    public void setUp() throws Exception {
+        queue = new MemoryMailQueue("test", 3);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        queue.dispose();
+    }
+
+    public void testFIFO() throws MessagingException, IOException {
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        assertEquals(2, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        assertEquals(1, queue.getSize());
+        item.done(false);
+
+        // ok we should get the same email again
+        assertEquals(2, queue.getSize());
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+
+        assertEquals(1, queue.getSize());
+        MailQueueItem item3 = queue.deQueue();
+        checkMail(mail2, item3.getMail());
+        item3.done(true);
+
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testDeQueuedMailIsCopy() throws MessagingException, IOException {
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        // changes after the enqueue must not be visible
+        mail.setState("changed");
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals(Mail.DEFAULT, item.getMail().getState());
+
+        // a rollback must return the mail as it was enqueued
+        item.getMail().setState("changed");
+        item.done(false);
+
+        item = queue.deQueue();
+        assertEquals(Mail.DEFAULT, item.getMail().getState());
+        item.done(true);
+    }
+
+    public void testCapacity() throws MessagingException {
+        queue.enQueue(createMail());
+        queue.enQueue(createMail());
+
+        // a batch must be enqueued completely or not at all
+        try {
+            queue.enQueue(Arrays.asList((Mail) createMail(), createMail()));
+            fail("Queue should be full");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        assertEquals(2, queue.getSize());
+
+        queue.enQueue(createMail());
+        try {
+            queue.enQueue(createMail());
+            fail("Queue should be full");
+        } catch (MailQueueException e) {
+            // expected
+        }
+
+        // mails in progress still count against the capacity
+        MailQueueItem item = queue.deQueue();
+        try {
+            queue.enQueue(createMail());
+            fail("Queue should be full");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        item.done(true);
+        queue.enQueue(createMail());
+        assertEquals(3, queue.getSize());
+    }
+
+    public void testBatchDeQueue() throws MessagingException, IOException {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        Mail mail3 = createMail();
+
+        queue.enQueue(Arrays.asList(mail, mail2, mail3));
+
+        List<MailQueueItem> items = queue.deQueue(2, 2, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        checkMail(mail, items.get(0).getMail());
+        checkMail(mail2, items.get(1).getMail());
+        items.get(0).done(true);
+
+        // rollback should put the mail back to the queue
+        items.get(1).done(false);
+
+        items = queue.deQueue(5, 2, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        checkMail(mail2, items.get(0).getMail());
+        checkMail(mail3, items.get(1).getMail());
+        for (MailQueueItem item : items) {
+            item.done(true);
+        }
+
+        // should not block longer then the timeout if nothing is ready
+        long start = System.currentTimeMillis();
+        items = queue.deQueue(5, 500, TimeUnit.MILLISECONDS);
+        assertTrue(items.isEmpty());
+        assertTrue(System.currentTimeMillis() - start >= 400);
+
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testDelayedDeQueue() throws MessagingException, IOException {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+
+        long enqueueTime = System.currentTimeMillis();
+        queue.enQueue(mail, 2, TimeUnit.SECONDS);
+        queue.enQueue(mail2);
+        assertEquals(2, queue.getSize());
+
+        // as we enqueued the mail with delay we should get mail2 first
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail2, item.getMail());
+        item.done(true);
+
+        assertEquals(1, queue.getSize());
+        MailQueueItem item2 = queue.deQueue();
+        long dequeueTime = System.currentTimeMillis() - enqueueTime;
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+        assertTrue(dequeueTime >= 2000);
+
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testMetrics() throws MessagingException, IOException {
+        MailQueueMetrics metrics = queue.getMetrics();
+
+        queue.enQueue(createMail(), 1, TimeUnit.SECONDS);
+        queue.enQueue(Arrays.asList((Mail) createMail(), createMail()));
+        try {
+            queue.enQueue(createMail());
+            fail("Queue should be full");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        assertEquals(3, metrics.getEnqueueCount());
+        assertEquals(1, metrics.getEnqueueFailureCount());
+
+        MailQueueItem item = queue.deQueue();
+        item.done(false);
+        item = queue.deQueue();
+        item.done(true);
+        queue.deQueue().done(true);
+
+        // the dwell time of the delayed mail must not include the delay
+        queue.deQueue().done(true);
+        assertEquals(4, metrics.getDequeueCount());
+        assertEquals(3, metrics.getCommitCount());
+        assertEquals(1, metrics.getRollbackCount());
+        assertTrue(metrics.getDwellTimeMax() < 1000);
+
+        metrics.reset();
+        assertEquals(0, metrics.getEnqueueCount());
+        assertEquals(0, metrics.getDwellTimeMax());
+    }
+
+    public void testFlush() throws MessagingException, IOException {
+        final Mail mail = createMail();
+
+        long enqueueTime = System.currentTimeMillis();
+        queue.enQueue(mail, 30, TimeUnit.SECONDS);
+        assertEquals(1, queue.getSize());
+
+        new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                    queue.flush();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).start();
+
+        // this will block until flush is called
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        assertEquals(0, queue.getSize());
+        assertTrue(System.currentTimeMillis() - enqueueTime < 30 * 1000);
+    }
+
+    public void testPrioritySupport() throws MessagingException, IOException {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        mail2.setAttribute(MemoryMailQueue.MAIL_PRIORITY, MemoryMailQueue.HIGH_PRIORITY);
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+
+        assertEquals(2, queue.getSize());
+        assertEquals(1, queue.getSize(MemoryMailQueue.HIGH_PRIORITY));
+        assertEquals(1, queue.getSize(MemoryMailQueue.NORMAL_PRIORITY));
+        assertEquals(0, queue.getSize(MemoryMailQueue.LOW_PRIORITY));
+
+        // we should get mail2 first as it has a higher priority set
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail2, item2.getMail());
+        item2.done(true);
+        assertEquals(0, queue.getSize(MemoryMailQueue.HIGH_PRIORITY));
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testRemove() throws MessagingException {
+        MailImpl mail = createMail();
+        mail.setName("remove@me1");
+
+        MailImpl mail2 = createMail();
+        mail2.setSender(new MailAddress("remove@me2"));
+
+        MailImpl mail3 = createMail();
+        mail3.setRecipients(Arrays.asList(new MailAddress("remove@me3")));
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2, 30, TimeUnit.SECONDS);
+        queue.enQueue(mail3);
+        assertEquals(3, queue.getSize());
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, "remove@me1"));
+        assertEquals(2, queue.getSize());
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Sender, "remove@me2"));
+        assertEquals(1, queue.getSize());
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Recipient, "remove@me3"));
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getSize(MemoryMailQueue.NORMAL_PRIORITY));
+    }
+
+    public void testClear() throws MessagingException {
+        queue.enQueue(createMail());
+        queue.enQueue(createMail(), 30, TimeUnit.SECONDS);
+
+        assertEquals(2, queue.clear());
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testBrowse() throws MessagingException, IOException {
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+        Mail mail3 = createMail();
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2, 30, TimeUnit.SECONDS);
+        queue.enQueue(mail3);
+
+        // ready mails first, then the delayed ones
+        MailQueueIterator it = queue.browse();
+        checkMail(mail, it.next().getMail());
+        checkMail(mail3, it.next().getMail());
+        assertTrue(it.next().getNextDelivery() > System.currentTimeMillis());
+        assertFalse(it.hasNext());
+        it.close();
+
+        assertEquals(3, queue.getSize());
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        it = queue.browse();
+        checkMail(mail3, it.next().getMail());
+        checkMail(mail2, it.next().getMail());
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    private MailImpl createMail() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName("test-" + count++);
+        mail.setAttribute("test1", System.currentTimeMillis());
+        mail.setErrorMessage(UUID.randomUUID().toString());
+        mail.setLastUpdated(new Date());
+        mail.setRecipients(Arrays.asList(new MailAddress("test@test"), new MailAddress("test@test2")));
+        mail.setSender(new MailAddress("sender@senderdomain"));
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.setHeader("testheader", "testvalie");
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void checkMail(Mail enqueuedMail, Mail dequeuedMail) throws MessagingException, IOException {
+        assertEquals(enqueuedMail.getErrorMessage(), dequeuedMail.getErrorMessage());
+        assertEquals(enqueuedMail.getMessageSize(), dequeuedMail.getMessageSize());
+        assertEquals(enqueuedMail.getName(), dequeuedMail.getName());
+        assertEquals(enqueuedMail.getState(), dequeuedMail.getState());
+        assertEquals(enqueuedMail.getLastUpdated(), dequeuedMail.getLastUpdated());
+        assertEquals(enqueuedMail.getSender(), dequeuedMail.getSender());
+        assertEquals(enqueuedMail.getRecipients().size(), dequeuedMail.getRecipients().size());
+
+        Iterator<String> attributes = enqueuedMail.getAttributeNames();
+        while (attributes.hasNext()) {
+            String name = attributes.next();
+            assertNotNull(dequeuedMail.getAttribute(name));
+        }
+
+        Enumeration<String> enQueuedHeaders = enqueuedMail.getMessage().getAllHeaderLines();
+        Enumeration<String> deQueuedHeaders = dequeuedMail.getMessage().getAllHeaderLines();
+        while (enQueuedHeaders.hasMoreElements()) {
+            assertEquals(enQueuedHeaders.nextElement(), deQueuedHeaders.nextElement());
+        }
+        assertFalse(deQueuedHeaders.hasMoreElements());
+
+        assertEquals(enqueuedMail.getMessage().getContent(), dequeuedMail.getMessage().getContent());
+    }
+}
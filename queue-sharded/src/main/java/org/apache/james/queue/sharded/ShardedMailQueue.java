@@ -0,0 +1,471 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.sharded;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * <p>
+ * Logical {@link ManageableMailQueue} which is backed by a number of physical
+ * {@link MailQueue}'s (shards). Every mail is enqueued to exactly one shard,
+ * which is selected by the hash of its name or of the domain of its first
+ * recipient.
+ * </p>
+ * <p>
+ * Each consumer thread has a home shard, which is assigned on its first
+ * dequeue. It takes ready mails from its home shard first and then from the
+ * others, and only blocks on its home shard, for at most the poll interval.
+ * After every dequeue the home moves on to the next shard, so every shard
+ * gets a consumer which really waits on it in turn. This matters for shards
+ * like the JMS ones, where a dequeue without timeout does not see mails which
+ * were not dispatched to the consumer yet, so the sweep over the other
+ * shards alone could leave mails in a shard nobody waits on.
+ * </p>
+ * <p>
+ * The management operations work on all shards and need shards which are
+ * {@link ManageableMailQueue}'s. A batch enqueue is split by shard, so it is
+ * only atomic per shard.
+ * </p>
+ * <p>
+ * Additional receive-only sources, like the queue which was used before the
+ * sharding was enabled, are dequeued from and managed like shards but never
+ * enqueued to. A source is dropped once it is empty and none of its dequeued
+ * mails is still in progress.
+ * </p>
+ */
+public class ShardedMailQueue implements ManageableMailQueue {
+
+    private final String name;
+    private final MailQueue[] shards;
+    private final boolean byDomain;
+    private final long pollInterval;
+    private volatile Source[] sources;
+
+    private final AtomicInteger nextHome = new AtomicInteger();
+    private final ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+        protected Integer initialValue() {
+            return nextHome.getAndIncrement() & Integer.MAX_VALUE;
+        }
+    };
+
+    /**
+     * Create a new queue
+     * 
+     * @param name
+     *            the name of the logical queue
+     * @param shards
+     *            the physical queues
+     * @param byDomain
+     *            select the shard by the domain of the first recipient instead
+     *            of the name of the mail
+     * @param pollInterval
+     *            the max time (in ms) to wait on the own shard before looking
+     *            at the others again
+     */
+    public ShardedMailQueue(String name, MailQueue[] shards, boolean byDomain, long pollInterval) {
+        this(name, shards, new MailQueue[0], byDomain, pollInterval);
+    }
+
+    /**
+     * Create a new queue which also dequeues the mails of the given sources
+     * until they are empty
+     * 
+     * @param name
+     *            the name of the logical queue
+     * @param shards
+     *            the physical queues
+     * @param sources
+     *            the receive-only queues
+     * @param byDomain
+     *            select the shard by the domain of the first recipient instead
+     *            of the name of the mail
+     * @param pollInterval
+     *            the max time (in ms) to wait on the own shard before looking
+     *            at the others again
+     */
+    public ShardedMailQueue(String name, MailQueue[] shards, MailQueue[] sources, boolean byDomain, long pollInterval) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.name = name;
+        this.shards = shards.clone();
+        this.sources = new Source[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            this.sources[i] = new Source(sources[i]);
+        }
+        this.byDomain = byDomain;
+        this.pollInterval = Math.max(1, pollInterval);
+    }
+
+    /**
+     * Return the name of the logical queue
+     * 
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the physical queues
+     * 
+     * @return shards
+     */
+    public List<MailQueue> getShards() {
+        List<MailQueue> list = new ArrayList<MailQueue>();
+        Collections.addAll(list, shards);
+        return list;
+    }
+
+    /**
+     * Return the receive-only sources which are not drained yet
+     * 
+     * @return sources
+     */
+    public List<MailQueue> getSources() {
+        List<MailQueue> list = new ArrayList<MailQueue>();
+        for (Source source : sources) {
+            list.add(source.queue);
+        }
+        return list;
+    }
+
+    /**
+     * Return the index of the shard the given mail belongs to
+     * 
+     * @param mail
+     * @return shard
+     */
+    protected int getShard(Mail mail) {
+        String key = null;
+        if (byDomain) {
+            Collection<MailAddress> rcpts = mail.getRecipients();
+            if (rcpts != null && !rcpts.isEmpty()) {
+                key = rcpts.iterator().next().getDomain().toLowerCase();
+            }
+        }
+        if (key == null) {
+            key = mail.getName();
+        }
+        if (key == null) {
+            return 0;
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail,
+     *      long, java.util.concurrent.TimeUnit)
+     */
+    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        shards[getShard(mail)].enQueue(mail, delay, unit);
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail)
+     */
+    public void enQueue(Mail mail) throws MailQueueException {
+        shards[getShard(mail)].enQueue(mail);
+    }
+
+    /**
+     * Enqueue the mails of every shard as one batch
+     * 
+     * @see org.apache.james.queue.api.MailQueue#enQueue(java.util.Collection)
+     */
+    @SuppressWarnings("unchecked")
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        List<Mail>[] batches = new List[shards.length];
+        for (Mail mail : mails) {
+            int shard = getShard(mail);
+            if (batches[shard] == null) {
+                batches[shard] = new ArrayList<Mail>();
+            }
+            batches[shard].add(mail);
+        }
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                shards[i].enQueue(batches[i]);
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#deQueue()
+     */
+    public MailQueueItem deQueue() throws MailQueueException {
+        while (true) {
+            List<MailQueueItem> items = deQueue(1, pollInterval, TimeUnit.MILLISECONDS);
+            if (!items.isEmpty()) {
+                return items.get(0);
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueue#deQueue(int, long,
+     *      java.util.concurrent.TimeUnit)
+     */
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        // the sources get waited on in turn like the shards
+        Source[] sources = this.sources;
+        int count = shards.length + sources.length;
+        int own = home.get() % count;
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            while (true) {
+                // take what is ready right now, starting with the home shard
+                for (int i = 0; i < count && items.size() < max; i++) {
+                    deQueue((own + i) % count, sources, items, max - items.size(), 0);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (!items.isEmpty() || remaining <= 0) {
+                    return items;
+                }
+                deQueue(own, sources, items, max, Math.min(remaining, pollInterval));
+                if (items.isEmpty()) {
+                    if (own >= shards.length) {
+                        dropIfDrained(sources[own - shards.length]);
+                    }
+                    // wait on the next shard for the rest of the timeout
+                    own = (own + 1) % count;
+                }
+            }
+        } catch (MailQueueException e) {
+            if (items.isEmpty()) {
+                throw e;
+            }
+            // return what we have so far
+            return items;
+        } finally {
+            home.set((own + 1) % count);
+        }
+    }
+
+    /**
+     * Dequeue from the shard or source with the given index and add the items
+     * to the given list
+     */
+    private void deQueue(int index, Source[] sources, List<MailQueueItem> items, int max, long timeout) throws MailQueueException {
+        if (index < shards.length) {
+            items.addAll(shards[index].deQueue(max, timeout, TimeUnit.MILLISECONDS));
+        } else {
+            Source source = sources[index - shards.length];
+            for (MailQueueItem item : source.queue.deQueue(max, timeout, TimeUnit.MILLISECONDS)) {
+                items.add(new SourceItem(source, item));
+            }
+        }
+    }
+
+    /**
+     * Drop the given source if it is empty and none of its mails is in
+     * progress, as these would go back to it on failure
+     */
+    private void dropIfDrained(Source source) throws MailQueueException {
+        if (source.inProgress.get() > 0 || !(source.queue instanceof ManageableMailQueue) || ((ManageableMailQueue) source.queue).getSize() > 0) {
+            return;
+        }
+        synchronized (this) {
+            List<Source> remaining = new ArrayList<Source>();
+            for (Source s : sources) {
+                if (s != source) {
+                    remaining.add(s);
+                }
+            }
+            sources = remaining.toArray(new Source[remaining.size()]);
+        }
+    }
+
+    /**
+     * Return the shards and the sources which are not drained yet
+     */
+    private List<MailQueue> getQueues() {
+        List<MailQueue> queues = getShards();
+        queues.addAll(getSources());
+        return queues;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#getSize()
+     */
+    public long getSize() throws MailQueueException {
+        long size = 0;
+        for (MailQueue shard : getQueues()) {
+            size += manageable(shard).getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#getSize(int)
+     */
+    public long getSize(int priority) throws MailQueueException {
+        long size = 0;
+        for (MailQueue shard : getQueues()) {
+            size += manageable(shard).getSize(priority);
+        }
+        return size;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#flush()
+     */
+    public long flush() throws MailQueueException {
+        long count = 0;
+        for (MailQueue shard : getQueues()) {
+            count += manageable(shard).flush();
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#clear()
+     */
+    public long clear() throws MailQueueException {
+        long count = 0;
+        for (MailQueue shard : getQueues()) {
+            count += manageable(shard).clear();
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.queue.api.ManageableMailQueue#remove(org.apache.james.queue.api.ManageableMailQueue.Type,
+     *      java.lang.String)
+     */
+    public long remove(Type type, String value) throws MailQueueException {
+        long count = 0;
+        for (MailQueue shard : getQueues()) {
+            count += manageable(shard).remove(type, value);
+        }
+        return count;
+    }
+
+    /**
+     * Browse the shards one after the other
+     * 
+     * @see org.apache.james.queue.api.ManageableMailQueue#browse()
+     */
+    public MailQueueIterator browse() throws MailQueueException {
+        final List<MailQueueIterator> iterators = new ArrayList<MailQueueIterator>();
+        try {
+            for (MailQueue shard : getQueues()) {
+                iterators.add(manageable(shard).browse());
+            }
+        } catch (MailQueueException e) {
+            for (MailQueueIterator it : iterators) {
+                it.close();
+            }
+            throw e;
+        }
+        return new MailQueueIterator() {
+            private int current = 0;
+
+            public boolean hasNext() {
+                while (current < iterators.size()) {
+                    if (iterators.get(current).hasNext()) {
+                        return true;
+                    }
+                    current++;
+                }
+                return false;
+            }
+
+            public MailQueueItemView next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterators.get(current).next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            public void close() {
+                for (MailQueueIterator it : iterators) {
+                    it.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Receive-only queue and the count of its dequeued mails which are not
+     * done yet
+     */
+    private final static class Source {
+        private final MailQueue queue;
+        private final AtomicInteger inProgress = new AtomicInteger();
+
+        public Source(MailQueue queue) {
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * {@link MailQueueItem} of a {@link Source}, which keeps the source in
+     * place till it is done
+     */
+    private final static class SourceItem implements MailQueueItem {
+        private final Source source;
+        private final MailQueueItem item;
+        private boolean done = false;
+
+        public SourceItem(Source source, MailQueueItem item) {
+            this.source = source;
+            this.item = item;
+            source.inProgress.incrementAndGet();
+        }
+
+        public Mail getMail() {
+            return item.getMail();
+        }
+
+        public synchronized void done(boolean success) throws MailQueueException {
+            try {
+                item.done(success);
+            } finally {
+                if (!done) {
+                    done = true;
+                    source.inProgress.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private ManageableMailQueue manageable(MailQueue shard) throws MailQueueException {
+        if (shard instanceof ManageableMailQueue) {
+            return (ManageableMailQueue) shard;
+        }
+        throw new MailQueueException("Shards of queue " + name + " are not manageable");
+    }
+}
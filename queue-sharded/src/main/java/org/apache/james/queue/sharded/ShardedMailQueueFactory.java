@@ -0,0 +1,262 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.sharded;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueueMBeanRegistry;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.library.MailQueueManagement;
+
+/**
+ * <p>
+ * {@link MailQueueFactory} which spreads a logical {@link MailQueue} over a
+ * number of physical queues (shards) of another {@link MailQueueFactory}. This
+ * allows many consumers to work on one logical queue without all of them
+ * contending on one JMS destination or one queue directory.
+ * </p>
+ * <p>
+ * Only the configured queues are sharded, all others are returned by the
+ * wrapped factory as they are. The shards get the shard number appended to
+ * the name of the logical queue (for example <code>spool-0</code>,
+ * <code>spool-1</code>), so every physical queue and its MBeans have their own
+ * name, while the logical queue is registered via JMX under its own name.
+ * </p>
+ * <p>
+ * Mails which were queued in the unsharded queue before the sharding was
+ * enabled, or in the shards above the current count after it was lowered (see
+ * {@link #setPreviousShards(int)}), are dequeued via the logical queue until
+ * these queues are empty. Non-empty ones are looked up when the logical queue
+ * is created.
+ * </p>
+ * <p>
+ * To use it register the factory of the queue implementation under another
+ * name and this factory as <code>mailqueuefactory</code>.
+ * </p>
+ */
+public class ShardedMailQueueFactory implements MailQueueFactory {
+
+    /**
+     * Select the shard by the name of the mail
+     */
+    public final static String KEY_NAME = "name";
+
+    /**
+     * Select the shard by the domain of the first recipient
+     */
+    public final static String KEY_DOMAIN = "domain";
+
+    private final Map<String, MailQueue> queues = new HashMap<String, MailQueue>();
+    private final Set<String> shardedQueues = new HashSet<String>();
+    private MailQueueFactory factory;
+    private int shards = 4;
+    private int previousShards = 0;
+    private String shardKey = KEY_NAME;
+    private long pollInterval = 1000;
+    private boolean useJMX = true;
+    private MailQueueMBeanRegistry mbeans;
+
+    public ShardedMailQueueFactory() {
+        shardedQueues.add(SPOOL);
+    }
+
+    /**
+     * Set the {@link MailQueueFactory} which creates the physical queues
+     * 
+     * @param factory
+     */
+    public void setMailQueueFactory(MailQueueFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Set the count of physical queues per sharded queue. Default is 4
+     * 
+     * @param shards
+     */
+    public void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Set the count of physical queues per sharded queue which was used
+     * before. If it is higher than the current count, the mails of the
+     * shards above the current count are dequeued until they are empty.
+     * Default is 0
+     * 
+     * @param previousShards
+     */
+    public void setPreviousShards(int previousShards) {
+        this.previousShards = previousShards;
+    }
+
+    /**
+     * Set the comma separated names of the queues which should get sharded.
+     * Default is <code>spool</code>
+     * 
+     * @param names
+     */
+    public void setShardedQueues(String names) {
+        shardedQueues.clear();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.length() > 0) {
+                shardedQueues.add(name);
+            }
+        }
+    }
+
+    /**
+     * Set the key which is used to select the shard of a mail. This is either
+     * <code>name</code> (the default) which spreads the mails evenly or
+     * <code>domain</code> which keeps all mails to the same recipient domain
+     * in the same shard
+     * 
+     * @param shardKey
+     */
+    public void setShardKey(String shardKey) {
+        if (!KEY_NAME.equals(shardKey) && !KEY_DOMAIN.equals(shardKey)) {
+            throw new IllegalArgumentException("Unknown shard key " + shardKey);
+        }
+        this.shardKey = shardKey;
+    }
+
+    /**
+     * Set the max time (in ms) a consumer waits on its own shard before it
+     * looks at the other shards again. Default is 1000
+     * 
+     * @param pollInterval
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * If <code>true</code> the management MBean of the later created sharded
+     * queues is registered via JMX
+     * 
+     * The default is <code>true</code>
+     * 
+     * @param useJMX
+     */
+    public void setUseJMX(boolean useJMX) {
+        this.useJMX = useJMX;
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (mbeans != null) {
+            mbeans.unregisterAll();
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.api.MailQueueFactory#getQueue(java.lang.String)
+     */
+    public synchronized MailQueue getQueue(String name) {
+        if (!shardedQueues.contains(name)) {
+            return factory.getQueue(name);
+        }
+        MailQueue queue = queues.get(name);
+        if (queue == null) {
+            MailQueue[] physical = new MailQueue[shards];
+            for (int i = 0; i < shards; i++) {
+                physical[i] = factory.getQueue(getShardName(name, i));
+            }
+            List<MailQueue> sources = new ArrayList<MailQueue>();
+            addIfNotEmpty(sources, factory.getQueue(name));
+            for (int i = shards; i < previousShards; i++) {
+                addIfNotEmpty(sources, factory.getQueue(getShardName(name, i)));
+            }
+            ShardedMailQueue shardedQueue = new ShardedMailQueue(name, physical, sources.toArray(new MailQueue[sources.size()]), KEY_DOMAIN.equals(shardKey), pollInterval);
+            if (useJMX) {
+                registerMBean(name, shardedQueue);
+            }
+            queue = shardedQueue;
+            queues.put(name, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Add the given queue to the sources of a sharded queue if it may still
+     * contain mails. Queues which can't tell are always added
+     * 
+     * @param sources
+     * @param queue
+     */
+    private void addIfNotEmpty(List<MailQueue> sources, MailQueue queue) {
+        try {
+            if (!(queue instanceof ManageableMailQueue) || ((ManageableMailQueue) queue).getSize() > 0) {
+                sources.add(queue);
+            }
+        } catch (MailQueueException e) {
+            throw new RuntimeException("Unable to check for mails in queue " + queue, e);
+        }
+    }
+
+    /**
+     * Return the name of the physical queue for the given shard
+     * 
+     * @param name
+     * @param shard
+     * @return shardName
+     */
+    protected String getShardName(String name, int shard) {
+        return name + "-" + shard;
+    }
+
+    /**
+     * Return the name which is used to register the MBean of the sharded
+     * queue with the given name. This is the same name the wrapped factories
+     * use for their queues.
+     * 
+     * @param queuename
+     * @return mbeanName
+     */
+    protected String getMBeanName(String queuename) {
+        return "org.apache.james:type=component,name=queue,queue=" + queuename;
+    }
+
+    private void registerMBean(String name, ShardedMailQueue queue) {
+        if (mbeans == null) {
+            mbeans = new MailQueueMBeanRegistry();
+        }
+        try {
+            // replaces the MBean the wrapped factory may have registered for
+            // the unsharded queue
+            mbeans.replace(getMBeanName(name), new MailQueueManagement(queue));
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.sharded;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.management.ObjectName;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.memory.MemoryMailQueue;
+import org.apache.james.queue.memory.MemoryMailQueueFactory;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+public class ShardedMailQueueFactoryTest extends TestCase {
+    private MemoryMailQueueFactory memoryFactory;
+    private ShardedMailQueueFactory factory;
+    private int count = 0;
+
+    public void setUp() throws Exception {
+        memoryFactory = new MemoryMailQueueFactory();
+        memoryFactory.setUseJMX(false);
+        factory = new ShardedMailQueueFactory();
+        factory.setMailQueueFactory(memoryFactory);
+        factory.setShards(4);
+        factory.setShardedQueues("spool, outgoing");
+        factory.setPollInterval(100);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        factory.destroy();
+        memoryFactory.destroy();
+    }
+
+    public void testShards() {
+        MailQueue other = factory.getQueue("other");
+        assertTrue(other instanceof MemoryMailQueue);
+
+        ShardedMailQueue spool = (ShardedMailQueue) factory.getQueue("spool");
+        assertSame(spool, factory.getQueue("spool"));
+
+        // every shard has its own name
+        List<MailQueue> shards = spool.getShards();
+        assertEquals(4, shards.size());
+        assertSame(memoryFactory.getQueue("spool-0"), shards.get(0));
+        assertSame(memoryFactory.getQueue("spool-3"), shards.get(3));
+        assertFalse(shards.contains(memoryFactory.getQueue("spool")));
+    }
+
+    public void testDrainUnshardedAndPreviousShards() throws Exception {
+        // mails queued before the sharding was enabled and before the count of
+        // shards was lowered from 6 to 4
+        Set<String> legacyNames = new HashSet<String>();
+        for (String legacy : new String[] { "spool", "spool-5" }) {
+            for (int i = 0; i < 3; i++) {
+                Mail mail = createMail("domain");
+                legacyNames.add(mail.getName());
+                memoryFactory.getQueue(legacy).enQueue(mail);
+            }
+        }
+        Set<String> names = new HashSet<String>(legacyNames);
+        factory.setPreviousShards(6);
+        ShardedMailQueue queue = (ShardedMailQueue) factory.getQueue("spool");
+
+        // empty queues are not looked at
+        List<MailQueue> sources = queue.getSources();
+        assertEquals(2, sources.size());
+        assertTrue(sources.contains(memoryFactory.getQueue("spool")));
+        assertTrue(sources.contains(memoryFactory.getQueue("spool-5")));
+        assertEquals(6, queue.getSize());
+
+        // new mails only go to the shards
+        Mail mail = createMail("domain");
+        names.add(mail.getName());
+        queue.enQueue(mail);
+        assertEquals(3, ((ManageableMailQueue) memoryFactory.getQueue("spool")).getSize());
+
+        // a failed mail goes back to its source, which must be kept for it
+        List<MailQueueItem> items = queue.deQueue(7, 1, TimeUnit.SECONDS);
+        while (items.size() < 7) {
+            items.addAll(queue.deQueue(7 - items.size(), 1, TimeUnit.SECONDS));
+        }
+        MailQueueItem failed = null;
+        for (MailQueueItem item : items) {
+            if (failed == null && legacyNames.contains(item.getMail().getName())) {
+                failed = item;
+            } else {
+                assertTrue(names.remove(item.getMail().getName()));
+                item.done(true);
+            }
+        }
+        assertNotNull(failed);
+        assertEquals(0, queue.getSize());
+        assertTrue(queue.deQueue(1, 700, TimeUnit.MILLISECONDS).isEmpty());
+        assertFalse(queue.getSources().isEmpty());
+
+        failed.done(false);
+        assertEquals(1, queue.getSize());
+        items = queue.deQueue(1, 1, TimeUnit.SECONDS);
+        assertEquals(1, items.size());
+        assertTrue(names.remove(items.get(0).getMail().getName()));
+        items.get(0).done(true);
+        assertTrue(names.isEmpty());
+
+        // the sources are dropped once they are drained
+        for (int i = 0; i < 10 && !queue.getSources().isEmpty(); i++) {
+            queue.deQueue(1, 700, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(queue.getSources().isEmpty());
+    }
+
+    public void testRegisterMBean() throws Exception {
+        ObjectName name = new ObjectName("org.apache.james:type=component,name=queue,queue=spool");
+        factory.getQueue("spool");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertEquals(0L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Size"));
+
+        factory.destroy();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    public void testNoStarvationIfShardsOnlyDeliverOnWait() throws MessagingException {
+        // shards which never return anything without a timeout, like the JMS
+        // ones if the mails were not dispatched to the consumer yet
+        MailQueue[] shards = new MailQueue[4];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new WaitOnlyMailQueue(new MemoryMailQueue("wait-" + i, 100));
+        }
+        ShardedMailQueue queue = new ShardedMailQueue("wait", shards, false, 50);
+
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 20; i++) {
+            Mail mail = createMail("domain");
+            names.add(mail.getName());
+            queue.enQueue(mail);
+        }
+
+        // a single consumer must still get the mails of every shard
+        for (int i = 0; i < 20; i++) {
+            List<MailQueueItem> items = queue.deQueue(1, 1, TimeUnit.SECONDS);
+            assertEquals(1, items.size());
+            assertTrue(names.remove(items.get(0).getMail().getName()));
+            items.get(0).done(true);
+        }
+        assertTrue(names.isEmpty());
+    }
+
+    public void testEnQueueByDomain() throws MessagingException {
+        factory.setShardKey(ShardedMailQueueFactory.KEY_DOMAIN);
+        ShardedMailQueue queue = (ShardedMailQueue) factory.getQueue("outgoing");
+
+        List<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 10; i++) {
+            mails.add(createMail("domain" + (i % 2)));
+        }
+        queue.enQueue(mails);
+        queue.enQueue(createMail("domain0"));
+        assertEquals(11, queue.getSize());
+
+        // all mails of a domain must end up in the same shard
+        Set<Long> sizes = new HashSet<Long>();
+        for (MailQueue shard : queue.getShards()) {
+            long size = ((ManageableMailQueue) shard).getSize();
+            if (size > 0) {
+                sizes.add(size);
+            }
+        }
+        assertTrue(sizes.equals(new HashSet<Long>(Arrays.asList(5L, 6L))) || sizes.equals(new HashSet<Long>(Arrays.asList(11L))));
+    }
+
+    public void testDeQueueFromAllShards() throws MessagingException {
+        ShardedMailQueue queue = (ShardedMailQueue) factory.getQueue("spool");
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 20; i++) {
+            Mail mail = createMail("domain");
+            names.add(mail.getName());
+            queue.enQueue(mail);
+        }
+
+        // a single consumer must see the mails of all shards
+        for (int i = 0; i < 15; i++) {
+            MailQueueItem item = queue.deQueue();
+            assertTrue(names.remove(item.getMail().getName()));
+            item.done(true);
+        }
+        List<MailQueueItem> items = queue.deQueue(10, 1, TimeUnit.SECONDS);
+        assertEquals(5, items.size());
+        for (MailQueueItem item : items) {
+            assertTrue(names.remove(item.getMail().getName()));
+            item.done(true);
+        }
+        assertTrue(names.isEmpty());
+
+        // should not block longer then the timeout if nothing is ready
+        long start = System.currentTimeMillis();
+        items = queue.deQueue(5, 500, TimeUnit.MILLISECONDS);
+        assertTrue(items.isEmpty());
+        assertTrue(System.currentTimeMillis() - start >= 400);
+    }
+
+    public void testManagement() throws MessagingException {
+        ShardedMailQueue queue = (ShardedMailQueue) factory.getQueue("spool");
+        Mail mail = createMail("domain");
+        queue.enQueue(mail);
+        for (int i = 0; i < 9; i++) {
+            queue.enQueue(createMail("domain"), 1, TimeUnit.HOURS);
+        }
+        assertEquals(10, queue.getSize());
+
+        int browsed = 0;
+        MailQueueIterator it = queue.browse();
+        while (it.hasNext()) {
+            assertNotNull(it.next().getMail());
+            browsed++;
+        }
+        it.close();
+        assertEquals(10, browsed);
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, mail.getName()));
+        assertEquals(9, queue.getSize());
+
+        assertEquals(9, queue.flush());
+        assertEquals(9, queue.clear());
+        assertEquals(0, queue.getSize());
+    }
+
+    private final static class WaitOnlyMailQueue implements MailQueue {
+        private final MailQueue queue;
+
+        public WaitOnlyMailQueue(MailQueue queue) {
+            this.queue = queue;
+        }
+
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            queue.enQueue(mail, delay, unit);
+        }
+
+        public void enQueue(Mail mail) throws MailQueueException {
+            queue.enQueue(mail);
+        }
+
+        public void enQueue(Collection<Mail> mails) throws MailQueueException {
+            queue.enQueue(mails);
+        }
+
+        public MailQueueItem deQueue() throws MailQueueException {
+            return queue.deQueue();
+        }
+
+        public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+            if (timeout <= 0) {
+                return Collections.emptyList();
+            }
+            return queue.deQueue(max, timeout, unit);
+        }
+    }
+
+    private MailImpl createMail(String domain) throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setName("test-" + count++);
+        mail.setRecipients(Arrays.asList(new MailAddress("test@" + domain)));
+        mail.setSender(new MailAddress("sender@senderdomain"));
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("test");
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+}
@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -186,4 +188,46 @@ public class JMXEnabledThreadPoolExecutor extends ThreadPoolExecutor implements
     public static JMXEnabledThreadPoolExecutor newFixedThreadPool(String jmxPath, String name, int nThreads) {
         return newFixedThreadPool(jmxPath, nThreads, new NamedThreadFactory(name));
     }
+
+    /**
+     * Create an elastic instance of this class which hands every task to an
+     * idle thread and only starts a new thread if none is idle, up to
+     * maxThreads threads. Threads are stopped again after they were idle for 60
+     * seconds, so the pool size follows the count of concurrently running
+     * tasks. Tasks are not queued, a task which is submitted while maxThreads
+     * threads are busy waits until one of them is free. So the caller should
+     * bound the count of concurrently submitted tasks to maxThreads. If jmxPath
+     * is null it will not register itself to the {@link MBeanServer}
+     * 
+     * @param jmxPath
+     * @param maxThreads
+     * @param threadFactory
+     * @return pool
+     */
+    public static JMXEnabledThreadPoolExecutor newElasticThreadPool(String jmxPath, int maxThreads, NamedThreadFactory threadFactory) {
+        JMXEnabledThreadPoolExecutor pool = new JMXEnabledThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory, jmxPath);
+        pool.setRejectedExecutionHandler(new WaitForThreadPolicy());
+        return pool;
+    }
+
+    /**
+     * {@link RejectedExecutionHandler} which waits until a thread takes the
+     * task. A thread which just finished a task may not wait for the next one
+     * yet, even though the caller already got notified that it is done.
+     */
+    private final static class WaitForThreadPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            try {
+                while (!executor.getQueue().offer(r, 100, TimeUnit.MILLISECONDS)) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Thread pool is shut down");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a thread");
+            }
+        }
+    }
 }
@@ -29,13 +29,31 @@ public class NamedThreadFactory implements ThreadFactory {
     public final String name;
     private final AtomicLong count = new AtomicLong();
     private int priority;
+    private long stackSize;
 
-    public NamedThreadFactory(final String name, final int priority) {
+    /**
+     * Create a new factory
+     * 
+     * @param name
+     * @param priority
+     * @param stackSize
+     *            the stack size (in bytes) of the created threads. If 0 the
+     *            default of the JVM is used
+     */
+    public NamedThreadFactory(final String name, final int priority, final long stackSize) {
         if (priority > Thread.MAX_PRIORITY || priority < Thread.MIN_PRIORITY) {
             throw new IllegalArgumentException("Priority must be <= " + Thread.MAX_PRIORITY + " and >=" + Thread.MIN_PRIORITY);
         }
+        if (stackSize < 0) {
+            throw new IllegalArgumentException("Stack size must be >= 0");
+        }
         this.name = name;
         this.priority = priority;
+        this.stackSize = stackSize;
+    }
+
+    public NamedThreadFactory(final String name, final int priority) {
+        this(name, priority, 0);
     }
 
     public NamedThreadFactory(final String name) {
@@ -46,8 +64,7 @@ public class NamedThreadFactory implements ThreadFactory {
      * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
      */
     public Thread newThread(Runnable r) {
-        Thread t = new Thread(r);
-        t.setName(name + "-" + count.incrementAndGet());
+        Thread t = new Thread(null, r, name + "-" + count.incrementAndGet(), stackSize);
         t.setPriority(priority);
         return t;
     }
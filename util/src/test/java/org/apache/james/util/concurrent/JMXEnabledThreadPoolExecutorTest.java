@@ -0,0 +1,89 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class JMXEnabledThreadPoolExecutorTest extends TestCase {
+
+    public void testElasticPoolFollowsActiveTasks() throws Exception {
+        JMXEnabledThreadPoolExecutor pool = JMXEnabledThreadPoolExecutor.newElasticThreadPool(null, 100, new NamedThreadFactory("elastic"));
+        try {
+            // steady load of at most 2 concurrent tasks, bounded by the caller
+            final Semaphore permits = new Semaphore(2);
+            final AtomicInteger maxPoolSize = new AtomicInteger();
+            for (int i = 0; i < 200; i++) {
+                permits.acquire();
+                pool.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        permits.release();
+                    }
+                });
+                maxPoolSize.set(Math.max(maxPoolSize.get(), pool.getPoolSize()));
+            }
+
+            // idle threads take the next task, so only a few threads are
+            // started instead of one per task up to the max
+            assertTrue("Pool grew to " + maxPoolSize.get() + " threads", maxPoolSize.get() <= 4);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testElasticPoolWaitsForFreeThread() throws Exception {
+        JMXEnabledThreadPoolExecutor pool = JMXEnabledThreadPoolExecutor.newElasticThreadPool(null, 2, new NamedThreadFactory("elastic"));
+        try {
+            final CountDownLatch proceed = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(3);
+            for (int i = 0; i < 3; i++) {
+                if (i == 2) {
+                    // the third task waits for a free thread instead of
+                    // getting rejected
+                    proceed.countDown();
+                }
+                pool.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            proceed.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(2, pool.getLargestPoolSize());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}